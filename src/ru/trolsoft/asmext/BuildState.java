@@ -0,0 +1,291 @@
+package ru.trolsoft.asmext;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent state of incremental builds. For every translated file keeps stamps (size, modification time and
+ * CRC32 of the content) of the source, the output and all included files. A file is translated again only if one
+ * of them was changed or if the state was written by another build of the translator.
+ *
+ * format:  magic, version, translator fingerprint, count + units
+ * unit:    source path, output path, source stamp, output stamp, count + include stamps
+ * stamp:   path, modification time, size, CRC32
+ */
+class BuildState {
+    private static final int MAGIC = 0x41584253;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final String fingerprint;
+    private final Map<String, Unit> units = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    BuildState(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Loads the state, a missing, damaged or outdated file gives an empty state
+     */
+    static BuildState load(File file, String fingerprint) {
+        BuildState state = new BuildState(file, fingerprint);
+        if (!file.exists()) {
+            return state;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !fingerprint.equals(in.readUTF())) {
+                return state;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String source = in.readUTF();
+                String output = in.readUTF();
+                FileStamp sourceStamp = readStamp(in);
+                FileStamp outputStamp = readStamp(in);
+                int includesCount = in.readInt();
+                List<FileStamp> includes = new ArrayList<>(includesCount);
+                for (int j = 0; j < includesCount; j++) {
+                    includes.add(readStamp(in));
+                }
+                state.units.put(source, new Unit(output, sourceStamp, outputStamp, includes));
+            }
+        } catch (IOException e) {
+            // will be rebuilt from scratch
+            state.units.clear();
+        }
+        return state;
+    }
+
+    /**
+     * Returns a string that identifies the translator build, changed translator invalidates the state
+     */
+    static String buildFingerprint() {
+        String version = Main.class.getPackage().getImplementationVersion();
+        StringBuilder sb = new StringBuilder(version != null ? version : "dev");
+        try {
+            File location = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            sb.append('|').append(location.length()).append('|').append(location.lastModified());
+        } catch (URISyntaxException | RuntimeException e) {
+            // version only
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if the output was built from the same source and includes and wasn't changed after that
+     */
+    boolean isUpToDate(File srcFile, File outFile) throws IOException {
+        Unit unit = units.get(getKey(srcFile));
+        if (unit == null || !unit.output.equals(outFile.getAbsolutePath())) {
+            return false;
+        }
+        if (!unit.source.isActual() || !unit.outputStamp.isActual()) {
+            return false;
+        }
+        for (FileStamp stamp : unit.includes) {
+            if (!stamp.isActual()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stamps the source, it must be called before the source is read
+     */
+    Inputs startReading(File srcFile) throws IOException {
+        return new Inputs(srcFile);
+    }
+
+    void update(File srcFile, File outFile, List<File> includes) throws IOException {
+        update(startReading(srcFile), outFile, includes);
+    }
+
+    /**
+     * Saves the stamps taken before the files were read, so a file saved during the translation isn't up to date
+     * next time. Includes that weren't stamped by the inputs are stamped now.
+     */
+    void update(Inputs inputs, File outFile, List<File> includes) throws IOException {
+        if (inputs.error != null) {
+            throw inputs.error;
+        }
+        List<FileStamp> includeStamps = new ArrayList<>(includes.size());
+        for (File f : includes) {
+            FileStamp stamp = inputs.includes.get(f.getAbsolutePath());
+            includeStamps.add(stamp != null ? stamp : FileStamp.of(f));
+        }
+        Unit unit = new Unit(outFile.getAbsolutePath(), inputs.source, FileStamp.of(outFile), includeStamps);
+        units.put(getKey(inputs.srcFile), unit);
+        modified = true;
+    }
+
+    /**
+     * Returns files included by the source during the last successful translation
+     */
+    List<File> getIncludes(File srcFile) {
+        Unit unit = units.get(getKey(srcFile));
+        if (unit == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<>(unit.includes.size());
+        for (FileStamp stamp : unit.includes) {
+            result.add(new File(stamp.path));
+        }
+        return result;
+    }
+
+    void remove(File srcFile) {
+        if (units.remove(getKey(srcFile)) != null) {
+            modified = true;
+        }
+    }
+
+    int size() {
+        return units.size();
+    }
+
+    /**
+     * Writes the state to the file, the state without a file is kept in memory only
+     */
+    void save() throws IOException {
+        if (!modified || file == null) {
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+                Map<String, Unit> snapshot = new HashMap<>(units);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Unit> e : snapshot.entrySet()) {
+                    Unit unit = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(unit.output);
+                    writeStamp(out, unit.source);
+                    writeStamp(out, unit.outputStamp);
+                    out.writeInt(unit.includes.size());
+                    for (FileStamp stamp : unit.includes) {
+                        writeStamp(out, stamp);
+                    }
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            modified = false;
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static String getKey(File srcFile) {
+        return srcFile.getAbsolutePath();
+    }
+
+    private static void writeStamp(DataOutputStream out, FileStamp stamp) throws IOException {
+        out.writeUTF(stamp.path);
+        out.writeLong(stamp.lastModified);
+        out.writeLong(stamp.length);
+        out.writeLong(stamp.hash);
+    }
+
+    private static FileStamp readStamp(DataInputStream in) throws IOException {
+        return new FileStamp(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    static long hash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue();
+    }
+
+    private static class FileStamp {
+        final String path;
+        final long lastModified;
+        final long length;
+        final long hash;
+
+        FileStamp(String path, long lastModified, long length, long hash) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        static FileStamp of(File file) throws IOException {
+            return new FileStamp(file.getAbsolutePath(), file.lastModified(), file.length(), hash(file));
+        }
+
+        /**
+         * The content is hashed only if the modification time was changed
+         */
+        boolean isActual() throws IOException {
+            File file = new File(path);
+            if (!file.isFile() || file.length() != length) {
+                return false;
+            }
+            return file.lastModified() == lastModified || hash(file) == hash;
+        }
+    }
+
+    /**
+     * Stamps of the source and of the include files taken before they are read by the translator, it is
+     * a listener of the parser includes
+     */
+    static class Inputs implements Consumer<File> {
+        private final File srcFile;
+        private final FileStamp source;
+        private final Map<String, FileStamp> includes = new HashMap<>();
+        private IOException error;
+
+        private Inputs(File srcFile) throws IOException {
+            this.srcFile = srcFile;
+            this.source = FileStamp.of(srcFile);
+        }
+
+        @Override
+        public void accept(File file) {
+            String path = file.getAbsolutePath();
+            if (error != null || includes.containsKey(path)) {
+                return;
+            }
+            try {
+                includes.put(path, FileStamp.of(file));
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private static class Unit {
+        final String output;
+        final FileStamp source;
+        final FileStamp outputStamp;
+        final List<FileStamp> includes;
+
+        Unit(String output, FileStamp source, FileStamp outputStamp, List<FileStamp> includes) {
+            this.output = output;
+            this.source = source;
+            this.outputStamp = outputStamp;
+            this.includes = includes;
+        }
+    }
+}
@@ -1,38 +1,251 @@
 package ru.trolsoft.asmext;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.net.ConnectException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ru.trolsoft.asmext.compiler.CycleCounter;
+import ru.trolsoft.asmext.compiler.PeepholeOptimizer;
+import ru.trolsoft.asmext.files.ChecksumChannel;
+import ru.trolsoft.asmext.files.OutputFile;
+import ru.trolsoft.asmext.processor.IncludeCache;
 import ru.trolsoft.asmext.processor.Parser;
 import ru.trolsoft.asmext.processor.SyntaxException;
 
 public class Main {
+    /**
+     * Files larger than this are always translated in streaming mode
+     */
+    private static final long STREAM_THRESHOLD = 8 * 1024 * 1024;
+    /**
+     * Extension of the report of cycles added to the output file name
+     */
+    private static final String CYCLES_EXT = ".cycles";
+
+    private final Options options;
+    private final PrintStream log;
+    private final boolean stream;
+    private final boolean ifChanged;
+    /**
+     * Optimizer shared by all translated files, null if disabled
+     */
+    private final PeepholeOptimizer optimizer;
+    /**
+     * Counter of cycles shared by all translated files, null if disabled
+     */
+    private final CycleCounter cycleCounter;
+    private BuildState buildState;
+
+    Main(Options options, PrintStream log) {
+        this.options = options;
+        this.log = log;
+        this.stream = options.stream;
+        this.ifChanged = options.ifChanged;
+        this.optimizer = options.peephole ? createOptimizer(options.disabledRules) : null;
+        this.cycleCounter = options.cycles ? new CycleCounter(options.core) : null;
+    }
+
+    private static PeepholeOptimizer createOptimizer(List<String> disabledRules) {
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        for (String name : disabledRules) {
+            optimizer.setEnabled(PeepholeOptimizer.Rule.fromName(name), false);
+        }
+        return optimizer;
+    }
 
-    private static void processFile(String srcPath, String outPath) throws IOException, SyntaxException {
+    private void processFile(String srcPath, String outPath) throws IOException, SyntaxException {
         long t0 = System.currentTimeMillis();
-        boolean gcc = srcPath.toLowerCase().endsWith(".s");
-        Parser parser = new Parser(gcc);
         File srcFile = new File(srcPath);
         if (!srcFile.exists()) {
             fatalError("File not found: " + srcPath);
         }
-        System.out.print("Process file: " + srcFile.getName());
-        parser.parse(srcFile);
-        parser.getOutput().writeToFile(outPath);
+        log.print("Process file: " + srcFile.getName());
+        if (!translate(srcFile, outPath)) {
+            log.println(" .. up to date");
+            return;
+        }
         t0 = System.currentTimeMillis() - t0;
-        System.out.println(" .. " + t0 + "ms");
+        log.println(" .. " + t0 + "ms");
+    }
+
+    /**
+     * Returns false if the file wasn't translated because the output is up to date
+     */
+    private boolean translate(File srcFile, String outPath) throws IOException, SyntaxException {
+        File outFile = new File(outPath);
+        if (buildState != null && buildState.isUpToDate(srcFile, outFile)) {
+            return false;
+        }
+        boolean gcc = srcFile.getName().toLowerCase().endsWith(".s");
+        Parser parser = new Parser(gcc);
+        parser.setOptimizer(optimizer);
+        parser.setCycleCounter(cycleCounter);
+        BuildState.Inputs inputs = null;
+        try {
+            if (buildState != null) {
+                inputs = buildState.startReading(srcFile);
+                parser.setIncludeListener(inputs);
+            }
+            if (stream || srcFile.length() > STREAM_THRESHOLD) {
+                translateStream(parser, srcFile, outFile);
+            } else {
+                parser.parse(srcFile);
+                if (ifChanged) {
+                    writeIfChanged(parser.getOutput(), outFile);
+                } else {
+                    parser.getOutput().writeToFile(outPath);
+                }
+            }
+        } catch (IOException | SyntaxException | RuntimeException e) {
+            if (buildState != null) {
+                buildState.remove(srcFile);
+            }
+            throw e;
+        }
+        if (cycleCounter != null) {
+            parser.getCycleReport().writeToFile(outPath + CYCLES_EXT);
+        }
+        if (buildState != null) {
+            buildState.update(inputs, outFile, parser.getIncludedFiles());
+        }
+        return true;
+    }
+
+    /**
+     * Writes to a temporary file that replaces the output file on success, so the output isn't damaged on errors
+     */
+    private void translateStream(Parser parser, File srcFile, File outFile) throws IOException, SyntaxException {
+        File tempFile = new File(outFile.getPath() + ".tmp");
+        boolean done = false;
+        try {
+            ChecksumChannel out;
+            try (FileChannel channel = openForWrite(tempFile)) {
+                out = new ChecksumChannel(channel);
+                parser.parse(srcFile, out);
+            }
+            if (!ifChanged || !out.matches(outFile)) {
+                replaceFile(tempFile, outFile);
+                done = true;
+            }
+        } finally {
+            if (!done) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Keeps the output file untouched if it has the same content, so its modification time doesn't trigger
+     * rebuilding of the dependent files
+     */
+    private void writeIfChanged(OutputFile output, File outFile) throws IOException {
+        ChecksumChannel checksum = new ChecksumChannel();
+        output.write(checksum);
+        if (checksum.matches(outFile)) {
+            return;
+        }
+        File tempFile = new File(outFile.getPath() + ".tmp");
+        boolean done = false;
+        try {
+            try (FileChannel channel = openForWrite(tempFile)) {
+                output.write(channel);
+            }
+            replaceFile(tempFile, outFile);
+            done = true;
+        } finally {
+            if (!done) {
+                tempFile.delete();
+            }
+        }
     }
 
-    private static List<AbstractMap.SimpleEntry<String, String>> buildProcessList(String[] args) {
+    private static FileChannel openForWrite(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void replaceFile(File tempFile, File outFile) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private FileResult translateFile(String srcPath, String outPath) {
+        FileResult result = new FileResult(srcPath);
+        long t0 = System.currentTimeMillis();
+        try {
+            result.upToDate = !translate(new File(srcPath), outPath);
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        } catch (SyntaxException e) {
+            result.error = srcPath + ":" + e.line + ": Error: " + e.getMessage();
+        } catch (RuntimeException e) {
+            // a failed file must not hide the results of the other files
+            result.error = srcPath + ": Internal error: " + e;
+        }
+        result.time = System.currentTimeMillis() - t0;
+        return result;
+    }
+
+    private int processParallel(List<AbstractMap.SimpleEntry<String, String>> processList, int jobs) {
+        for (AbstractMap.SimpleEntry<String, String> pair : processList) {
+            if (!new File(pair.getKey()).exists()) {
+                fatalError("File not found: " + pair.getKey());
+            }
+        }
+        long t0 = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(jobs, processList.size()));
+        List<ForkJoinTask<FileResult>> tasks = new ArrayList<>();
+        try {
+            for (AbstractMap.SimpleEntry<String, String> pair : processList) {
+                tasks.add(pool.submit(() -> translateFile(pair.getKey(), pair.getValue())));
+            }
+            // results are reported in the order of the command line regardless of the completion order
+            long totalTime = 0;
+            int errors = 0;
+            for (ForkJoinTask<FileResult> task : tasks) {
+                FileResult result = task.join();
+                totalTime += result.time;
+                if (result.error != null) {
+                    errors++;
+                    log.println("Process file: " + new File(result.src).getName());
+                    log.println(result.error);
+                } else if (result.upToDate) {
+                    log.println("Process file: " + new File(result.src).getName() + " .. up to date");
+                } else {
+                    log.println("Process file: " + new File(result.src).getName() + " .. " + result.time + "ms");
+                }
+            }
+            saveBuildState();
+            t0 = System.currentTimeMillis() - t0;
+            log.println("Processed " + tasks.size() + " files in " + t0 + "ms (" + totalTime + "ms total, "
+                    + pool.getParallelism() + " jobs)");
+            return errors > 0 ? 1 : 0;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    List<AbstractMap.SimpleEntry<String, String>> buildProcessList(List<String> args) {
         List<AbstractMap.SimpleEntry<String, String>> result = new ArrayList<>();
-        if (args.length == 2) {
-            String src = args[0];
-            String out = args[1];
+        if (args.size() == 2) {
+            String src = args.get(0);
+            String out = args.get(1);
             result.add(new AbstractMap.SimpleEntry<>(src, out));
         } else {
-            String srcPath = args[0];
-            String outPath = args[1];
+            String srcPath = args.get(0);
+            String outPath = args.get(1);
             if (!new File(outPath).exists()) {
                 fatalError("Output directory doesn't exists: " + outPath);
             }
@@ -42,8 +255,8 @@ public class Main {
             if (!outPath.endsWith(File.separator)) {
                 outPath += File.separator;
             }
-            for (int i = 2; i < args.length; i++) {
-                String arg = args[i];
+            for (int i = 2; i < args.size(); i++) {
+                String arg = args.get(i);
                 result.add(new AbstractMap.SimpleEntry<>(srcPath + arg, outPath + arg));
             }
         }
@@ -51,8 +264,111 @@ public class Main {
     }
 
     public static void main(String[] args) {
-        checkUsage(args);
-        List<AbstractMap.SimpleEntry<String, String>> processList = buildProcessList(args);
+        Options options = parseOptions(args, System.out);
+        if (options == null) {
+            System.exit(1);
+        }
+        if (options.serverSocket != null) {
+            startServer(options);
+            return;
+        }
+        int code;
+        if (options.connectSocket != null) {
+            code = forwardToServer(options, args);
+        } else {
+            code = new Main(options, System.out).run();
+        }
+        if (code != 0) {
+            System.exit(code);
+        }
+    }
+
+    private static void startServer(Options options) {
+        TranslationServer server;
+        try {
+            if (options.pchDir != null) {
+                setupPrecompiledHeaders(options.pchDir);
+            }
+            server = new TranslationServer(Paths.get(options.serverSocket));
+        } catch (IOException | FatalError e) {
+            System.out.println("Can't start server: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.out.println("Listening on " + server.getSocketPath());
+        server.serve();
+    }
+
+    private static int forwardToServer(Options options, String[] args) {
+        List<String> request = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--connect".equals(args[i])) {
+                i++;
+            } else {
+                request.add(args[i]);
+            }
+        }
+        try {
+            return TranslationServer.request(Paths.get(options.connectSocket), request.toArray(new String[0]),
+                    System.out);
+        } catch (ConnectException e) {
+            // no server is running, translate in this process
+            return new Main(options, System.out).run();
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Translates files of the command line and returns the exit code
+     */
+    int run() {
+        try {
+            int result = process();
+            if (options.peepholeStats && optimizer != null) {
+                printPeepholeStats();
+            }
+            return result;
+        } catch (FatalError e) {
+            log.println(e.getMessage());
+            return e.code;
+        }
+    }
+
+    private void printPeepholeStats() {
+        for (PeepholeOptimizer.Rule rule : PeepholeOptimizer.Rule.values()) {
+            if (optimizer.isEnabled(rule)) {
+                log.println("peephole " + rule.getName() + ": " + optimizer.getHits(rule));
+            }
+        }
+    }
+
+    private int process() {
+        if (options.pchDir != null) {
+            setupPrecompiledHeaders(options.pchDir);
+        }
+        if (options.buildState != null) {
+            buildState = BuildState.load(new File(options.buildState), getBuildFingerprint());
+        }
+        if (options.watch) {
+            try (Watcher watcher = new Watcher(this, options.paths)) {
+                watcher.run();
+            } catch (IOException e) {
+                fatalError("Can't watch files: " + e.getMessage());
+            }
+            return 0;
+        }
+        return process(buildProcessList(options.paths));
+    }
+
+    /**
+     * Translates the files, processing stops on the first error unless files are translated concurrently
+     */
+    int process(List<AbstractMap.SimpleEntry<String, String>> processList) {
+        if (options.jobs > 1 && processList.size() > 1) {
+            return processParallel(processList, options.jobs);
+        }
         String src = "", out;
         try {
             for (AbstractMap.SimpleEntry<String, String> pair : processList) {
@@ -61,27 +377,141 @@ public class Main {
                 processFile(src, out);
             }
         } catch (IOException e1) {
-            System.out.println();
-            System.out.println(e1.getMessage());
-            System.exit(1);
+            log.println();
+            log.println(e1.getMessage());
+            saveBuildState();
+            return 1;
         } catch (SyntaxException e2) {
-            System.out.println();
-            System.out.println(src + ":" + e2.line + ": Error: " + e2.getMessage());
-            System.exit(1);
+            log.println();
+            log.println(src + ":" + e2.line + ": Error: " + e2.getMessage());
+            saveBuildState();
+            return 1;
         }
+        saveBuildState();
+        return 0;
     }
 
-    private static void checkUsage(String[] args) {
-        if (args.length < 2) {
-            System.out.println("Usage: avr-asm-ext <source file> <output file>");
-            System.out.println("   or: avr-asm-ext <source path> <output path> <filename-1> .. <filename-n>");
-            System.exit(1);
+    BuildState getBuildState() {
+        return buildState;
+    }
+
+    void setBuildState(BuildState buildState) {
+        this.buildState = buildState;
+    }
+
+    Options getOptions() {
+        return options;
+    }
+
+    PrintStream getLog() {
+        return log;
+    }
+
+    /**
+     * Saves states of the translated files, including the ones translated before an error
+     */
+    void saveBuildState() {
+        if (buildState == null) {
+            return;
+        }
+        try {
+            buildState.save();
+        } catch (IOException e) {
+            log.println("Can't save build state: " + e.getMessage());
         }
     }
 
+    /**
+     * Options that change the output are a part of the fingerprint, files are translated again when they change
+     */
+    private String getBuildFingerprint() {
+        StringBuilder sb = new StringBuilder(BuildState.buildFingerprint());
+        if (optimizer == null) {
+            sb.append("|no-peephole");
+        } else {
+            for (String rule : options.disabledRules) {
+                sb.append("|no-").append(rule);
+            }
+        }
+        if (cycleCounter != null) {
+            sb.append("|cycles-").append(cycleCounter.getCore());
+        }
+        return sb.toString();
+    }
+
+    private static void setupPrecompiledHeaders(String path) {
+        File dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            fatalError("Can't create directory: " + path);
+        }
+        IncludeCache.getShared().setSnapshotDir(dir);
+    }
+
+    /**
+     * Returns null and prints usage if the arguments are wrong
+     */
+    static Options parseOptions(String[] args, PrintStream log) {
+        Options options = null;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            log.println(e.getMessage());
+        }
+        if (options == null || (options.paths.size() < 2 && options.serverSocket == null)) {
+            log.println("Usage: avr-asm-ext [options] <source file> <output file>");
+            log.println("   or: avr-asm-ext [options] <source path> <output path> <filename-1> .. <filename-n>");
+            log.println("   or: avr-asm-ext [--pch-dir <dir>] --server <socket>");
+            log.println();
+            log.println("Options:");
+            log.println("   -j <jobs>             translate up to <jobs> files concurrently (0 - number of CPUs)");
+            log.println("   --stream              translate line by line without keeping files in memory");
+            log.println("   --pch-dir <dir>       keep precompiled include files in <dir> between runs");
+            log.println("   --if-changed          don't rewrite output files which content wasn't changed");
+            log.println("   --build-state <file>  skip files not changed since the build recorded in <file>");
+            log.println("   --server <socket>     run translation server on the Unix domain socket file");
+            log.println("   --connect <socket>    translate by the server on the socket file if it is running");
+            log.println("   --no-peephole         don't optimize the translated code");
+            log.println("   --no-peephole-rule <name>  switch off one of the peephole rules: self-move, redundant-ldi,");
+            log.println("                         jump-to-next, branch-over-jump");
+            log.println("   --peephole-stats      print numbers of changes made by the peephole rules");
+            log.println("   --cycles              comment sizes and cycles of procedures and blocks, write them to");
+            log.println("                         <output file>" + CYCLES_EXT + " report");
+            log.println("   --core <name>         timing of cycles: classic (default), classic-22bit-pc, xmega, xt,");
+            log.println("                         reduced");
+            log.println("   --watch               translate changed files again until stopped, source and output");
+            log.println("                         paths may be directories to translate all files in them");
+            return null;
+        }
+        return options;
+    }
+
     private static void fatalError(String msg) {
-        System.out.println(msg);
-        System.exit(2);
+        throw new FatalError(msg, 2);
+    }
+
+    /**
+     * Stops processing of the command, the message is printed instead of a stack trace
+     */
+    private static class FatalError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        FatalError(String message, int code) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private static class FileResult {
+        final String src;
+        String error;
+        long time;
+        boolean upToDate;
+
+        FileResult(String src) {
+            this.src = src;
+        }
     }
 }
 /*
@@ -0,0 +1,177 @@
+package ru.trolsoft.asmext;
+
+import ru.trolsoft.asmext.compiler.PeepholeOptimizer;
+import ru.trolsoft.avr.Core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+class Options {
+    /**
+     * Number of files translated concurrently
+     */
+    int jobs = 1;
+    /**
+     * Directory for precompiled include snapshots, null if disabled
+     */
+    String pchDir;
+    /**
+     * Translate files line by line without keeping them in memory
+     */
+    boolean stream;
+    /**
+     * Don't rewrite output files with the same content
+     */
+    boolean ifChanged;
+    /**
+     * File with the state of the previous build for incremental builds, null if disabled
+     */
+    String buildState;
+    /**
+     * Unix domain socket of the translation server to start, null if not a server
+     */
+    String serverSocket;
+    /**
+     * Unix domain socket of the translation server the request is forwarded to, null to translate in this process
+     */
+    String connectSocket;
+    /**
+     * Watch sources and includes and translate changed files until the process is stopped
+     */
+    boolean watch;
+    /**
+     * Run the peephole optimizer over the translated code
+     */
+    boolean peephole = true;
+    /**
+     * Names of the peephole rules that are switched off
+     */
+    final List<String> disabledRules = new ArrayList<>();
+    /**
+     * Print numbers of changes made by the peephole rules
+     */
+    boolean peepholeStats;
+    /**
+     * Count sizes and cycles of procedures and blocks, they are written as comments and to the report file
+     * next to the output file
+     */
+    boolean cycles;
+    /**
+     * Core which timing is used for cycle counting
+     */
+    Core core = Core.CLASSIC;
+    /**
+     * Source and output paths (and file names) without options
+     */
+    final List<String> paths = new ArrayList<>();
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        int i = 0;
+        while (i < args.length) {
+            String arg = args[i++];
+            if ("-j".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("number of jobs expected after -j");
+                }
+                options.jobs = parseJobs(args[i++]);
+            } else if ("--stream".equals(arg)) {
+                options.stream = true;
+            } else if ("--if-changed".equals(arg)) {
+                options.ifChanged = true;
+            } else if ("--build-state".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("file name expected after --build-state");
+                }
+                options.buildState = args[i++];
+            } else if ("--watch".equals(arg)) {
+                options.watch = true;
+            } else if ("--no-peephole".equals(arg)) {
+                options.peephole = false;
+            } else if ("--no-peephole-rule".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("rule name expected after --no-peephole-rule");
+                }
+                String rule = args[i++];
+                if (PeepholeOptimizer.Rule.fromName(rule) == null) {
+                    throw new IllegalArgumentException("unknown peephole rule: " + rule);
+                }
+                options.disabledRules.add(rule);
+            } else if ("--peephole-stats".equals(arg)) {
+                options.peepholeStats = true;
+            } else if ("--cycles".equals(arg)) {
+                options.cycles = true;
+            } else if ("--core".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("core name expected after --core");
+                }
+                options.core = parseCore(args[i++]);
+            } else if ("--server".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("socket file expected after --server");
+                }
+                options.serverSocket = args[i++];
+            } else if ("--connect".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("socket file expected after --connect");
+                }
+                options.connectSocket = args[i++];
+            } else if ("--pch-dir".equals(arg)) {
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("directory expected after --pch-dir");
+                }
+                options.pchDir = args[i++];
+            } else if (arg.startsWith("-j") && arg.length() > 2) {
+                options.jobs = parseJobs(arg.substring(2));
+            } else {
+                options.paths.add(arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Makes relative paths absolute against the directory. File names of the multiple files form
+     * are relative to the source and output paths and are kept as is.
+     */
+    void resolve(File dir) {
+        int count = Math.min(paths.size(), 2);
+        for (int i = 0; i < count; i++) {
+            paths.set(i, resolve(dir, paths.get(i)));
+        }
+        if (pchDir != null) {
+            pchDir = resolve(dir, pchDir);
+        }
+        if (buildState != null) {
+            buildState = resolve(dir, buildState);
+        }
+    }
+
+    private static String resolve(File dir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? path : new File(dir, path).getPath();
+    }
+
+    private static Core parseCore(String name) {
+        for (Core core : Core.values()) {
+            if (core.name().replace('_', '-').equalsIgnoreCase(name)) {
+                return core;
+            }
+        }
+        throw new IllegalArgumentException("unknown core: " + name);
+    }
+
+    private static int parseJobs(String s) {
+        int jobs;
+        try {
+            jobs = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("wrong number of jobs: " + s);
+        }
+        if (jobs <= 0) {
+            jobs = Runtime.getRuntime().availableProcessors();
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,233 @@
+package ru.trolsoft.asmext;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-living translator process. Requests come through a Unix domain socket and are translated the same way as
+ * the command line, the include cache and compiled code stay warm between requests, so make doesn't pay
+ * the JVM startup for every file. The socket file is accessible by the owner only, other users can't make
+ * the server read or write files.
+ *
+ * request:  header, working directory, command line arguments (one per line), empty line
+ * response: "out " + line of the translator output, ..., "exit " + exit code
+ */
+class TranslationServer implements Closeable {
+    static final String HEADER = "avr-asm-ext 1";
+    private static final String OUT_PREFIX = "out ";
+    private static final String EXIT_PREFIX = "exit ";
+    /**
+     * Time to send the request, the connection is closed if the client is silent
+     */
+    static final long REQUEST_TIMEOUT_MS = 10_000;
+
+    private final Path socketPath;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private long requestTimeout = REQUEST_TIMEOUT_MS;
+
+    TranslationServer(Path socketPath) throws IOException {
+        this.socketPath = socketPath;
+        removeStaleSocket(socketPath);
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+        try {
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, the socket is protected by permissions of the directory
+        }
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "request-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Socket file of a stopped server is removed, a running server keeps its socket
+     */
+    private static void removeStaleSocket(Path socketPath) throws IOException {
+        if (!Files.exists(socketPath)) {
+            return;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (ConnectException e) {
+            Files.delete(socketPath);
+            return;
+        }
+        channel.close();
+        throw new IOException("server is already running on " + socketPath);
+    }
+
+    Path getSocketPath() {
+        return socketPath;
+    }
+
+    void setRequestTimeout(long ms) {
+        this.requestTimeout = ms;
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    void serve() {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // closed or failed connection
+                continue;
+            }
+            try {
+                executor.execute(() -> handle(channel));
+            } catch (RejectedExecutionException e) {
+                // accepted while the server is closed
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        executor.shutdown();
+        timer.shutdown();
+        Files.deleteIfExists(socketPath);
+    }
+
+    private void handle(SocketChannel channel) {
+        // a blocked read fails when the channel is closed
+        ScheduledFuture<?> timeout = timer.schedule(() -> closeQuietly(channel), requestTimeout,
+                TimeUnit.MILLISECONDS);
+        try (SocketChannel c = channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(c), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                out.write(OUT_PREFIX + "unsupported protocol\n" + EXIT_PREFIX + "2\n");
+                return;
+            }
+            String dir = in.readLine();
+            List<String> args = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+            if (!timeout.cancel(false) || line == null) {
+                return;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int code;
+            try (PrintStream log = new PrintStream(buffer, true, "UTF-8")) {
+                code = execute(dir != null ? new File(dir) : new File("."), args, log);
+            }
+            BufferedReader result = new BufferedReader(new StringReader(buffer.toString("UTF-8")));
+            while ((line = result.readLine()) != null) {
+                out.write(OUT_PREFIX);
+                out.write(line);
+                out.write('\n');
+            }
+            out.write(EXIT_PREFIX + code + '\n');
+        } catch (IOException e) {
+            // client has gone or timed out, nothing to report
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static int execute(File dir, List<String> args, PrintStream log) {
+        Options options = Main.parseOptions(args.toArray(new String[0]), log);
+        if (options == null) {
+            return 1;
+        }
+        String rejected = getRejectedOption(options);
+        if (rejected != null) {
+            log.println("Option " + rejected + " can't be used in server requests");
+            return 1;
+        }
+        options.resolve(dir);
+        try {
+            return new Main(options, log).run();
+        } catch (RuntimeException e) {
+            // the server keeps running
+            log.println("Internal error: " + e);
+            return 2;
+        }
+    }
+
+    /**
+     * Requests can't block the server or change settings shared by all requests, the directory of precompiled
+     * headers is set when the server is started
+     */
+    private static String getRejectedOption(Options options) {
+        if (options.watch) {
+            return "--watch";
+        } else if (options.serverSocket != null) {
+            return "--server";
+        } else if (options.connectSocket != null) {
+            return "--connect";
+        } else if (options.pchDir != null) {
+            return "--pch-dir";
+        }
+        return null;
+    }
+
+    /**
+     * Sends the command line to the server and prints its output, returns the exit code. Throws
+     * ConnectException if no server is running.
+     */
+    static int request(Path socketPath, String[] args, PrintStream log) throws IOException {
+        if (!Files.exists(socketPath)) {
+            throw new ConnectException("no server socket " + socketPath);
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+            out.write(HEADER + '\n');
+            out.write(new File("").getAbsolutePath() + '\n');
+            for (String arg : args) {
+                out.write(arg + '\n');
+            }
+            out.write('\n');
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(OUT_PREFIX)) {
+                    log.println(line.substring(OUT_PREFIX.length()));
+                } else if (line.startsWith(EXIT_PREFIX)) {
+                    return Integer.parseInt(line.substring(EXIT_PREFIX.length()));
+                }
+            }
+        }
+        throw new IOException("connection closed by the server");
+    }
+}
@@ -0,0 +1,129 @@
+package ru.trolsoft.asmext;
+
+import ru.trolsoft.asmext.files.OutputFile;
+import ru.trolsoft.asmext.processor.Parser;
+import ru.trolsoft.asmext.processor.SyntaxException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-process translation for build tools. The translator keeps only settings and may be shared by threads,
+ * every call uses its own parser. Errors are returned as diagnostics instead of printing and exiting.
+ */
+public class Translator {
+    private final boolean gcc;
+    private final List<File> includePaths;
+
+    /**
+     * @param gcc translate gcc assembler (.S) syntax
+     * @param includePaths directories to search include files with relative names
+     */
+    public Translator(boolean gcc, List<File> includePaths) {
+        this.gcc = gcc;
+        this.includePaths = Collections.unmodifiableList(new ArrayList<>(includePaths));
+    }
+
+    public Translator(boolean gcc) {
+        this(gcc, Collections.emptyList());
+    }
+
+    public Result translate(Reader src) throws IOException {
+        Parser parser = new Parser(gcc);
+        parser.setIncludePaths(includePaths);
+        try {
+            parser.parse(src);
+        } catch (SyntaxException e) {
+            Diagnostic diagnostic = new Diagnostic(e.line, e.getMessage());
+            return new Result(null, parser.getIncludedFiles(), Collections.singletonList(diagnostic));
+        }
+        return new Result(parser.getOutput(), parser.getIncludedFiles(), Collections.emptyList());
+    }
+
+    public Result translate(CharSequence src) {
+        try {
+            return translate(new StringReader(src.toString()));
+        } catch (IOException e) {
+            // StringReader doesn't throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the output only if the source was translated without errors
+     */
+    public Result translate(Reader src, Writer out) throws IOException {
+        Result result = translate(src);
+        if (result.isSuccess()) {
+            result.output.write(out);
+        }
+        return result;
+    }
+
+    public Result translate(CharSequence src, Writer out) throws IOException {
+        Result result = translate(src);
+        if (result.isSuccess()) {
+            result.output.write(out);
+        }
+        return result;
+    }
+
+    public static class Result {
+        private final OutputFile output;
+        private final List<File> includedFiles;
+        private final List<Diagnostic> diagnostics;
+
+        Result(OutputFile output, List<File> includedFiles, List<Diagnostic> diagnostics) {
+            this.output = output;
+            this.includedFiles = Collections.unmodifiableList(includedFiles);
+            this.diagnostics = diagnostics;
+        }
+
+        public boolean isSuccess() {
+            return diagnostics.isEmpty();
+        }
+
+        public List<Diagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        /**
+         * Returns the translated text encoded in the default charset, or null if there are errors
+         */
+        public ByteBuffer getOutput() {
+            return output != null ? output.toByteBuffer() : null;
+        }
+
+        /**
+         * Returns the files included by the source, the dependencies of the output
+         */
+        public List<File> getIncludedFiles() {
+            return includedFiles;
+        }
+    }
+
+    public static class Diagnostic {
+        public final int line;
+        public final String message;
+
+        Diagnostic(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        /**
+         * Returns the message in the command line format: "source:line: Error: message"
+         */
+        public String format(String sourceName) {
+            return sourceName + ":" + line + ": Error: " + message;
+        }
+
+        @Override
+        public String toString() {
+            return line + ": Error: " + message;
+        }
+    }
+}
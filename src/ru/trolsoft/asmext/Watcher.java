@@ -0,0 +1,156 @@
+package ru.trolsoft.asmext;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watch mode: translates the files and then waits for changes of the sources and their includes. Only files with
+ * changed sources, includes or outputs are translated again (see {@link BuildState}). A burst of changes (editors
+ * often write a file several times on save) is processed once.
+ */
+class Watcher implements Closeable {
+    /**
+     * Changes that follow each other within this time (ms) are processed together
+     */
+    private static final long QUIET_PERIOD = 50;
+
+    private final Main main;
+    private final List<String> paths;
+    private final WatchService watchService;
+    private final Set<Path> watchedDirs = new HashSet<>();
+
+    Watcher(Main main, List<String> paths) throws IOException {
+        this.main = main;
+        this.paths = paths;
+        if (isDirectoryForm(paths)) {
+            File outDir = new File(paths.get(1));
+            if (!outDir.isDirectory()) {
+                throw new IOException("output directory doesn't exists: " + outDir);
+            } else if (outDir.getCanonicalFile().equals(new File(paths.get(0)).getCanonicalFile())) {
+                throw new IOException("source and output directories are the same");
+            }
+        }
+        this.watchService = FileSystems.getDefault().newWatchService();
+        if (main.getBuildState() == null) {
+            main.setBuildState(new BuildState(null, BuildState.buildFingerprint()));
+        }
+    }
+
+    /**
+     * Returns true for the "source dir, output dir" form, all sources of the directory are translated in this case
+     */
+    static boolean isDirectoryForm(List<String> paths) {
+        return paths.size() == 2 && new File(paths.get(0)).isDirectory();
+    }
+
+    private static boolean isSource(String name) {
+        String lowerName = name.toLowerCase();
+        return lowerName.endsWith(".asm") || lowerName.endsWith(".s");
+    }
+
+    void run() throws IOException {
+        update();
+        main.getLog().println("Watching for changes, press Ctrl+C to stop");
+        while (true) {
+            try {
+                awaitChanges();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            update();
+        }
+    }
+
+    /**
+     * Translates the files that aren't up to date and registers directories of sources and includes.
+     * Returns number of the translated files.
+     */
+    int update() throws IOException {
+        BuildState state = main.getBuildState();
+        List<AbstractMap.SimpleEntry<String, String>> processList = buildProcessList();
+        List<AbstractMap.SimpleEntry<String, String>> changed = new ArrayList<>();
+        for (AbstractMap.SimpleEntry<String, String> pair : processList) {
+            File srcFile = new File(pair.getKey());
+            // deleted sources are translated when they appear again
+            if (srcFile.exists() && !state.isUpToDate(srcFile, new File(pair.getValue()))) {
+                changed.add(pair);
+            }
+        }
+        if (main.getOptions().jobs > 1) {
+            if (!changed.isEmpty()) {
+                main.process(changed);
+            }
+        } else {
+            // an error in one file doesn't stop the others
+            for (AbstractMap.SimpleEntry<String, String> pair : changed) {
+                main.process(Collections.singletonList(pair));
+            }
+        }
+        if (isDirectoryForm(paths)) {
+            register(new File(paths.get(0)));
+        }
+        for (AbstractMap.SimpleEntry<String, String> pair : processList) {
+            File srcFile = new File(pair.getKey());
+            register(srcFile.getAbsoluteFile().getParentFile());
+            for (File include : state.getIncludes(srcFile)) {
+                register(include.getAbsoluteFile().getParentFile());
+            }
+        }
+        return changed.size();
+    }
+
+    private List<AbstractMap.SimpleEntry<String, String>> buildProcessList() {
+        if (!isDirectoryForm(paths)) {
+            return main.buildProcessList(paths);
+        }
+        File srcDir = new File(paths.get(0));
+        File outDir = new File(paths.get(1));
+        File[] files = srcDir.listFiles((dir, name) -> isSource(name));
+        List<AbstractMap.SimpleEntry<String, String>> result = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                result.add(new AbstractMap.SimpleEntry<>(file.getPath(), new File(outDir, file.getName()).getPath()));
+            }
+        }
+        return result;
+    }
+
+    private void register(File dir) throws IOException {
+        if (dir == null || !dir.isDirectory()) {
+            return;
+        }
+        Path path = dir.toPath().toAbsolutePath().normalize();
+        if (watchedDirs.add(path)) {
+            path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+    }
+
+    Set<Path> getWatchedDirs() {
+        return watchedDirs;
+    }
+
+    /**
+     * Waits for a change in the watched directories and for the end of the burst of changes
+     */
+    void awaitChanges() throws InterruptedException {
+        WatchKey key = watchService.take();
+        while (key != null) {
+            key.pollEvents();
+            key.reset();
+            key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -12,6 +12,9 @@ abstract class BaseCompiler extends Errors {
 
 
 
+    /**
+     * Line and output of the current compile call, see {@link #enter}
+     */
     TokenString src;
     OutputFile out;
     public final Parser parser;    // TODO move to interface
@@ -20,31 +23,32 @@ abstract class BaseCompiler extends Errors {
         this.parser = parser;
     }
 
-    void cleanup() {
-        this.src = null;
-        this.out = null;
-    }
-
-    void setup(TokenString src, OutputFile out) {
+    /**
+     * Starts a compile call. Returns the context of the outer call that must be restored by {@link #leave},
+     * so a compiler can be reused for nested compilation (e.g. the body of an inline if) without creating a new one.
+     */
+    Context enter(TokenString src, OutputFile out) {
+        Context outer = this.src != null || this.out != null ? new Context(this.src, this.out) : null;
         this.src = src;
         this.out = out;
         if (!parser.gcc) {
             src.transformCommentToAsm();
         }
+        return outer;
+    }
+
+    Context enter(TokenString src) {
+        return enter(src, parser.getOutput());
     }
 
-    void setup(TokenString src) {
-        this.setup(src, parser.getOutput());
+    void leave(Context outer) {
+        this.src = outer != null ? outer.src : null;
+        this.out = outer != null ? outer.out : null;
     }
 
     void addCommand(Cmd cmd, String arg1, String arg2) throws SyntaxException {
-        try {
-            cmd.check(arg1, arg2);
-            out.appendCommand(src, cmd.name().toLowerCase(), arg1, arg2);
-        } catch (SyntaxException e) {
-            cleanup();
-            throw e;
-        }
+        cmd.check(arg1, arg2);
+        out.appendCommand(src, cmd, arg1, arg2);
     }
 
     void addCommand(Cmd cmd, String arg) throws SyntaxException {
@@ -104,8 +108,8 @@ abstract class BaseCompiler extends Errors {
     }
 
     void checkBitIndex(Token t) throws SyntaxException {
-        if (t.isNumber()) {
-            int val = t.getNumberValue();
+        Long val = constValue(t);
+        if (val != null) {
             if (val < 0 || val > 7) {
                 wrongIndexError("wrong index: " + val);
             }
@@ -115,6 +119,44 @@ abstract class BaseCompiler extends Errors {
     }
 
 
+    /**
+     * Returns value of the constant if it can be calculated at compile time, or null
+     */
+    Long constValue(Token t) {
+        return parser.evaluate(t);
+    }
+
+    /**
+     * Replaces a constant expression with its value if it is known. Literals and names of constants are kept,
+     * the output is easier to read with them. Results of bit operations are written in hex.
+     */
+    Token foldConst(Token t) {
+        String s = t.asString();
+        if (t.getType() != Token.TYPE_CONST_EXPRESSION || ParserUtils.isNumber(s) || isCharLiteral(s)
+                || parser.getConstant(s) != null) {
+            return t;
+        }
+        Long val = parser.evaluate(t);
+        if (val == null || val != val.intValue()) {
+            return t;
+        }
+        boolean bitOperation = val >= 0 && (s.contains("<<") || s.indexOf('|') >= 0 || s.indexOf('&') >= 0
+                || s.indexOf('^') >= 0 || s.indexOf('~') >= 0);
+        return new Token(Token.TYPE_NUMBER, bitOperation ? hexStr(val) : Long.toString(val));
+    }
+
+    private static boolean isCharLiteral(String s) {
+        return s.length() >= 3 && s.length() <= 4 && s.charAt(0) == '\'' && s.charAt(s.length() - 1) == '\'';
+    }
+
+    /**
+     * Returns true if the argument is a constant with the known value
+     */
+    boolean isConstValue(Token t, long value) {
+        Long val = constValue(t);
+        return val != null && val == value;
+    }
+
     void checkRegister(Token t) throws SyntaxException {
         if (!t.isRegister()) {
             error("register expected: " + t);
@@ -190,30 +232,22 @@ abstract class BaseCompiler extends Errors {
 
 
     void checkBitNumber(Token token) throws SyntaxException {
-        if (token.isNumber()) {
-            int bit = token.getNumberValue();
-            if (bit < 0 || bit > 7) {
-                unsupportedOperationError("wrong bit number");
-            }
-        } else if (token.isRegisterBit()) {
+        if (token.isRegisterBit()) {
             Token index = token.getBitIndex();
-            int bit;
-            if (index.isAnyConst() && parser.getConstant(index.asString()) != null) {
-                String val = parser.getConstant(index.asString()).value;
-                if (!ParserUtils.isNumber(val)) {
-                    unsupportedOperationError("unexpected value for bit index: " + index);
-                }
-                bit = ParserUtils.parseValue(val);
-            } else if (index.isNumber()) {
-                bit = index.getNumberValue();
-            } else {
+            Long bit = constValue(index);
+            if (bit == null) {
                 unsupportedOperationError("unexpected value for bit index: " + index);
                 return;
             }
             if (bit < 0 || bit > 7) {
                 unsupportedOperationError("wrong bit number");
             }
-        } else if (!(token.isAnyConst() || token.isSomeString())) {
+        } else if (token.isAnyConst() || token.isSomeString()) {
+            Long bit = constValue(token);
+            if (bit != null && (bit < 0 || bit > 7)) {
+                unsupportedOperationError("wrong bit number");
+            }
+        } else {
             unsupportedOperationError("bit number expected after dot");
         }
     }
@@ -224,6 +258,11 @@ abstract class BaseCompiler extends Errors {
         return s.length() == 1 ? "0x0" + s : "0x" + s;
     }
 
+    static String hexStr(long val) {
+        String s = Long.toHexString(val);
+        return s.length() % 2 == 1 ? "0x0" + s : "0x" + s;
+    }
+
     static String binByteStr(int val) {
         String s = Integer.toBinaryString(val);
         s = STRING_OF_ZERO[8 - s.length()] + s;
@@ -232,9 +271,10 @@ abstract class BaseCompiler extends Errors {
 
 
     String hiByte(Token val) {
+        val = foldConst(val);
         if (val.isNumber()) {
             int d = val.getNumberValue();
-            return hexByteStr(d >> 8);
+            return hexByteStr((d >> 8) & 0xff);
         }
         if (parser.gcc) {
             return "(" +val + " >> 8)";
@@ -244,6 +284,7 @@ abstract class BaseCompiler extends Errors {
     }
 
     String loByte(Token val) {
+        val = foldConst(val);
         if (val.isNumber()) {
             int d = val.getNumberValue();
             return hexByteStr(d & 0xff);
@@ -256,6 +297,7 @@ abstract class BaseCompiler extends Errors {
     }
 
     String numByte(Token val, int byteNum) {
+        val = foldConst(val);
         if (val.isNumber()) {
             int d = val.getNumberValue();
             d = d >> (8*byteNum);
@@ -280,14 +322,13 @@ abstract class BaseCompiler extends Errors {
 
 
 
-    @Override
-    void error(String message) throws SyntaxException {
-        cleanup();
-        super.error(message);
-    }
+    static final class Context {
+        final TokenString src;
+        final OutputFile out;
 
-    void error(String message, Throwable cause) throws SyntaxException {
-        cleanup();
-        super.error(message, cause);
+        Context(TokenString src, OutputFile out) {
+            this.src = src;
+            this.out = out;
+        }
     }
 }
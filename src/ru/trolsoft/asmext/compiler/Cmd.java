@@ -1,220 +1,414 @@
 package ru.trolsoft.asmext.compiler;
 
+import ru.trolsoft.asmext.processor.ParserUtils;
 import ru.trolsoft.asmext.processor.SyntaxException;
 import ru.trolsoft.asmext.processor.Token;
+import ru.trolsoft.avr.Core;
+import ru.trolsoft.avr.Instructions;
+import ru.trolsoft.avr.Registers;
+import ru.trolsoft.avr.Sreg;
 
-import static ru.trolsoft.avr.Registers.isHighRegister;
-import static ru.trolsoft.avr.Registers.isPairLow;
-import static ru.trolsoft.avr.Registers.isEven;
+import java.util.List;
 
+import static ru.trolsoft.asmext.compiler.Cmd.Flow.*;
+import static ru.trolsoft.asmext.compiler.Cmd.Operand.*;
+import static ru.trolsoft.avr.Core.*;
 
+
+/**
+ * Table of AVR instructions. Every instruction has its control flow kind, size in words, minimal and maximal
+ * number of cycles for the classic core, flags of SREG it changes and classes of operands. The cycles of other
+ * cores are set below the table where they differ.
+ *
+ * The minimal cycles are the cycles of a branch that isn't taken and of a skip instruction that doesn't skip,
+ * the maximal cycles are the cycles of a taken branch and of a skip of one-word instruction (one cycle more for
+ * a two-word one). Accesses to the external memory and the cycles of spm aren't counted.
+ */
 public enum Cmd {
-    ADD,
-    ADC,
-    ADIW {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkPairLow(arg1);
+    //      flow        words cycles  flags       operands
+    ADD(    NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    ADC(    NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    ADIW(   NEXT,       1,    2, 2,   "SVNZC",    PAIR_LOW, IMM6),
+    AND(    NEXT,       1,    1, 1,   "SVNZ",     REG, REG),
+    ANDI(   NEXT,       1,    1, 1,   "SVNZ",     HIGH_REG, IMM8),
+    BLD(    NEXT,       1,    1, 1,   "",         REG, BIT),
+    BST(    NEXT,       1,    1, 1,   "T",        REG, BIT),
+    BRIE(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRTS(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRHS(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRLT(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRVS(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRMI(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BREQ(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRCS(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRID(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRTC(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRHC(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRGE(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRVC(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRPL(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRNE(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRCC(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRLO(   BRANCH,     1,    1, 2,   "",         LABEL),
+    BRSH(   BRANCH,     1,    1, 2,   "",         LABEL),
+
+    CBI(    NEXT,       1,    2, 2,   "",         IO5, BIT),
+    CBR(    NEXT,       1,    1, 1,   "SVNZ",     HIGH_REG, IMM8),
+    CLI(    NEXT,       1,    1, 1,   "I"),
+    CLT(    NEXT,       1,    1, 1,   "T"),
+    CLH(    NEXT,       1,    1, 1,   "H"),
+    CLS(    NEXT,       1,    1, 1,   "S"),
+    CLV(    NEXT,       1,    1, 1,   "V"),
+    CLN(    NEXT,       1,    1, 1,   "N"),
+    CLZ(    NEXT,       1,    1, 1,   "Z"),
+    CLC(    NEXT,       1,    1, 1,   "C"),
+
+    CLR(    NEXT,       1,    1, 1,   "SVNZ",     REG),
+    CP(     NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    CPC(    NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    CPI(    NEXT,       1,    1, 1,   "HSVNZC",   HIGH_REG, IMM8),
+    CPSE(   SKIP,       1,    1, 2,   "",         REG, REG),
+    INC(    NEXT,       1,    1, 1,   "SVNZ",     REG),
+    DEC(    NEXT,       1,    1, 1,   "SVNZ",     REG),
+    IN(     NEXT,       1,    1, 1,   "",         REG, IO6),
+    OUT(    NEXT,       1,    1, 1,   "",         IO6, REG),
+
+    MOV(    NEXT,       1,    1, 1,   "",         REG, REG),
+    MOVW(   NEXT,       1,    1, 1,   "",         EVEN_REG, EVEN_REG),
+
+    LD(     NEXT,       1,    2, 2,   "",         REG, POINTER),
+    LDI(    NEXT,       1,    1, 1,   "",         HIGH_REG, IMM8),
+    LDS(    NEXT,       2,    2, 2,   "",         REG, ADDRESS),
+    LPM(    NEXT,       1,    3, 3,   "",         REG, Z_POINTER),
+    LSL(    NEXT,       1,    1, 1,   "HSVNZC",   REG),
+    LSR(    NEXT,       1,    1, 1,   "SVNZC",    REG),
+    NEG(    NEXT,       1,    1, 1,   "HSVNZC",   REG),
+    OR(     NEXT,       1,    1, 1,   "SVNZ",     REG, REG),
+    ORI(    NEXT,       1,    1, 1,   "SVNZ",     HIGH_REG, IMM8),
+
+    PUSH(   NEXT,       1,    2, 2,   "",         REG),
+    POP(    NEXT,       1,    2, 2,   "",         REG),
+
+    ROL(    NEXT,       1,    1, 1,   "HSVNZC",   REG),
+    ROR(    NEXT,       1,    1, 1,   "SVNZC",    REG),
+
+    RJMP(   JUMP,       1,    2, 2,   "",         LABEL),
+    RCALL(  SUBROUTINE, 1,    3, 3,   "",         LABEL),
+    RET(    RETURN,     1,    4, 4,   ""),
+    RETI(   RETURN,     1,    4, 4,   "I"),
+
+    SEI(    NEXT,       1,    1, 1,   "I"),
+    SET(    NEXT,       1,    1, 1,   "T"),
+    SEH(    NEXT,       1,    1, 1,   "H"),
+    SES(    NEXT,       1,    1, 1,   "S"),
+    SEV(    NEXT,       1,    1, 1,   "V"),
+    SEN(    NEXT,       1,    1, 1,   "N"),
+    SEZ(    NEXT,       1,    1, 1,   "Z"),
+    SEC(    NEXT,       1,    1, 1,   "C"),
+
+    SUB(    NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    SBC(    NEXT,       1,    1, 1,   "HSVNZC",   REG, REG),
+    SBI(    NEXT,       1,    2, 2,   "",         IO5, BIT),
+    SBR(    NEXT,       1,    1, 1,   "SVNZ",     HIGH_REG, IMM8),
+    SBIC(   SKIP,       1,    1, 2,   "",         IO5, BIT),
+    SBIS(   SKIP,       1,    1, 2,   "",         IO5, BIT),
+    SBRS(   SKIP,       1,    1, 2,   "",         REG, BIT),
+    SBRC(   SKIP,       1,    1, 2,   "",         REG, BIT),
+    SBIW(   NEXT,       1,    2, 2,   "SVNZC",    PAIR_LOW, IMM6),
+    SUBI(   NEXT,       1,    1, 1,   "HSVNZC",   HIGH_REG, IMM8),
+    SBCI(   NEXT,       1,    1, 1,   "HSVNZC",   HIGH_REG, IMM8),
+    ST(     NEXT,       1,    2, 2,   "",         POINTER, REG),
+    STS(    NEXT,       2,    2, 2,   "",         ADDRESS, REG),
+    TST(    NEXT,       1,    1, 1,   "SVNZ",     REG),
+
+
+    FMULSU( NEXT,       1,    2, 2,   "ZC",       MUL_REG, MUL_REG),
+    NOP(    NEXT,       1,    1, 1,   ""),
+    MUL(    NEXT,       1,    2, 2,   "ZC",       REG, REG),
+    SPM(    NEXT,       1,    1, 1,   "",         Z_POINTER),
+    JMP(    JUMP,       2,    3, 3,   "",         LABEL),
+    COM(    NEXT,       1,    1, 1,   "SVNZC",    REG),
+    ASR(    NEXT,       1,    1, 1,   "SVNZC",    REG),
+    MULS(   NEXT,       1,    2, 2,   "ZC",       HIGH_REG, HIGH_REG),
+    BSET(   NEXT,       1,    1, 1,   "ITHSVNZC", BIT),
+    SWAP(   NEXT,       1,    1, 1,   "",         REG),
+    EOR(    NEXT,       1,    1, 1,   "SVNZ",     REG, REG),
+    FMUL(   NEXT,       1,    2, 2,   "ZC",       MUL_REG, MUL_REG),
+    BRBC(   BRANCH,     1,    1, 2,   "",         BIT, LABEL),
+    CALL(   SUBROUTINE, 2,    4, 4,   "",         LABEL),
+    WDR(    NEXT,       1,    1, 1,   ""),
+    STD(    NEXT,       1,    2, 2,   "",         POINTER_DISP, REG),
+    MULSU(  NEXT,       1,    2, 2,   "ZC",       MUL_REG, MUL_REG),
+    FMULS(  NEXT,       1,    2, 2,   "ZC",       MUL_REG, MUL_REG),
+    ICALL(  SUBROUTINE, 1,    3, 3,   ""),
+    SER(    NEXT,       1,    1, 1,   "",         HIGH_REG),
+    EIJMP(  JUMP,       1,    2, 2,   ""),
+    SLEEP(  NEXT,       1,    1, 1,   ""),
+    BRBS(   BRANCH,     1,    1, 2,   "",         BIT, LABEL),
+    LDD(    NEXT,       1,    2, 2,   "",         REG, POINTER_DISP),
+    IJMP(   JUMP,       1,    2, 2,   ""),
+    BCLR(   NEXT,       1,    1, 1,   "ITHSVNZC", BIT),
+    EICALL( SUBROUTINE, 1,    4, 4,   ""),
+    ELPM(   NEXT,       1,    3, 3,   "",         REG, Z_POINTER),
+
+    BREAK(  NEXT,       1,    1, 1,   ""),
+    LAC(    NEXT,       1,    2, 2,   "",         Z_POINTER, REG),
+    LAS(    NEXT,       1,    2, 2,   "",         Z_POINTER, REG),
+    LAT(    NEXT,       1,    2, 2,   "",         Z_POINTER, REG),
+    XCH(    NEXT,       1,    2, 2,   "",         Z_POINTER, REG),
+    ;
+
+    static {
+        setCycles(CLASSIC_22BIT_PC, 4, 4, RCALL, ICALL, EICALL);
+        setCycles(CLASSIC_22BIT_PC, 5, 5, CALL, RET, RETI);
+
+        setCycles(XMEGA, 2, 2, RCALL, ICALL);
+        setCycles(XMEGA, 3, 3, CALL, EICALL);
+        setCycles(XMEGA, 1, 1, CBI, SBI, PUSH);
+        setCycles(XMEGA, 2, 3, SBIC, SBIS);
+        setCycles(XMEGA, 1, 2, LD, ST, STD);
+        setCycles(XMEGA, 2, 3, LDD, LDS);
+
+        setCycles(XT, 2, 2, RCALL, ICALL);
+        setCycles(XT, 3, 3, CALL, EICALL, LDS);
+        setCycles(XT, 1, 1, CBI, SBI, PUSH, ST, STD);
+
+        setCycles(REDUCED, 6, 6, RET, RETI);
+        setCycles(REDUCED, 1, 1, CBI, SBI, PUSH, ST, LDS, STS);
+        setCycles(REDUCED, 1, 2, LD);
+        setCycles(REDUCED, 3, 3, POP);
+        setWords(REDUCED, 1, LDS, STS);
+    }
+
+    /**
+     * Control flow kind of the instruction
+     */
+    public enum Flow {
+        /**
+         * Continues with the next instruction
+         */
+        NEXT,
+        /**
+         * Conditional relative branch
+         */
+        BRANCH,
+        /**
+         * Skips the next instruction if the condition is true
+         */
+        SKIP,
+        /**
+         * Unconditional jump
+         */
+        JUMP,
+        SUBROUTINE,
+        RETURN
+    }
+
+    /**
+     * Operand class, a register class accepts registers of the range with the step, a value class accepts
+     * names and expressions resolved by the assembler and numbers of the range
+     */
+    public enum Operand {
+        REG("r0..r31", 0, 31, 1),
+        HIGH_REG("r16..r31", 16, 31, 1),
+        /**
+         * Registers of fmul, fmuls, fmulsu and mulsu
+         */
+        MUL_REG("r16..r23", 16, 23, 1),
+        EVEN_REG("r0, r2, ..., r30", 0, 30, 2),
+        /**
+         * Low registers of the pairs of adiw and sbiw
+         */
+        PAIR_LOW("r24, r26, r28, r30", 24, 30, 2),
+        /**
+         * Byte, negated values of subi and sbci are accepted too
+         */
+        IMM8(-255, 255),
+        IMM6(0, 63),
+        BIT(0, 7),
+        IO5(0, 31),
+        IO6(0, 63),
+        ADDRESS(0, 0xFFFF),
+        LABEL(Integer.MIN_VALUE, Integer.MAX_VALUE),
+        /**
+         * X, X+, -X, Y, Y+, -Y, Z, Z+, -Z
+         */
+        POINTER(Integer.MIN_VALUE, Integer.MAX_VALUE),
+        /**
+         * Y+q, Z+q
+         */
+        POINTER_DISP(Integer.MIN_VALUE, Integer.MAX_VALUE),
+        /**
+         * Z, Z+
+         */
+        Z_POINTER(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        private final String expected;
+        private final int min;
+        private final int max;
+        private final int step;
+
+        Operand(String expected, int min, int max, int step) {
+            this.expected = expected;
+            this.min = min;
+            this.max = max;
+            this.step = step;
         }
-    },
-    AND,
-    ANDI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+
+        Operand(int min, int max) {
+            this(min + ".." + max, min, max, 0);
         }
-    },
-    BLD,
-    BST,
-    BRIE,
-    BRTS,
-    BRHS,
-    BRLT,
-    BRVS,
-    BRMI,
-    BREQ,
-    BRCS,
-    BRID,
-    BRTC,
-    BRHC,
-    BRGE,
-    BRVC,
-    BRPL,
-    BRNE,
-    BRCC,
-    BRLO,
-    BRSH,
-
-    CBI,
-    CBR,
-    CLI,
-    CLT,
-    CLH,
-    CLS,
-    CLV,
-    CLN,
-    CLZ,
-    CLC,
-
-    CLR,
-    CP,
-    CPC,
-    CPI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+
+        public boolean isRegister() {
+            return step > 0;
         }
-    },
-    CPSE,
-    INC,
-    DEC,
-    IN,
-    OUT,
-
-    MOV,
-    MOVW {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkEvenReg(arg1);
-            checkEvenReg(arg2);
+
+        void check(String arg) throws SyntaxException {
+            if (isRegister()) {
+                int index = Registers.getIndex(arg);
+                if (index < min || index > max || (index - min) % step != 0) {
+                    throw new SyntaxException(expected + " expected but " + arg + " found");
+                }
+            } else if (ParserUtils.isNumber(arg)) {
+                int value = ParserUtils.parseValue(arg);
+                if (value < min || value > max) {
+                    throw new SyntaxException(expected + " expected but " + arg + " found");
+                }
+            }
         }
-    },
+    }
 
-    LD,
-    LDI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+    private static final Cmd[] VALUES = values();
+
+    private final String mnemonic = name().toLowerCase();
+    private final Flow flow;
+    private final int[] words = new int[Core.values().length];
+    private final int[] cycles = new int[Core.values().length];
+    private final int[] maxCycles = new int[Core.values().length];
+    private final int flags;
+    private final List<Operand> operands;
+
+    Cmd(Flow flow, int words, int cycles, int maxCycles, String flags, Operand... operands) {
+        this.flow = flow;
+        for (int i = 0; i < this.words.length; i++) {
+            this.words[i] = words;
+            this.cycles[i] = cycles;
+            this.maxCycles[i] = maxCycles;
         }
-    },
-    LDS,
-    LPM,
-    LSL,
-    LSR,
-    NEG,
-    OR,
-    ORI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+        this.flags = Sreg.parse(flags);
+        this.operands = List.of(operands);
+    }
+
+    private static void setCycles(Core core, int cycles, int maxCycles, Cmd... cmds) {
+        for (Cmd cmd : cmds) {
+            cmd.cycles[core.ordinal()] = cycles;
+            cmd.maxCycles[core.ordinal()] = maxCycles;
         }
-    },
-
-    PUSH,
-    POP,
-
-    ROL,
-    ROR,
-
-    RJMP,
-    RCALL,
-    RET,
-    RETI,
-
-    SEI,
-    SET,
-    SEH,
-    SES,
-    SEV,
-    SEN,
-    SEZ,
-    SEC,
-
-    SUB,
-    SBC,
-    SBI,
-    SBR,
-    SBIC,
-    SBIS,
-    SBRS,
-    SBRC,
-    SBIW {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkPairLow(arg1);
+    }
+
+    private static void setWords(Core core, int words, Cmd... cmds) {
+        for (Cmd cmd : cmds) {
+            cmd.words[core.ordinal()] = words;
+        }
+    }
+
+    /**
+     * Checks the operands of the instruction, spm, lpm and elpm can be used without them
+     */
+    void check(String arg1, String arg2) throws SyntaxException {
+        if (arg1 == null && (this == SPM || this == LPM || this == ELPM)) {
+            return;
         }
-    },
-    SUBI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+        int count = arg1 == null ? 0 : (arg2 == null ? 1 : 2);
+        if (count != operands.size()) {
+            throw new SyntaxException(mnemonic + ": " + operands.size() + " operand(s) expected but " + count +
+                    " found");
         }
-    },
-    SBCI {
-        @Override
-        void check(String arg1, String arg2) throws SyntaxException {
-            checkHighRegister(arg1);
+        if (arg1 != null) {
+            operands.get(0).check(arg1);
         }
-    },
-    ST,
-    STS,
-    TST,
-
-
-    FMULSU,
-    NOP,
-    MUL,
-    SPM,
-    JMP,
-    COM,
-    ASR,
-    MULS,
-    BSET,
-    SWAP,
-    EOR,
-    FMUL,
-    BRBC,
-    CALL,
-    WDR,
-    STD,
-    MULSU,
-    FMULS,
-    ICALL,
-    SER,
-    EIJMP,
-    SLEEP,
-    BRBS,
-    LDD,
-    IJMP,
-    BCLR,
-    EICALL,
-    ELPM,
-
-    //LAC,
-    //LAS,
-    //LAT,
-    //XCH,
-    ;
+        if (arg2 != null) {
+            operands.get(1).check(arg2);
+        }
+    }
 
-    void check(String arg1, String arg2) throws SyntaxException {
+    /**
+     * Returns name of the instruction as it is written to the output
+     */
+    public String getMnemonic() {
+        return mnemonic;
     }
 
-    private static void checkHighRegister(String reg) throws SyntaxException {
-        if (!isHighRegister(reg)) {
-            throw new SyntaxException("r16..r31 expected but " + reg + " found");
-        }
+    public Flow getFlow() {
+        return flow;
     }
 
-    private static void checkPairLow(String reg) throws SyntaxException {
-        if (!isPairLow(reg)) {
-            throw new SyntaxException("r14, r26, r28, r30 expected but " + reg + " found");
-        }
+    public boolean isBranch() {
+        return flow == BRANCH;
     }
 
-    private static void checkEvenReg(String reg) throws SyntaxException {
-        if (!isEven(reg)) {
-            throw new SyntaxException("r0, r2, ..., r30 expected but " + reg + " found");
-        }
+    public boolean isSkip() {
+        return flow == SKIP;
+    }
+
+    /**
+     * Returns size of the instruction in words for the classic core
+     */
+    public int getWords() {
+        return getWords(CLASSIC);
+    }
+
+    public int getWords(Core core) {
+        return words[core.ordinal()];
+    }
+
+    /**
+     * Returns minimal number of cycles for the classic core with 16-bit program counter
+     */
+    public int getCycles() {
+        return getCycles(CLASSIC);
+    }
+
+    public int getCycles(Core core) {
+        return cycles[core.ordinal()];
+    }
+
+    /**
+     * Returns maximal number of cycles for the classic core with 16-bit program counter
+     */
+    public int getMaxCycles() {
+        return getMaxCycles(CLASSIC);
+    }
+
+    public int getMaxCycles(Core core) {
+        return maxCycles[core.ordinal()];
+    }
+
+    /**
+     * Returns mask of the flags changed by the instruction, see {@link Sreg}
+     */
+    public int getAffectedFlags() {
+        return flags;
+    }
+
+    public List<Operand> getOperands() {
+        return operands;
+    }
+
+    /**
+     * Returns instruction by the name (case-insensitive) or null if the name is not an instruction
+     */
+    public static Cmd find(String name) {
+        int index = Instructions.indexOf(name);
+        return index >= 0 ? VALUES[index] : null;
     }
 
     public static Cmd fromStr(String name) throws SyntaxException {
-        name = name.toUpperCase();
-        for (Cmd cmd : values()) {
-            if (cmd.name().equals(name)) {
-                return cmd;
-            }
+        Cmd cmd = find(name);
+        if (cmd == null) {
+            throw new SyntaxException("wrong command: " + name.toUpperCase());
         }
-        throw new SyntaxException("wrong command: " + name);
+        return cmd;
     }
 
 
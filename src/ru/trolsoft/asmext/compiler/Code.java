@@ -0,0 +1,313 @@
+package ru.trolsoft.asmext.compiler;
+
+import ru.trolsoft.asmext.utils.AsmInstruction;
+
+import java.util.List;
+
+/**
+ * Records of the output with classification of text lines. Removed records are set to null. The records before
+ * the start are the context, they are already written and can't be changed.
+ */
+class Code {
+    static final int BLANK = 0;
+    static final int LABEL = 1;
+    static final int INSTRUCTION = 2;
+    /**
+     * Text line with assembler code or directive
+     */
+    static final int OTHER = 3;
+
+    /**
+     * Maximal number of words between a conditional branch and its target
+     */
+    private static final int BRANCH_RANGE = 63;
+
+    private final List<Object> records;
+    private final int start;
+
+    Code(List<Object> records) {
+        this(records, 0);
+    }
+
+    Code(List<Object> records, int start) {
+        this.records = records;
+        this.start = start;
+    }
+
+    /**
+     * Returns index of the first record that can be changed
+     */
+    int start() {
+        return start;
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    AsmInstruction instruction(int index) {
+        Object record = records.get(index);
+        return record instanceof AsmInstruction ? (AsmInstruction) record : null;
+    }
+
+    void set(int index, AsmInstruction instr) {
+        checkChangeable(index);
+        records.set(index, instr);
+    }
+
+    void remove(int index) {
+        checkChangeable(index);
+        records.set(index, null);
+    }
+
+    private void checkChangeable(int index) {
+        if (index < start) {
+            throw new IllegalStateException("record " + index + " is already written");
+        }
+    }
+
+    int kind(int index) {
+        Object record = records.get(index);
+        if (record == null) {
+            return BLANK;
+        } else if (record instanceof AsmInstruction) {
+            return INSTRUCTION;
+        }
+        String line = (String) record;
+        int start = skipSpaces(line, 0);
+        if (start == line.length() || line.startsWith(";", start) || line.startsWith("//", start)) {
+            return BLANK;
+        }
+        return getLabelEnd(line, start) > 0 ? LABEL : OTHER;
+    }
+
+    /**
+     * Returns the index of the next code record (instruction, label or other text line) or -1
+     */
+    int nextCode(int index) {
+        for (int i = index + 1; i < records.size(); i++) {
+            if (kind(i) != BLANK) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the label follows the record, there can be other labels and comments between them
+     */
+    boolean labelFollows(int index, String label) {
+        for (int i = index + 1; i < records.size(); i++) {
+            int kind = kind(i);
+            if (kind == LABEL) {
+                if (label.equals(getLabel(i))) {
+                    return true;
+                }
+            } else if (kind != BLANK) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns index of the last instruction or other code line, or -1
+     */
+    int lastCode() {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            int kind = kind(i);
+            if (kind == INSTRUCTION || kind == OTHER) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the code before the record is a skip instruction, labels don't break it
+     */
+    boolean followsSkip(int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            int kind = kind(i);
+            if (kind == INSTRUCTION || kind == OTHER) {
+                return isSkip(i);
+            }
+        }
+        return false;
+    }
+
+    boolean isSkip(int index) {
+        Cmd cmd = command(index);
+        return cmd != null && cmd.isSkip();
+    }
+
+    /**
+     * Returns command of an instruction record or of a text line with instruction, null for labels, directives,
+     * macros and other lines
+     */
+    Cmd command(int index) {
+        int kind = kind(index);
+        if (kind == INSTRUCTION) {
+            return instruction(index).getCommand();
+        }
+        return kind == OTHER ? Cmd.find(getFirstWord((String) records.get(index))) : null;
+    }
+
+    /**
+     * Returns the last operand of an instruction record or a text line with instruction, it is the label of jumps
+     * and branches
+     */
+    String lastOperand(int index) {
+        AsmInstruction instr = instruction(index);
+        if (instr != null) {
+            return instr.getArg2Str() != null ? instr.getArg2Str() : instr.getArg1Str();
+        }
+        String line = (String) records.get(index);
+        int start = skipSpaces(line, 0);
+        start += getFirstWord(line).length();
+        int end = line.indexOf(';', start);
+        int comment = line.indexOf("//", start);
+        if (end < 0 || (comment >= 0 && comment < end)) {
+            end = comment;
+        }
+        if (end < 0) {
+            end = line.length();
+        }
+        int comma = line.lastIndexOf(',', end - 1);
+        String operand = line.substring(Math.max(start, comma + 1), end).trim();
+        return operand.isEmpty() ? null : operand;
+    }
+
+    /**
+     * Returns operands of an instruction record or a text line with instruction, absent operands are null
+     */
+    String[] operands(int index) {
+        AsmInstruction instr = instruction(index);
+        if (instr != null) {
+            return new String[] {instr.getArg1Str(), instr.getArg2Str()};
+        }
+        String line = (String) records.get(index);
+        int start = skipSpaces(line, 0);
+        start += getFirstWord(line).length();
+        String[] result = new String[2];
+        int count = 0;
+        int depth = 0;
+        for (int i = start; i <= line.length(); i++) {
+            char c = i < line.length() ? line.charAt(i) : ';';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if ((c == ',' && depth == 0) || c == ';' || line.startsWith("//", i)) {
+                String operand = line.substring(start, i).trim();
+                if (!operand.isEmpty() && count < result.length) {
+                    result[count] = operand;
+                }
+                count++;
+                start = i + 1;
+                if (c != ',') {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns text of a text line
+     */
+    String text(int index) {
+        return (String) records.get(index);
+    }
+
+    /**
+     * Returns index of the label record or -1
+     */
+    int findLabel(String label) {
+        for (int i = 0; i < records.size(); i++) {
+            if (kind(i) == LABEL && label.equals(getLabel(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the label is close enough for a branch at the index, the record to remove isn't counted.
+     * The range is unknown if there are directives or macros between.
+     */
+    boolean inBranchRange(int branch, int removed, String label) {
+        int target = findLabel(label);
+        if (target < 0) {
+            return false;
+        }
+        int words = 1;
+        for (int i = Math.min(branch, target) + 1; i < Math.max(branch, target); i++) {
+            if (i == removed) {
+                continue;
+            }
+            int size = getSize(i);
+            if (size < 0) {
+                return false;
+            }
+            words += size;
+            if (words > BRANCH_RANGE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getSize(int index) {
+        int kind = kind(index);
+        if (kind == BLANK || kind == LABEL) {
+            return 0;
+        }
+        Cmd cmd = command(index);
+        return cmd != null ? cmd.getWords() : -1;
+    }
+
+    String getLabel(int index) {
+        String line = (String) records.get(index);
+        int start = skipSpaces(line, 0);
+        return line.substring(start, getLabelEnd(line, start));
+    }
+
+    /**
+     * Returns end of the label name if the line is a label with optional comment, or -1
+     */
+    private static int getLabelEnd(String line, int start) {
+        int end = start;
+        while (end < line.length() && isNameChar(line.charAt(end))) {
+            end++;
+        }
+        if (end == start || end >= line.length() || line.charAt(end) != ':') {
+            return -1;
+        }
+        int rest = skipSpaces(line, end + 1);
+        if (rest < line.length() && line.charAt(rest) != ';' && !line.startsWith("//", rest)) {
+            return -1;
+        }
+        return end;
+    }
+
+    private static String getFirstWord(String line) {
+        int start = skipSpaces(line, 0);
+        int end = start;
+        while (end < line.length() && isNameChar(line.charAt(end))) {
+            end++;
+        }
+        return line.substring(start, end);
+    }
+
+    private static int skipSpaces(String line, int index) {
+        while (index < line.length() && (line.charAt(index) == ' ' || line.charAt(index) == '\t')) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+}
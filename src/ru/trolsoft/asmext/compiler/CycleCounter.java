@@ -0,0 +1,205 @@
+package ru.trolsoft.asmext.compiler;
+
+import ru.trolsoft.avr.Core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static counter of size and cycles of translated code (procedure or block), the timing is taken from {@link Cmd}.
+ *
+ * The best and the worst cases are the shortest and the longest paths from the first record to an exit: the end
+ * of the code, a return, an indirect jump, a jump to a label outside of the code or back to its first instruction.
+ * Other jumps back are not followed, so a loop inside the code is passed once. The code of a loop block starts
+ * after its label, the jump back to the label is an exit and the cycles are the cycles of one iteration. Called
+ * procedures are not counted. Text lines that aren't instructions, labels or directives (macros, data) are counted
+ * as unknown.
+ */
+public class CycleCounter {
+    private static final int UNREACHED = -1;
+
+    private final Core core;
+
+    public CycleCounter(Core core) {
+        this.core = core;
+    }
+
+    public Core getCore() {
+        return core;
+    }
+
+    /**
+     * Size and cycles of the code
+     */
+    public static class Cost {
+        public final int words;
+        public final int bestCycles;
+        public final int worstCycles;
+        /**
+         * Number of the lines of unknown size and cycles
+         */
+        public final int unknownLines;
+
+        Cost(int words, int bestCycles, int worstCycles, int unknownLines) {
+            this.words = words;
+            this.bestCycles = bestCycles;
+            this.worstCycles = worstCycles;
+            this.unknownLines = unknownLines;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(words).append(words == 1 ? " word, " : " words, ").append(bestCycles);
+            if (worstCycles != bestCycles) {
+                sb.append("..").append(worstCycles);
+            }
+            sb.append(" cycles");
+            if (unknownLines > 0) {
+                sb.append(" without ").append(unknownLines).append(" unknown line(s)");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Counts the records of the output: {@link ru.trolsoft.asmext.utils.AsmInstruction} and text lines
+     */
+    public Cost count(List<Object> records) {
+        Code code = new Code(records);
+        final int size = code.size();
+        Map<String, Integer> labels = new HashMap<>();
+        int entry = -1;
+        for (int i = 0; i < size; i++) {
+            int kind = code.kind(i);
+            if (kind == Code.LABEL) {
+                labels.putIfAbsent(code.getLabel(i), entry < 0 ? -1 : i);
+            } else if (entry < 0 && kind != Code.BLANK && !isDirective(code, i)) {
+                entry = i;
+            }
+        }
+        Paths paths = new Paths(size);
+        int words = 0;
+        int unknown = 0;
+        for (int i = 0; i < size; i++) {
+            int kind = code.kind(i);
+            Cmd cmd = code.command(i);
+            if (cmd == null) {
+                if (kind == Code.OTHER && !isDirective(code, i)) {
+                    unknown++;
+                }
+                paths.add(i, i + 1, 0, 0);
+                continue;
+            }
+            words += cmd.getWords(core);
+            if (!paths.isReached(i)) {
+                continue;
+            }
+            int min = cmd.getCycles(core);
+            int max = cmd.getMaxCycles(core);
+            switch (cmd.getFlow()) {
+                case NEXT:
+                case SUBROUTINE:
+                    paths.add(i, i + 1, min, max);
+                    break;
+                case BRANCH:
+                    paths.add(i, i + 1, min, min);
+                    addJump(paths, i, labels.get(code.lastOperand(i)), max);
+                    break;
+                case SKIP:
+                    paths.add(i, i + 1, min, min);
+                    int skipped = code.nextCode(i);
+                    while (skipped >= 0 && code.kind(skipped) == Code.LABEL) {
+                        skipped = code.nextCode(skipped);
+                    }
+                    Cmd skippedCmd = skipped >= 0 ? code.command(skipped) : null;
+                    if (skippedCmd != null && skippedCmd.getWords(core) == 2) {
+                        max++;
+                    }
+                    paths.add(i, skipped >= 0 ? skipped + 1 : size, max, max);
+                    break;
+                case JUMP:
+                    if (cmd.getOperands().isEmpty()) {
+                        paths.exit(i, min, max);
+                    } else {
+                        addJump(paths, i, labels.get(code.lastOperand(i)), min);
+                    }
+                    break;
+                case RETURN:
+                    paths.exit(i, min, max);
+                    break;
+            }
+        }
+        if (paths.isReached(size)) {
+            paths.exit(size, 0, 0);
+        }
+        int best = paths.bestExit == Integer.MAX_VALUE ? 0 : paths.bestExit;
+        int worst = Math.max(paths.worstExit, 0);
+        return new Cost(words, best, worst, unknown);
+    }
+
+    /**
+     * Labels before the first instruction have index -1, jumps to them and outside of the code are exits
+     */
+    private static void addJump(Paths paths, int from, Integer target, int cycles) {
+        if (target == null || target < 0) {
+            paths.exit(from, cycles, cycles);
+        } else if (target > from) {
+            paths.add(from, target, cycles, cycles);
+        }
+    }
+
+    /**
+     * Directives don't produce code except of data definitions
+     */
+    private static boolean isDirective(Code code, int index) {
+        if (code.kind(index) != Code.OTHER || code.command(index) != null) {
+            return false;
+        }
+        String s = code.text(index).trim();
+        if (!s.startsWith(".")) {
+            return false;
+        }
+        String name = s.length() >= 3 ? s.substring(1, 3).toLowerCase() : "";
+        return !("db".equals(name) || "dw".equals(name) || "dd".equals(name) || "dq".equals(name));
+    }
+
+    /**
+     * Shortest and longest paths to records, the code without jumps back is a directed acyclic graph and the
+     * records are visited in order
+     */
+    private static class Paths {
+        final int[] best;
+        final int[] worst;
+        int bestExit = Integer.MAX_VALUE;
+        int worstExit = UNREACHED;
+
+        Paths(int size) {
+            best = new int[size + 1];
+            worst = new int[size + 1];
+            Arrays.fill(best, Integer.MAX_VALUE);
+            Arrays.fill(worst, UNREACHED);
+            best[0] = 0;
+            worst[0] = 0;
+        }
+
+        boolean isReached(int index) {
+            return worst[index] != UNREACHED;
+        }
+
+        void add(int from, int to, int min, int max) {
+            if (!isReached(from)) {
+                return;
+            }
+            best[to] = Math.min(best[to], best[from] + min);
+            worst[to] = Math.max(worst[to], worst[from] + max);
+        }
+
+        void exit(int from, int min, int max) {
+            bestExit = Math.min(bestExit, best[from] + min);
+            worstExit = Math.max(worstExit, worst[from] + max);
+        }
+    }
+}
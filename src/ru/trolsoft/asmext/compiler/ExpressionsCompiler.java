@@ -4,6 +4,7 @@ import ru.trolsoft.asmext.data.Variable.Type;
 import ru.trolsoft.asmext.files.OutputFile;
 import ru.trolsoft.asmext.processor.*;
 import ru.trolsoft.asmext.utils.TokenString;
+import ru.trolsoft.avr.Registers;
 
 import static ru.trolsoft.asmext.compiler.AsmInstr.CLEAR_FLAG_MAP;
 import static ru.trolsoft.asmext.compiler.AsmInstr.SET_FLAG_MAP;
@@ -22,7 +23,15 @@ public class ExpressionsCompiler extends BaseCompiler {
         if (expr.size() < 2) {
             return false;
         }
-        setup(src, out);
+        Context outer = enter(src, out);
+        try {
+            return compile(expr);
+        } finally {
+            leave(outer);
+        }
+    }
+
+    private boolean compile(Expression expr) throws SyntaxException {
         Token operation = expr.get(1);
         Token dest = expr.get(0);
         if (dest.isRegister() && expr.size() != 3) {
@@ -239,11 +248,13 @@ public class ExpressionsCompiler extends BaseCompiler {
             if (firstArg.isOperator("-") && expr.size() > 1) {    // x = -y
                 moveNegative(dest, expr);
             } else {    // x = const | var | expression
-                if (firstArg.isNumber() && firstArg.getNumberValue() == 0) {
+                if (isConstValue(firstArg, 0)) {
                     addCommand(CLR, dest);
 //                    return;
+                } else if (isConstValue(firstArg, 0xFF) && Registers.isHighRegister(dest.asString())) {
+                    addCommand(SER, dest);
                 } else {
-                    moveValueToReg(dest, firstArg);
+                    moveValueToReg(dest, foldConst(firstArg));
                 }
             }
         }
@@ -274,10 +285,11 @@ public class ExpressionsCompiler extends BaseCompiler {
 //    }
 
     private void compileOperation(Token dest, Token arg, String operation) throws SyntaxException {
+        arg = foldConst(arg);
         switch (operation) {
             case "+":
                 if (arg.isAnyConst()) {
-                    if (arg.isNumber() && arg.getNumberValue() == 1) {
+                    if (isConstValue(arg, 1)) {
                         addCommand(INC, dest);
                     } else {
                         addCommand(SUBI, dest, arg.getNegativeExpr());
@@ -290,7 +302,7 @@ public class ExpressionsCompiler extends BaseCompiler {
                 break;
             case "-":
                 if (arg.isAnyConst()) {
-                    if (arg.isNumber() && arg.getNumberValue() == 1) {
+                    if (isConstValue(arg, 1)) {
                         addCommand(DEC, dest);
                     } else {
                         addCommand(SUBI, dest, arg.wrapToBrackets());
@@ -321,8 +333,8 @@ public class ExpressionsCompiler extends BaseCompiler {
                 break;
             case ">>":
             case "<<":
-                if (arg.isNumber()) {
-                    int cnt = arg.getNumberValue();
+                Long cnt = constValue(arg);
+                if (cnt != null) {
                     Cmd cmd = "<<".equals(operation) ? LSL : LSR;
                     for (int i = 0; i < cnt; i++) {
                         addCommand(cmd, dest);
@@ -677,8 +689,8 @@ public class ExpressionsCompiler extends BaseCompiler {
         if (arg.isNumber()) {
             Token val = expr.getFirst();
             checkBitNumber(dest);
-            Token bitIndex = dest.getBitIndex();
-            String bitMask = dest.getBitIndex().isNumber() ? binByteStr(1 << bitIndex.getNumberValue()) : "1<<" + bitIndex.asString();
+            Token bitIndex = foldConst(dest.getBitIndex());
+            String bitMask = bitIndex.isNumber() ? binByteStr(1 << bitIndex.getNumberValue()) : "1<<" + bitIndex.asString();
             if (val.getNumberValue() == 1) {
                 addCommand(SBR, dest.asString(), bitMask);
             } else if (val.getNumberValue() == 0) {
@@ -724,14 +736,13 @@ public class ExpressionsCompiler extends BaseCompiler {
 
     private void addReg(Token dest, Token operation, Token argument) throws SyntaxException {
         boolean isAdd = operation.isOperator("+=");
+        argument = foldConst(argument);
         if (dest.isRegister() && argument.isRegister()) {
             Cmd cmd = isAdd ? ADD : SUB;
             addCommand(cmd, dest, argument);
         } else if (dest.isPair()) {
-            boolean shortArg = argument.isNumber() && Math.abs(argument.getNumberValue()) <= 63;
-            if (shortArg && argument.isAnyConst()) {
-                Cmd cmd = isAdd ? ADIW : SBIW;
-                addCommand(cmd, dest.getPairLow(), argument.wrapToBrackets());
+            if (argument.isAnyConst()) {
+                addPair(dest, operation, argument);
             } else if (getVarType(argument) == Type.POINTER || getVarType(argument) == Type.PRGPTR) {
                 String argLo = loVarPtr(argument, getVarType(argument), isAdd);
                 String argHi = hiVarPtr(argument, getVarType(argument), isAdd);
@@ -783,13 +794,28 @@ public class ExpressionsCompiler extends BaseCompiler {
             return;
         }
         if (arg.isAnyConst()) {
-            // TODO calculate numbers
-            boolean shortArg = !arg.isNumber() || Math.abs(arg.getNumberValue()) <= 63;
-            if (shortArg) {
+            arg = foldConst(arg);
+            Long val = constValue(arg);
+            if (val != null && val < 0 && val >= -63) {
+                // Z += -3  ->  Z -= 3
+                add = !add;
+                arg = new Token(Token.TYPE_NUMBER, Long.toString(-val));
+                val = -val;
+            }
+            boolean longArg = val != null && (val < 0 ? -val > 63 : val > 63);
+            if (!longArg) {
                 addCommand(add ? ADIW : SBIW, dest.getPairLow(), arg.wrapToBrackets());
             } else {
-                addCommand(SUBI, dest.getPairLow(), "-"+loByte(arg));
-                addCommand(SBCI, dest.getPairHigh(), "-"+hiByte(arg));
+                // Z += K  ->  subi ZL, LOW(-K); sbci ZH, HIGH(-K)
+                Token negated;
+                if (arg.isNumber()) {
+                    negated = new Token(Token.TYPE_NUMBER, Long.toString(add ? -val : val));
+                } else {
+                    String neg = "-" + (parser.getConstant(arg.asString()) != null ? arg : arg.wrapToBrackets());
+                    negated = add ? new Token(Token.TYPE_OTHER, neg) : arg;
+                }
+                addCommand(SUBI, dest.getPairLow(), loByte(negated));
+                addCommand(SBCI, dest.getPairHigh(), hiByte(negated));
             }
         } else if (arg.isPair() || arg.isRegGroup(2)) {
             addSubPairToPair(add, dest, arg);
@@ -834,10 +860,11 @@ public class ExpressionsCompiler extends BaseCompiler {
     }
 
     private void shlRegs(Token dest, Token arg) throws SyntaxException {
-        if (!arg.isNumber()) {
+        Long cnt = constValue(arg);
+        if (cnt == null) {
             unsupportedOperationError();
+            return;
         }
-        int cnt = arg.getNumberValue();
         for (int i = 0; i < cnt; i++) {
             for (int ri = dest.size() - 1; ri >= 0; ri--) {
                 Cmd cmd = ri == dest.size() - 1 ? LSL : ROL;
@@ -847,10 +874,11 @@ public class ExpressionsCompiler extends BaseCompiler {
     }
 
     private void shrRegs(Token dest, Token arg) throws SyntaxException {
-        if (!arg.isNumber()) {
+        Long cnt = constValue(arg);
+        if (cnt == null) {
             unsupportedOperationError();
+            return;
         }
-        int cnt = arg.getNumberValue();
         for (int i = 0; i < cnt; i++) {
             for (int ri = dest.size() - 1; ri >= 0; ri--) {
                 Cmd cmd = ri == dest.size() - 1 ? LSR : ROR;
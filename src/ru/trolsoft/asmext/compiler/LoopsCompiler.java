@@ -21,95 +21,111 @@ public class LoopsCompiler extends BaseCompiler {
     }
 
     public void compileLoopStart(TokenString src, Expression expr) throws SyntaxException {
-        setup(src);
-        if (!expr.getLast().isOperator("{")) {
-            error("'{' expected");
-        }
-        Expression argExpr = null;
-        if (expr.get(1).isOperator("(")) {
-            if (!expr.getLast(1).isOperator(")")) {
-                error("')' not found");
+        Context outer = enter(src);
+        try {
+            if (!expr.getLast().isOperator("{")) {
+                error("'{' expected");
             }
-            argExpr = expr.subExpression(2, expr.size() - 3);
-            if (argExpr.isEmpty()) {
-                argExpr = null;
+            Expression argExpr = null;
+            if (expr.get(1).isOperator("(")) {
+                if (!expr.getLast(1).isOperator(")")) {
+                    error("')' not found");
+                }
+                argExpr = expr.subExpression(2, expr.size() - 3);
+                if (argExpr.isEmpty()) {
+                    argExpr = null;
+                }
+            } else if (expr.size() != 2) {
+                error("wrong loop syntax");
             }
-        } else if (expr.size() != 2) {
-            error("wrong loop syntax");
-        }
-        String argName = argExpr != null ? argExpr.getFirst().asString() + "_" : "";
-        Block block = parser.addNewBlock(BLOCK_LOOP, argExpr, "loop_" + argName);
+            String argName = argExpr != null ? argExpr.getFirst().asString() + "_" : "";
+            Block block = parser.addNewBlock(BLOCK_LOOP, argExpr, "loop_" + argName);
 
-        if (argExpr != null) {
-            Token reg = argExpr.getFirst();
-            if (!reg.isRegister()) {
-                error("register expected: " + reg);
-            }
-            if (argExpr.size() > 1) {
-                if (!argExpr.get(1).isOperator("=")) {
-                    error("wrong loop argument expression");
+            if (argExpr != null) {
+                Token reg = argExpr.getFirst();
+                if (!reg.isRegister()) {
+                    error("register expected: " + reg);
+                }
+                if (argExpr.size() > 1) {
+                    if (!argExpr.get(1).isOperator("=")) {
+                        error("wrong loop argument expression");
+                    }
+                    mainCompiler.getExpressionsCompiler().compile(src, argExpr.copy(), out);
                 }
-                new ExpressionsCompiler(parser, mainCompiler).compile(src, argExpr.copy(), out);
             }
+            addLabel(block.getLabelStart());
+        } finally {
+            leave(outer);
         }
-        addLabel(block.getLabelStart());
-        cleanup();
     }
 
 
     public void compileLoopEnd(TokenString src, Block block) throws SyntaxException {
-        setup(src);
-        if (block.expr != null) {
-            Token reg = block.expr.getFirst();
-            addCommand(DEC, reg);
-            addCommand(BRNE, block.getLabelStart());
-        } else {
-            addCommand(RJMP, block.getLabelStart());
-        }
-        if (block.getLabelEnd() != null) {
-            addLabel(block.getLabelEnd());
+        Context outer = enter(src);
+        try {
+            if (block.expr != null) {
+                Token reg = block.expr.getFirst();
+                addCommand(DEC, reg);
+                addCommand(BRNE, block.getLabelStart());
+            } else {
+                addCommand(RJMP, block.getLabelStart());
+            }
+            if (block.getLabelEnd() != null) {
+                addLabel(block.getLabelEnd());
+            }
+        } finally {
+            leave(outer);
         }
-        cleanup();
     }
 
     public void compileDoWhileStart(TokenString src, Expression expr) throws SyntaxException {
-        setup(src);
-        if (expr.size() != 2 || !expr.getLast().isOperator("{")) {
-            error("wrong do {...} while (...) syntax");
+        Context outer = enter(src);
+        try {
+            if (expr.size() != 2 || !expr.getLast().isOperator("{")) {
+                error("wrong do {...} while (...) syntax");
+            }
+            Block block = parser.addNewBlock(BLOCK_DO_WHILE, null, "do_while_");
+            addLabel(block.getLabelStart());
+        } finally {
+            leave(outer);
         }
-        Block block = parser.addNewBlock(BLOCK_DO_WHILE, null, "do_while_");
-        addLabel(block.getLabelStart());
-        cleanup();
     }
 
     public void compileDoWhileEnd(TokenString src, Expression expr, Block block) throws SyntaxException {
-        setup(src);
-        if (expr.size() < 5 || !expr.get(1).isKeyword("while")) {
-            error("wrong do {...} while (...) syntax");
-        }
-        expr.removeFirst();
-        expr.set(0, new Token(Token.TYPE_KEYWORD, "if"));
-        expr.add(new Token(Token.TYPE_KEYWORD, "goto"));
-        expr.add(new Token(Token.TYPE_OTHER, block.getLabelStart()));
-        mainCompiler.setup(src);
-        mainCompiler.compileIfNoBlock(expr);
-        mainCompiler.cleanup();
-        if (block.getLabelEnd() != null) {
-            addLabel(block.getLabelEnd());
+        Context outer = enter(src);
+        try {
+            if (expr.size() < 5 || !expr.get(1).isKeyword("while")) {
+                error("wrong do {...} while (...) syntax");
+            }
+            expr.removeFirst();
+            expr.set(0, new Token(Token.TYPE_KEYWORD, "if"));
+            expr.add(new Token(Token.TYPE_KEYWORD, "goto"));
+            expr.add(new Token(Token.TYPE_OTHER, block.getLabelStart()));
+            mainCompiler.compileIfNoBlock(src, expr);
+            if (block.getLabelEnd() != null) {
+                addLabel(block.getLabelEnd());
+            }
+        } finally {
+            leave(outer);
         }
-        cleanup();
     }
 
 
     public void compileBreak(TokenString src, Block block) throws SyntaxException {
-        setup(src);
-        addCommand(RJMP, block.buildEndLabel());
-        cleanup();
+        Context outer = enter(src);
+        try {
+            addCommand(RJMP, block.buildEndLabel());
+        } finally {
+            leave(outer);
+        }
     }
 
     public void compileContinue(TokenString src, Block block) throws SyntaxException {
-        setup(src);
-        addCommand(RJMP, block.getLabelStart());
-        cleanup();
+        Context outer = enter(src);
+        try {
+            addCommand(RJMP, block.getLabelStart());
+        } finally {
+            leave(outer);
+        }
     }
 }
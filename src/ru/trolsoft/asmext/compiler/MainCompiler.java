@@ -30,26 +30,29 @@ public class MainCompiler extends BaseCompiler {
         if (src.isEmpty()) {
             return;
         }
-        setup(src, out);
-        switch (src.getFirstToken()) {
-            case "push":
-            case "pop":
-                compilePushPop(parser.buildExpression(src));
-                break;
-            case "call":
-            case "rcall":
-            case "jmp":
-            case "rjmp":
-                compileCall(parser.buildExpression(src));
-                break;
-            case "if":
-                if (compileIfNoBlock(parser.buildExpression(src))) {
+        Context outer = enter(src, out);
+        try {
+            switch (src.getFirstToken()) {
+                case "push":
+                case "pop":
+                    compilePushPop(parser.buildExpression(src));
                     break;
-                }
-            default:
-                compileDefault();
+                case "call":
+                case "rcall":
+                case "jmp":
+                case "rjmp":
+                    compileCall(parser.buildExpression(src));
+                    break;
+                case "if":
+                    if (compileIfNoBlock(parser.buildExpression(src))) {
+                        break;
+                    }
+                default:
+                    compileDefault();
+            }
+        } finally {
+            leave(outer);
         }
-        cleanup();
     }
 
 
@@ -190,8 +193,25 @@ public class MainCompiler extends BaseCompiler {
     }
 
     public boolean compileIfExpressionBlock(TokenString src, Expression expr, boolean inverse) throws SyntaxException {
-        setup(src);
-        return compileIfExpression(expr, inverse, true);
+        Context outer = enter(src);
+        try {
+            return compileIfExpression(expr, inverse, true);
+        } finally {
+            leave(outer);
+        }
+    }
+
+    boolean compileIfNoBlock(TokenString src, Expression expr) throws SyntaxException {
+        Context outer = enter(src);
+        try {
+            return compileIfNoBlock(expr);
+        } finally {
+            leave(outer);
+        }
+    }
+
+    ExpressionsCompiler getExpressionsCompiler() {
+        return expressionsCompiler;
     }
 
     private AsmInstruction compileIfBodyInstruction(Expression expr) throws SyntaxException {
@@ -206,11 +226,15 @@ public class MainCompiler extends BaseCompiler {
             return new AsmInstruction(RJMP, parser.getLastBlock().buildEndLabelToken());
         } else {
             OutputFile tempOut = new OutputFile();
-            if (new ExpressionsCompiler(parser, this).compile(src, expr, tempOut)) {
+            if (expressionsCompiler.compile(src, expr, tempOut)) {
                 if (tempOut.size() != 1) {
                     invalidExpressionError("too big, one command expected");
                 }
-                return AsmUtils.parseLine(tempOut.get(0));
+                AsmInstruction instruction = tempOut.getInstruction(0);
+                if (instruction == null) {
+                    invalidExpressionError("one command expected");
+                }
+                return instruction;
             } else {
                 return AsmUtils.parseExpression(expr);
             }
@@ -405,17 +429,18 @@ public class MainCompiler extends BaseCompiler {
 
     private void compileIfBinaryExpression(boolean signed, String operation, Token left, Token right, Token label) throws SyntaxException {
         Cmd jumpCmd;
+        right = foldConst(right);
         //  BRCS = BRLO, BRCC = BRSH
         switch (operation) {
             case "==":
             case "!=":
                 jumpCmd = "==".equals(operation) ? BREQ : BRNE;
-                addCompareInstruction(left, right);
+                addCompareInstruction(left, right, true);
                 addCommand(jumpCmd, label);
                 break;
             case "<":
-                addCompareInstruction(left, right);
-                if (right.isNumber() && right.getNumberValue() == 0) {
+                addCompareInstruction(left, right, true);
+                if (isConstValue(right, 0)) {
                     jumpCmd = BRMI;
                 } else  {
                     jumpCmd = signed ? BRLT : BRLO;
@@ -423,8 +448,8 @@ public class MainCompiler extends BaseCompiler {
                 addCommand(jumpCmd, label);
                 break;
             case ">=":
-                addCompareInstruction(left, right);
-                if (right.isNumber() && right.getNumberValue() == 0) {
+                addCompareInstruction(left, right, true);
+                if (isConstValue(right, 0)) {
                     jumpCmd = BRPL;
                 } else  {
                     jumpCmd = signed ? BRGE : BRSH;
@@ -437,26 +462,35 @@ public class MainCompiler extends BaseCompiler {
                 // x > y  ->   y < x
                 // x > k  ->   x >= k+1
                 if (right.isAnyConst()) {
-                    // TODO calculate value if possible
-                    right = new Token(Token.TYPE_CONST_EXPRESSION, right.asString() + "+1");
-                    addCompareInstruction(left, right);
+                    Long k = compareByte(right, signed);
+                    if (k != null && k == (signed ? Byte.MAX_VALUE : 0xff)) {
+                        // never true
+                        break;
+                    }
+                    // tst doesn't set the carry flag that is checked by brsh
+                    addCompareInstruction(left, incConst(right, k), false);
                     jumpCmd = signed ? BRGE : BRSH;
                 } else {
-                    addCompareInstruction(right, left);
+                    addCompareInstruction(right, left, true);
                     jumpCmd = signed ? BRLT : BRLO;
                 }
                 addCommand(jumpCmd, label);
                 break;
             case "<=":
                 // x <= y  ->  y >= x
-                // x >= k  ->  x > k-1
+                // x <= k  ->  x < k+1
+                jumpCmd = signed ? BRLT : BRLO;
                 if (right.isAnyConst()) {
-                    // TODO calculate value if possible
-                    right = new Token(Token.TYPE_CONST_EXPRESSION, right.asString() + "-1");
-                    addCompareInstruction(left, right);
-                    jumpCmd = signed ? BRLT : BRLO;
+                    Long k = compareByte(right, signed);
+                    if (k != null && k == (signed ? Byte.MAX_VALUE : 0xff)) {
+                        // k+1 doesn't fit a byte:  x == k || x < k
+                        addCompareInstruction(left, right, false);
+                        addCommand(BREQ, label);
+                    } else {
+                        addCompareInstruction(left, incConst(right, k), false);
+                    }
                 } else {
-                    addCompareInstruction(right, left);
+                    addCompareInstruction(right, left, true);
                     jumpCmd = signed ? BRGE : BRSH;
                 }
                 addCommand(jumpCmd, label);
@@ -467,8 +501,45 @@ public class MainCompiler extends BaseCompiler {
 
     }
 
-    private void addCompareInstruction(Token left, Token right) throws SyntaxException {
-        if (left.isRegister() && right.isNumber() && right.getNumberValue() == 0) {
+    /**
+     * Returns the constant as the compared byte (0xFF is -1 for signed values) or null if the value is unknown or
+     * doesn't fit a byte
+     */
+    private Long compareByte(Token k, boolean signed) {
+        Long val = constValue(k);
+        if (val == null || val < Byte.MIN_VALUE || val > 0xff) {
+            return null;
+        }
+        return signed ? (long) (byte) val.longValue() : val & 0xff;
+    }
+
+    /**
+     * Returns k+1, byteValue is the value of k from {@link #compareByte} or null if it isn't known
+     */
+    private Token incConst(Token k, Long byteValue) {
+        if (byteValue == null) {
+            return addToConst(k, 1);
+        }
+        return new Token(Token.TYPE_NUMBER, Long.toString(byteValue + 1));
+    }
+
+    /**
+     * Returns k+delta, the value is calculated if it is known
+     */
+    private Token addToConst(Token k, int delta) {
+        Long val = constValue(k);
+        if (val != null && val + delta == (int) (val + delta)) {
+            return new Token(Token.TYPE_NUMBER, Long.toString(val + delta));
+        }
+        String s = delta > 0 ? "+" + delta : Integer.toString(delta);
+        return new Token(Token.TYPE_CONST_EXPRESSION, k.asString() + s);
+    }
+
+    /**
+     * Compares the register with zero by tst if the following branch checks Z, N, V or S flags only
+     */
+    private void addCompareInstruction(Token left, Token right, boolean canTest) throws SyntaxException {
+        if (canTest && left.isRegister() && isConstValue(right, 0)) {
             addCommand(TST, left);
         } else if (left.isRegister() && right.isRegister()) {
             addCommand(CP, left, right);
@@ -514,7 +585,8 @@ public class MainCompiler extends BaseCompiler {
             return;
         }
         if (!expressionsCompiler.compile(src, parser.buildExpression(src), out)) {
-            out.add(src);
+            // written as the expression sees the line, without spaces
+            out.add(src.compact());
         }
     }
 
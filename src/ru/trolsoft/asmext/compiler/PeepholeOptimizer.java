@@ -0,0 +1,306 @@
+package ru.trolsoft.asmext.compiler;
+
+import ru.trolsoft.asmext.files.OutputFile;
+import ru.trolsoft.asmext.processor.ConstEvaluator;
+import ru.trolsoft.asmext.processor.Token;
+import ru.trolsoft.asmext.utils.AsmInstruction;
+import ru.trolsoft.avr.Registers;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static ru.trolsoft.asmext.compiler.Cmd.*;
+
+/**
+ * Peephole optimizer of the translated code, it runs over the output records before they are written.
+ * Rules change compiled instructions only. Text lines (copied assembler code, directives and instructions of
+ * the regions excluded by ".peephole off") are never changed, the rules don't look through them. Labels end
+ * straight-line code. An instruction that follows a skip instruction (cpse, sbrc, sbrs, sbic, sbis) is never
+ * removed or changed, otherwise the skip would apply to the next one.
+ *
+ * The optimizer can be shared by parsers of different threads, hit counters are atomic.
+ */
+public class PeepholeOptimizer implements OutputFile.Optimizer {
+
+    public enum Rule {
+        /**
+         * mov r16, r16 (when an alias resolves to the same register)
+         */
+        SELF_MOVE("self-move") {
+            @Override
+            int apply(Code code) {
+                int hits = 0;
+                for (int i = code.start(); i < code.size(); i++) {
+                    AsmInstruction instr = code.instruction(i);
+                    if (instr != null && (instr.getCommand() == MOV || instr.getCommand() == MOVW)
+                            && Registers.getIndex(instr.getArg1Str()) >= 0
+                            && Registers.getIndex(instr.getArg1Str()) == Registers.getIndex(instr.getArg2Str())
+                            && !code.followsSkip(i)) {
+                        code.remove(i);
+                        hits++;
+                    }
+                }
+                return hits;
+            }
+        },
+        /**
+         * ldi of the value the register already holds after ldi, clr or ser in the same straight-line code
+         */
+        REDUNDANT_LDI("redundant-ldi") {
+            @Override
+            int apply(Code code) {
+                int hits = 0;
+                String[] values = new String[32];
+                boolean afterSkip = false;
+                for (int i = 0; i < code.size(); i++) {
+                    int kind = code.kind(i);
+                    if (kind == Code.BLANK) {
+                        continue;
+                    } else if (kind != Code.INSTRUCTION) {
+                        Arrays.fill(values, null);
+                        if (kind == Code.OTHER) {
+                            afterSkip = code.isSkip(i);
+                        }
+                        continue;
+                    }
+                    AsmInstruction instr = code.instruction(i);
+                    Cmd cmd = instr.getCommand();
+                    int reg = Registers.getIndex(instr.getArg1Str());
+                    if (cmd == LDI || cmd == CLR || cmd == SER) {
+                        String value = cmd == LDI ? instr.getArg2Str() : (cmd == CLR ? "0" : "0xFF");
+                        if (reg < 0) {
+                            Arrays.fill(values, null);
+                        } else if (cmd == LDI && !afterSkip && i >= code.start() && sameValue(values[reg], value)) {
+                            code.remove(i);
+                            hits++;
+                        } else {
+                            values[reg] = afterSkip ? null : value;
+                        }
+                    } else {
+                        invalidateWritten(instr, values);
+                    }
+                    afterSkip = cmd.isSkip();
+                }
+                return hits;
+            }
+        },
+        /**
+         * rjmp, jmp or a conditional branch to the label that follows it
+         */
+        JUMP_TO_NEXT("jump-to-next") {
+            @Override
+            int apply(Code code) {
+                int hits = 0;
+                for (int i = code.start(); i < code.size(); i++) {
+                    AsmInstruction instr = code.instruction(i);
+                    if (instr == null || !isJump(instr.getCommand())) {
+                        continue;
+                    }
+                    if (code.labelFollows(i, getTarget(instr)) && !code.followsSkip(i)) {
+                        code.remove(i);
+                        hits++;
+                    }
+                }
+                return hits;
+            }
+        },
+        /**
+         * brXX L1; rjmp L2; L1: is replaced with the inverted branch to L2 if L2 is in range of the branch
+         */
+        BRANCH_OVER_JUMP("branch-over-jump") {
+            @Override
+            int apply(Code code) {
+                int hits = 0;
+                for (int i = code.start(); i < code.size(); i++) {
+                    AsmInstruction branch = code.instruction(i);
+                    Cmd inverted = branch != null ? INVERTED_BRANCHES.get(branch.getCommand()) : null;
+                    if (inverted == null) {
+                        continue;
+                    }
+                    int next = code.nextCode(i);
+                    AsmInstruction jump = next >= 0 ? code.instruction(next) : null;
+                    if (jump == null || (jump.getCommand() != RJMP && jump.getCommand() != JMP)
+                            || !code.labelFollows(next, getTarget(branch)) || code.followsSkip(i)) {
+                        continue;
+                    }
+                    String target = jump.getArg1Str();
+                    if (!code.inBranchRange(i, next, target)) {
+                        continue;
+                    }
+                    AsmInstruction result;
+                    if (branch.getArg2Str() != null) {
+                        // brbs s, label
+                        result = branch.withCommand(inverted, branch.getArg1Str(), target);
+                    } else {
+                        result = branch.withCommand(inverted, target, null);
+                    }
+                    code.set(i, result);
+                    code.remove(next);
+                    hits++;
+                }
+                return hits;
+            }
+        };
+
+        private final String name;
+
+        Rule(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns name of the rule for command line options and statistics
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns rule by its name or null
+         */
+        public static Rule fromName(String name) {
+            for (Rule rule : values()) {
+                if (rule.name.equals(name)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Applies the rule to all records and returns number of changes
+         */
+        abstract int apply(Code code);
+    }
+
+    /**
+     * Instructions that don't change registers (except the pointers of ld/st with pre-decrement or post-increment)
+     */
+    private static final Set<Cmd> NO_REGISTER_WRITE = EnumSet.of(CP, CPC, CPI, TST, OUT, ST, STD, STS, SBI, CBI,
+            BST, NOP, WDR, SLEEP, PUSH, BSET, BCLR, SEI, SET, SEH, SES, SEV, SEN, SEZ, SEC,
+            CLI, CLT, CLH, CLS, CLV, CLN, CLZ, CLC);
+    /**
+     * Instructions that change the first operand only
+     */
+    private static final Set<Cmd> FIRST_REGISTER_WRITE = EnumSet.of(ADD, ADC, AND, ANDI, BLD, CBR, CLR, INC, DEC,
+            IN, MOV, LD, LDD, LDI, LDS, LSL, LSR, NEG, OR, ORI, POP, ROL, ROR, SUB, SBC, SBR, SUBI, SBCI, COM,
+            ASR, SWAP, EOR, SER);
+    /**
+     * Instructions that change the pair of registers starting from the first operand
+     */
+    private static final Set<Cmd> PAIR_WRITE = EnumSet.of(ADIW, SBIW, MOVW);
+    private static final Map<Cmd, Cmd> INVERTED_BRANCHES = new EnumMap<>(Cmd.class);
+
+    static {
+        Cmd[][] pairs = {
+                {BREQ, BRNE}, {BRCS, BRCC}, {BRLO, BRSH}, {BRMI, BRPL}, {BRGE, BRLT}, {BRHS, BRHC},
+                {BRTS, BRTC}, {BRVS, BRVC}, {BRIE, BRID}, {BRBS, BRBC}
+        };
+        for (Cmd[] pair : pairs) {
+            INVERTED_BRANCHES.put(pair[0], pair[1]);
+            INVERTED_BRANCHES.put(pair[1], pair[0]);
+        }
+    }
+
+    private final Set<Rule> enabledRules = EnumSet.allOf(Rule.class);
+    private final AtomicLongArray hits = new AtomicLongArray(Rule.values().length);
+
+    public void setEnabled(Rule rule, boolean enabled) {
+        if (enabled) {
+            enabledRules.add(rule);
+        } else {
+            enabledRules.remove(rule);
+        }
+    }
+
+    public boolean isEnabled(Rule rule) {
+        return enabledRules.contains(rule);
+    }
+
+    /**
+     * Returns number of changes made by the rule
+     */
+    public long getHits(Rule rule) {
+        return hits.get(rule.ordinal());
+    }
+
+    @Override
+    public void optimize(List<Object> records, int start) {
+        Code code = new Code(records, start);
+        boolean changed = true;
+        // a change can make other rules applicable, every change removes a record so it ends
+        while (changed) {
+            changed = false;
+            for (Rule rule : enabledRules) {
+                int count = rule.apply(code);
+                if (count > 0) {
+                    hits.addAndGet(rule.ordinal(), count);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The context is the last code line (it can be a skip instruction) with the labels and comments after it
+     */
+    @Override
+    public int getContextSize(List<Object> records) {
+        int last = new Code(records).lastCode();
+        return last >= 0 ? records.size() - last : 0;
+    }
+
+    private static boolean isJump(Cmd cmd) {
+        return cmd == RJMP || cmd == JMP || INVERTED_BRANCHES.containsKey(cmd);
+    }
+
+    /**
+     * Returns label of a jump or branch, it is the last operand
+     */
+    private static String getTarget(AsmInstruction instr) {
+        return instr.getArg2Str() != null ? instr.getArg2Str() : instr.getArg1Str();
+    }
+
+    private static boolean sameValue(String v1, String v2) {
+        if (v1 == null || v2 == null) {
+            return false;
+        } else if (v1.equals(v2)) {
+            return true;
+        }
+        // numbers are read like the assembler does, 010 is octal
+        Long value1 = ConstEvaluator.evaluate(v1, name -> null);
+        Long value2 = ConstEvaluator.evaluate(v2, name -> null);
+        return value1 != null && value2 != null && (value1 & 0xff) == (value2 & 0xff);
+    }
+
+    private static void invalidateWritten(AsmInstruction instr, String[] values) {
+        Cmd cmd = instr.getCommand();
+        if (FIRST_REGISTER_WRITE.contains(cmd) || PAIR_WRITE.contains(cmd)) {
+            int reg = Registers.getIndex(instr.getArg1Str());
+            if (reg < 0) {
+                Arrays.fill(values, null);
+                return;
+            }
+            values[reg] = null;
+            if (PAIR_WRITE.contains(cmd) && reg < 31) {
+                values[reg + 1] = null;
+            }
+        } else if (!NO_REGISTER_WRITE.contains(cmd) && !cmd.isSkip() && !cmd.isBranch()) {
+            // jumps, calls, multiplications, lpm etc.
+            Arrays.fill(values, null);
+            return;
+        }
+        invalidateModifiedPointer(instr.getArg1Str(), instr.getArg1Type(), values);
+        invalidateModifiedPointer(instr.getArg2Str(), instr.getArg2Type(), values);
+    }
+
+    private static void invalidateModifiedPointer(String arg, int type, String[] values) {
+        if (type != Token.TYPE_PAIR || (!arg.startsWith("-") && !arg.endsWith("+"))) {
+            return;
+        }
+        char pair = arg.charAt(arg.startsWith("-") ? 1 : 0);
+        int low = 26 + (pair - 'X') * 2;
+        values[low] = null;
+        values[low + 1] = null;
+    }
+}
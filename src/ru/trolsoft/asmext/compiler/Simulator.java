@@ -0,0 +1,1115 @@
+package ru.trolsoft.asmext.compiler;
+
+import ru.trolsoft.asmext.files.OutputFile;
+import ru.trolsoft.asmext.processor.ConstEvaluator;
+import ru.trolsoft.avr.Core;
+import ru.trolsoft.avr.Registers;
+import ru.trolsoft.avr.Sreg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simulator of the AVR core that executes translated code and counts its cycles, the timing is taken from
+ * {@link Cmd}.
+ *
+ * The code is loaded from the records of the output ({@link ru.trolsoft.asmext.utils.AsmInstruction} and text
+ * lines) or from the text. Labels, instructions and the directives .equ, .set, .def, .cseg, .dseg, .org, .byte,
+ * .db and .dw are supported, other directives are ignored, macros are errors. The data memory has the classic
+ * layout for all cores: registers, 64 IO registers (SREG and SP among them), 160 extended IO registers and SRAM,
+ * only the timing depends on the core. The flash holds the data of .db and .dw for lpm, the code is read as zeros.
+ *
+ * {@link #run(String)} calls the code at the label and runs it until return to the caller, break, sleep or the end
+ * of the code.
+ */
+public class Simulator {
+    /**
+     * Data memory size of ATmega328P: registers, IO space and 2K of SRAM
+     */
+    public static final int DEFAULT_DATA_SIZE = 0x900;
+    public static final int SRAM_START = 0x100;
+    public static final long DEFAULT_STEP_LIMIT = 10_000_000;
+
+    private static final int IO_START = 0x20;
+    private static final int SPL = 0x3D;
+    private static final int SPH = 0x3E;
+    private static final int SREG = 0x3F;
+
+    private static final int PLAIN = 0;
+    private static final int POST_INCREMENT = 1;
+    private static final int PRE_DECREMENT = 2;
+
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final Core core;
+    private final byte[] data;
+    private final int returnAddress;
+    private final int pcBytes;
+    private final Map<String, Long> symbols = new HashMap<>();
+    private final Map<String, Long> userSymbols = new HashMap<>();
+    private final Map<String, Integer> aliases = new HashMap<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private Instruction[] program = new Instruction[0];
+    private byte[] flash = new byte[0];
+    private int pc;
+    private long cycles;
+    private long steps;
+    private long stepLimit = DEFAULT_STEP_LIMIT;
+    private boolean halted;
+
+    /**
+     * Loaded instruction with decoded operands
+     */
+    private static class Instruction {
+        final Cmd cmd;
+        final String[] args;
+        final int line;
+        final int[] values = new int[2];
+        int pointerMode;
+        int displacement;
+        String error;
+
+        Instruction(Cmd cmd, String[] args, int line) {
+            this.cmd = cmd;
+            this.args = args;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Data of .db and .dw, it is evaluated after all labels are known
+     */
+    private static class Data {
+        final int address;
+        final boolean words;
+        final List<String> items;
+        final int line;
+
+        Data(int address, boolean words, List<String> items, int line) {
+            this.address = address;
+            this.words = words;
+            this.items = items;
+            this.line = line;
+        }
+    }
+
+    public Simulator(Core core) {
+        this(core, DEFAULT_DATA_SIZE);
+    }
+
+    public Simulator(Core core, int dataSize) {
+        if (dataSize <= SRAM_START || dataSize > 0x10000) {
+            throw new IllegalArgumentException("wrong data size: " + dataSize);
+        }
+        this.core = core;
+        this.data = new byte[dataSize];
+        this.pcBytes = core == Core.CLASSIC_22BIT_PC ? 3 : 2;
+        this.returnAddress = (1 << (8 * pcBytes)) - 1;
+        setSp(dataSize - 1);
+    }
+
+    public Core getCore() {
+        return core;
+    }
+
+    /**
+     * Defines a symbol for the code to load, e.g. address of an IO register or a variable declared outside
+     */
+    public void setSymbol(String name, long value) {
+        userSymbols.put(name, value);
+        symbols.put(name, value);
+    }
+
+    public void load(OutputFile output) {
+        List<Object> records = new ArrayList<>(output.size());
+        for (int i = 0; i < output.size(); i++) {
+            Object instr = output.getInstruction(i);
+            records.add(instr != null ? instr : output.get(i));
+        }
+        load(records);
+    }
+
+    public void load(String text) {
+        load(new ArrayList<>(Arrays.asList(text.split("\r?\n"))));
+    }
+
+    /**
+     * Loads the records of the output, the previously loaded code is replaced. Throws IllegalArgumentException if
+     * a record can't be loaded.
+     */
+    public void load(List<Object> records) {
+        symbols.clear();
+        symbols.putAll(userSymbols);
+        aliases.clear();
+        labels.clear();
+        List<Integer> lineNumbers = new ArrayList<>(records.size());
+        Code code = new Code(splitLabels(records, lineNumbers));
+        List<Instruction> instructions = new ArrayList<>();
+        List<Integer> addresses = new ArrayList<>();
+        List<Data> dataList = new ArrayList<>();
+        boolean dataSegment = false;
+        int codeAddress = 0;
+        int dataAddress = SRAM_START;
+        int codeSize = 0;
+        for (int i = 0; i < code.size(); i++) {
+            int kind = code.kind(i);
+            int line = lineNumbers.get(i);
+            if (kind == Code.BLANK) {
+                continue;
+            }
+            if (kind == Code.LABEL) {
+                String label = code.getLabel(i);
+                if (symbols.containsKey(label) && !userSymbols.containsKey(label)) {
+                    throw error(line, "duplicate label: " + label);
+                }
+                if (!dataSegment) {
+                    labels.put(label, codeAddress);
+                }
+                symbols.put(label, (long) (dataSegment ? dataAddress : codeAddress));
+                continue;
+            }
+            Cmd cmd = code.command(i);
+            if (cmd != null) {
+                if (dataSegment) {
+                    throw error(line, "instruction in data segment");
+                }
+                instructions.add(new Instruction(cmd, code.operands(i), line));
+                addresses.add(codeAddress);
+                codeAddress += cmd.getWords(core);
+                codeSize = Math.max(codeSize, codeAddress);
+                continue;
+            }
+            String text = stripComment(code.text(i));
+            if (text.startsWith("#")) {
+                continue;
+            } else if (!text.startsWith(".")) {
+                throw error(line, "unknown instruction: " + text);
+            }
+            int nameEnd = 1;
+            while (nameEnd < text.length() && Character.isLetter(text.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            String directive = text.substring(1, nameEnd).toLowerCase();
+            String arg = text.substring(nameEnd).trim();
+            switch (directive) {
+                case "equ":
+                case "set":
+                case "def":
+                    defineSymbol(line, directive, arg);
+                    break;
+                case "cseg":
+                    dataSegment = false;
+                    break;
+                case "dseg":
+                    dataSegment = true;
+                    break;
+                case "org":
+                    int address = (int) evaluate(line, arg);
+                    if (dataSegment) {
+                        dataAddress = address;
+                    } else {
+                        codeAddress = address;
+                    }
+                    break;
+                case "byte":
+                    dataAddress += (int) evaluate(line, arg);
+                    break;
+                case "db":
+                case "dw":
+                    if (dataSegment) {
+                        throw error(line, "." + directive + " in data segment");
+                    }
+                    List<String> items = splitItems(arg);
+                    boolean words = "dw".equals(directive);
+                    dataList.add(new Data(codeAddress, words, items, line));
+                    codeAddress += words ? items.size() : (countBytes(items) + 1) / 2;
+                    codeSize = Math.max(codeSize, codeAddress);
+                    break;
+                default:
+                    break;
+            }
+        }
+        program = new Instruction[codeSize];
+        flash = new byte[codeSize * 2];
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instr = instructions.get(i);
+            int address = addresses.get(i);
+            decode(instr, address);
+            program[address] = instr;
+        }
+        for (Data d : dataList) {
+            storeData(d);
+        }
+        pc = 0;
+        halted = false;
+    }
+
+    /**
+     * Splits text lines with a label and code after it to two records
+     */
+    private static List<Object> splitLabels(List<Object> records, List<Integer> lineNumbers) {
+        List<Object> result = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Object record = records.get(i);
+            if (record instanceof String) {
+                String text = stripComment((String) record);
+                int colon = text.indexOf(':');
+                if (colon > 0 && colon < text.length() - 1 && isName(text.substring(0, colon))) {
+                    result.add(text.substring(0, colon + 1));
+                    lineNumbers.add(i + 1);
+                    record = "\t" + text.substring(colon + 1).trim();
+                }
+            }
+            result.add(record);
+            lineNumbers.add(i + 1);
+        }
+        return result;
+    }
+
+    private static boolean isName(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return !Character.isDigit(s.charAt(0));
+    }
+
+    private void defineSymbol(int line, String directive, String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) {
+            eq = arg.indexOf(',');
+        }
+        if (eq < 0) {
+            throw error(line, "wrong ." + directive + " directive");
+        }
+        String name = arg.substring(0, eq).trim();
+        String value = arg.substring(eq + 1).trim();
+        if ("def".equals(directive)) {
+            int reg = getRegister(value);
+            if (reg < 0) {
+                throw error(line, "register expected: " + value);
+            }
+            aliases.put(name.toLowerCase(), reg);
+        } else {
+            symbols.put(name, evaluate(line, value));
+        }
+    }
+
+    private long evaluate(int line, String expr) {
+        Long value = evaluate(expr, -1);
+        if (value == null) {
+            throw error(line, "can't evaluate: " + expr);
+        }
+        return value;
+    }
+
+    /**
+     * Evaluates expression, PC is the address of the instruction
+     */
+    private Long evaluate(String expr, int address) {
+        return ConstEvaluator.evaluate(expr, name -> {
+            if (address >= 0 && "PC".equalsIgnoreCase(name)) {
+                return (long) address;
+            }
+            return symbols.get(name);
+        });
+    }
+
+    private static IllegalArgumentException error(int line, String message) {
+        return new IllegalArgumentException("line " + line + ": " + message);
+    }
+
+    private static String stripComment(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == ';' || line.startsWith("//", i))) {
+                return line.substring(0, i).trim();
+            }
+        }
+        return line.trim();
+    }
+
+    private static List<String> splitItems(String arg) {
+        List<String> result = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i <= arg.length(); i++) {
+            char c = i < arg.length() ? arg.charAt(i) : ',';
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                String item = arg.substring(start, i).trim();
+                if (!item.isEmpty()) {
+                    result.add(item);
+                }
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+
+    private static int countBytes(List<String> items) {
+        int count = 0;
+        for (String item : items) {
+            count += isString(item) ? item.length() - 2 : 1;
+        }
+        return count;
+    }
+
+    private static boolean isString(String item) {
+        return item.length() >= 2 && item.startsWith("\"") && item.endsWith("\"");
+    }
+
+    private void storeData(Data d) {
+        int address = d.address * 2;
+        for (String item : d.items) {
+            if (isString(item)) {
+                for (int i = 1; i < item.length() - 1; i++) {
+                    flash[address++] = (byte) item.charAt(i);
+                }
+                continue;
+            }
+            Long value = evaluate(item, -1);
+            if (value == null) {
+                throw error(d.line, "can't evaluate: " + item);
+            }
+            flash[address++] = (byte) (long) value;
+            if (d.words) {
+                flash[address++] = (byte) (value >> 8);
+            }
+        }
+    }
+
+    private int getRegister(String name) {
+        int index = Registers.getIndex(name);
+        if (index < 0) {
+            Integer alias = aliases.get(name.toLowerCase());
+            return alias != null ? alias : -1;
+        }
+        return index;
+    }
+
+    /**
+     * Decodes operands, an error is kept and reported when the instruction is executed
+     */
+    private void decode(Instruction instr, int address) {
+        List<Cmd.Operand> operands = instr.cmd.getOperands();
+        if (instr.args[0] == null && (instr.cmd == Cmd.LPM || instr.cmd == Cmd.ELPM)) {
+            instr.values[0] = 0;
+            instr.values[1] = 30;
+            return;
+        }
+        for (int i = 0; i < operands.size(); i++) {
+            String arg = instr.args[i];
+            Cmd.Operand operand = operands.get(i);
+            if (arg == null) {
+                instr.error = instr.cmd.getMnemonic() + ": operand expected";
+                return;
+            }
+            if (operand.isRegister()) {
+                instr.values[i] = getRegister(arg);
+                if (instr.values[i] < 0) {
+                    instr.error = "register expected but " + arg + " found";
+                }
+            } else if (operand == Cmd.Operand.POINTER || operand == Cmd.Operand.POINTER_DISP ||
+                    operand == Cmd.Operand.Z_POINTER) {
+                decodePointer(instr, i, arg);
+            } else {
+                Long value = evaluate(arg, address);
+                if (value == null) {
+                    instr.values[i] = UNKNOWN;
+                    instr.error = "unknown value: " + arg;
+                } else {
+                    instr.values[i] = (int) (long) value;
+                }
+            }
+        }
+    }
+
+    private void decodePointer(Instruction instr, int index, String arg) {
+        String s = arg.replace(" ", "").replace("\t", "").toUpperCase();
+        int mode = PLAIN;
+        if (s.startsWith("-")) {
+            mode = PRE_DECREMENT;
+            s = s.substring(1);
+        }
+        char name = s.isEmpty() ? ' ' : s.charAt(0);
+        if (name < 'X' || name > 'Z') {
+            instr.error = "pointer expected but " + arg + " found";
+            return;
+        }
+        instr.values[index] = 26 + (name - 'X') * 2;
+        String rest = s.substring(1);
+        if ("+".equals(rest) && mode == PLAIN) {
+            mode = POST_INCREMENT;
+        } else if (rest.startsWith("+") && mode == PLAIN && name != 'X') {
+            Long value = evaluate(arg.substring(arg.indexOf('+') + 1).trim(), -1);
+            if (value == null || value < 0 || value > 63) {
+                instr.error = "wrong displacement: " + arg;
+                return;
+            }
+            instr.displacement = (int) (long) value;
+        } else if (!rest.isEmpty()) {
+            instr.error = "pointer expected but " + arg + " found";
+            return;
+        }
+        instr.pointerMode = mode;
+    }
+
+    /**
+     * Returns word address of the label
+     */
+    public int getAddress(String label) {
+        Integer address = labels.get(label);
+        if (address == null) {
+            throw new IllegalArgumentException("unknown label: " + label);
+        }
+        return address;
+    }
+
+    /**
+     * Calls the code at the label and runs it until return, break, sleep or the end of the code. Returns cycles of
+     * the run.
+     */
+    public long run(String label) {
+        int address = getAddress(label);
+        pushAddress(returnAddress);
+        pc = address;
+        halted = false;
+        long start = cycles;
+        while (!halted) {
+            step();
+        }
+        return cycles - start;
+    }
+
+    /**
+     * Executes one instruction, returns false if the execution is stopped
+     */
+    public boolean step() {
+        if (halted) {
+            return false;
+        }
+        if (pc == returnAddress || pc == program.length) {
+            halted = true;
+            return false;
+        }
+        if (++steps > stepLimit) {
+            throw new IllegalStateException("step limit " + stepLimit + " exceeded");
+        }
+        Instruction instr = pc >= 0 && pc < program.length ? program[pc] : null;
+        if (instr == null) {
+            throw new IllegalStateException("no instruction at address " + pc);
+        }
+        if (instr.error != null) {
+            throw new IllegalStateException("line " + instr.line + ": " + instr.error);
+        }
+        execute(instr);
+        return !halted;
+    }
+
+    private void execute(Instruction instr) {
+        final Cmd cmd = instr.cmd;
+        final int a = instr.values[0];
+        final int b = instr.values[1];
+        int next = pc + cmd.getWords(core);
+        int time = cmd.getCycles(core);
+        int d, r, result;
+        switch (cmd) {
+            case ADD:
+            case ADC:
+            case LSL:
+            case ROL:
+                d = reg(a);
+                r = cmd == Cmd.LSL || cmd == Cmd.ROL ? d : reg(b);
+                result = add(d, r, cmd == Cmd.ADC || cmd == Cmd.ROL ? carry() : 0);
+                setReg(a, result);
+                break;
+            case SUB:
+            case SUBI:
+                setReg(a, subtract(reg(a), operand(cmd, b), 0, false));
+                break;
+            case SBC:
+            case SBCI:
+                setReg(a, subtract(reg(a), operand(cmd, b), carry(), true));
+                break;
+            case CP:
+            case CPI:
+                subtract(reg(a), operand(cmd, b), 0, false);
+                break;
+            case CPC:
+                subtract(reg(a), reg(b), carry(), true);
+                break;
+            case AND:
+            case ANDI:
+            case TST:
+                result = reg(a) & (cmd == Cmd.TST ? reg(a) : operand(cmd, b));
+                logic(a, result, cmd != Cmd.TST);
+                break;
+            case CBR:
+                logic(a, reg(a) & ~b, true);
+                break;
+            case OR:
+            case ORI:
+            case SBR:
+                logic(a, reg(a) | operand(cmd, b), true);
+                break;
+            case EOR:
+                logic(a, reg(a) ^ reg(b), true);
+                break;
+            case CLR:
+                logic(a, 0, true);
+                break;
+            case SER:
+                setReg(a, 0xFF);
+                break;
+            case COM:
+                result = ~reg(a) & 0xFF;
+                setReg(a, result);
+                updateFlags(Sreg.S | Sreg.V | Sreg.N | Sreg.Z | Sreg.C, signFlags(result, false) | Sreg.C);
+                break;
+            case NEG:
+                d = reg(a);
+                result = -d & 0xFF;
+                setReg(a, result);
+                updateFlags(Sreg.H | Sreg.S | Sreg.V | Sreg.N | Sreg.Z | Sreg.C,
+                        signFlags(result, result == 0x80) | (((result | d) & 0x08) != 0 ? Sreg.H : 0) |
+                                (result != 0 ? Sreg.C : 0));
+                break;
+            case INC:
+            case DEC:
+                result = (reg(a) + (cmd == Cmd.INC ? 1 : -1)) & 0xFF;
+                setReg(a, result);
+                updateFlags(Sreg.S | Sreg.V | Sreg.N | Sreg.Z,
+                        signFlags(result, result == (cmd == Cmd.INC ? 0x80 : 0x7F)));
+                break;
+            case LSR:
+            case ROR:
+            case ASR:
+                d = reg(a);
+                result = d >> 1;
+                if (cmd == Cmd.ROR) {
+                    result |= carry() << 7;
+                } else if (cmd == Cmd.ASR) {
+                    result |= d & 0x80;
+                }
+                setReg(a, result);
+                shiftFlags(result, (d & 1) != 0);
+                break;
+            case SWAP:
+                d = reg(a);
+                setReg(a, ((d << 4) | (d >> 4)) & 0xFF);
+                break;
+            case ADIW:
+            case SBIW:
+                d = reg(a) | (reg(a + 1) << 8);
+                result = (cmd == Cmd.ADIW ? d + b : d - b) & 0xFFFF;
+                setReg(a, result);
+                setReg(a + 1, result >> 8);
+                boolean high = (d & 0x8000) != 0;
+                boolean resultHigh = (result & 0x8000) != 0;
+                boolean overflow = cmd == Cmd.ADIW ? !high && resultHigh : high && !resultHigh;
+                boolean carry = cmd == Cmd.ADIW ? high && !resultHigh : resultHigh && !high;
+                updateFlags(Sreg.S | Sreg.V | Sreg.N | Sreg.Z | Sreg.C,
+                        signFlags(result >> 8, overflow) & ~Sreg.Z | (result == 0 ? Sreg.Z : 0) |
+                                (carry ? Sreg.C : 0));
+                break;
+            case MUL:
+            case MULS:
+            case MULSU:
+            case FMUL:
+            case FMULS:
+            case FMULSU:
+                multiply(cmd, a, b);
+                break;
+            case MOV:
+                setReg(a, reg(b));
+                break;
+            case MOVW:
+                setReg(a, reg(b));
+                setReg(a + 1, reg(b + 1));
+                break;
+            case LDI:
+                setReg(a, b);
+                break;
+            case BST:
+                updateFlags(Sreg.T, (reg(a) & (1 << b)) != 0 ? Sreg.T : 0);
+                break;
+            case BLD:
+                setReg(a, (getSreg() & Sreg.T) != 0 ? reg(a) | (1 << b) : reg(a) & ~(1 << b));
+                break;
+            case BSET:
+            case BCLR:
+                updateFlags(1 << a, cmd == Cmd.BSET ? Sreg.ALL : 0);
+                break;
+            case SEI: case SET: case SEH: case SES: case SEV: case SEN: case SEZ: case SEC:
+                updateFlags(cmd.getAffectedFlags(), Sreg.ALL);
+                break;
+            case CLI: case CLT: case CLH: case CLS: case CLV: case CLN: case CLZ: case CLC:
+                updateFlags(cmd.getAffectedFlags(), 0);
+                break;
+            case IN:
+                setReg(a, getIo(b));
+                break;
+            case OUT:
+                setIo(a, reg(b));
+                break;
+            case SBI:
+                setIo(a, getIo(a) | (1 << b));
+                break;
+            case CBI:
+                setIo(a, getIo(a) & ~(1 << b));
+                break;
+            case LD:
+            case LDD:
+                setReg(a, readData(pointerAddress(instr, b)));
+                time = pointerCycles(cmd, instr);
+                break;
+            case ST:
+            case STD:
+                writeData(pointerAddress(instr, a), reg(b));
+                time = pointerCycles(cmd, instr);
+                break;
+            case LDS:
+                setReg(a, readData(b));
+                break;
+            case STS:
+                writeData(a, reg(b));
+                break;
+            case LPM:
+            case ELPM:
+                setReg(a, readFlash(pointerAddress(instr, b)));
+                break;
+            case PUSH:
+                push(reg(a));
+                break;
+            case POP:
+                setReg(a, pop());
+                break;
+            case XCH:
+            case LAS:
+            case LAC:
+            case LAT:
+                int address = pointerAddress(instr, a);
+                d = readData(address);
+                r = reg(b);
+                result = cmd == Cmd.XCH ? r : cmd == Cmd.LAS ? d | r : cmd == Cmd.LAC ? d & ~r : d ^ r;
+                writeData(address, result);
+                setReg(b, d);
+                break;
+            case CPSE:
+            case SBRC:
+            case SBRS:
+            case SBIC:
+            case SBIS:
+                if (isSkipped(cmd, a, b)) {
+                    int skipped = next < program.length && program[next] != null ?
+                            program[next].cmd.getWords(core) : 1;
+                    next += skipped;
+                    time = cmd.getMaxCycles(core) + skipped - 1;
+                }
+                break;
+            case RJMP:
+            case JMP:
+                next = a;
+                break;
+            case IJMP:
+            case EIJMP:
+                next = regPair(30);
+                break;
+            case RCALL:
+            case CALL:
+            case ICALL:
+            case EICALL:
+                pushAddress(next);
+                next = cmd == Cmd.RCALL || cmd == Cmd.CALL ? a : regPair(30);
+                break;
+            case RET:
+            case RETI:
+                next = popAddress();
+                if (cmd == Cmd.RETI) {
+                    updateFlags(Sreg.I, Sreg.I);
+                }
+                break;
+            case BREAK:
+            case SLEEP:
+                halted = true;
+                break;
+            case NOP:
+            case WDR:
+                break;
+            case SPM:
+                throw new IllegalStateException("line " + instr.line + ": spm isn't supported");
+            default:
+                if (cmd.isBranch()) {
+                    boolean taken = cmd == Cmd.BRBS || cmd == Cmd.BRBC ?
+                            ((getSreg() >> a) & 1) == (cmd == Cmd.BRBS ? 1 : 0) : isTaken(cmd);
+                    if (taken) {
+                        next = cmd == Cmd.BRBS || cmd == Cmd.BRBC ? b : a;
+                        time = cmd.getMaxCycles(core);
+                    }
+                    break;
+                }
+                throw new IllegalStateException("line " + instr.line + ": " + cmd.getMnemonic() +
+                        " isn't supported");
+        }
+        cycles += time;
+        pc = next;
+    }
+
+    /**
+     * Value of the second operand, subi and sbci accept negated values
+     */
+    private int operand(Cmd cmd, int value) {
+        return cmd == Cmd.SUBI || cmd == Cmd.SBCI || cmd == Cmd.CPI || cmd == Cmd.ANDI || cmd == Cmd.ORI ||
+                cmd == Cmd.SBR ? value & 0xFF : reg(value);
+    }
+
+    private boolean isSkipped(Cmd cmd, int a, int b) {
+        switch (cmd) {
+            case CPSE:
+                return reg(a) == reg(b);
+            case SBRC:
+                return (reg(a) & (1 << b)) == 0;
+            case SBRS:
+                return (reg(a) & (1 << b)) != 0;
+            case SBIC:
+                return (getIo(a) & (1 << b)) == 0;
+            default:
+                return (getIo(a) & (1 << b)) != 0;
+        }
+    }
+
+    private boolean isTaken(Cmd cmd) {
+        int sreg = getSreg();
+        switch (cmd) {
+            case BREQ:
+                return (sreg & Sreg.Z) != 0;
+            case BRNE:
+                return (sreg & Sreg.Z) == 0;
+            case BRCS:
+            case BRLO:
+                return (sreg & Sreg.C) != 0;
+            case BRCC:
+            case BRSH:
+                return (sreg & Sreg.C) == 0;
+            case BRMI:
+                return (sreg & Sreg.N) != 0;
+            case BRPL:
+                return (sreg & Sreg.N) == 0;
+            case BRVS:
+                return (sreg & Sreg.V) != 0;
+            case BRVC:
+                return (sreg & Sreg.V) == 0;
+            case BRLT:
+                return (sreg & Sreg.S) != 0;
+            case BRGE:
+                return (sreg & Sreg.S) == 0;
+            case BRHS:
+                return (sreg & Sreg.H) != 0;
+            case BRHC:
+                return (sreg & Sreg.H) == 0;
+            case BRTS:
+                return (sreg & Sreg.T) != 0;
+            case BRTC:
+                return (sreg & Sreg.T) == 0;
+            case BRIE:
+                return (sreg & Sreg.I) != 0;
+            default:
+                return (sreg & Sreg.I) == 0;
+        }
+    }
+
+    private int add(int d, int r, int carry) {
+        int result = (d + r + carry) & 0xFF;
+        int carries = (d & r) | (r & ~result) | (~result & d);
+        int overflow = (d & r & ~result) | (~d & ~r & result);
+        arithmeticFlags(result, carries, overflow, false);
+        return result;
+    }
+
+    /**
+     * Subtracts with carry, sbc, sbci and cpc keep Z flag cleared if the result is zero
+     */
+    private int subtract(int d, int r, int carry, boolean keepZero) {
+        int result = (d - r - carry) & 0xFF;
+        int carries = (~d & r) | (r & result) | (result & ~d);
+        int overflow = (d & ~r & ~result) | (~d & r & result);
+        arithmeticFlags(result, carries, overflow, keepZero);
+        return result;
+    }
+
+    private void arithmeticFlags(int result, int carries, int overflow, boolean keepZero) {
+        int flags = signFlags(result, (overflow & 0x80) != 0);
+        if (keepZero && (getSreg() & Sreg.Z) == 0) {
+            flags &= ~Sreg.Z;
+        }
+        if ((carries & 0x08) != 0) {
+            flags |= Sreg.H;
+        }
+        if ((carries & 0x80) != 0) {
+            flags |= Sreg.C;
+        }
+        updateFlags(Sreg.H | Sreg.S | Sreg.V | Sreg.N | Sreg.Z | Sreg.C, flags);
+    }
+
+    private void logic(int reg, int result, boolean store) {
+        result &= 0xFF;
+        if (store) {
+            setReg(reg, result);
+        }
+        updateFlags(Sreg.S | Sreg.V | Sreg.N | Sreg.Z, signFlags(result, false));
+    }
+
+    private void shiftFlags(int result, boolean carry) {
+        boolean negative = (result & 0x80) != 0;
+        int flags = signFlags(result, negative ^ carry);
+        updateFlags(Sreg.S | Sreg.V | Sreg.N | Sreg.Z | Sreg.C, flags | (carry ? Sreg.C : 0));
+    }
+
+    /**
+     * Returns N, Z, V and S flags of the byte
+     */
+    private static int signFlags(int result, boolean overflow) {
+        boolean negative = (result & 0x80) != 0;
+        int flags = 0;
+        if (negative) {
+            flags |= Sreg.N;
+        }
+        if (overflow) {
+            flags |= Sreg.V;
+        }
+        if (negative ^ overflow) {
+            flags |= Sreg.S;
+        }
+        if ((result & 0xFF) == 0) {
+            flags |= Sreg.Z;
+        }
+        return flags;
+    }
+
+    private void multiply(Cmd cmd, int a, int b) {
+        int d = reg(a);
+        int r = reg(b);
+        boolean signedD = cmd == Cmd.MULS || cmd == Cmd.MULSU || cmd == Cmd.FMULS || cmd == Cmd.FMULSU;
+        boolean signedR = cmd == Cmd.MULS || cmd == Cmd.FMULS;
+        int product = (signedD ? (byte) d : d) * (signedR ? (byte) r : r) & 0xFFFF;
+        boolean carry = (product & 0x8000) != 0;
+        if (cmd == Cmd.FMUL || cmd == Cmd.FMULS || cmd == Cmd.FMULSU) {
+            product = (product << 1) & 0xFFFF;
+        }
+        setReg(0, product);
+        setReg(1, product >> 8);
+        updateFlags(Sreg.Z | Sreg.C, (product == 0 ? Sreg.Z : 0) | (carry ? Sreg.C : 0));
+    }
+
+    /**
+     * Returns address of the pointer operand and updates the pointer register
+     */
+    private int pointerAddress(Instruction instr, int reg) {
+        int address = regPair(reg);
+        if (instr.pointerMode == PRE_DECREMENT) {
+            address = (address - 1) & 0xFFFF;
+            setRegPair(reg, address);
+        } else if (instr.pointerMode == POST_INCREMENT) {
+            setRegPair(reg, address + 1);
+        }
+        return (address + instr.displacement) & 0xFFFF;
+    }
+
+    /**
+     * Memory access with pre-decrement takes the maximal cycles of ld and st
+     */
+    private int pointerCycles(Cmd cmd, Instruction instr) {
+        return instr.pointerMode == PRE_DECREMENT ? cmd.getMaxCycles(core) : cmd.getCycles(core);
+    }
+
+    private int carry() {
+        return getSreg() & Sreg.C;
+    }
+
+    private void updateFlags(int mask, int flags) {
+        setSreg((getSreg() & ~mask) | (flags & mask));
+    }
+
+    private int reg(int index) {
+        return data[index] & 0xFF;
+    }
+
+    private void setReg(int index, int value) {
+        data[index] = (byte) value;
+    }
+
+    private int regPair(int low) {
+        return reg(low) | (reg(low + 1) << 8);
+    }
+
+    private void setRegPair(int low, int value) {
+        setReg(low, value);
+        setReg(low + 1, value >> 8);
+    }
+
+    private void push(int value) {
+        int sp = getSp();
+        writeData(sp, value);
+        setSp(sp - 1);
+    }
+
+    private int pop() {
+        int sp = getSp() + 1;
+        setSp(sp);
+        return readData(sp);
+    }
+
+    /**
+     * Pushes return address, the low byte goes first
+     */
+    private void pushAddress(int address) {
+        for (int i = 0; i < pcBytes; i++) {
+            push(address >> (8 * i));
+        }
+    }
+
+    private int popAddress() {
+        int address = 0;
+        for (int i = pcBytes - 1; i >= 0; i--) {
+            address |= pop() << (8 * i);
+        }
+        return address;
+    }
+
+    private int readData(int address) {
+        checkDataAddress(address);
+        return data[address] & 0xFF;
+    }
+
+    private void writeData(int address, int value) {
+        checkDataAddress(address);
+        data[address] = (byte) value;
+    }
+
+    private void checkDataAddress(int address) {
+        if (address < 0 || address >= data.length) {
+            throw new IllegalStateException("data address " + address + " is out of range at line " +
+                    (pc < program.length && program[pc] != null ? program[pc].line : -1));
+        }
+    }
+
+    private int readFlash(int address) {
+        return address < flash.length ? flash[address] & 0xFF : 0;
+    }
+
+    public int getRegister(int index) {
+        return reg(index);
+    }
+
+    public void setRegister(int index, int value) {
+        setReg(index, value);
+    }
+
+    /**
+     * Returns 16-bit value of the register pair by its low register
+     */
+    public int getRegisterPair(int low) {
+        return regPair(low);
+    }
+
+    public void setRegisterPair(int low, int value) {
+        setRegPair(low, value);
+    }
+
+    public int getSreg() {
+        return getIo(SREG);
+    }
+
+    public void setSreg(int value) {
+        setIo(SREG, value);
+    }
+
+    public boolean isFlag(int mask) {
+        return (getSreg() & mask) != 0;
+    }
+
+    public int getSp() {
+        return getIo(SPL) | (getIo(SPH) << 8);
+    }
+
+    public void setSp(int sp) {
+        setIo(SPL, sp);
+        setIo(SPH, sp >> 8);
+    }
+
+    /**
+     * Returns IO register by its address in the IO space (in and out instructions)
+     */
+    public int getIo(int address) {
+        return readData(IO_START + address);
+    }
+
+    public void setIo(int address, int value) {
+        writeData(IO_START + address, value);
+    }
+
+    public int getData(int address) {
+        return readData(address);
+    }
+
+    public void setData(int address, int value) {
+        writeData(address, value);
+    }
+
+    /**
+     * Returns byte of the flash by its byte address
+     */
+    public int getFlash(int address) {
+        return readFlash(address);
+    }
+
+    /**
+     * Returns word address of the next instruction
+     */
+    public int getPc() {
+        return pc;
+    }
+
+    public void setPc(int pc) {
+        this.pc = pc;
+        halted = false;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public void setStepLimit(long stepLimit) {
+        this.stepLimit = stepLimit;
+    }
+
+    /**
+     * Clears the counters, registers, memory and stack, the loaded code is kept
+     */
+    public void reset() {
+        Arrays.fill(data, (byte) 0);
+        setSp(data.length - 1);
+        pc = 0;
+        cycles = 0;
+        steps = 0;
+        halted = false;
+    }
+}
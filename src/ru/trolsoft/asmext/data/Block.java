@@ -15,6 +15,7 @@ public class Block {
     public final Expression expr;
     private String labelStart;
     private String labelEnd;
+    private int outputStart = -1;
 
     public Block(int type, Expression expr, int beginLine) {
         this.type = type;
@@ -58,6 +59,17 @@ public class Block {
         return labelEnd;
     }
 
+    /**
+     * Returns id of the output hold of the block code for the cycle counter, -1 if the code isn't counted
+     */
+    public int getOutputStart() {
+        return outputStart;
+    }
+
+    public void setOutputStart(int outputStart) {
+        this.outputStart = outputStart;
+    }
+
     public Token getLabelStartToken() {
         return new Token(Token.TYPE_OTHER, labelStart);
     }
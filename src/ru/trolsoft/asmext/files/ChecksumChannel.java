@@ -0,0 +1,83 @@
+package ru.trolsoft.asmext.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Counts size and CRC32 of the data written through the channel. Used to check if the output file has to be
+ * replaced without reading the new content again.
+ */
+public class ChecksumChannel implements WritableByteChannel {
+    private final WritableByteChannel target;
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    /**
+     * Creates a channel that writes to the target
+     */
+    public ChecksumChannel(WritableByteChannel target) {
+        this.target = target;
+    }
+
+    /**
+     * Creates a channel that only counts the data
+     */
+    public ChecksumChannel() {
+        this(null);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer data = src.duplicate();
+        int written;
+        if (target != null) {
+            written = target.write(src);
+            data.limit(data.position() + written);
+        } else {
+            written = src.remaining();
+            src.position(src.limit());
+        }
+        crc.update(data);
+        size += written;
+        return written;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getChecksum() {
+        return crc.getValue();
+    }
+
+    /**
+     * Returns true if the file exists and has the same size and checksum as the written data
+     */
+    public boolean matches(File file) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            return false;
+        }
+        ByteBuffer content = LineIndex.load(file);
+        if (content == null) {
+            return false;
+        }
+        CRC32 fileCrc = new CRC32();
+        fileCrc.update(content);
+        return fileCrc.getValue() == crc.getValue();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return target == null || target.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (target != null) {
+            target.close();
+        }
+    }
+}
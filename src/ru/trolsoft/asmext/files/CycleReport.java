@@ -0,0 +1,73 @@
+package ru.trolsoft.asmext.files;
+
+import ru.trolsoft.asmext.compiler.CycleCounter;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sizes and cycles of procedures and blocks of a translated file. The report is written as tab-separated lines
+ * with a header: source line, kind (proc, loop, if, do-while), name (procedure name or block label), words,
+ * best and worst cycles and number of unknown lines.
+ */
+public class CycleReport {
+    private static final String HEADER = "line\tkind\tname\twords\tbest\tworst\tunknown";
+
+    public static class Entry {
+        public final int line;
+        public final String kind;
+        public final String name;
+        public final CycleCounter.Cost cost;
+
+        public Entry(int line, String kind, String name, CycleCounter.Cost cost) {
+            this.line = line;
+            this.kind = kind;
+            this.name = name;
+            this.cost = cost;
+        }
+
+        @Override
+        public String toString() {
+            return line + "\t" + kind + "\t" + name + "\t" + cost.words + "\t" + cost.bestCycles + "\t" +
+                    cost.worstCycles + "\t" + cost.unknownLines;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Returns entries ordered by the source line, an outer block comes before the inner ones
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries);
+        result.sort(Comparator.comparingInt(e -> e.line));
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void write(Writer writer) throws IOException {
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Entry entry : getEntries()) {
+            writer.write(entry.toString());
+            writer.write('\n');
+        }
+    }
+
+    public void writeToFile(String fileName) throws IOException {
+        try (Writer writer = new FileWriter(fileName)) {
+            write(writer);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ru.trolsoft.asmext.files;
+
+import ru.trolsoft.asmext.utils.TokenString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Lines of a source stored as start offsets in the raw data. A line is decoded on the first access, ASCII lines
+ * are copied without charset decoding. Line terminators are the same as for {@link java.io.BufferedReader#readLine}.
+ */
+class LineIndex extends AbstractList<TokenString> implements RandomAccess {
+    /**
+     * Smaller files are read to the heap, mapping doesn't pay off for them
+     */
+    private static final int MAP_THRESHOLD = 16 * 1024;
+
+    private final ByteBuffer data;
+    private final Decoder decoder;
+    private int[] starts = new int[256];
+    private int count;
+    private TokenString[] lines;
+
+    LineIndex(ByteBuffer data) {
+        this.data = data;
+        this.decoder = new Decoder(data);
+        final int limit = data.limit();
+        int pos = 0;
+        while (pos < limit) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = pos;
+            pos = skipTerminator(data, findLineEnd(data, pos));
+        }
+        lines = new TokenString[count];
+    }
+
+    /**
+     * Returns the file content or null if the file is too large to be mapped
+     */
+    static ByteBuffer load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            } else if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer result = ByteBuffer.allocate((int) size);
+            while (result.hasRemaining() && channel.read(result) >= 0) {
+                // read all
+            }
+            result.flip();
+            return result;
+        }
+    }
+
+    /**
+     * Returns offset of the line terminator or the data limit
+     */
+    static int findLineEnd(ByteBuffer data, int start) {
+        final int limit = data.limit();
+        for (int i = start; i < limit; i++) {
+            byte b = data.get(i);
+            if (b == '\n' || b == '\r') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns start of the next line, "\r\n" is a single terminator
+     */
+    static int skipTerminator(ByteBuffer data, int end) {
+        final int limit = data.limit();
+        if (end < limit && data.get(end) == '\r') {
+            end++;
+            if (end < limit && data.get(end) == '\n') {
+                end++;
+            }
+        } else if (end < limit) {
+            end++;
+        }
+        return end;
+    }
+
+    @Override
+    public TokenString get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        TokenString result = lines[index];
+        if (result == null) {
+            int start = starts[index];
+            result = new TokenString(decoder.decode(start, findLineEnd(data, start)));
+            lines[index] = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Converts line bytes to string, ASCII lines don't need charset decoding
+     */
+    static class Decoder {
+        private static final Charset CHARSET = Charset.defaultCharset();
+
+        private final ByteBuffer view;
+        private byte[] buffer = new byte[256];
+
+        Decoder(ByteBuffer data) {
+            this.view = data.duplicate();
+        }
+
+        String decode(int start, int end) {
+            int length = end - start;
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            byte[] bytes = buffer;
+            view.position(start);
+            view.get(bytes, 0, length);
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] < 0) {
+                    ascii = false;
+                    break;
+                }
+            }
+            return new String(bytes, 0, length, ascii ? StandardCharsets.ISO_8859_1 : CHARSET);
+        }
+    }
+}
@@ -1,43 +1,314 @@
 package ru.trolsoft.asmext.files;
 
-import ru.trolsoft.asmext.processor.Token;
+import ru.trolsoft.asmext.compiler.Cmd;
+import ru.trolsoft.asmext.utils.AsmInstruction;
 import ru.trolsoft.asmext.utils.TokenString;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Function;
 
+/**
+ * Translated lines as records: compiled instructions ({@link AsmInstruction}) and text lines (labels, directives,
+ * comments and copied source lines). The records are optimized, rendered and encoded to a byte buffer only when the
+ * output is written, ASCII lines are copied without charset encoding. The current text line is built in a reused
+ * {@link StringBuilder}.
+ */
 public class OutputFile {
-    private final List<String> lines = new ArrayList<>();
-    private StringBuilder lastLine;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    /**
+     * In streaming mode the buffer is written out when it grows over this size
+     */
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    /**
+     * In streaming mode the records are rendered by batches of this size
+     */
+    private static final int STREAM_BATCH_SIZE = 1024;
+
+    /**
+     * Pass over the records that runs before they are rendered
+     */
+    public interface Optimizer {
+        /**
+         * Records are {@link AsmInstruction} or {@link String} for text lines, the optimizer can replace them or
+         * set to null to remove. Records before the start are already written, they are the context of the next
+         * ones and must not be changed.
+         */
+        void optimize(List<Object> records, int start);
+
+        /**
+         * Returns number of the last records that are needed as the context of the records that follow them
+         */
+        int getContextSize(List<Object> records);
+    }
+
+    /**
+     * Records from the start to the end, the end is -1 until the hold is released
+     */
+    private static class Hold {
+        final int id;
+        int start;
+        int end = -1;
+        Function<List<Object>, String> handler;
+        String line;
+
+        Hold(int id, int start) {
+            this.id = id;
+            this.start = start;
+        }
+    }
+
+    /**
+     * {@link AsmInstruction} or {@link String} for text lines
+     */
+    private final ArrayList<Object> records = new ArrayList<>();
+    /**
+     * Number of the first records that are already encoded to the buffer
+     */
+    private int renderedCount;
+    /**
+     * Number of the first records that are already optimized, it can be greater than {@link #renderedCount} after
+     * {@link #append} of a rendered output
+     */
+    private int optimizedCount;
+    private byte[] data = new byte[4096];
+    private int length;
+    private final StringBuilder lastLine = new StringBuilder();
+    private boolean hasLastLine;
+    private final StringBuilder renderBuffer = new StringBuilder();
+    private WritableByteChannel stream;
+    private int streamedCount;
+    /**
+     * Open and released holds that aren't handled yet in order of release, the held records are not written out in
+     * streaming mode
+     */
+    private final List<Hold> holds = new ArrayList<>();
+    private int nextHoldId;
+    private Optimizer optimizer;
+    /**
+     * Instructions added when it is false are kept as text lines, the optimizer doesn't change them
+     */
+    private boolean optimizable = true;
 
     public void writeToFile(String fileName) throws IOException {
-        try (FileWriter writer = new FileWriter(fileName)) {
-            write(writer);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel);
         }
     }
 
+    public void write(WritableByteChannel channel) throws IOException {
+        addLastLine();
+        render();
+        writeFully(channel, ByteBuffer.wrap(data, 0, length));
+    }
+
+    /**
+     * Returns read-only view of the encoded lines
+     */
+    public ByteBuffer toByteBuffer() {
+        addLastLine();
+        render();
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
     public void write(Writer writer) throws IOException {
         addLastLine();
-        for (String s : lines) {
-            writer.write(s);
-            writer.write('\n');
+        render();
+        writer.write(decode(0, length));
+    }
+
+
+    /**
+     * Switches the output to streaming mode: lines added before are written to the channel, next lines are
+     * written by blocks as they are completed and are not kept in memory. Write errors are thrown as
+     * {@link UncheckedIOException}.
+     */
+    public void streamTo(WritableByteChannel channel) throws IOException {
+        stream = channel;
+        render();
+        writeBuffer();
+    }
+
+    /**
+     * Writes the rest of lines in streaming mode
+     */
+    public void flush() throws IOException {
+        if (stream != null) {
+            try {
+                addLastLine();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            render();
+            writeBuffer();
         }
     }
 
+    private void writeBuffer() throws IOException {
+        writeFully(stream, ByteBuffer.wrap(data, 0, length));
+        // the last written records are kept as the context of the optimizer
+        int context = optimizer != null ? optimizer.getContextSize(records) : 0;
+        streamedCount += records.size() - context;
+        records.subList(0, records.size() - context).clear();
+        renderedCount = context;
+        optimizedCount = context;
+        length = 0;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
 
     private void addLastLine() {
-        if (lastLine != null) {
-            lines.add(lastLine.toString());
-            lastLine = null;
+        if (hasLastLine) {
+            hasLastLine = false;
+            addRecord(lastLine.toString());
+            lastLine.setLength(0);
+        }
+    }
+
+    private void addRecord(Object record) {
+        records.add(record);
+        if (stream != null && records.size() - renderedCount >= STREAM_BATCH_SIZE) {
+            render();
+            if (length >= FLUSH_THRESHOLD && holds.isEmpty()) {
+                try {
+                    writeBuffer();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes records that are not encoded yet to the buffer
+     */
+    private void render() {
+        if (optimizer != null && optimizedCount < records.size()) {
+            // the code before is already optimized, it is given as the context (a skip instruction at its end)
+            int context = optimizer.getContextSize(records.subList(0, optimizedCount));
+            optimizer.optimize(records.subList(optimizedCount - context, records.size()), context);
+            removeNulls();
+        }
+        optimizedCount = records.size();
+        List<Hold> handled = handleReleased();
+        int next = 0;
+        for (int i = renderedCount; i < records.size(); i++) {
+            for (; next < handled.size() && handled.get(next).end == i; next++) {
+                encodeLine(handled.get(next).line);
+            }
+            Object record = records.get(i);
+            if (record instanceof AsmInstruction) {
+                renderBuffer.setLength(0);
+                encodeLine(((AsmInstruction) record).appendTo(renderBuffer));
+            } else {
+                encodeLine((String) record);
+            }
+        }
+        for (; next < handled.size(); next++) {
+            encodeLine(handled.get(next).line);
         }
+        renderedCount = records.size();
+    }
+
+    /**
+     * Removes records that are set to null by the optimizer, the held positions are moved with the records
+     */
+    private void removeNulls() {
+        int[] removedBefore = new int[records.size() - optimizedCount + 1];
+        int j = optimizedCount;
+        for (int i = optimizedCount; i < records.size(); i++) {
+            removedBefore[i - optimizedCount] = i - j;
+            Object record = records.get(i);
+            if (record != null) {
+                records.set(j++, record);
+            }
+        }
+        removedBefore[records.size() - optimizedCount] = records.size() - j;
+        for (Hold hold : holds) {
+            if (hold.start >= optimizedCount) {
+                hold.start -= removedBefore[hold.start - optimizedCount];
+            }
+            if (hold.end >= optimizedCount) {
+                hold.end -= removedBefore[hold.end - optimizedCount];
+            }
+        }
+        records.subList(j, records.size()).clear();
+    }
+
+    /**
+     * Calls handlers of the released holds with their optimized records, returns the handled holds ordered by
+     * the end position
+     */
+    private List<Hold> handleReleased() {
+        List<Hold> handled = new ArrayList<>();
+        for (int i = 0; i < holds.size(); i++) {
+            Hold hold = holds.get(i);
+            if (hold.end >= 0 && hold.end <= records.size()) {
+                hold.line = hold.handler.apply(Collections.unmodifiableList(records.subList(hold.start, hold.end)));
+                handled.add(hold);
+                holds.remove(i--);
+            }
+        }
+        // the stable sort keeps the order of release for the same position
+        handled.sort(Comparator.comparingInt(hold -> hold.end));
+        return handled;
+    }
+
+    private void encodeLine(CharSequence line) {
+        final int len = line.length();
+        ensureCapacity(length + len + 1);
+        int pos = length;
+        for (int i = 0; i < len; i++) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = line.toString().getBytes(CHARSET);
+                ensureCapacity(length + bytes.length + 1);
+                System.arraycopy(bytes, 0, data, length, bytes.length);
+                pos = length + bytes.length;
+                break;
+            }
+            data[pos++] = (byte) c;
+        }
+        data[pos] = '\n';
+        length = pos + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+    private String decode(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] < 0) {
+                return new String(data, start, end - start, CHARSET);
+            }
+        }
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
     }
 
     public void add(String line) {
         addLastLine();
-        lines.add(line);
+        addRecord(line);
     }
 
     public void add(TokenString line) {
@@ -54,7 +325,7 @@ public class OutputFile {
 
     public void add(StringBuilder line) {
         addLastLine();
-        lines.add(line.toString());
+        addRecord(line.toString());
     }
 
     public void add(String[] strings) {
@@ -64,9 +335,90 @@ public class OutputFile {
         }
     }
 
+    public void add(AsmInstruction instruction) {
+        addLastLine();
+        addRecord(optimizable ? instruction : instruction.toString());
+    }
+
+    /**
+     * Appends lines of the other output, the other output must not be in streaming mode. Records rendered by the
+     * other output are not optimized again, its released holds are handled by this output.
+     */
+    public void append(OutputFile other) {
+        addLastLine();
+        other.addLastLine();
+        if (other.renderedCount > 0) {
+            render();
+        }
+        int offset = records.size();
+        for (Hold hold : other.holds) {
+            if (hold.end < 0) {
+                throw new IllegalStateException("the other output has open holds");
+            }
+            Hold moved = new Hold(nextHoldId++, hold.start + offset);
+            moved.end = hold.end + offset;
+            moved.handler = hold.handler;
+            holds.add(moved);
+        }
+        for (int i = 0; i < other.records.size(); i++) {
+            addRecord(other.records.get(i));
+            if (i < other.renderedCount) {
+                optimizedCount = records.size();
+            }
+        }
+    }
+
+    /**
+     * Starts to hold the next records and returns id of the hold. The held records are kept in memory even in
+     * streaming mode until they are released and rendered.
+     */
+    public int hold() {
+        addLastLine();
+        Hold hold = new Hold(nextHoldId++, records.size());
+        holds.add(hold);
+        return hold.id;
+    }
+
+    /**
+     * Ends the hold. When the held records are optimized as a part of the whole output, the handler gets a
+     * read-only view of them and returns a text line that is written after them. The line isn't a record: it isn't
+     * optimized and isn't counted by {@link #size()}.
+     */
+    public void release(int id, Function<List<Object>, String> handler) {
+        addLastLine();
+        for (int i = 0; i < holds.size(); i++) {
+            Hold hold = holds.get(i);
+            if (hold.id == id && hold.end < 0) {
+                hold.end = records.size();
+                hold.handler = handler;
+                // released holds are handled in order of release
+                holds.remove(i);
+                holds.add(hold);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("hold not found: " + id);
+    }
+
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    public void setOptimizable(boolean optimizable) {
+        this.optimizable = optimizable;
+    }
+
+    public boolean isOptimizable() {
+        return optimizable;
+    }
+
     public StringBuilder startNewLine() {
         addLastLine();
-        lastLine = new StringBuilder();
+        hasLastLine = true;
         return lastLine;
     }
 
@@ -85,76 +437,69 @@ public class OutputFile {
 
 
     public int size() {
-        return lines.size() + (lastLine == null ? 0 : 1);
+        return streamedCount + records.size() + (hasLastLine ? 1 : 0);
     }
 
     public boolean isEmpty() {
-        return lines.isEmpty() && lastLine == null;
+        return size() == 0;
     }
 
     public String get(int index) {
-        if (index < lines.size()) {
-            return lines.get(index);
-        } else if (index == lines.size() && lastLine != null) {
+        if (index < streamedCount) {
+            throw new IllegalStateException("line " + index + " is already written to the stream");
+        }
+        index -= streamedCount;
+        if (index < records.size()) {
+            return records.get(index).toString();
+        } else if (index == records.size() && hasLastLine) {
             return lastLine.toString();
         }
         throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
     }
 
+    /**
+     * Returns instruction record of the line or null if it is a text line
+     */
+    public AsmInstruction getInstruction(int index) {
+        if (index < streamedCount) {
+            throw new IllegalStateException("line " + index + " is already written to the stream");
+        }
+        index -= streamedCount;
+        if (index < records.size()) {
+            Object record = records.get(index);
+            return record instanceof AsmInstruction ? (AsmInstruction) record : null;
+        } else if (index == records.size() && hasLastLine) {
+            return null;
+        }
+        throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+    }
+
 
 //    public String getLast() {
 //        return get(size()-1);
 //    }
 
     public void clear() {
-        lines.clear();
-        lastLine = null;
-    }
-
-    private StringBuilder appendCommand(String indent, String cmd, String arg1, String arg2) {
-        StringBuilder sb = startNewLine();
-        if (indent != null) {
-            sb.append(indent);
-        }
-        sb.append(cmd);
-        if (arg1 != null) {
-            sb.append('\t');
-            sb.append(arg1);
-        }
-        if (arg2 != null) {
-            sb.append(", ");
-            sb.append(arg2);
-        }
-        return sb;
+        records.clear();
+        renderedCount = 0;
+        optimizedCount = 0;
+        length = 0;
+        lastLine.setLength(0);
+        hasLastLine = false;
+        streamedCount = 0;
+        holds.clear();
     }
 
-    private StringBuilder appendCommand(String indent, String cmd, String arg) {
-        startNewLine().append(indent).append(cmd);
-        if (arg != null) {
-            lastLine.append('\t').append(arg);
-        }
-        return lastLine;
+    public void appendCommand(TokenString src, Cmd cmd, String arg1, String arg2) {
+        add(new AsmInstruction(src, cmd, arg1, arg2));
     }
 
-    public StringBuilder appendCommand(TokenString src, String cmd, String arg1, String arg2) {
-        StringBuilder sb = appendCommand(src.getIndent(), cmd, arg1, arg2);
-        if (src.hasComment()) {
-            sb.append("\t\t").append(src.getComment());
-        }
-        return sb;
-    }
-
-    public StringBuilder appendCommand(TokenString src, String cmd, String arg) {
-        StringBuilder sb = appendCommand(src.getIndent(), cmd, arg);
-        if (src.hasComment()) {
-            sb.append("\t\t").append(src.getComment());
-        }
-        return sb;
+    public void appendCommand(TokenString src, Cmd cmd, String arg) {
+        appendCommand(src, cmd, arg, null);
     }
 
     public void addComment(String s) {
-        startNewLine().append("; ").append(s);
-        addLastLine();
+        add("; " + s);
     }
 
     public void addComment(TokenString s) {
@@ -164,28 +509,25 @@ public class OutputFile {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (String s : lines) {
-            sb.append(s).append('\n');
-        }
-        if (lastLine != null) {
-            sb.append(lastLine);
+        for (Object record : records) {
+            sb.append(record).append('\n');
         }
-        return sb.toString();
+        return hasLastLine ? sb.append(lastLine).toString() : sb.toString();
     }
 
 
     public StringBuilder getLastLineBuilder() {
-        return lastLine;
+        return hasLastLine ? lastLine : null;
     }
 
 
     public String getLastLine() {
-        if (lastLine != null) {
+        if (hasLastLine) {
             return lastLine.toString();
         }
-        if (lines.isEmpty()) {
+        if (records.isEmpty()) {
             return null;
         }
-        return lines.get(lines.size()-1);
+        return records.get(records.size() - 1).toString();
     }
 }
@@ -3,6 +3,7 @@ package ru.trolsoft.asmext.files;
 import ru.trolsoft.asmext.utils.TokenString;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -11,25 +12,42 @@ import java.util.function.Consumer;
 
 public class SourceFile implements Iterable<TokenString> {
 
-    private final List<TokenString> lines = new ArrayList<>();
+    private List<TokenString> lines = new ArrayList<>();
 
     public SourceFile() {
 
     }
 
+    /**
+     * Maps the file to memory, lines are decoded on access
+     */
     public void read(File file) throws IOException {
+        ByteBuffer data = LineIndex.load(file);
+        if (data != null) {
+            read(data);
+            return;
+        }
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             read(reader);
         }
     }
 
+    /**
+     * Indexes lines of the data, lines are decoded on access
+     */
+    public void read(ByteBuffer data) {
+        lines = new LineIndex(data);
+    }
+
     public void read(BufferedReader reader) throws IOException {
+        lines = new ArrayList<>();
+        SourceReader src = new SourceReader(reader);
         while (true) {
-            String line = reader.readLine();
+            TokenString line = src.next();
             if (line == null) {
                 break;
             }
-            lines.add(new TokenString(line));
+            lines.add(line);
         }
     }
 
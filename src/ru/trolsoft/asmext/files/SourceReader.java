@@ -0,0 +1,60 @@
+package ru.trolsoft.asmext.files;
+
+import ru.trolsoft.asmext.utils.TokenString;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads source lines one by one without keeping them in memory
+ */
+public class SourceReader implements Closeable {
+    private final BufferedReader reader;
+    private final ByteBuffer data;
+    private final LineIndex.Decoder decoder;
+    private int position;
+
+    /**
+     * Maps the file to memory, only the current line is decoded
+     */
+    public SourceReader(File file) throws IOException {
+        data = LineIndex.load(file);
+        if (data != null) {
+            reader = null;
+            decoder = new LineIndex.Decoder(data);
+        } else {
+            reader = new BufferedReader(new FileReader(file));
+            decoder = null;
+        }
+    }
+
+    public SourceReader(BufferedReader reader) {
+        this.reader = reader;
+        this.data = null;
+        this.decoder = null;
+    }
+
+    /**
+     * Returns the next line or null at the end of the file
+     */
+    public TokenString next() throws IOException {
+        if (reader != null) {
+            String line = reader.readLine();
+            return line != null ? new TokenString(line) : null;
+        }
+        if (position >= data.limit()) {
+            return null;
+        }
+        int end = LineIndex.findLineEnd(data, position);
+        String line = decoder.decode(position, end);
+        position = LineIndex.skipTerminator(data, end);
+        return new TokenString(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package ru.trolsoft.asmext.processor;
+
+/**
+ * Compile-time evaluator of AVR assembler constant expressions. Supports decimal, hex ($FF, 0xFF), binary, octal
+ * (010) and char literals, the C operators of the assembler (including ?:), functions LOW, HIGH, BYTE1..BYTE4, LWRD,
+ * HWRD, PAGE, EXP2, LOG2, ABS and the gcc lo8, hi8, hlo8, hh8. Values are 64-bit like in avrasm2.
+ *
+ * The value is unknown (null) if the expression refers to a symbol without known value (label, variable,
+ * register, undefined constant), divides by zero or can't be parsed, such expressions are left to the assembler.
+ */
+public class ConstEvaluator {
+
+    public interface Symbols {
+        /**
+         * Returns value of the symbol or null if it isn't known at compile time
+         */
+        Long getValue(String name);
+    }
+
+    private final String expr;
+    private final Symbols symbols;
+    private int pos;
+    private boolean known = true;
+
+    private ConstEvaluator(String expr, Symbols symbols) {
+        this.expr = expr;
+        this.symbols = symbols;
+    }
+
+    public static Long evaluate(String expr, Symbols symbols) {
+        if (expr == null) {
+            return null;
+        }
+        ConstEvaluator evaluator = new ConstEvaluator(expr, symbols);
+        try {
+            long result = evaluator.parseConditional();
+            evaluator.skipSpaces();
+            if (evaluator.pos != expr.length() || !evaluator.known) {
+                return null;
+            }
+            return result;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private long parseConditional() {
+        long condition = parseBinary(0);
+        if (!tryRead("?")) {
+            return condition;
+        }
+        long first = parseConditional();
+        expect(":");
+        long second = parseConditional();
+        return condition != 0 ? first : second;
+    }
+
+    /**
+     * Binary operators by priority from the lowest one, operators with the same first chars go first
+     */
+    private static final String[][] BINARY_OPERATORS = {
+            {"||"},
+            {"&&"},
+            {"|"},
+            {"^"},
+            {"&"},
+            {"==", "!="},
+            {"<=", ">=", "<", ">"},
+            {"<<", ">>"},
+            {"+", "-"},
+            {"*", "/", "%"}
+    };
+
+    private long parseBinary(int priority) {
+        if (priority == BINARY_OPERATORS.length) {
+            return parseUnary();
+        }
+        long result = parseBinary(priority + 1);
+        while (true) {
+            String operator = readOperator(BINARY_OPERATORS[priority]);
+            if (operator == null) {
+                return result;
+            }
+            long arg = parseBinary(priority + 1);
+            result = calculate(operator, result, arg);
+        }
+    }
+
+    private long calculate(String operator, long a, long b) {
+        switch (operator) {
+            case "||": return a != 0 || b != 0 ? 1 : 0;
+            case "&&": return a != 0 && b != 0 ? 1 : 0;
+            case "|": return a | b;
+            case "^": return a ^ b;
+            case "&": return a & b;
+            case "==": return a == b ? 1 : 0;
+            case "!=": return a != b ? 1 : 0;
+            case "<=": return a <= b ? 1 : 0;
+            case ">=": return a >= b ? 1 : 0;
+            case "<": return a < b ? 1 : 0;
+            case ">": return a > b ? 1 : 0;
+            case "<<": return b >= 0 && b < 64 ? a << b : 0;
+            case ">>": return b >= 0 && b < 64 ? a >> b : (a < 0 ? -1 : 0);
+            case "+": return a + b;
+            case "-": return a - b;
+            case "*": return a * b;
+            case "/":
+            case "%":
+                if (b == 0) {
+                    known = false;
+                    return 0;
+                }
+                return "/".equals(operator) ? a / b : a % b;
+        }
+        throw new IllegalArgumentException(operator);
+    }
+
+    private long parseUnary() {
+        skipSpaces();
+        if (pos >= expr.length()) {
+            throw new IllegalArgumentException("value expected");
+        }
+        char c = expr.charAt(pos);
+        if (c == '-' || c == '+' || c == '~' || c == '!') {
+            pos++;
+            long val = parseUnary();
+            switch (c) {
+                case '-': return -val;
+                case '~': return ~val;
+                case '!': return val == 0 ? 1 : 0;
+                default: return val;
+            }
+        }
+        return parsePrimary();
+    }
+
+    private long parsePrimary() {
+        char c = expr.charAt(pos);
+        if (c == '(') {
+            pos++;
+            long result = parseConditional();
+            expect(")");
+            return result;
+        } else if (c == '\'') {
+            return parseChar();
+        } else if (c == '$' || isDigit(c)) {
+            return parseNumber();
+        } else if (isNameChar(c)) {
+            String name = readName();
+            if (tryRead("(")) {
+                long arg = parseConditional();
+                expect(")");
+                return function(name, arg);
+            }
+            Long val = symbols.getValue(name);
+            if (val == null) {
+                known = false;
+                return 0;
+            }
+            return val;
+        }
+        throw new IllegalArgumentException("unexpected char: " + c);
+    }
+
+    private long function(String name, long arg) {
+        switch (name.toLowerCase()) {
+            case "low":
+            case "byte1":
+            case "lo8":
+                return arg & 0xff;
+            case "high":
+            case "byte2":
+            case "hi8":
+                return (arg >> 8) & 0xff;
+            case "byte3":
+            case "hlo8":
+            case "hh8":
+                return (arg >> 16) & 0xff;
+            case "byte4":
+                return (arg >> 24) & 0xff;
+            case "lwrd":
+                return arg & 0xffff;
+            case "hwrd":
+                return (arg >> 16) & 0xffff;
+            case "page":
+                return (arg >> 16) & 0x3f;
+            case "exp2":
+                return arg >= 0 && arg < 63 ? 1L << arg : 0;
+            case "log2":
+                return arg > 0 ? 63 - Long.numberOfLeadingZeros(arg) : 0;
+            case "abs":
+                return Math.abs(arg);
+        }
+        // unknown or floating point function
+        known = false;
+        return 0;
+    }
+
+    private long parseNumber() {
+        int start = pos;
+        while (pos < expr.length() && (isNameChar(expr.charAt(pos)) || expr.charAt(pos) == '$')) {
+            pos++;
+        }
+        String s = expr.substring(start, pos);
+        try {
+            if (s.startsWith("$")) {
+                return Long.parseLong(s.substring(1), 16);
+            } else if (s.startsWith("0x") || s.startsWith("0X")) {
+                return Long.parseLong(s.substring(2), 16);
+            } else if (s.startsWith("0b") || s.startsWith("0B")) {
+                return Long.parseLong(s.substring(2), 2);
+            } else if (s.length() > 1 && s.startsWith("0")) {
+                // octal like in avrasm2 and gas
+                return Long.parseLong(s.substring(1), 8);
+            }
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("wrong number: " + s);
+        }
+    }
+
+    private long parseChar() {
+        // 'a' or '\n'
+        if (pos + 2 < expr.length() && expr.charAt(pos + 2) == '\'' && expr.charAt(pos + 1) != '\\') {
+            long result = expr.charAt(pos + 1);
+            pos += 3;
+            return result;
+        }
+        if (pos + 3 < expr.length() && expr.charAt(pos + 1) == '\\' && expr.charAt(pos + 3) == '\'') {
+            char c = expr.charAt(pos + 2);
+            pos += 4;
+            switch (c) {
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 't': return '\t';
+                case '0': return 0;
+                default: return c;
+            }
+        }
+        throw new IllegalArgumentException("wrong char");
+    }
+
+    private String readName() {
+        int start = pos;
+        while (pos < expr.length() && isNameChar(expr.charAt(pos))) {
+            pos++;
+        }
+        return expr.substring(start, pos);
+    }
+
+    private String readOperator(String[] operators) {
+        skipSpaces();
+        for (String op : operators) {
+            if (expr.startsWith(op, pos)) {
+                // "<" is not a part of "<<", "|" of "||" etc.
+                int next = pos + op.length();
+                if (next < expr.length() && isLongerOperator(op, expr.charAt(next))) {
+                    continue;
+                }
+                pos = next;
+                return op;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLongerOperator(String op, char next) {
+        if (op.length() != 1) {
+            return false;
+        }
+        char c = op.charAt(0);
+        return (next == c && (c == '|' || c == '&' || c == '<' || c == '>')) || (next == '=' && (c == '<' || c == '>'));
+    }
+
+    private boolean tryRead(String s) {
+        skipSpaces();
+        if (expr.startsWith(s, pos)) {
+            pos += s.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String s) {
+        if (!tryRead(s)) {
+            throw new IllegalArgumentException(s + " expected");
+        }
+    }
+
+    private void skipSpaces() {
+        while (pos < expr.length() && Character.isWhitespace(expr.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+}
@@ -7,12 +7,15 @@ import ru.trolsoft.asmext.utils.TokenString;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Expression implements Iterable<Token> {
 
-    private static final Set<String> OPERATORS;
-    private static final Set<String> KEYWORDS;
-    private static final Set<String> SREG_FLAGS;
+    /**
+     * Operators, keywords, SREG flags and register pairs are classified by one lookup, the tokens are immutable
+     * and shared by all expressions
+     */
+    private static final Map<String, Token> SYMBOLS = new HashMap<>();
 
     static {
         String[] operators = {
@@ -20,33 +23,67 @@ public class Expression implements Iterable<Token> {
                 "+=", "-=", "&=", "|=", "<<=", ">>=", "(", ")", "++", "--", ".", "!",
                 "{", "}", "||", "&&"
         };
-        OPERATORS = new HashSet<>(Arrays.asList(operators));
+        addSymbols(Token.TYPE_OPERATOR, operators);
         String[] keywords = {
                 "if", "else", "goto", "loop", "continue", "break", "do", "while"
         };
-        KEYWORDS = new HashSet<>(Arrays.asList(keywords));
+        addSymbols(Token.TYPE_KEYWORD, keywords);
         String[] flags = {
                 "F_GLOBAL_INT", "F_BIT_COPY", "F_HALF_CARRY", "F_SIGN", "F_TCO", "F_NEG", "F_ZERO", "F_CARRY"
         };
-        SREG_FLAGS = new HashSet<>(Arrays.asList(flags));
+        addSymbols(Token.TYPE_SREG_FLAG, flags);
+        addSymbols(Token.TYPE_PAIR, "X", "Y", "Z");
     }
 
-    private final List<Token> list = new ArrayList<>();
+    private static void addSymbols(int type, String... symbols) {
+        for (String s : symbols) {
+            SYMBOLS.put(s, new Token(type, s));
+        }
+    }
 
-    public Expression() {
+    /**
+     * Classified tokens are cached by the source line and shared by all expressions built from it
+     */
+    private static final Function<List<String>, Token[]> TOKENS_PARSER =
+            tokens -> new Expression(mergeTokens(new ArrayList<>(tokens))).toArray();
 
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * Tokens of the expression are tokens[start..end), removing from the head or the tail just moves the bounds.
+     * Sub-expressions, copies and expressions of a cached source line share the array, it is copied before
+     * the first change (copy-on-write)
+     */
+    private Token[] tokens;
+    private int start;
+    private int end;
+    private boolean shared;
+
+    public Expression() {
+        tokens = new Token[DEFAULT_CAPACITY];
     }
 
     Expression(TokenString src) {
-        this(mergeTokens(src.getTokens()));
+        tokens = src.getParsed(TOKENS_PARSER);
+        end = tokens.length;
+        shared = true;
+    }
+
+    private Expression(Token[] tokens, int start, int end) {
+        this.tokens = tokens;
+        this.start = start;
+        this.end = end;
+        this.shared = true;
     }
 
     Expression(List<String> tokens) {
+        this.tokens = new Token[Math.max(tokens.size(), 1)];
         int i = 0;
         final int n = tokens.size();
         while (i < n) {
             String s = tokens.get(i++);
             String next = i < n ? tokens.get(i) : null;
+            Token symbol;
             if (ParserUtils.isRegister(s)) {
 
                 if (".".equals(next)) {
@@ -55,31 +92,21 @@ public class Expression implements Iterable<Token> {
                     i = tryToParseRegisterBitAndReturnIndex(tokens, i);
                 } else { // group
                     Token reg = new Token(Token.TYPE_REGISTER, s);
-                    list.add(reg);
+                    add(reg);
                 }
-            } else if (OPERATORS.contains(s)) {         // register
-                Token operator = new Token(Token.TYPE_OPERATOR, s);
-                list.add(operator);
-            } else if (KEYWORDS.contains(s)) {
-                Token keyword = new Token(Token.TYPE_KEYWORD, s);
-                list.add(keyword);
-            } else if (SREG_FLAGS.contains(s)) {
-                Token keyword = new Token(Token.TYPE_SREG_FLAG, s);
-                list.add(keyword);
-            } else if (ParserUtils.isPair(s)) {
-                Token pair = new Token(Token.TYPE_PAIR, s);
-                list.add(pair);
+            } else if ((symbol = SYMBOLS.get(s)) != null) {     // operator, keyword, flag or pair
+                add(symbol);
             } else if (ParserUtils.isNumber(s)) {
                 Token number = new Token(Token.TYPE_NUMBER, s);
-                list.add(number);
+                add(number);
             } else if (ParserUtils.isConstExpression(s)) {
                 Token constExp = new Token(Token.TYPE_CONST_EXPRESSION, s);
-                list.add(constExp);
+                add(constExp);
             } else if (getArrayTokenType(s) >= 0) {
                 i = tryToParseArrayAndReturnIndex(s, tokens, i);
             } else {
                 Token other = new Token(Token.TYPE_OTHER, s);
-                list.add(other);
+                add(other);
             }
             // TODO
 //            public static final int TYPE_VARIABLE = 6;
@@ -116,12 +143,12 @@ public class Expression implements Iterable<Token> {
                 regs[index++] = tokens.get(j);
             }
             Token group = new Token(Token.TYPE_REGISTER_GROUP, regs);
-            list.add(group);
+            add(group);
         } else if (cnt == 2) {
             Token t = new Token(Token.TYPE_REGISTER, tokens.get(i - cnt));
-            list.add(t);
+            add(t);
             t = new Token(Token.TYPE_OTHER, tokens.get(i - cnt + 1));
-            list.add(t);
+            add(t);
         } else {
             String[] regs = new String[cnt / 2];
             int index = 0;
@@ -132,7 +159,7 @@ public class Expression implements Iterable<Token> {
                 regs[index++] = tokens.get(j);
             }
             Token group = new Token(Token.TYPE_REGISTER_GROUP, regs);
-            list.add(group);
+            add(group);
             return i - 1;
         }
         return i;
@@ -143,18 +170,18 @@ public class Expression implements Iterable<Token> {
         if (i+2 < tokens.size() && "]".equals(tokens.get(i+2))) {
             String bitIndex = tokens.get(i+1);
             Token regBit = new Token(Token.TYPE_REGISTER_BIT, new String[] {regName, bitIndex});
-            list.add(regBit);
+            add(regBit);
             return i + 3;
         }
         Token reg = new Token(Token.TYPE_REGISTER, regName);
-        list.add(reg);
+        add(reg);
         return i;
     }
 
     private int tryToParseArrayAndReturnIndex(String arrayName, List<String> tokens, int i) {
         if (i >= tokens.size()) {
             Token t = new Token(Token.TYPE_OTHER, arrayName);
-            list.add(t);
+            add(t);
             return i;
         }
         String s = tokens.get(i);
@@ -165,25 +192,25 @@ public class Expression implements Iterable<Token> {
                 if (ParserUtils.isPair(pair) && "]".equals(tokens.get(i+3))) {
                     String[] strings = new String[] {s, pair};
                     Token t = new Token(getArrayTokenType(arrayName), strings);
-                    list.add(t);
+                    add(t);
                     return i + 4;
                 }
             } else { //if (ParserUtils.isPair(s)) {
                 if ("]".equals(tokens.get(i+2))) {
                     Token t = new Token(getArrayTokenType(arrayName), s);
-                    list.add(t);
+                    add(t);
                     return i + 3;
                 } else if (i < tokens.size() - 3 && isIncOrDec(tokens.get(i+2)) && "]".equals(tokens.get(i+3))) {
                     String postOp = tokens.get(i+2);
                     String[] strings = new String[] {s, postOp};
                     Token t = new Token(getArrayTokenType(arrayName), strings);
-                    list.add(t);
+                    add(t);
                     return i + 4;
                 }
             }
         }
         Token t = new Token(Token.TYPE_OTHER, arrayName);
-        list.add(t);
+        add(t);
         return i;
     }
 
@@ -207,73 +234,148 @@ public class Expression implements Iterable<Token> {
 
     @Override
     public Iterator<Token> iterator() {
-        return list.iterator();
+        return new Iterator<Token>() {
+            private int index = start;
+
+            @Override
+            public boolean hasNext() {
+                return index < end;
+            }
+
+            @Override
+            public Token next() {
+                if (index >= end) {
+                    throw new NoSuchElementException();
+                }
+                return tokens[index++];
+            }
+        };
     }
 
     @Override
     public void forEach(Consumer<? super Token> action) {
-        list.forEach(action);
+        for (int i = start; i < end; i++) {
+            action.accept(tokens[i]);
+        }
     }
 
     @Override
     public Spliterator<Token> spliterator() {
-        return list.spliterator();
+        return Spliterators.spliterator(tokens, start, end, Spliterator.ORDERED);
     }
 
     public int size() {
-        return list.size();
+        return end - start;
     }
 
     public boolean isEmpty() {
-        return list.isEmpty();
+        return end == start;
     }
 
     public Token get(int index) {
-        return list.get(index);
+        return tokens[start + Objects.checkIndex(index, size())];
     }
 
     public Token getIfExist(int index) {
-        return index < list.size() ? list.get(index) : null;
+        return index < size() ? get(index) : null;
     }
 
     public Token set(int index, Token t) {
-        return list.set(index, t);
+        Objects.checkIndex(index, size());
+        prepareForChange(0);
+        Token old = tokens[start + index];
+        tokens[start + index] = t;
+        return old;
     }
 
     public void add(int index, Token t) {
-        list.add(index, t);
+        Objects.checkIndex(index, size() + 1);
+        if (index == 0 && start > 0 && !shared) {
+            tokens[--start] = t;
+            return;
+        }
+        prepareForChange(1);
+        System.arraycopy(tokens, start + index, tokens, start + index + 1, size() - index);
+        tokens[start + index] = t;
+        end++;
     }
 
     public void add(Token t) {
-        list.add(t);
+        prepareForChange(1);
+        tokens[end++] = t;
     }
 
     public void clear() {
-        list.clear();
+        if (shared) {
+            tokens = new Token[DEFAULT_CAPACITY];
+            shared = false;
+        } else {
+            Arrays.fill(tokens, start, end, null);
+        }
+        start = end = 0;
     }
 
     public Token remove(int index) {
-        return list.remove(index);
+        Objects.checkIndex(index, size());
+        if (index == 0) {
+            return removeFirst();
+        } else if (index == size() - 1) {
+            return removeLast();
+        }
+        prepareForChange(0);
+        Token t = tokens[start + index];
+        System.arraycopy(tokens, start + index + 1, tokens, start + index, size() - index - 1);
+        tokens[--end] = null;
+        return t;
     }
 
     public Token removeLast() {
-        return list.remove(list.size()-1);
+        Token t = getLast();
+        removeLast(1);
+        return t;
     }
 
     public void removeLast(int count) {
-        for (int i = 0; i < count; i++) {
-            removeLast();
+        Objects.checkFromIndexSize(size() - count, count, size());
+        if (!shared) {
+            Arrays.fill(tokens, end - count, end, null);
         }
+        end -= count;
     }
 
     public Token removeFirst() {
-        return list.remove(0);
+        Token t = getFirst();
+        removeFirst(1);
+        return t;
     }
 
     public void removeFirst(int count) {
-        for (int i = 0; i < count; i++) {
-            removeFirst();
+        Objects.checkFromIndexSize(0, count, size());
+        if (!shared) {
+            Arrays.fill(tokens, start, start + count, null);
+        }
+        start += count;
+    }
+
+    /**
+     * Makes the array owned by this expression with room for extra tokens after the end
+     */
+    private void prepareForChange(int extra) {
+        if (!shared && end + extra <= tokens.length) {
+            return;
         }
+        int size = size();
+        int capacity = Math.max(DEFAULT_CAPACITY, Math.max(size + extra, size + (size >> 1)));
+        Token[] newTokens = new Token[capacity];
+        System.arraycopy(tokens, start, newTokens, 0, size);
+        tokens = newTokens;
+        start = 0;
+        end = size;
+        shared = false;
+    }
+
+    private Token[] toArray() {
+        return Arrays.copyOfRange(tokens, start, end);
     }
 
     static List<String> mergeTokens(List<String> tokens) {
@@ -283,8 +385,8 @@ public class Expression implements Iterable<Token> {
 
     public int operatorsCount(String ...operators) {
         int result = 0;
-        for (Token t : list) {
-            if (t.isOperator(operators)) {
+        for (int i = start; i < end; i++) {
+            if (tokens[i].isOperator(operators)) {
                 result++;
             }
         }
@@ -292,15 +394,15 @@ public class Expression implements Iterable<Token> {
     }
 
     public Token getFirst() {
-        return list.get(0);
+        return get(0);
     }
 
     public Token getLast() {
-        return list.get(list.size() - 1);
+        return get(size() - 1);
     }
 
     public Token getLast(int index) {
-        return list.get(list.size() - 1 - index);
+        return get(size() - 1 - index);
     }
 
     public int findOperator(int fromIndex, String ...operators) {
@@ -316,12 +418,16 @@ public class Expression implements Iterable<Token> {
         return findOperator(0, operators);
     }
 
+    /**
+     * Returns tokens [fromIndex..toIndex] as a view sharing the array with this expression
+     */
     public Expression subExpression(int fromIndex, int toIndex) {
-        Expression exp = new Expression();
-        for (int i = fromIndex; i <= toIndex; i++) {
-            exp.add(get(i));
+        if (toIndex < fromIndex) {
+            return new Expression();
         }
-        return exp;
+        Objects.checkFromToIndex(fromIndex, toIndex + 1, size());
+        shared = true;
+        return new Expression(tokens, start + fromIndex, start + toIndex + 1);
     }
 
     public Expression subExpression(int fromIndex) {
@@ -390,7 +496,8 @@ public class Expression implements Iterable<Token> {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         Token prev = null;
-        for (Token t : list) {
+        for (int i = start; i < end; i++) {
+            Token t = tokens[i];
             if (prev != null && !prev.isOperator() && !t.isOperator()) {
                 sb.append(' ');
             }
@@ -0,0 +1,199 @@
+package ru.trolsoft.asmext.processor;
+
+import ru.trolsoft.asmext.data.Segment;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Process-wide cache of preloaded include files (device headers etc.). An entry is keyed by the canonical
+ * path of the file and the parser state the preload depends on, and is validated by modification time, size
+ * and content hash of the file and of all nested includes.
+ * With a snapshot directory set, snapshots are also kept on disk as precompiled headers (see {@link PrecompiledHeader}).
+ */
+public class IncludeCache {
+
+    private static final IncludeCache SHARED = new IncludeCache();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile File snapshotDir;
+
+    public static IncludeCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Enables precompiled headers: snapshots are saved to the directory and loaded from it by later runs
+     */
+    public void setSnapshotDir(File dir) {
+        this.snapshotDir = dir;
+    }
+
+    /**
+     * Returns symbols of the include file or null if the file can't be cached (it declares procedures etc.)
+     */
+    IncludeSnapshot get(Parser parser, File file) throws IOException {
+        File canonicalFile = file.getCanonicalFile();
+        String key = buildKey(canonicalFile, parser);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isActual()) {
+            return entry.snapshot;
+        }
+        if (entry == null && snapshotDir != null) {
+            entry = loadPrecompiled(canonicalFile, key);
+            if (entry != null && entry.isActual()) {
+                entries.put(key, entry);
+                return entry.snapshot;
+            }
+        }
+        byte[] data = Files.readAllBytes(canonicalFile.toPath());
+        FileStamp stamp = new FileStamp(canonicalFile, data);
+        if (entry != null && entry.stamp.hash == stamp.hash && entry.stamp.length == stamp.length
+                && entry.isDependenciesActual()) {
+            // file was touched but the content wasn't changed
+            entry = new Entry(stamp, entry.dependencies, entry.snapshot);
+            entries.put(key, entry);
+            savePrecompiled(canonicalFile, key, entry);
+            return entry.snapshot;
+        }
+        IncludeSnapshot snapshot = parser.createIncludeParser().preloadSnapshot(data);
+        List<FileStamp> dependencies = new ArrayList<>();
+        if (snapshot != null) {
+            for (File f : snapshot.includes) {
+                dependencies.add(new FileStamp(f));
+            }
+        }
+        entry = new Entry(stamp, dependencies, snapshot);
+        entries.put(key, entry);
+        savePrecompiled(canonicalFile, key, entry);
+        return snapshot;
+    }
+
+    private File getPrecompiledFile(File file, String key) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        return new File(snapshotDir, file.getName() + "-" + Long.toHexString(crc.getValue()) + ".pch");
+    }
+
+    private Entry loadPrecompiled(File file, String key) {
+        File pchFile = getPrecompiledFile(file, key);
+        if (!pchFile.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(pchFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return PrecompiledHeader.read(buffer, key);
+        } catch (IOException | RuntimeException e) {
+            // damaged or incompatible file, will be rewritten
+            return null;
+        }
+    }
+
+    private void savePrecompiled(File file, String key, Entry entry) {
+        if (snapshotDir == null || entry.snapshot == null) {
+            return;
+        }
+        File pchFile = getPrecompiledFile(file, key);
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(pchFile.getName(), ".tmp", snapshotDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                PrecompiledHeader.write(out, key, entry);
+            }
+            try {
+                Files.move(tempFile.toPath(), pchFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), pchFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // precompiled headers are optional, the snapshot stays in memory
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static String buildKey(File file, Parser parser) {
+        Segment segment = parser.getCurrentSegment();
+        File parent = parser.getSourceParent();
+        return file.getPath() + '|' + parser.gcc + '|' + segment + '|' + (parent != null ? parent.getAbsolutePath() : "")
+                + '|' + parser.getIncludePaths();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    static long hash(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    static class FileStamp {
+        final File file;
+        final long lastModified;
+        final long length;
+        final long hash;
+
+        FileStamp(File file, long lastModified, long length, long hash) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        FileStamp(File file, byte[] data) {
+            this(file, file.lastModified(), data.length, hash(data));
+        }
+
+        FileStamp(File file) {
+            this(file, file.lastModified(), file.length(), 0);
+        }
+
+        boolean isActual() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    static class Entry {
+        final FileStamp stamp;
+        final List<FileStamp> dependencies;
+        final IncludeSnapshot snapshot;
+
+        Entry(FileStamp stamp, List<FileStamp> dependencies, IncludeSnapshot snapshot) {
+            this.stamp = stamp;
+            this.dependencies = dependencies;
+            this.snapshot = snapshot;
+        }
+
+        boolean isActual() {
+            return stamp.isActual() && isDependenciesActual();
+        }
+
+        boolean isDependenciesActual() {
+            for (FileStamp dependency : dependencies) {
+                if (!dependency.isActual()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
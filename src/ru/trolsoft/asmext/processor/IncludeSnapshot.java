@@ -0,0 +1,37 @@
+package ru.trolsoft.asmext.processor;
+
+import ru.trolsoft.asmext.data.Alias;
+import ru.trolsoft.asmext.data.Constant;
+import ru.trolsoft.asmext.data.Label;
+import ru.trolsoft.asmext.data.Segment;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Symbols collected by the preload of an include file. The snapshot is immutable and can be merged into
+ * any number of parsers. Label lines are relative to the include directive line.
+ */
+class IncludeSnapshot {
+    final Map<String, Constant> constants;
+    final Map<String, Alias> aliases;
+    final Map<String, Label> codeLabels;
+    final Map<String, Label> dataLabels;
+    final Segment segment;
+    final int linesCount;
+    final List<File> includes;
+
+    IncludeSnapshot(Map<String, Constant> constants, Map<String, Alias> aliases, Map<String, Label> codeLabels,
+                    Map<String, Label> dataLabels, Segment segment, int linesCount, List<File> includes) {
+        this.constants = Collections.unmodifiableMap(new LinkedHashMap<>(constants));
+        this.aliases = Collections.unmodifiableMap(new LinkedHashMap<>(aliases));
+        this.codeLabels = Collections.unmodifiableMap(new LinkedHashMap<>(codeLabels));
+        this.dataLabels = Collections.unmodifiableMap(new LinkedHashMap<>(dataLabels));
+        this.segment = segment;
+        this.linesCount = linesCount;
+        this.includes = Collections.unmodifiableList(includes);
+    }
+}
@@ -1,30 +1,42 @@
 package ru.trolsoft.asmext.processor;
 
 
+import ru.trolsoft.asmext.compiler.Cmd;
+import ru.trolsoft.asmext.compiler.CycleCounter;
 import ru.trolsoft.asmext.compiler.LoopsCompiler;
 import ru.trolsoft.asmext.compiler.MainCompiler;
+import ru.trolsoft.asmext.compiler.PeepholeOptimizer;
 import ru.trolsoft.asmext.data.*;
+import ru.trolsoft.asmext.files.CycleReport;
 import ru.trolsoft.asmext.files.OutputFile;
 import ru.trolsoft.asmext.files.SourceFile;
+import ru.trolsoft.asmext.files.SourceReader;
 import ru.trolsoft.asmext.utils.TokenString;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
 
 import static ru.trolsoft.asmext.data.Block.*;
 
 public class Parser {
+    /**
+     * Sources shorter than this are translated by the current thread, splitting doesn't pay off for them
+     */
+    private static final int PARALLEL_THRESHOLD = 2000;
+
     Procedure currentProcedure;
     private int lineNumber;
     private OutputFile output = new OutputFile();
     private final MainCompiler compiler = new MainCompiler(this);
     private final LoopsCompiler loopsCompiler = new LoopsCompiler(this, compiler);
     public Map<String, Procedure> procedures = new HashMap<>();
-    Map<String, Variable> variables = new HashMap<>();
+    Map<String, Variable> variables = new ConcurrentHashMap<>();
     Map<String, Constant> constants = new HashMap<>();
     Map<String, Alias> globalAliases = new HashMap<>();
     private Map<String, Label> dataLabels = new HashMap<>();
@@ -34,9 +46,38 @@ public class Parser {
     private Segment currentSegment;
     private boolean blockComment;
     private File sourceParent;
+    private IncludeCache includeCache = IncludeCache.getShared();
+    private final List<File> includedFiles = new ArrayList<>();
+    /**
+     * Called before an include file is read, null if nobody listens
+     */
+    private Consumer<File> includeListener;
+    private final Map<String, TokenString> constantValues = new HashMap<>();
+    private final ConstantCache globalConstCache = new ConstantCache();
+    private final ConstantCache procedureConstCache = new ConstantCache();
+    private List<File> includePaths = Collections.emptyList();
+    private int parallelThreshold = PARALLEL_THRESHOLD;
+    /**
+     * Symbol tables belong to the parser that created this one, procedures are not registered again
+     */
+    private boolean sharedSymbols;
+    /**
+     * Optimization mode of the code before the current procedure, it is restored at the procedure end
+     */
+    private boolean optimizableBeforeProcedure = true;
+    /**
+     * Counter of sizes and cycles of procedures and blocks, null if they are not counted
+     */
+    private CycleCounter cycleCounter;
+    private CycleReport cycleReport = new CycleReport();
+    /**
+     * Output hold of the current procedure for the cycle counter
+     */
+    private int procedureHold = -1;
+    private int procedureLine;
 
     Parser() {
-
+        output.setOptimizer(new PeepholeOptimizer());
     }
 
     public Parser(boolean gcc) {
@@ -49,11 +90,29 @@ public class Parser {
         SourceFile src = new SourceFile();
         src.read(file);
         sourceParent = file.getParentFile();
+        parse(src);
+    }
+
+    /**
+     * Translates the source text, relative includes are searched in the include paths
+     */
+    public void parse(Reader reader) throws IOException, SyntaxException {
+        SourceFile src = new SourceFile();
+        src.read(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+        parse(src);
+    }
+
+    private void parse(SourceFile src) throws SyntaxException {
         preload(src);
         lineNumber = 0;
         currentProcedure = null;
+        List<TokenString> lines = src.getLines();
+        if (lines.size() >= parallelThreshold && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            parseParallel(lines);
+            return;
+        }
         try {
-            for (TokenString s : src) {
+            for (TokenString s : lines) {
                 parseLine(s);
             }
         } catch (SyntaxException e) {
@@ -62,6 +121,193 @@ public class Parser {
     }
 
 
+    /**
+     * The second pass for large sources. Bodies of procedures depend on the preloaded symbols only, so they are
+     * translated by the fork-join pool into separate outputs that are joined in the source order. Top-level lines
+     * are translated by the current thread, the ones that change symbols wait for started procedures first.
+     */
+    private void parseParallel(List<TokenString> lines) throws SyntaxException {
+        OutputFile result = output;
+        List<ProcedureTask> tasks = new ArrayList<>();
+        int joined = 0;
+        try {
+            int i = 0;
+            while (i < lines.size()) {
+                TokenString line = lines.get(i);
+                int end = blocks.isEmpty() && !blockComment && currentProcedure == null ?
+                        findProcedureEnd(lines, i) : -1;
+                if (end > 0) {
+                    ProcedureTask task = new ProcedureTask(createProcedureParser(i), lines.subList(i, end + 1));
+                    tasks.add(task);
+                    task.fork();
+                    task.tail.setOptimizable(output.isOptimizable());
+                    output = task.tail;
+                    lineNumber = end + 1;
+                    i = end + 1;
+                    continue;
+                }
+                if (changesSymbols(line)) {
+                    joinTasks(tasks, joined);
+                    joined = tasks.size();
+                }
+                parseLine(line);
+                i++;
+            }
+        } catch (SyntaxException e) {
+            // errors of the procedures above come first
+            joinTasks(tasks, joined);
+            throw e.line(lineNumber);
+        } finally {
+            output = result;
+        }
+        joinTasks(tasks, joined);
+        for (ProcedureTask task : tasks) {
+            output.append(task.parser.output);
+            output.append(task.tail);
+        }
+    }
+
+    private static void joinTasks(List<ProcedureTask> tasks, int from) throws SyntaxException {
+        for (int i = from; i < tasks.size(); i++) {
+            ProcedureTask task = tasks.get(i);
+            task.join();
+            if (task.error != null) {
+                throw task.error;
+            }
+        }
+    }
+
+    /**
+     * Returns index of the .endproc line if the procedure starting at the line can be translated separately,
+     * otherwise -1. Such procedure doesn't declare global symbols and closes its comments and blocks.
+     * Comments and blocks are tracked the same way as {@link #skipComment} and {@link #parseLine} do.
+     */
+    private static int findProcedureEnd(List<TokenString> lines, int start) {
+        TokenString first = lines.get(start);
+        if (!first.firstTokenIs(".") || first.size() < 2 || !"proc".equals(first.getToken(1))) {
+            return -1;
+        }
+        boolean comment = false;
+        boolean bytes = false;
+        int depth = 0;
+        for (int i = start + 1; i < lines.size(); i++) {
+            TokenString line = lines.get(i);
+            if (opensBlockComment(line)) {
+                comment = true;
+                continue;
+            } else if (comment) {
+                comment = !closesBlockComment(line);
+                continue;
+            }
+            String firstToken = line.getFirstToken();
+            if (bytes && !"}".equals(firstToken)) {
+                continue;
+            }
+            if (".".equals(firstToken)) {
+                String name = line.size() > 1 ? line.getToken(1) : null;
+                if ("endproc".equals(name)) {
+                    return depth == 0 ? i : -1;
+                } else if ("proc".equals(name) || "extern".equals(name)) {
+                    return -1;
+                }
+            } else if ("#define".equals(firstToken)) {
+                return -1;
+            } else if ("loop".equals(firstToken) || "do".equals(firstToken) ||
+                    ("if".equals(firstToken) && line.contains("{"))) {
+                depth++;
+            } else if ("}".equals(firstToken) && line.contains("{") && line.contains("else")) {
+                // pops and pushes a block
+                bytes = false;
+            } else if ("byte".equals(firstToken) && line.size() >= 4 && "[".equals(line.getToken(1)) &&
+                    "]".equals(line.getToken(2)) && line.contains("{")) {
+                depth++;
+                bytes = true;
+            } else if ("}".equals(firstToken)) {
+                if (--depth < 0) {
+                    return -1;
+                }
+                bytes = false;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the top-level line can modify symbols used by procedures
+     */
+    private static boolean changesSymbols(TokenString line) {
+        if (line.firstTokenIs("#define")) {
+            return true;
+        }
+        if (!line.firstTokenIs(".") || line.size() < 2) {
+            return false;
+        }
+        String name = line.getToken(1);
+        return "use".equals(name) || "proc".equals(name) || "extern".equals(name) || "equ".equalsIgnoreCase(name) ||
+                "set".equalsIgnoreCase(name);
+    }
+
+    /**
+     * Creates parser for a procedure body, it reads symbols of this parser and has own output and blocks
+     */
+    private Parser createProcedureParser(int firstLine) {
+        Parser parser = new Parser(gcc);
+        parser.sharedSymbols = true;
+        parser.procedures = procedures;
+        parser.variables = variables;
+        parser.constants = constants;
+        parser.globalAliases = globalAliases;
+        parser.codeLabels = codeLabels;
+        parser.dataLabels = dataLabels;
+        parser.currentSegment = currentSegment;
+        parser.sourceParent = sourceParent;
+        parser.includePaths = includePaths;
+        parser.includeListener = includeListener;
+        parser.lineNumber = firstLine;
+        parser.output.setOptimizable(output.isOptimizable());
+        parser.output.setOptimizer(output.getOptimizer());
+        parser.cycleCounter = cycleCounter;
+        // the procedure code is counted when it is rendered as a part of this output
+        parser.cycleReport = cycleReport;
+        return parser;
+    }
+
+    /**
+     * Sets the minimal number of lines to translate procedures in parallel
+     */
+    void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Translates the file without keeping it in memory. The first pass collects symbols only, the second one
+     * reads, translates and writes the file line by line.
+     */
+    public void parse(File file, WritableByteChannel out) throws IOException, SyntaxException {
+        sourceParent = file.getParentFile();
+        startPreload();
+        try (SourceReader src = new SourceReader(file)) {
+            preload(src);
+        }
+        lineNumber = 0;
+        currentProcedure = null;
+        output.streamTo(out);
+        try (SourceReader src = new SourceReader(file)) {
+            while (true) {
+                TokenString line = src.next();
+                if (line == null) {
+                    break;
+                }
+                parseLine(line);
+            }
+        } catch (SyntaxException e) {
+            throw e.line(lineNumber);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        output.flush();
+    }
+
     void parseLine(String line) throws SyntaxException {
         parseLine(new TokenString(line));
     }
@@ -97,6 +343,8 @@ public class Parser {
                 loadProcedureArgs(line);
             } else if ("extern".equals(name)) {
                 processExtern(line);
+            } else if ("peephole".equals(name)) {
+                processPeephole(line);
             } else if ("equ".equalsIgnoreCase(name)) {
                 processEqu(line.toString(), trimLine.substring(".equ".length()).trim(), true);
             } else if ("set".equalsIgnoreCase(name)) {
@@ -136,25 +384,47 @@ public class Parser {
 
     private boolean skipComment(TokenString line) {
         // comments /* */
-        if (line.size() > 1 && "/".equals(line.getToken(0)) && "*".equals(line.getToken(1))) {
+        if (opensBlockComment(line)) {
             blockComment = true;
-        } else if (blockComment && line.size() > 1 && "*".equals(line.getToken(0)) && "/".equals(line.getToken(1))) {
+        } else if (blockComment && closesBlockComment(line)) {
             blockComment = false;
             return true;
         }
         return blockComment;
     }
 
-    private void preload(SourceFile src) throws SyntaxException {
+    private static boolean opensBlockComment(TokenString line) {
+        return line.size() > 1 && "/".equals(line.getToken(0)) && "*".equals(line.getToken(1));
+    }
+
+    private static boolean closesBlockComment(TokenString line) {
+        return line.size() > 1 && "*".equals(line.getToken(0)) && "/".equals(line.getToken(1));
+    }
+
+    private void startPreload() {
         if (gcc) {
             currentSegment = Segment.CODE;
         }
         currentProcedure = null;
+    }
+
+    private void preload(SourceFile src) throws SyntaxException {
+        startPreload();
         for (TokenString s : src) {
             preloadLine(s);
         }
     }
 
+    private void preload(SourceReader src) throws IOException, SyntaxException {
+        while (true) {
+            TokenString line = src.next();
+            if (line == null) {
+                break;
+            }
+            preloadLine(line);
+        }
+    }
+
     void preloadLine(String line) throws SyntaxException {
         preloadLine(new TokenString(line));
     }
@@ -181,10 +451,10 @@ public class Parser {
             }
         }
         if ("proc".equals(secondToken)) {
-            replaceGlobalAliases(line);
-            Expression expr = new Expression(line);
+            Expression expr = new Expression(replaceGlobalAliases(line));
             expr.removeFirst(2);
             currentProcedure = loadProcedureDefinition(expr);
+            procedureConstCache.clear();
         } else if ("endproc".equals(secondToken)) {
             currentProcedure = null;
         } else if ("args".equals(secondToken)) {
@@ -217,20 +487,27 @@ public class Parser {
     }
 
     private void processLine(TokenString line) throws SyntaxException {
-        resolveAliases(line);
+        TokenString resolved = resolveAliases(line);
         try {
-            compiler.compile(line, output);
+            compiler.compile(resolved, output);
         } catch (SyntaxException e) {
             throw e.line(lineNumber);
         }
     }
 
-    private void resolveAliases(TokenString line) {
+    /**
+     * Returns the line with aliases replaced by registers, the source line is not modified
+     */
+    private TokenString resolveAliases(TokenString src) {
+        TokenString line = src;
         for (int i = 0; i < line.size(); i++) {
             String token = line.getToken(i);
             String nextToken = i < line.size() - 1 ? line.getToken(i + 1) : null;
             Alias alias = ":".equals(nextToken) ? null : resolveProcAlias(token);
             if (alias != null) {
+                if (line == src) {
+                    line = src.overlay();
+                }
                 Token t = alias.register;
                 if (t.isRegGroup()) {
                     line.modifyToken(i, t.getReg(0).toString());
@@ -247,9 +524,13 @@ public class Parser {
                     line.modifyToken(i, t.toString());
                 }
             } else if (token.startsWith("@") && currentProcedure != null) {
+                if (line == src) {
+                    line = src.overlay();
+                }
                 line.modifyToken(i, resolveLocalLabel(token.substring(1)));
             }
         }
+        return line;
     }
 
 
@@ -270,38 +551,67 @@ public class Parser {
 
 
     private void startProcedure(TokenString src) throws SyntaxException {
-        replaceGlobalAliases(src);
-        Expression expr = new Expression(src);
+        Expression expr = new Expression(replaceGlobalAliases(src));
         if (expr.size() < 3) {
             error("name expected");
         }
         expr.removeFirst(2); // .proc
         String name = expr.getFirst().asString();
         currentProcedure = loadProcedureDefinition(expr);
+        procedureConstCache.clear();
+        optimizableBeforeProcedure = output.isOptimizable();
+        procedureHold = startCounting();
+        procedureLine = lineNumber;
         output.add(name + ":");
         output.addComment(src);
     }
 
     private void endProcedure(TokenString src) throws SyntaxException {
-        src.removeEmptyTokens();
-        if (src.getTokens().size() != 2) {
+        if (src.compact().size() != 2) {
             error("extra characters in line");
         }
         if (currentProcedure == null) {
             error("start .proc directive not found");
         }
+        String name = currentProcedure.name;
         currentProcedure = null;
+        output.setOptimizable(optimizableBeforeProcedure);
         output.addComment(src);
+        count(procedureHold, procedureLine, "proc", name);
+        procedureHold = -1;
+    }
+
+    /**
+     * .peephole off|on - switches the peephole optimization of the translated code, inside a procedure it works up
+     * to the procedure end
+     */
+    private void processPeephole(TokenString src) throws SyntaxException {
+        Expression expr = new Expression(src);
+        if (expr.size() != 3) {
+            error("on or off expected");
+        }
+        String mode = expr.getLast().asString();
+        if ("on".equals(mode)) {
+            output.setOptimizable(true);
+        } else if ("off".equals(mode)) {
+            output.setOptimizable(false);
+        } else {
+            error("on or off expected: " + mode);
+        }
+        output.add(";" + src);
     }
 
     private void processStartLoop(TokenString str) throws SyntaxException {
-        resolveAliases(str);
-        Expression expr = buildExpression(str);
-        loopsCompiler.compileLoopStart(str, expr);
+        TokenString resolved = resolveAliases(str);
+        Expression expr = buildExpression(resolved);
+        loopsCompiler.compileLoopStart(resolved, expr);
+        // the code of a loop is counted from its label, so it is the code of one iteration
+        getLastBlock().setOutputStart(startCounting());
     }
 
     private void processStartDoWhile(TokenString str) throws SyntaxException {
         loopsCompiler.compileDoWhileStart(str, new Expression(str));
+        getLastBlock().setOutputStart(startCounting());
     }
 
     public String generateLabelName(String baseName) {
@@ -315,8 +625,8 @@ public class Parser {
         return block;
     }
 
-    private void processStartIf(TokenString src) throws SyntaxException {
-        resolveAliases(src);
+    private void processStartIf(TokenString line) throws SyntaxException {
+        TokenString src = resolveAliases(line);
         String label = generateLabelName("if_");
         Expression expr = buildExpression(src);
         if (!expr.getLast().isOperator("{")) {
@@ -324,8 +634,10 @@ public class Parser {
         }
         expr.set(expr.size() - 1, new Token(Token.TYPE_KEYWORD, "goto"));
         expr.add(new Token(Token.TYPE_OTHER, label));
+        int start = startCounting();
         compiler.compileIfExpressionBlock(src, expr, true);
         Block block = new Block(BLOCK_IF, expr, lineNumber, label);
+        block.setOutputStart(start);
         blocks.push(block);
     }
 
@@ -341,9 +653,11 @@ public class Parser {
         }
         blocks.pop();
         String label = generateLabelName("if_else_");
-        Block block = new Block(BLOCK_ELSE, null, lineNumber, label);
+        // if and else blocks are counted together
+        Block block = new Block(BLOCK_ELSE, null, prevBlock.beginLineNumber, label);
+        block.setOutputStart(prevBlock.getOutputStart());
         blocks.push(block);
-        output.appendCommand(src, "rjmp", block.getLabelStart());
+        output.appendCommand(src, Cmd.RJMP, block.getLabelStart());
         output.add(prevBlock.getLabelStart() + ":");
     }
 
@@ -369,7 +683,7 @@ public class Parser {
     }
 
     private void processEndBlock(TokenString line) throws SyntaxException {
-        line.removeEmptyTokens();
+        line = line.compact();
         if (blocks.isEmpty()) {
             error("open bracket not found: '{'");
         }
@@ -380,20 +694,49 @@ public class Parser {
         switch (lastBlock.type) {
             case BLOCK_LOOP:
                 loopsCompiler.compileLoopEnd(line, lastBlock);
+                count(lastBlock.getOutputStart(), lastBlock.beginLineNumber, "loop", lastBlock.getLabelStart());
                 break;
             case BLOCK_IF:
             case BLOCK_ELSE:
                 processEndIf(lastBlock);
+                count(lastBlock.getOutputStart(), lastBlock.beginLineNumber, "if", lastBlock.getLabelStart());
                 break;
             case BLOCK_BYTES:
                 processEndBytes(lastBlock);
                 break;
             case BLOCK_DO_WHILE:
                 loopsCompiler.compileDoWhileEnd(line, new Expression(line), lastBlock);
+                count(lastBlock.getOutputStart(), lastBlock.beginLineNumber, "do-while",
+                        lastBlock.getLabelStart());
                 break;
         }
     }
 
+    /**
+     * Returns id of the output hold of the code to count, the code is kept in memory until it is counted. Returns -1
+     * if the cycles are not counted.
+     */
+    private int startCounting() {
+        return cycleCounter != null ? output.hold() : -1;
+    }
+
+    /**
+     * Counts the held code when it is optimized, so the counting doesn't change the code. The result is added to the
+     * report and as a comment to the output.
+     */
+    private void count(int hold, int line, String kind, String name) {
+        if (hold < 0) {
+            return;
+        }
+        CycleCounter counter = cycleCounter;
+        CycleReport report = cycleReport;
+        output.release(hold, records -> {
+            CycleCounter.Cost cost = counter.count(records);
+            report.add(new CycleReport.Entry(line, kind, name, cost));
+            return "; " + kind + " " + name + ": " + cost;
+        });
+    }
+
 
     private void processEndIf(Block block) {
         output.add(block.getLabelStart() + ":");
@@ -418,7 +761,7 @@ public class Parser {
     }
 
     private void processContinue(TokenString line) throws SyntaxException {
-        line.removeEmptyTokens();
+        line = line.compact();
         if (line.size() != 1) {
             error("extra characters in line");
         }
@@ -427,7 +770,7 @@ public class Parser {
     }
 
     private void processBreak(TokenString line) throws SyntaxException {
-        line.removeEmptyTokens();
+        line = line.compact();
         if (line.size() != 1) {
             error("extra characters in line");
         }
@@ -488,7 +831,9 @@ public class Parser {
         }
         checkName(procName);
         Procedure proc = new Procedure(procName);
-        procedures.put(procName, proc);
+        if (!sharedSymbols) {
+            procedures.put(procName, proc);
+        }
         if (expr.size() == 1) {
             return proc;
         }
@@ -536,11 +881,7 @@ public class Parser {
         String name = split[0].trim();
         String value = split.length > 1 ? split[1].trim() : null;
         Constant c = new Constant(name, value, Constant.Type.EQU);
-        if (currentProcedure != null) {
-            currentProcedure.consts.put(name, c);
-        } else {
-            constants.put(name, c);
-        }
+        defineConstant(currentProcedure != null ? currentProcedure.consts : constants, c);
         if (!gcc && addToOutput && value != null) {
             output.add(line);
         }
@@ -554,11 +895,7 @@ public class Parser {
         String name = split[0].trim();
         String value = split[1].trim();
         Constant c = new Constant(name, value, Constant.Type.EQU);
-        if (currentProcedure != null) {
-            currentProcedure.consts.put(name, c);
-        } else {
-            constants.put(name, c);
-        }
+        defineConstant(currentProcedure != null ? currentProcedure.consts : constants, c);
         if (!gcc && addToOutput) {
             output.add(line);
         }
@@ -566,13 +903,13 @@ public class Parser {
 
 
     private void processDefine(TokenString line) {
-        line.removeEmptyTokens();
+        line = line.compact();
         line.removeFirstToken();
         if (!line.isEmpty()) {
             String name = line.getFirstToken();
             String value = line.mergeTokens(1);
             Constant c = new Constant(name, value, Constant.Type.DEFINE);
-            constants.put(name, c);
+            defineConstant(constants, c);
         }
         output.add(line.toString());
     }
@@ -583,15 +920,14 @@ public class Parser {
         if (currentProcedure == null) {
             error(".args can be defined in .proc block only");
         }
-        replaceGlobalAliases(line);
-        Expression expr = new Expression(line);
+        Expression expr = new Expression(replaceGlobalAliases(line));
         for (int i = 2; i < expr.size(); ) {
-            String name = line.getToken(i++);
+            String name = expr.get(i++).asString();
             if (i >= expr.size()-1 || !expr.get(i++).isOperator("(")) {
                 error("wrong argument: " + name);
             }
             Token reg = expr.get(i++);
-            if (i >= line.size() || !expr.get(i++).isOperator(")")) {
+            if (i >= expr.size() || !expr.get(i++).isOperator(")")) {
                 error("wrong argument: " + name);
             }
             if (!reg.isRegister() && !reg.isPair() && !reg.isRegGroup()) {
@@ -618,8 +954,7 @@ public class Parser {
 
 
     private void use(TokenString str) throws SyntaxException {
-        replaceGlobalAliases(str);
-        Expression expr = new Expression(str);
+        Expression expr = new Expression(replaceGlobalAliases(str));
         int index = 2;
         while (index < expr.size()) {
             if (index + 2 >= expr.size()) {
@@ -657,7 +992,7 @@ public class Parser {
     }
 
     private void def(TokenString str) throws SyntaxException {
-        str.removeEmptyTokens();
+        str = str.compact();
         if (str.size() != 5) {
             error("wrong .def syntax ");
         }
@@ -695,8 +1030,16 @@ public class Parser {
             }
         }
         String fileName = ParserUtils.removeBrackets(arg.toString());
-        if (!tryIncludeFile(fileName)) {
-            tryIncludeFile(sourceParent.getAbsolutePath() + "/" + fileName);
+        if (tryIncludeFile(fileName)) {
+            return;
+        }
+        if (sourceParent != null && tryIncludeFile(sourceParent.getAbsolutePath() + "/" + fileName)) {
+            return;
+        }
+        for (File dir : includePaths) {
+            if (tryIncludeFile(new File(dir, fileName).getPath())) {
+                return;
+            }
         }
     }
 
@@ -705,16 +1048,92 @@ public class Parser {
         if (!file.exists()) {
             return false;
         }
+        if (includeListener != null) {
+            includeListener.accept(file);
+        }
+        if (includeCache != null && currentProcedure == null && includeCachedFile(file)) {
+            return true;
+        }
+        includedFiles.add(file);
+        try (SourceReader src = new SourceReader(file)) {
+            preload(src);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private boolean includeCachedFile(File file) {
+        IncludeSnapshot snapshot;
+        try {
+            snapshot = includeCache.get(this, file);
+        } catch (IOException e) {
+            return false;
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        // duplicate aliases are reported by the regular preload
+        for (String name : snapshot.aliases.keySet()) {
+            if (globalAliases.containsKey(name)) {
+                return false;
+            }
+        }
+        includedFiles.add(file);
+        includedFiles.addAll(snapshot.includes);
+        if (includeListener != null) {
+            // nested includes of a snapshot were validated by the cache just now
+            snapshot.includes.forEach(includeListener);
+        }
+        constants.putAll(snapshot.constants);
+        clearConstantCaches();
+        globalAliases.putAll(snapshot.aliases);
+        mergeIncludeLabels(codeLabels, snapshot.codeLabels);
+        mergeIncludeLabels(dataLabels, snapshot.dataLabels);
+        currentSegment = snapshot.segment;
+        lineNumber += snapshot.linesCount;
+        return true;
+    }
+
+    private void mergeIncludeLabels(Map<String, Label> labels, Map<String, Label> includeLabels) {
+        for (Label label : includeLabels.values()) {
+            labels.put(label.name, new Label(label.name, lineNumber + label.line));
+        }
+    }
+
+    Parser createIncludeParser() {
+        Parser parser = new Parser(gcc);
+        parser.sourceParent = sourceParent;
+        parser.includePaths = includePaths;
+        parser.currentSegment = currentSegment;
+        parser.includeCache = includeCache;
+        parser.includeListener = includeListener;
+        return parser;
+    }
+
+    /**
+     * Preloads include file content and returns collected symbols or null if the file depends on the parser
+     * context (declares procedures, variables or writes to the output)
+     */
+    IncludeSnapshot preloadSnapshot(byte[] data) {
         SourceFile src = new SourceFile();
+        src.read(ByteBuffer.wrap(data));
         try {
-            src.read(file);
             for (TokenString s : src) {
+                String directive = s.firstTokenIs(".") && s.size() > 1 ? s.getToken(1) : null;
+                if ("proc".equals(directive) || "endproc".equals(directive) || "args".equals(directive)) {
+                    return null;
+                }
                 preloadLine(s);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (SyntaxException e) {
+            return null;
         }
-        return true;
+        if (!procedures.isEmpty() || !variables.isEmpty() || !output.isEmpty()) {
+            return null;
+        }
+        return new IncludeSnapshot(constants, globalAliases, codeLabels, dataLabels, currentSegment, lineNumber,
+                includedFiles);
     }
 
     private Alias createAlias(String name, Token reg) throws SyntaxException {
@@ -747,6 +1166,65 @@ public class Parser {
         return output;
     }
 
+    /**
+     * Returns all files pulled in by .include directives (including nested ones)
+     */
+    public List<File> getIncludedFiles() {
+        return includedFiles;
+    }
+
+    Segment getCurrentSegment() {
+        return currentSegment;
+    }
+
+    File getSourceParent() {
+        return sourceParent;
+    }
+
+    /**
+     * Sets optimizer of the translated code, null disables optimization
+     */
+    public void setOptimizer(OutputFile.Optimizer optimizer) {
+        output.setOptimizer(optimizer);
+    }
+
+    /**
+     * Sets counter of sizes and cycles of procedures and blocks, they are reported as comments of the output and
+     * by {@link #getCycleReport()}. Null switches counting off.
+     */
+    public void setCycleCounter(CycleCounter cycleCounter) {
+        this.cycleCounter = cycleCounter;
+    }
+
+    /**
+     * Returns sizes and cycles of the code, it is complete when the output is written
+     */
+    public CycleReport getCycleReport() {
+        return cycleReport;
+    }
+
+    /**
+     * Sets directories to search include files that aren't found relative to the source
+     */
+    public void setIncludePaths(List<File> includePaths) {
+        this.includePaths = includePaths;
+    }
+
+    List<File> getIncludePaths() {
+        return includePaths;
+    }
+
+    /**
+     * Sets the listener that is called before an include file is read (or taken from the include cache)
+     */
+    public void setIncludeListener(Consumer<File> includeListener) {
+        this.includeListener = includeListener;
+    }
+
+    void setIncludeCache(IncludeCache includeCache) {
+        this.includeCache = includeCache;
+    }
+
     public Variable getVariable(String name) {
         Variable result = variables.get(name);
         if (result == null) {
@@ -774,11 +1252,43 @@ public class Parser {
         }
     }
 
+    /**
+     * Adds or replaces the constant, resolved constants are dropped if the value was changed
+     */
+    private void defineConstant(Map<String, Constant> scope, Constant c) {
+        Constant old = scope.put(c.name, c);
+        if (old == null || old.type != c.type || !Objects.equals(old.value, c.value)) {
+            clearConstantCaches();
+        }
+    }
+
+    private void clearConstantCaches() {
+        globalConstCache.clear();
+        procedureConstCache.clear();
+    }
+
+    /**
+     * Resolved constants depend on the scope, constants of the procedure can hide the global ones
+     */
+    private ConstantCache getConstantCache() {
+        return currentProcedure != null && !currentProcedure.consts.isEmpty() ? procedureConstCache : globalConstCache;
+    }
+
     private String makeConstExpression(Constant constant) {
         if (!gcc || constant.type == Constant.Type.DEFINE) {
             return constant.name;
         }
-        TokenString tokens = new TokenString(constant.value);
+        ConstantCache cache = getConstantCache();
+        String result = cache.expressions.get(constant);
+        if (result == null) {
+            result = buildConstExpression(constant);
+            cache.expressions.put(constant, result);
+        }
+        return result;
+    }
+
+    private String buildConstExpression(Constant constant) {
+        TokenString tokens = getValueTokens(constant.value);
         StringBuilder result = new StringBuilder();
         for (String token : tokens) {
             if (isConstant(token)) {
@@ -792,6 +1302,13 @@ public class Parser {
         return ParserUtils.wrapToBrackets(result.toString());
     }
 
+    /**
+     * Constant values are tokenized once and shared by all expressions that use the constant
+     */
+    private TokenString getValueTokens(String value) {
+        return constantValues.computeIfAbsent(value, TokenString::new);
+    }
+
     public String makeConstExpression(String name) {
         Constant c = getConstant(name);
         return makeConstExpression(c);
@@ -834,23 +1351,7 @@ public class Parser {
                 Constant c = getConstant(name);
                 if (c != null) {
                     constFound = true;
-                    String val = c.value;
-                    if (ParserUtils.isNumber(val)) {
-                        expr.set(i, new Token(Token.TYPE_NUMBER, val));
-                    } else if (val == null) {// && parser.gcc) {
-                        expr.set(i, new Token(Token.TYPE_CONST_EXPRESSION, ParserUtils.wrapToBrackets(c.name)));
-                    } else {
-                        Expression valExpr = buildExpression(new TokenString(val));
-                        markConstAndVariables(valExpr);
-                        Token newToken;
-                        if (gcc) {
-                            newToken = new Token(Token.TYPE_CONST_EXPRESSION, ParserUtils.wrapToBrackets(valExpr.toString()));
-                        } else {
-                            newToken = new Token(Token.TYPE_CONST_EXPRESSION, name);
-                        }
-                        expr.set(i, newToken);
-                        //expr.set(i, new Token(Token.TYPE_CONST_EXPRESSION, ParserUtils.wrapToBrackets(valExpr.toString())));
-                    }
+                    expr.set(i, resolveConstant(c));
                 } else if (getVariable(name) != null) {
                     expr.set(i, new Token(Token.TYPE_VARIABLE, name));
                 }
@@ -862,52 +1363,138 @@ public class Parser {
         }
     }
 
-    private void mergeConst(Expression expr) {
-        while (true) {
-            boolean anyMerge = false;
-            for (int i = 1; i < expr.size() - 1; i++) {
-                Token cur = expr.get(i);
-                Token prev = expr.get(i - 1);
-                Token next = expr.get(i + 1);
-                boolean merge;
-                if (cur.isOperator("+", "-", "*", "<<", ">>", "&", "|") &&
-                        prev.isAnyConst() && next.isAnyConst()) {
-                    merge = true;
-                } else if (prev.isOperator("(") && next.isOperator(")") && cur.isAnyConst()) {
-                    String cs = cur.asString();
-                    if (cs.startsWith("(") && cs.endsWith(")")) {
-                        expr.remove(i-1);
-                        expr.remove(i);
-                        anyMerge = true;
-                        break;
-                    }
-                    merge = true;
-                } else {
-                    merge = false;
-                }
-                if (merge) {
-                    Token t = new Token(Token.TYPE_CONST_EXPRESSION, prev.asString() + cur.asString() + next.asString());
-                    expr.set(i - 1, t);
-                    expr.remove(i);
-                    expr.remove(i);
-                    anyMerge = true;
-                    break;
-                }
+    /**
+     * Returns the token that replaces the constant in expressions, the value is resolved once per scope
+     */
+    private Token resolveConstant(Constant c) {
+        ConstantCache cache = getConstantCache();
+        Token result = cache.tokens.get(c);
+        if (result == null) {
+            result = buildConstToken(c);
+            cache.tokens.put(c, result);
+        }
+        return result;
+    }
+
+    private Token buildConstToken(Constant c) {
+        String val = c.value;
+        if (ParserUtils.isNumber(val)) {
+            return new Token(Token.TYPE_NUMBER, val);
+        } else if (val == null) {// && parser.gcc) {
+            return new Token(Token.TYPE_CONST_EXPRESSION, ParserUtils.wrapToBrackets(c.name));
+        } else if (!gcc) {
+            return new Token(Token.TYPE_CONST_EXPRESSION, c.name);
+        }
+        Expression valExpr = buildExpression(getValueTokens(val));
+        return new Token(Token.TYPE_CONST_EXPRESSION, ParserUtils.wrapToBrackets(valExpr.toString()));
+    }
+
+    /**
+     * Returns value of a number or constant expression if it can be calculated at compile time, or null
+     */
+    public Long evaluate(Token t) {
+        return t.isAnyConst() ? evaluate(t.asString()) : null;
+    }
+
+    public Long evaluate(String expr) {
+        return ConstEvaluator.evaluate(expr, this::getConstantValue);
+    }
+
+    private Long getConstantValue(String name) {
+        Constant c = getConstant(name);
+        if (c == null) {
+            return null;
+        }
+        ConstantCache cache = getConstantCache();
+        if (cache.values.containsKey(c)) {
+            return cache.values.get(c);
+        }
+        // null until calculated, it stops recursive definitions like ".set X = X + 1"
+        cache.values.put(c, null);
+        Long result = evaluate(c.value);
+        cache.values.put(c, result);
+        return result;
+    }
+
+    /**
+     * Merges constants with operators between them and brackets around them. The top of a stack is reduced after
+     * every shifted token, it gives the same result as merging the leftmost triple again and again. Text of merged
+     * constants is appended in place and tokens are created at the end.
+     */
+    static void mergeConst(Expression expr) {
+        final int n = expr.size();
+        Token[] tokens = new Token[n];
+        StringBuilder[] merged = new StringBuilder[n];
+        int size = 0;
+        for (Token t : expr) {
+            tokens[size] = t;
+            merged[size] = null;
+            size++;
+            while (size >= 3 && reduceConst(tokens, merged, size)) {
+                size -= 2;
             }
-            if (!anyMerge) {
-                break;
+        }
+        if (size != n) {
+            expr.clear();
+            for (int i = 0; i < size; i++) {
+                expr.add(merged[i] != null ? new Token(Token.TYPE_CONST_EXPRESSION, merged[i].toString()) : tokens[i]);
             }
-        } // while
+        }
+    }
+
+    /**
+     * Reduces three top items of the stack to one, a merged constant has text instead of token
+     */
+    private static boolean reduceConst(Token[] tokens, StringBuilder[] merged, int size) {
+        final int prev = size - 3;
+        final int cur = size - 2;
+        final int next = size - 1;
+        if (merged[cur] == null && tokens[cur].isOperator("+", "-", "*", "<<", ">>", "&", "|") &&
+                isMergedConst(tokens, merged, prev) && isMergedConst(tokens, merged, next)) {
+            StringBuilder sb = merged[prev] != null ? merged[prev] : new StringBuilder(tokens[prev].asString());
+            sb.append(tokens[cur].asString());
+            if (merged[next] != null) {
+                sb.append(merged[next]);
+            } else {
+                sb.append(tokens[next].asString());
+            }
+            merged[prev] = sb;
+        } else if (merged[prev] == null && tokens[prev].isOperator("(") && merged[next] == null &&
+                tokens[next].isOperator(")") && isMergedConst(tokens, merged, cur)) {
+            CharSequence cs = merged[cur] != null ? merged[cur] : tokens[cur].asString();
+            int len = cs.length();
+            if (len > 0 && cs.charAt(0) == '(' && cs.charAt(len - 1) == ')') {
+                tokens[prev] = tokens[cur];
+                merged[prev] = merged[cur];
+            } else if (merged[cur] != null) {
+                merged[prev] = merged[cur].insert(0, tokens[prev].asString()).append(tokens[next].asString());
+            } else {
+                merged[prev] = new StringBuilder(len + 2).append(tokens[prev].asString()).append(cs)
+                        .append(tokens[next].asString());
+            }
+        } else {
+            return false;
+        }
+        return true;
     }
 
-    private void replaceGlobalAliases(TokenString str) {
+    private static boolean isMergedConst(Token[] tokens, StringBuilder[] merged, int index) {
+        return merged[index] != null || tokens[index].isAnyConst();
+    }
+
+    private TokenString replaceGlobalAliases(TokenString str) {
+        TokenString result = str;
         for (int i = 0; i < str.size(); i++) {
             String src = str.getToken(i);
             Alias alias = globalAliases.get(src);
             if (alias != null) {
-                str.modifyToken(i, alias.register.toString());
+                if (result == str) {
+                    result = str.overlay();
+                }
+                result.modifyToken(i, alias.register.toString());
             }
         }
+        return result;
     }
 
     public Expression buildExpression(TokenString src) {
@@ -935,4 +1522,50 @@ public class Parser {
         error("loop not found");
         return null;
     }
+
+    /**
+     * Constants resolved in a scope, keys are the definitions so a redefined constant is resolved again
+     */
+    private static class ConstantCache {
+        final Map<Constant, Token> tokens = new HashMap<>();
+        final Map<Constant, String> expressions = new HashMap<>();
+        /**
+         * Calculated values, null for constants with unknown value
+         */
+        final Map<Constant, Long> values = new HashMap<>();
+
+        void clear() {
+            tokens.clear();
+            expressions.clear();
+            values.clear();
+        }
+    }
+
+    /**
+     * Translates lines of a procedure, the output that follows it is filled by the owner parser meanwhile
+     */
+    private static class ProcedureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Parser parser;
+        final List<TokenString> lines;
+        final OutputFile tail = new OutputFile();
+        SyntaxException error;
+
+        ProcedureTask(Parser parser, List<TokenString> lines) {
+            this.parser = parser;
+            this.lines = lines;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (TokenString line : lines) {
+                    parser.parseLine(line);
+                }
+            } catch (SyntaxException e) {
+                error = e.line(parser.lineNumber);
+            }
+        }
+    }
 }
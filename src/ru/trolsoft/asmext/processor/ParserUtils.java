@@ -4,6 +4,7 @@ import ru.trolsoft.asmext.data.Variable;
 import ru.trolsoft.avr.Instructions;
 import ru.trolsoft.avr.Registers;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class ParserUtils {
@@ -69,11 +70,15 @@ public class ParserUtils {
                 return sign*Integer.parseInt(s.substring(2), 2);
             }
         }
-        return Integer.parseInt(s);
+        if (s.startsWith("0") && s.length() > 1) {
+            // octal like in avrasm2 and gas
+            return sign*Integer.parseInt(s.substring(1), 8);
+        }
+        return sign*Integer.parseInt(s);
     }
 
     public static boolean isNumber(String str) {
-        if (str == null) {
+        if (str == null || !startsAsNumber(str)) {
             return false;
         }
         try {
@@ -84,6 +89,19 @@ public class ParserUtils {
         }
     }
 
+    /**
+     * Quick check that rejects names without exception of parseValue, a number (after optional minus) starts with
+     * a digit or a sign
+     */
+    private static boolean startsAsNumber(String s) {
+        int i = s.startsWith("-") ? 1 : 0;
+        if (i >= s.length()) {
+            return false;
+        }
+        char c = s.charAt(i);
+        return isDigitChar(c) || c == '-' || c == '+';
+    }
+
     public static boolean isInBrackets(String s) {
         return s != null && s.startsWith("(") && s.endsWith(")");
     }
@@ -125,13 +143,12 @@ public class ParserUtils {
         if (s.contains("<<") || s.contains("<<")) {
             return true;
         }
-        String upper = s.toUpperCase();
-        if (upper.contains("BYTE")) {
-            if (upper.contains("BYTE1(") || upper.contains("BYTE2(") || upper.contains("BYTE3(")
-                    || upper.contains("BYTE4(")) {
+        if (containsIgnoreCase(s, "BYTE")) {
+            if (containsIgnoreCase(s, "BYTE1(") || containsIgnoreCase(s, "BYTE2(") || containsIgnoreCase(s, "BYTE3(")
+                    || containsIgnoreCase(s, "BYTE4(")) {
                 return true;
             }
-        } else if (upper.contains("LOW(") || upper.contains("HIGH(")) {
+        } else if (containsIgnoreCase(s, "LOW(") || containsIgnoreCase(s, "HIGH(")) {
             return true;
         }
         // TODO ---------
@@ -187,6 +204,19 @@ public class ParserUtils {
         return bc == 0;
     }
 
+    /**
+     * Case-insensitive search of an ASCII string without making upper case copy
+     */
+    static boolean containsIgnoreCase(String s, String what) {
+        final int last = s.length() - what.length();
+        for (int i = 0; i <= last; i++) {
+            if (s.regionMatches(true, i, what, 0, what.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     static boolean isSimpleMatchOperator(String s) {
         if (s == null) {
             return false;
@@ -209,40 +239,146 @@ public class ParserUtils {
         return isNumber(s) || (!isRegister(s) && isValidName(s));
     }
 
+    /**
+     * Merges constant operands with operators and brackets around constants. Merges are done by passes from left
+     * to right, tokens next to a merged one are not merged in the same pass. A triple of tokens that wasn't merged
+     * stays unchanged, so every next pass checks only triples with tokens merged by the previous one.
+     */
     static void mergeTokens(List<String> tokens) {
         removeEmptyTokens(tokens);
-        while (true) {
-            boolean found = false;
-            for (int i = 0; i < tokens.size(); i++) {
-                String curr = tokens.get(i);
-                String prev = i > 0 ? tokens.get(i - 1) : null;
-                String next = i < tokens.size() - 1 ? tokens.get(i + 1) : null;
-
-                if (isConstExpression(prev) && isConstExpression(next) && isSimpleMatchOperator(curr)) {
-                    tokens.set(i, prev + curr + next);
-                    tokens.set(i-1, null);
-                    tokens.set(i+1, null);
-                    found = true;
-                } else if ("(".equals(prev) && ")".equals(next) && isConstExpression(curr)) {
-                    tokens.set(i, prev + curr + next);
-                    tokens.set(i-1, null);
-                    tokens.set(i+1, null);
-                    found = true;
-                } else if ((">>".equals(curr) || "<<".equals(curr) || "|".equals(curr)) && isSomeConstant(prev) && isSomeConstant(next)) {
-                    tokens.set(i, prev + curr + next);
-                    tokens.set(i-1, null);
-                    tokens.set(i+1, null);
-                    found = true;
-                } else if (("-".equals(curr) || "+".equals(curr)) && isNumber(next) && prev != null && prev.endsWith("=")) {
-                    tokens.set(i, curr + next);
-                    tokens.set(i+1, null);
-                    found = true;
+        if (tokens.size() < 2) {
+            return;
+        }
+        MergeNode first = null;
+        MergeNode last = null;
+        for (String s : tokens) {
+            MergeNode node = new MergeNode(s);
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+                node.prev = last;
+            }
+            last = node;
+        }
+        List<MergeNode> candidates = new ArrayList<>(tokens.size());
+        for (MergeNode node = first; node != null; node = node.next) {
+            candidates.add(node);
+        }
+        int pass = 0;
+        while (!candidates.isEmpty()) {
+            pass++;
+            List<MergeNode> merged = new ArrayList<>();
+            MergeNode lastMerged = null;
+            for (MergeNode node : candidates) {
+                if (node.removed || (lastMerged != null && node.prev == lastMerged)) {
+                    continue;
+                }
+                MergeNode result = mergeNode(node);
+                if (result != null) {
+                    if (result.prev == null) {
+                        first = result;
+                    }
+                    merged.add(result);
+                    lastMerged = result;
                 }
             }
-            if (!found) {
-                break;
+            candidates.clear();
+            for (MergeNode node : merged) {
+                addCandidate(candidates, node.prev, pass);
+                addCandidate(candidates, node, pass);
+                addCandidate(candidates, node.next, pass);
+            }
+        }
+        tokens.clear();
+        for (MergeNode node = first; node != null; node = node.next) {
+            tokens.add(node.text);
+        }
+    }
+
+    private static void addCandidate(List<MergeNode> candidates, MergeNode node, int pass) {
+        if (node != null && node.checkedPass != pass) {
+            node.checkedPass = pass;
+            candidates.add(node);
+        }
+    }
+
+    /**
+     * Merges the node with its neighbours, returns the merged node or null
+     */
+    private static MergeNode mergeNode(MergeNode node) {
+        MergeNode prev = node.prev;
+        MergeNode next = node.next;
+        String curr = node.text;
+        if (prev == null || next == null) {
+            return null;
+        }
+        if ((prev.isConstExpression() && next.isConstExpression() && isSimpleMatchOperator(curr)) ||
+                ("(".equals(prev.text) && ")".equals(next.text) && node.isConstExpression()) ||
+                ((">>".equals(curr) || "<<".equals(curr) || "|".equals(curr)) && prev.isSomeConstant() &&
+                        next.isSomeConstant())) {
+            return replace(prev, next, prev.text + curr + next.text);
+        } else if (("-".equals(curr) || "+".equals(curr)) && next.isNumber() && prev.text.endsWith("=")) {
+            return replace(node, next, curr + next.text);
+        }
+        return null;
+    }
+
+    /**
+     * Replaces nodes from the first to the last (inclusive) with a new node
+     */
+    private static MergeNode replace(MergeNode from, MergeNode to, String text) {
+        MergeNode result = new MergeNode(text);
+        result.prev = from.prev;
+        result.next = to.next;
+        if (result.prev != null) {
+            result.prev.next = result;
+        }
+        if (result.next != null) {
+            result.next.prev = result;
+        }
+        for (MergeNode node = from; node != result.next; node = node.next) {
+            node.removed = true;
+        }
+        return result;
+    }
+
+    /**
+     * Token of {@link #mergeTokens}, classification is done once per token
+     */
+    private static final class MergeNode {
+        final String text;
+        MergeNode prev;
+        MergeNode next;
+        boolean removed;
+        int checkedPass;
+        private Boolean constExpression;
+        private Boolean someConstant;
+        private Boolean number;
+
+        MergeNode(String text) {
+            this.text = text;
+        }
+
+        boolean isConstExpression() {
+            if (constExpression == null) {
+                constExpression = ParserUtils.isConstExpression(text);
+            }
+            return constExpression;
+        }
+
+        boolean isNumber() {
+            if (number == null) {
+                number = ParserUtils.isNumber(text);
+            }
+            return number;
+        }
+
+        boolean isSomeConstant() {
+            if (someConstant == null) {
+                someConstant = isNumber() || (!isRegister(text) && isValidName(text));
             }
-            removeEmptyTokens(tokens);
+            return someConstant;
         }
     }
 
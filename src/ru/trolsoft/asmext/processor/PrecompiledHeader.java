@@ -0,0 +1,160 @@
+package ru.trolsoft.asmext.processor;
+
+import ru.trolsoft.asmext.data.Alias;
+import ru.trolsoft.asmext.data.Constant;
+import ru.trolsoft.asmext.data.Label;
+import ru.trolsoft.asmext.data.Segment;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary format of include snapshots saved to disk.
+ *
+ * header:  magic, version, key
+ * stamps:  source file stamp, count + nested include stamps
+ * symbols: segment, lines count, constants, aliases, code labels, data labels
+ *
+ * Strings are stored as UTF-8 with int length prefix (-1 for null).
+ */
+class PrecompiledHeader {
+    private static final int MAGIC = 0x41585048;
+    private static final int VERSION = 1;
+
+    static void write(DataOutputStream out, String key, IncludeCache.Entry entry) throws IOException {
+        IncludeSnapshot snapshot = entry.snapshot;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+
+        writeStamp(out, entry.stamp);
+        out.writeInt(entry.dependencies.size());
+        for (IncludeCache.FileStamp stamp : entry.dependencies) {
+            writeStamp(out, stamp);
+        }
+
+        out.writeByte(snapshot.segment != null ? snapshot.segment.ordinal() : -1);
+        out.writeInt(snapshot.linesCount);
+        out.writeInt(snapshot.constants.size());
+        for (Constant c : snapshot.constants.values()) {
+            writeString(out, c.name);
+            writeString(out, c.value);
+            out.writeByte(c.type.ordinal());
+        }
+        out.writeInt(snapshot.aliases.size());
+        for (Alias alias : snapshot.aliases.values()) {
+            writeString(out, alias.name);
+            out.writeByte(alias.register.getType());
+            String[] strings = alias.register.getStrings();
+            out.writeByte(strings.length);
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+        writeLabels(out, snapshot.codeLabels);
+        writeLabels(out, snapshot.dataLabels);
+    }
+
+    /**
+     * Returns the saved entry or null if the file was written for another key or by another version
+     */
+    static IncludeCache.Entry read(ByteBuffer in, String key) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION || !key.equals(readString(in))) {
+            return null;
+        }
+        IncludeCache.FileStamp stamp = readStamp(in);
+        int dependenciesCount = in.getInt();
+        List<IncludeCache.FileStamp> dependencies = new ArrayList<>(dependenciesCount);
+        List<File> includes = new ArrayList<>(dependenciesCount);
+        for (int i = 0; i < dependenciesCount; i++) {
+            IncludeCache.FileStamp dependency = readStamp(in);
+            dependencies.add(dependency);
+            includes.add(dependency.file);
+        }
+
+        int segmentIndex = in.get();
+        Segment segment = segmentIndex >= 0 ? Segment.values()[segmentIndex] : null;
+        int linesCount = in.getInt();
+        int constantsCount = in.getInt();
+        Map<String, Constant> constants = new LinkedHashMap<>(constantsCount * 2);
+        for (int i = 0; i < constantsCount; i++) {
+            String name = readString(in);
+            String value = readString(in);
+            Constant.Type type = Constant.Type.values()[in.get()];
+            constants.put(name, new Constant(name, value, type));
+        }
+        int aliasesCount = in.getInt();
+        Map<String, Alias> aliases = new LinkedHashMap<>(aliasesCount * 2);
+        for (int i = 0; i < aliasesCount; i++) {
+            String name = readString(in);
+            int type = in.get();
+            String[] strings = new String[in.get()];
+            for (int j = 0; j < strings.length; j++) {
+                strings[j] = readString(in);
+            }
+            aliases.put(name, new Alias(name, new Token(type, strings)));
+        }
+        Map<String, Label> codeLabels = readLabels(in);
+        Map<String, Label> dataLabels = readLabels(in);
+        IncludeSnapshot snapshot = new IncludeSnapshot(constants, aliases, codeLabels, dataLabels, segment, linesCount,
+                includes);
+        return new IncludeCache.Entry(stamp, dependencies, snapshot);
+    }
+
+    private static void writeStamp(DataOutputStream out, IncludeCache.FileStamp stamp) throws IOException {
+        writeString(out, stamp.file.getPath());
+        out.writeLong(stamp.lastModified);
+        out.writeLong(stamp.length);
+        out.writeLong(stamp.hash);
+    }
+
+    private static IncludeCache.FileStamp readStamp(ByteBuffer in) {
+        File file = new File(readString(in));
+        long lastModified = in.getLong();
+        long length = in.getLong();
+        long hash = in.getLong();
+        return new IncludeCache.FileStamp(file, lastModified, length, hash);
+    }
+
+    private static void writeLabels(DataOutputStream out, Map<String, Label> labels) throws IOException {
+        out.writeInt(labels.size());
+        for (Label label : labels.values()) {
+            writeString(out, label.name);
+            out.writeInt(label.line);
+        }
+    }
+
+    private static Map<String, Label> readLabels(ByteBuffer in) {
+        int count = in.getInt();
+        Map<String, Label> labels = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            labels.put(name, new Label(name, in.getInt()));
+        }
+        return labels;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -70,16 +70,22 @@ public class Token {
 
 
     private final int type;
+    /**
+     * The first (usually the only) string, the array is stored for multi-string tokens only
+     */
+    private final String string;
     private final String[] strings;
 
     public Token(int type, String s) {
         this.type = type;
-        this.strings = new String[] {s};
+        this.string = s;
+        this.strings = null;
     }
 
     public Token(int type, String[] strings) {
         this.type = type;
-        this.strings = strings;
+        this.string = strings[0];
+        this.strings = strings.length > 1 ? strings : null;
     }
 
     public int getType() {
@@ -88,7 +94,19 @@ public class Token {
 
 
     public String asString() {
-        return strings[0];
+        return string;
+    }
+
+    String[] getStrings() {
+        return strings != null ? strings : new String[] {string};
+    }
+
+    private String str(int index) {
+        return index == 0 ? string : strings[index];
+    }
+
+    private int count() {
+        return strings != null ? strings.length : 1;
     }
 
 //    public int asInt() {
@@ -104,7 +122,7 @@ public class Token {
         switch (type) {
             case TYPE_REGISTER_GROUP:
                 sb = new StringBuilder();
-                for (String s : strings) {
+                for (String s : getStrings()) {
                     sb.append(s).append('.');
                 }
                 sb.delete(sb.length()-1, sb.length());
@@ -120,16 +138,16 @@ public class Token {
                 } else {
                     sb.append("prg[");
                 }
-                sb.append(strings[0]);
-                if (strings.length == 2) {
-                    sb.append(strings[1]);
+                sb.append(string);
+                if (count() == 2) {
+                    sb.append(str(1));
                 }
                 sb.append("]");
                 return sb.toString();
             case TYPE_REGISTER_BIT:
-                return new StringBuilder().append(strings[0]).append("[").append(strings[1]).append("]").toString();
+                return new StringBuilder().append(string).append("[").append(str(1)).append("]").toString();
         }
-        return strings[0];
+        return string;
     }
 
     public boolean isRegister() {
@@ -189,15 +207,15 @@ public class Token {
     }
 
     public boolean isOperator(String operator) {
-        return type == TYPE_OPERATOR && operator.equals(strings[0]);
+        return type == TYPE_OPERATOR && operator.equals(string);
     }
 
     public boolean isRegister(String reg) {
-        return type == TYPE_REGISTER && reg.equalsIgnoreCase(strings[0]);
+        return type == TYPE_REGISTER && reg.equalsIgnoreCase(string);
     }
 
     public boolean isRegGroup(int size) {
-        return (type == TYPE_REGISTER_GROUP && strings.length == size) || (type == TYPE_PAIR && size == 2);
+        return (type == TYPE_REGISTER_GROUP && count() == size) || (type == TYPE_PAIR && size == 2);
     }
 
     public boolean isOperator(String ...operators) {
@@ -205,7 +223,7 @@ public class Token {
             return false;
         }
         for (String s : operators) {
-            if (s.equals(strings[0])) {
+            if (s.equals(string)) {
                 return true;
             }
         }
@@ -217,7 +235,7 @@ public class Token {
             return false;
         }
         for (String s : strs) {
-            if (s.equals(strings[0])) {
+            if (s.equals(string)) {
                 return true;
             }
         }
@@ -229,7 +247,7 @@ public class Token {
             return false;
         }
         for (String s : strs) {
-            if (s.equals(strings[0])) {
+            if (s.equals(string)) {
                 return true;
             }
         }
@@ -241,7 +259,7 @@ public class Token {
             return false;
         }
         for (String s : strs) {
-            if (s.equals(strings[0])) {
+            if (s.equals(string)) {
                 return true;
             }
         }
@@ -250,11 +268,11 @@ public class Token {
 
     public Token getPairHigh() {
         if (type == TYPE_PAIR) {
-            return new Token(TYPE_REGISTER, strings[0] + "H");
+            return new Token(TYPE_REGISTER, string + "H");
         } else if (isRegisterWord()) {
-            return new Token(TYPE_REGISTER, strings[0]);
-        } else if (type == TYPE_REGISTER_GROUP && strings.length == 2) {
-            return new Token(TYPE_REGISTER, strings[0]);
+            return new Token(TYPE_REGISTER, string);
+        } else if (type == TYPE_REGISTER_GROUP && count() == 2) {
+            return new Token(TYPE_REGISTER, string);
         }
         throw new RuntimeException("not a pair (" + type + ")");
 
@@ -262,11 +280,11 @@ public class Token {
 
     public Token getPairLow() {
         if (type == TYPE_PAIR) {
-            return new Token(TYPE_REGISTER, strings[0] + "L");
+            return new Token(TYPE_REGISTER, string + "L");
         } else if (isRegisterWord()) {
-            return new Token(TYPE_REGISTER, strings[1]);
-        } else if (type == TYPE_REGISTER_GROUP && strings.length == 2) {
-            return new Token(TYPE_REGISTER, strings[1]);
+            return new Token(TYPE_REGISTER, str(1));
+        } else if (type == TYPE_REGISTER_GROUP && count() == 2) {
+            return new Token(TYPE_REGISTER, str(1));
         }
         throw new RuntimeException("not a pair (" + type + ")");
     }
@@ -275,28 +293,28 @@ public class Token {
         if (type == TYPE_NUMBER) {
             return this;
         }
-        if (strings.length != 1) {
+        if (count() != 1) {
             throw new RuntimeException("wrong type");
         }
-        if (strings[0].startsWith("(") && strings[0].endsWith(")")) {
+        if (string.startsWith("(") && string.endsWith(")")) {
             return this;
         }
-        return new Token(type, "(" + strings[0] + ")");
+        return new Token(type, "(" + string + ")");
     }
 
     public Token getNegativeExpr() {
         if (type == TYPE_NUMBER) {
             int val = getNumberValue();
             if (val > 0) {
-                return new Token(type, '-' + strings[0]);
+                return new Token(type, '-' + string);
             } else if (val < 0) {
-                return new Token(type, strings[0].substring(1));
+                return new Token(type, string.substring(1));
             }
-            return new Token(type, strings[0]);
+            return new Token(type, string);
         }
         if (type == TYPE_CONST_EXPRESSION) {
             Token brackets = wrapToBrackets();
-            return new Token(brackets.type, '-' + brackets.strings[0]);
+            return new Token(brackets.type, '-' + brackets.string);
         }
         throw new RuntimeException("wrong type");
     }
@@ -305,15 +323,15 @@ public class Token {
         if (type != TYPE_NUMBER) {
             throw new RuntimeException("not a number");
         }
-        return ParserUtils.parseValue(strings[0]);
+        return ParserUtils.parseValue(string);
     }
 
     public boolean isRegisterWord() {
-        if (type != TYPE_REGISTER_GROUP || strings.length != 2) {
+        if (type != TYPE_REGISTER_GROUP || count() != 2) {
             return false;
         }
-        String rh = strings[0].toLowerCase();
-        String rl = strings[1].toLowerCase();
+        String rh = string.toLowerCase();
+        String rl = str(1).toLowerCase();
         if (rh.startsWith("r") && rl.startsWith("r")) {
             try {
                 int nh = Integer.parseInt(rh.substring(1));
@@ -330,12 +348,12 @@ public class Token {
         if (type == TYPE_PAIR) {
             return 2;
         }
-        return strings.length;
+        return count();
     }
 
     public Token getReg(int index) {
         if (type == TYPE_REGISTER_GROUP) {
-            return new Token(TYPE_REGISTER, strings[index]);
+            return new Token(TYPE_REGISTER, str(index));
         }
         if (type == TYPE_REGISTER && index == 0) {
             return this;
@@ -343,9 +361,9 @@ public class Token {
         if (type == TYPE_PAIR) {
             switch (index) {
                 case 0:
-                    return new Token(TYPE_REGISTER, strings[0].toUpperCase() + "H");
+                    return new Token(TYPE_REGISTER, string.toUpperCase() + "H");
                 case 1:
-                    return new Token(TYPE_REGISTER, strings[0].toUpperCase() + "L");
+                    return new Token(TYPE_REGISTER, string.toUpperCase() + "L");
                 default:
                     throw new RuntimeException("wrong pair index:" + index);
             }
@@ -364,10 +382,10 @@ public class Token {
         if (!isRegisterBit()) {
             throw new RuntimeException();
         }
-        if (ParserUtils.isNumber(strings[1])) {
-            return new Token(TYPE_NUMBER, strings[1]);
+        if (ParserUtils.isNumber(str(1))) {
+            return new Token(TYPE_NUMBER, str(1));
         }
-        return new Token(TYPE_CONST_EXPRESSION, strings[1]);
+        return new Token(TYPE_CONST_EXPRESSION, str(1));
     }
 
     @Override
@@ -381,23 +399,23 @@ public class Token {
         }
         switch (type) {
             case TYPE_REGISTER:
-                return (strings.length == t.strings.length) && strings[0].equalsIgnoreCase(t.strings[0]);
+                return (count() == t.count()) && string.equalsIgnoreCase(t.string);
             case TYPE_REGISTER_GROUP:
-                if (strings.length != t.strings.length) {
+                if (count() != t.count()) {
                     return false;
                 }
-                for (int i = 0; i < strings.length; i++) {
-                    if (!strings[i].equalsIgnoreCase(t.strings[i])) {
+                for (int i = 0; i < count(); i++) {
+                    if (!str(i).equalsIgnoreCase(t.str(i))) {
                         return false;
                     }
                 }
                 return true;
             default:
-                if (strings.length != t.strings.length) {
+                if (count() != t.count()) {
                     return false;
                 }
-                for (int i = 0; i < strings.length; i++) {
-                    if (!strings[i].equals(t.strings[i])) {
+                for (int i = 0; i < count(); i++) {
+                    if (!str(i).equals(t.str(i))) {
                         return false;
                     }
                 }
@@ -408,8 +426,8 @@ public class Token {
     @Override
     public int hashCode() {
         int hashCode = type;
-        for (String s : strings) {
-            hashCode = 31*hashCode + s.hashCode();
+        for (int i = 0; i < count(); i++) {
+            hashCode = 31*hashCode + str(i).hashCode();
         }
         return hashCode;
     }
@@ -420,30 +438,30 @@ public class Token {
         }
 
         public String getName() {
-            if (strings.length == 1) {
-                return strings[0];
+            if (count() == 1) {
+                return string;
             }
-            return "--".equals(strings[0]) || "++".equals(strings[0]) ? strings[1] : strings[0];
+            return "--".equals(string) || "++".equals(string) ? str(1) : string;
         }
 
         public boolean isPreInc() {
-            return "++".equals(strings[0]);
+            return "++".equals(string);
         }
 
         public boolean isPreDec() {
-            return "--".equals(strings[0]);
+            return "--".equals(string);
         }
 
         public boolean isPostInc() {
-            return strings.length == 2 && "++".equals(strings[1]);
+            return count() == 2 && "++".equals(str(1));
         }
 
         public boolean isPostDec() {
-            return strings.length == 2 && "--".equals(strings[1]);
+            return count() == 2 && "--".equals(str(1));
         }
 
         public boolean hasModifier() {
-            return strings.length == 2;
+            return count() == 2;
         }
     }
 }
@@ -1,29 +1,62 @@
 package ru.trolsoft.asmext.utils;
 
 import ru.trolsoft.asmext.compiler.Cmd;
+import ru.trolsoft.asmext.processor.ParserUtils;
 import ru.trolsoft.asmext.processor.Token;
+import ru.trolsoft.avr.Registers;
 
+/**
+ * Instruction record of the output: command, operands with their kinds, indent and comment of the source line.
+ * It is rendered to text when the output is written.
+ */
 public class AsmInstruction {
+    /**
+     * Operand kind of the absent operand
+     */
+    public static final int NO_OPERAND = -1;
+
     private final Cmd command;
     private final String arg1;
     private final String arg2;
+    private final int arg1Type;
+    private final int arg2Type;
+    private final String indent;
+    private final String comment;
 
     public AsmInstruction(Cmd cmd, String arg1, String arg2) {
-        this.command = cmd;
-        this.arg1 = arg1;
-        this.arg2 = arg2;
+        this(cmd, arg1, arg2, null, null);
     }
 
     public AsmInstruction(Cmd cmd, Token arg1, Token arg2) {
-        this.command = cmd;
-        this.arg1 = arg1.asString();
-        this.arg2 = arg2.asString();
+        this(cmd, arg1.asString(), arg2.asString());
     }
 
     public AsmInstruction(Cmd cmd, Token arg) {
+        this(cmd, arg.asString(), null);
+    }
+
+    /**
+     * Creates instruction compiled from the source line, indent and comment are taken from it
+     */
+    public AsmInstruction(TokenString src, Cmd cmd, String arg1, String arg2) {
+        this(cmd, arg1, arg2, src.getIndent(), src.hasComment() ? src.getComment() : null);
+    }
+
+    private AsmInstruction(Cmd cmd, String arg1, String arg2, String indent, String comment) {
         this.command = cmd;
-        this.arg1 = arg.asString();
-        this.arg2 = null;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.arg1Type = getOperandType(arg1);
+        this.arg2Type = getOperandType(arg2);
+        this.indent = indent;
+        this.comment = comment;
+    }
+
+    /**
+     * Returns instruction with other command and operands, but the same indent and comment
+     */
+    public AsmInstruction withCommand(Cmd cmd, String arg1, String arg2) {
+        return new AsmInstruction(cmd, arg1, arg2, indent, comment);
     }
 
     public Cmd getCommand() {
@@ -45,4 +78,78 @@ public class AsmInstruction {
     public Token getArg2Token() {
         return arg2 == null ? null : new Token(Token.TYPE_OTHER, arg2);
     }
+
+    /**
+     * Returns kind of the first operand: {@link Token#TYPE_REGISTER}, {@link Token#TYPE_PAIR} (X, Y+, -Z, Y+q),
+     * {@link Token#TYPE_NUMBER}, {@link Token#TYPE_CONST_EXPRESSION} (name or expression resolved by the assembler)
+     * or {@link #NO_OPERAND}
+     */
+    public int getArg1Type() {
+        return arg1Type;
+    }
+
+    /**
+     * Returns kind of the second operand, see {@link #getArg1Type()}
+     */
+    public int getArg2Type() {
+        return arg2Type;
+    }
+
+    public String getIndent() {
+        return indent;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    static int getOperandType(String arg) {
+        if (arg == null) {
+            return NO_OPERAND;
+        } else if (Registers.isRegister(arg)) {
+            return Token.TYPE_REGISTER;
+        } else if (isPointer(arg)) {
+            return Token.TYPE_PAIR;
+        } else if (ParserUtils.isNumber(arg)) {
+            return Token.TYPE_NUMBER;
+        }
+        return Token.TYPE_CONST_EXPRESSION;
+    }
+
+    private static boolean isPointer(String arg) {
+        int start = arg.startsWith("-") ? 1 : 0;
+        if (arg.length() <= start) {
+            return false;
+        }
+        char c = arg.charAt(start);
+        if (c != 'X' && c != 'Y' && c != 'Z') {
+            return false;
+        }
+        return arg.length() == start + 1 || (start == 0 && arg.charAt(1) == '+');
+    }
+
+    /**
+     * Renders the instruction as an output line: indent, command, tab-separated operands and comment
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (indent != null) {
+            sb.append(indent);
+        }
+        sb.append(command.getMnemonic());
+        if (arg1 != null) {
+            sb.append('\t').append(arg1);
+        }
+        if (arg2 != null) {
+            sb.append(", ").append(arg2);
+        }
+        if (comment != null) {
+            sb.append("\t\t").append(comment);
+        }
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
 }
@@ -0,0 +1,393 @@
+package ru.trolsoft.asmext.utils;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * Tokens of a source line stored as (offset, length, kind) records over the original string.
+ * Token text is created only when it is requested, modified tokens keep their own strings.
+ */
+public class TokenList extends AbstractList<String> implements RandomAccess {
+    static final byte KIND_BLANK = 0;
+    static final byte KIND_WORD = 1;
+    static final byte KIND_OPERATOR = 2;
+    static final byte KIND_CHAR = 3;
+    static final byte KIND_COMMENT = 4;
+    /**
+     * Token was replaced and has no source range
+     */
+    static final byte KIND_TEXT = 5;
+
+    private static final String DELIMITERS = " \t,.+-*/=():;<>!&|[]";
+    private static final boolean[] IS_DELIMITER = new boolean[128];
+    private static final String[] SINGLE_CHARS = new String[128];
+
+    static {
+        for (int i = 0; i < DELIMITERS.length(); i++) {
+            IS_DELIMITER[DELIMITERS.charAt(i)] = true;
+        }
+        for (int i = 0; i < SINGLE_CHARS.length; i++) {
+            SINGLE_CHARS[i] = String.valueOf((char) i).intern();
+        }
+    }
+
+    private final String source;
+    private int[] offsets;
+    private int[] lengths;
+    private byte[] kinds;
+    private String[] texts;
+    private int size;
+    /**
+     * Incremented on every modification, used to validate data built from the tokens
+     */
+    private int version;
+
+    private TokenList(String source, int capacity) {
+        this.source = source;
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.kinds = new byte[capacity];
+    }
+
+    private TokenList(TokenList src) {
+        this.source = src.source;
+        this.offsets = Arrays.copyOf(src.offsets, src.size);
+        this.lengths = Arrays.copyOf(src.lengths, src.size);
+        this.kinds = Arrays.copyOf(src.kinds, src.size);
+        this.texts = src.texts != null ? Arrays.copyOf(src.texts, src.size) : null;
+        this.size = src.size;
+    }
+
+    /**
+     * Splits the line to tokens. Whitespace runs, comments, char constants ('=') and two-char operators
+     * (==, !=, >=, <=, +=, -=, &=, |=, <<=, >>=, <<, >>, ++, --, &&, ||) are single tokens.
+     */
+    static TokenList split(String line) {
+        if (line == null) {
+            return new TokenList("", 0);
+        }
+        final int len = line.length();
+        TokenList list = new TokenList(line, Math.min(len, 16));
+        boolean commentStarted = false;
+        int pos = 0;
+        while (pos < len) {
+            int start = pos;
+            boolean delimiter = isDelimiter(line.charAt(pos++));
+            if (!delimiter) {
+                while (pos < len && !isDelimiter(line.charAt(pos))) {
+                    pos++;
+                }
+            }
+            int last = list.size - 1;
+            if (commentStarted) {
+                list.lengths[last] += pos - start;
+                continue;
+            }
+            char c = line.charAt(start);
+            boolean blank = isBlank(line, start, pos);
+            if (last >= 0 && blank && list.kinds[last] == KIND_BLANK) {
+                list.lengths[last] += pos - start;
+                continue;
+            }
+            // ' ' and '\t' is char const
+            if (delimiter && list.prevIs(last, '\'')) {
+                list.extend(last, pos, KIND_CHAR);
+                continue;
+            }
+            if (!delimiter && pos - start == 1 && c == '\'' && last >= 0 && list.lengths[last] == 2
+                    && line.charAt(list.offsets[last]) == '\'' && isDelimiter(line.charAt(list.offsets[last] + 1))) {
+                list.extend(last, pos, KIND_CHAR);
+                continue;
+            }
+            if (delimiter) {
+                if (c == ';') {
+                    commentStarted = true;
+                    list.add(start, pos, KIND_COMMENT);
+                    continue;
+                } else if (c == '/' && list.prevIs(last, '/')) {
+                    list.extend(last, pos, KIND_COMMENT);
+                    commentStarted = true;
+                    continue;
+                } else if (list.isMergedOperator(last, c)) {
+                    list.extend(last, pos, KIND_OPERATOR);
+                    continue;
+                }
+            }
+            list.add(start, pos, blank ? KIND_BLANK : delimiter ? KIND_OPERATOR : KIND_WORD);
+        }
+        return list;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c < IS_DELIMITER.length && IS_DELIMITER[c];
+    }
+
+    /**
+     * Same as s.trim().isEmpty() for the range
+     */
+    private static boolean isBlank(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean prevIs(int last, char c) {
+        return last >= 0 && lengths[last] == 1 && source.charAt(offsets[last]) == c;
+    }
+
+    private boolean isMergedOperator(int last, char next) {
+        if (last < 0 || kinds[last] != KIND_OPERATOR) {
+            return false;
+        }
+        char prev = source.charAt(offsets[last]);
+        if (lengths[last] == 2) {
+            // <<= and >>=
+            return next == '=' && (prev == '<' || prev == '>') && source.charAt(offsets[last] + 1) == prev;
+        } else if (lengths[last] != 1) {
+            return false;
+        }
+        switch (next) {
+            case '=':
+                return prev == '=' || prev == '!' || prev == '>' || prev == '<' || prev == '+' || prev == '-'
+                        || prev == '&' || prev == '|';
+            case '>':
+            case '<':
+            case '+':
+            case '-':
+            case '&':
+            case '|':
+                return prev == next;
+            default:
+                return false;
+        }
+    }
+
+    private void extend(int index, int end, byte kind) {
+        lengths[index] = end - offsets[index];
+        kinds[index] = kind;
+    }
+
+    private void add(int start, int end, byte kind) {
+        ensureCapacity(size + 1);
+        offsets[size] = start;
+        lengths[size] = end - start;
+        kinds[size] = kind;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > offsets.length) {
+            int newCapacity = Math.max(capacity, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            kinds = Arrays.copyOf(kinds, newCapacity);
+            if (texts != null) {
+                texts = Arrays.copyOf(texts, newCapacity);
+            }
+        }
+    }
+
+    private String[] texts() {
+        if (texts == null) {
+            texts = new String[offsets.length];
+        }
+        return texts;
+    }
+
+    /**
+     * Returns a list over the same source, texts of the tokens are shared until they are modified
+     */
+    TokenList copy() {
+        return new TokenList(this);
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    byte getKind(int index) {
+        Objects.checkIndex(index, size);
+        return kinds[index];
+    }
+
+    int getOffset(int index) {
+        Objects.checkIndex(index, size);
+        return offsets[index];
+    }
+
+    int getLength(int index) {
+        Objects.checkIndex(index, size);
+        return lengths[index];
+    }
+
+    /**
+     * Removes tokens from the start and the end of the list
+     */
+    void trim(int fromIndex, int toIndex) {
+        int count = toIndex - fromIndex;
+        if (fromIndex > 0) {
+            System.arraycopy(offsets, fromIndex, offsets, 0, count);
+            System.arraycopy(lengths, fromIndex, lengths, 0, count);
+            System.arraycopy(kinds, fromIndex, kinds, 0, count);
+            if (texts != null) {
+                System.arraycopy(texts, fromIndex, texts, 0, count);
+            }
+        }
+        if (texts != null) {
+            Arrays.fill(texts, count, size, null);
+        }
+        size = count;
+        modCount++;
+        version++;
+    }
+
+    @Override
+    public String get(int index) {
+        Objects.checkIndex(index, size);
+        if (kinds[index] == KIND_TEXT) {
+            return texts[index];
+        }
+        String result = texts != null ? texts[index] : null;
+        if (result == null) {
+            int offset = offsets[index];
+            if (lengths[index] == 1 && source.charAt(offset) < SINGLE_CHARS.length) {
+                return SINGLE_CHARS[source.charAt(offset)];
+            }
+            result = source.substring(offset, offset + lengths[index]);
+            texts()[index] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Compares the token with the string without creating the token text
+     */
+    public boolean tokenIs(int index, String s) {
+        Objects.checkIndex(index, size);
+        if (kinds[index] == KIND_TEXT) {
+            return s.equals(texts[index]);
+        }
+        return lengths[index] == s.length() && source.regionMatches(offsets[index], s, 0, s.length());
+    }
+
+    /**
+     * Same as get(index).trim().isEmpty(), null tokens are blank too
+     */
+    public boolean isBlank(int index) {
+        Objects.checkIndex(index, size);
+        if (kinds[index] == KIND_TEXT) {
+            return texts[index] == null || texts[index].trim().isEmpty();
+        }
+        return kinds[index] == KIND_BLANK;
+    }
+
+    public void removeBlank() {
+        int to = 0;
+        for (int from = 0; from < size; from++) {
+            if (!isBlank(from)) {
+                move(from, to++);
+            }
+        }
+        truncate(to);
+    }
+
+    void appendTo(StringBuilder sb, int index) {
+        Objects.checkIndex(index, size);
+        if (kinds[index] == KIND_TEXT) {
+            sb.append(texts[index]);
+        } else {
+            sb.append(source, offsets[index], offsets[index] + lengths[index]);
+        }
+    }
+
+    @Override
+    public String set(int index, String element) {
+        String result = get(index);
+        texts()[index] = element;
+        kinds[index] = KIND_TEXT;
+        version++;
+        return result;
+    }
+
+    @Override
+    public void add(int index, String element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        String[] texts = texts();
+        int count = size - index;
+        System.arraycopy(offsets, index, offsets, index + 1, count);
+        System.arraycopy(lengths, index, lengths, index + 1, count);
+        System.arraycopy(kinds, index, kinds, index + 1, count);
+        System.arraycopy(texts, index, texts, index + 1, count);
+        texts[index] = element;
+        kinds[index] = KIND_TEXT;
+        size++;
+        modCount++;
+        version++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String result = get(index);
+        int count = size - index - 1;
+        System.arraycopy(offsets, index + 1, offsets, index, count);
+        System.arraycopy(lengths, index + 1, lengths, index, count);
+        System.arraycopy(kinds, index + 1, kinds, index, count);
+        if (texts != null) {
+            System.arraycopy(texts, index + 1, texts, index, count);
+            texts[size - 1] = null;
+        }
+        size--;
+        modCount++;
+        version++;
+        return result;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super String> filter) {
+        int to = 0;
+        for (int from = 0; from < size; from++) {
+            if (!filter.test(get(from))) {
+                move(from, to++);
+            }
+        }
+        boolean removed = to < size;
+        truncate(to);
+        return removed;
+    }
+
+    private void move(int from, int to) {
+        if (from != to) {
+            offsets[to] = offsets[from];
+            lengths[to] = lengths[from];
+            kinds[to] = kinds[from];
+            if (texts != null) {
+                texts[to] = texts[from];
+            }
+        }
+    }
+
+    private void truncate(int newSize) {
+        if (newSize < size) {
+            if (texts != null) {
+                Arrays.fill(texts, newSize, size, null);
+            }
+            size = newSize;
+            modCount++;
+            version++;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -3,14 +3,20 @@ package ru.trolsoft.asmext.utils;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 public class TokenString implements Comparable<TokenString>, CharSequence, Iterable<String> {
     private final String string;
-    private List<String> tokens;
+    private TokenList tokens;
     private String pure;
     private String indent;
     private String comment;
+    private int indentLength;
+    private int commentOffset = -1;
+    private Object parsed;
+    private Function<List<String>, ?> parsedBy;
+    private int parsedVersion;
 
     public TokenString(String string) {
         this.string = string;
@@ -24,11 +30,49 @@ public class TokenString implements Comparable<TokenString>, CharSequence, Itera
         this.string = sb.toString();
     }
 
+    private TokenString(TokenString src) {
+        this.string = src.string;
+        this.tokens = ((TokenList) src.getTokens()).copy();
+        this.indent = src.getIndent();
+        this.comment = src.getComment();
+    }
+
+    /**
+     * Returns the line with own copy of the tokens. Changes of the returned line don't affect this one, so
+     * the same source line can be shared between translation passes.
+     */
+    public TokenString overlay() {
+        return new TokenString(this);
+    }
+
+    /**
+     * Returns the line without blank tokens, this line stays unchanged
+     */
+    public TokenString compact() {
+        TokenString result = overlay();
+        result.tokens.removeBlank();
+        return result;
+    }
+
+    /**
+     * Returns the tokens converted by the parser. The result is computed once and kept until the tokens are
+     * modified, so the parser must depend on the tokens only and must not change them.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getParsed(Function<List<String>, T> parser) {
+        getTokens();
+        if (parsedBy != parser || parsedVersion != tokens.getVersion()) {
+            parsed = parser.apply(Collections.unmodifiableList(tokens));
+            parsedBy = parser;
+            parsedVersion = tokens.getVersion();
+        }
+        return (T) parsed;
+    }
+
     public List<String> getTokens() {
         if (tokens == null) {
-            tokens = splitToTokensList(string);
-            saveAndRemoveIndent();
-            saveAndRemoveComment();
+            tokens = TokenList.split(string);
+            saveAndRemoveIndentAndComment();
         }
         return tokens;
     }
@@ -166,101 +210,31 @@ public class TokenString implements Comparable<TokenString>, CharSequence, Itera
         return s;
     }
 
-    private static List<String> splitToTokensList(String line) {
-        List<String> result = new ArrayList<>();
-        if (line == null) {
-            return result;
-        }
-        final String delim = " \t,.+-*/=():;<>!&|[]";
-        StringTokenizer tokenizer = new StringTokenizer(line, delim, true);
-        boolean commentStarted = false;
-        while (tokenizer.hasMoreElements()) {
-            String next = tokenizer.nextToken();
-            String prev = result.isEmpty() ? null : result.get(result.size()-1);
-            if (prev != null && next.trim().isEmpty() && prev.trim().isEmpty()) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            }
-
-            // ' ' and '\t' is char const
-            if ("'".equals(prev) && delim.contains(next) && next.length() == 1) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            }
-            if (("'".equals(next)) && (prev != null && prev.startsWith("'") && prev.length() == 2) && delim.contains(prev.substring(1))) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            }
-
-            if (commentStarted) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            }
-            if (";".equals(next)) {
-                commentStarted = true;
-            } else if ("/".equals(next) && "/".equals(prev)) {
-                result.set(result.size()-1, prev + next);
-                commentStarted = true;
-                continue;
-            }
-
-            if ("=".equals(next)) {
-                if ("=".equals(prev) || "!".equals(prev) || ">".equals(prev) || "<".equals(prev) || "+".equals(prev)
-                        || "-".equals(prev) || "&".equals(prev) || "|".equals(prev) || "<<".equals(prev) || ">>".equals(prev)) {
-                    result.set(result.size()-1, prev + next);
-                    continue;
-                }
-            } else if ((">".equals(next) && ">".equals(prev)) || ("<".equals(next) && "<".equals(prev))) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            } else if (("+".equals(next) && "+".equals(prev)) || ("-".equals(next) && "-".equals(prev))) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            } else if (("&".equals(next) && "&".equals(prev)) || ("|".equals(next) && "|".equals(prev))) {
-                result.set(result.size()-1, prev + next);
-                continue;
-            }
-
-            result.add(next);
-        }
-        return result;
-    }
-
-    private void saveAndRemoveIndent() {
-        if (tokens.isEmpty()) {
-            indent = "";
-            return;
+    private void saveAndRemoveIndentAndComment() {
+        int from = 0;
+        int to = tokens.size();
+        if (to > 0 && tokens.getKind(0) == TokenList.KIND_BLANK) {
+            indentLength = tokens.getLength(0);
+            from = 1;
         }
-        String firstToken = tokens.get(0);
-        if (firstToken.trim().isEmpty()) {
-            indent = firstToken;
-            tokens.remove(0);
-        } else {
-            indent = "";
+        if (to > from && tokens.getKind(to - 1) == TokenList.KIND_COMMENT) {
+            commentOffset = tokens.getOffset(to - 1);
+            to--;
         }
-    }
-
-    private void saveAndRemoveComment() {
-        if (tokens.isEmpty()) {
-            comment = "";
-            return;
-        }
-        String lastToken = getLastToken();
-        if (isComment(lastToken)) {
-            comment = lastToken;
-            tokens.remove(tokens.size()-1);
-        } else {
-            comment = "";
+        if (from > 0 || to < tokens.size()) {
+            tokens.trim(from, to);
         }
     }
 
     public void removeEmptyTokens() {
-        getTokens().removeIf(s -> s == null || s.trim().isEmpty());
+        getTokens();
+        tokens.removeBlank();
     }
 
     public String getIndent() {
         if (indent == null) {
             getTokens();
+            indent = string.substring(0, indentLength);
         }
         return indent;
     }
@@ -268,6 +242,7 @@ public class TokenString implements Comparable<TokenString>, CharSequence, Itera
     public String getComment() {
         if (comment == null) {
             getTokens();
+            comment = commentOffset >= 0 ? string.substring(commentOffset) : "";
         }
         return comment;
     }
@@ -286,10 +261,6 @@ public class TokenString implements Comparable<TokenString>, CharSequence, Itera
     }
 
 
-    private static boolean isComment(String s) {
-        return s.startsWith(";") || s.startsWith("//");
-    }
-
     public void removeFirstToken() {
         getTokens().remove(0);
     }
@@ -299,23 +270,28 @@ public class TokenString implements Comparable<TokenString>, CharSequence, Itera
     }
 
     public boolean firstTokenIs(String s) {
-        return s.equals(getFirstToken());
+        return !getTokens().isEmpty() && tokens.tokenIs(0, s);
     }
 
     public boolean lastTokenIs(String s) {
-        return s.equals(getLastToken());
+        return !getTokens().isEmpty() && tokens.tokenIs(tokens.size()-1, s);
+    }
+
+    public boolean tokenIs(int i, String s) {
+        getTokens();
+        return tokens.tokenIs(i, s);
     }
 
     public String mergeTokens(int fromIndex) {
         StringBuilder sb = new StringBuilder();
-        while (fromIndex < tokens.size()) {
-            sb.append(tokens.get(fromIndex++));
+        while (fromIndex < getTokens().size()) {
+            tokens.appendTo(sb, fromIndex++);
         }
         return sb.toString();
     }
 
     public void transformCommentToAsm() {
-        if (comment != null && comment.startsWith("//")) {
+        if (tokens != null && getComment().startsWith("//")) {
             comment = ";" + comment.substring(2);
         }
     }
@@ -0,0 +1,27 @@
+package ru.trolsoft.avr;
+
+/**
+ * Variants of the AVR core that differ in timing of instructions (names of the instruction set manual in brackets)
+ */
+public enum Core {
+    /**
+     * Classic core with 16-bit program counter (AVRe, AVRe+ up to 128K of flash)
+     */
+    CLASSIC,
+    /**
+     * Classic core with 22-bit program counter, calls and returns take one cycle more (ATmega2560 and others)
+     */
+    CLASSIC_22BIT_PC,
+    /**
+     * XMEGA core (AVRxm)
+     */
+    XMEGA,
+    /**
+     * Core of tinyAVR 0/1/2, megaAVR 0 and AVR Dx series (AVRxt)
+     */
+    XT,
+    /**
+     * Reduced core of ATtiny4/5/9/10/20/40 with 16 registers (AVRrc)
+     */
+    REDUCED
+}
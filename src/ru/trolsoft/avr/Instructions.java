@@ -1,26 +1,31 @@
 package ru.trolsoft.avr;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import ru.trolsoft.asmext.compiler.Cmd;
 
+/**
+ * Names of the instructions, they are taken from the instruction table {@link Cmd}
+ */
 public class Instructions {
 
-    private static final Set<String> INSTRUCTIONS;
+    private static final NameTable INSTRUCTIONS;
 
     static {
-        String[] list = new String[] {"fmulsu", "pop", "brpl", "brhs", "sen", "out", "sbi", "lds", "lat", "clt", "mul", "spm", "bld", "sec", "adc", "andi", "brcc",
-                "jmp", "sev", "subi", "sez", "com", "ld", "rcall", "brge", "neg", "clr", "asr", "add", "muls", "bset", "sbc", "swap", "sts", "eor", "brlt",
-                "seh", "sbrc", "sbic", "nop", "rjmp", "sei", "fmul", "brvs", "breq", "sbiw", "in", "cbi", "cls", "las", "brbc", "ret", "brts", "brcs", "rol",
-                "call", "push", "dec", "tst", "brlo", "wdr", "brmi", "ses", "and", "sub", "inc", "cli", "std", "mulsu", "brid", "brhc", "mov", "fmuls", "brie",
-                "cbr", "lsl", "cpc", "clh", "icall", "adiw", "ser", "bst", "eijmp", "movw", "xch", "sleep", "sbr", "sbci", "cp", "reti", "clz", "brvc", "lpm",
-                "brtc", "lsr", "clc", "lac", "brbs", "brne", "ldd", "st", "clv", "brsh", "break", "set", "cpi", "ijmp", "ror", "sbrs", "sbis", "or", "bclr",
-                "eicall", "cpse", "ldi", "cln", "elpm", "ori"};
-        INSTRUCTIONS = new HashSet<>();
-        INSTRUCTIONS.addAll(Arrays.asList(list));
+        Cmd[] commands = Cmd.values();
+        String[] list = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            list[i] = commands[i].getMnemonic();
+        }
+        INSTRUCTIONS = new NameTable(list);
     }
 
     public static boolean isInstruction(String name) {
-        return name != null && INSTRUCTIONS.contains(name.toLowerCase());
+        return INSTRUCTIONS.contains(name);
+    }
+
+    /**
+     * Returns ordinal of the instruction in {@link Cmd} (case-insensitive) or -1 if the name is not an instruction
+     */
+    public static int indexOf(String name) {
+        return INSTRUCTIONS.indexOf(name);
     }
 }
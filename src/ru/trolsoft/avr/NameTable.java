@@ -0,0 +1,80 @@
+package ru.trolsoft.avr;
+
+/**
+ * Immutable case-insensitive table of names with a perfect hash: the hash seed is chosen so that every name gets
+ * its own slot, a lookup hashes chars of the key folded to lower case and compares one slot without allocations.
+ */
+final class NameTable {
+    private final String[] slots;
+    private final int[] indexes;
+    private final int seed;
+    private final int mask;
+
+    NameTable(String... names) {
+        int size = Integer.highestOneBit(Math.max(names.length, 1) * 4);
+        String[] slots;
+        int[] indexes;
+        int seed = 0;
+        while (true) {
+            slots = new String[size];
+            indexes = new int[size];
+            seed++;
+            if (fill(names, seed, slots, indexes)) {
+                break;
+            }
+            if (seed % 1000 == 0) {
+                size *= 2;
+            }
+        }
+        this.slots = slots;
+        this.indexes = indexes;
+        this.seed = seed;
+        this.mask = size - 1;
+    }
+
+    private static boolean fill(String[] names, int seed, String[] slots, int[] indexes) {
+        int mask = slots.length - 1;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].toLowerCase();
+            int slot = hash(name, seed) & mask;
+            if (slots[slot] != null) {
+                return false;
+            }
+            slots[slot] = name;
+            indexes[slot] = i;
+        }
+        return true;
+    }
+
+    /**
+     * Returns index of the name in the constructor arguments or -1 if the table doesn't contain the name
+     */
+    int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int slot = hash(name, seed) & mask;
+        String s = slots[slot];
+        if (s != null && s.length() == name.length() && s.regionMatches(true, 0, name, 0, s.length())) {
+            return indexes[slot];
+        }
+        return -1;
+    }
+
+    boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    private static int hash(String name, int seed) {
+        int h = seed;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = h * 31 + c;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
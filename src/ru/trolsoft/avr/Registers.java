@@ -1,74 +1,81 @@
 package ru.trolsoft.avr;
 
-import java.util.HashSet;
-import java.util.Set;
-
+/**
+ * Register names are parsed to the register number without allocations (r0-r31 and xl, xh, yl, yh, zl, zh,
+ * case-insensitive), the properties of registers are calculated from the number.
+ */
 public class Registers {
 
-    private static final Set<String> REGISTERS;
-    private static final Set<String> REGISTERS_EVEN;
-    private static final Set<String> REGISTERS_HIGH;
-    private static final Set<String> REGISTERS_PAIR_LOW;
-
-    static {
-        REGISTERS = new HashSet<>();
-        REGISTERS_EVEN = new HashSet<>();
-        REGISTERS_HIGH = new HashSet<>();
-        for (int i = 0; i <= 31; i++) {
-            String reg = "r" + i;
-            REGISTERS.add(reg);
-            if (i % 2 == 0) {
-                REGISTERS_EVEN.add(reg);
+    /**
+     * Returns number of the register (0-31) or -1 if the name is not a register
+     */
+    public static int getIndex(String name) {
+        if (name == null) {
+            return -1;
+        }
+        final int len = name.length();
+        if (len < 2 || len > 3) {
+            return -1;
+        }
+        char c0 = toLower(name.charAt(0));
+        if (c0 == 'r') {
+            char c1 = name.charAt(1);
+            if (!isDigit(c1) || (c1 == '0' && len == 3)) {
+                return -1;
             }
-            if (i >= 16) {
-                REGISTERS_HIGH.add("r" + i);
+            int index = c1 - '0';
+            if (len == 3) {
+                char c2 = name.charAt(2);
+                if (!isDigit(c2)) {
+                    return -1;
+                }
+                index = index * 10 + c2 - '0';
             }
+            return index <= 31 ? index : -1;
         }
-        REGISTERS.add("xl");
-        REGISTERS.add("xh");
-        REGISTERS.add("yl");
-        REGISTERS.add("yh");
-        REGISTERS.add("zl");
-        REGISTERS.add("zh");
-
-        REGISTERS_HIGH.add("xl");
-        REGISTERS_HIGH.add("xh");
-        REGISTERS_HIGH.add("yl");
-        REGISTERS_HIGH.add("yh");
-        REGISTERS_HIGH.add("zl");
-        REGISTERS_HIGH.add("zh");
-
-        REGISTERS_PAIR_LOW = new HashSet<>();
-        REGISTERS_PAIR_LOW.add("r24");
-        REGISTERS_PAIR_LOW.add("r26");
-        REGISTERS_PAIR_LOW.add("r28");
-        REGISTERS_PAIR_LOW.add("r30");
-        REGISTERS_PAIR_LOW.add("xl");
-        REGISTERS_PAIR_LOW.add("yl");
-        REGISTERS_PAIR_LOW.add("zl");
-
-        REGISTERS_EVEN.add("xl");
-        REGISTERS_EVEN.add("yl");
-        REGISTERS_EVEN.add("zl");
+        if (len != 2 || c0 < 'x' || c0 > 'z') {
+            return -1;
+        }
+        char c1 = toLower(name.charAt(1));
+        int base = 26 + (c0 - 'x') * 2;
+        if (c1 == 'l') {
+            return base;
+        } else if (c1 == 'h') {
+            return base + 1;
+        }
+        return -1;
     }
 
     public static boolean isRegister(String name) {
-        return name != null && REGISTERS.contains(name.toLowerCase());
+        return getIndex(name) >= 0;
     }
 
     public static boolean isHighRegister(String name) {
-        return name != null && REGISTERS_HIGH.contains(name.toLowerCase());
+        return getIndex(name) >= 16;
     }
 
     public static boolean isPair(String name) {
         return "X".equals(name) || "Y".equals(name) || "Z".equals(name);
     }
 
+    /**
+     * r24, r26 (XL), r28 (YL) and r30 (ZL) can be used by adiw and sbiw
+     */
     public static boolean isPairLow(String name) {
-        return name != null && REGISTERS_PAIR_LOW.contains(name.toLowerCase());
+        int index = getIndex(name);
+        return index >= 24 && index % 2 == 0;
     }
 
     public static boolean isEven(String name) {
-        return name != null && REGISTERS_EVEN.contains(name.toLowerCase());
+        int index = getIndex(name);
+        return index >= 0 && index % 2 == 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
     }
 }
@@ -0,0 +1,46 @@
+package ru.trolsoft.avr;
+
+/**
+ * Flags of the status register, a flag mask has the bit of the flag in SREG
+ */
+public class Sreg {
+    public static final int C = 1;
+    public static final int Z = 1 << 1;
+    public static final int N = 1 << 2;
+    public static final int V = 1 << 3;
+    public static final int S = 1 << 4;
+    public static final int H = 1 << 5;
+    public static final int T = 1 << 6;
+    public static final int I = 1 << 7;
+    public static final int ALL = 0xFF;
+
+    private static final String NAMES = "CZNVSHTI";
+
+    /**
+     * Returns mask of the flags listed by letters, for example "ZC"
+     */
+    public static int parse(String letters) {
+        int mask = 0;
+        for (int i = 0; i < letters.length(); i++) {
+            int bit = NAMES.indexOf(letters.charAt(i));
+            if (bit < 0) {
+                throw new IllegalArgumentException("unknown flag: " + letters.charAt(i));
+            }
+            mask |= 1 << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * Returns letters of the flags of the mask from I to C, for example "SVNZ"
+     */
+    public static String toString(int mask) {
+        StringBuilder sb = new StringBuilder();
+        for (int bit = NAMES.length() - 1; bit >= 0; bit--) {
+            if ((mask & (1 << bit)) != 0) {
+                sb.append(NAMES.charAt(bit));
+            }
+        }
+        return sb.toString();
+    }
+}
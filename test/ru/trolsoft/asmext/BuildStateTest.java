@@ -0,0 +1,113 @@
+package ru.trolsoft.asmext;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.processor.Parser;
+import ru.trolsoft.asmext.processor.SyntaxException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildStateTest {
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes());
+        return file;
+    }
+
+    @Test
+    void testUpToDate() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File inc = write(dir, "def.inc", ".equ A = 1");
+        File src = write(dir, "main.asm", ".include \"def.inc\"");
+        File out = write(dir, "main.out", "; output");
+        File stateFile = new File(dir, "build.state");
+
+        BuildState state = BuildState.load(stateFile, "v1");
+        assertFalse(state.isUpToDate(src, out));
+        state.update(src, out, Collections.singletonList(inc));
+        assertTrue(state.isUpToDate(src, out));
+        assertFalse(state.isUpToDate(src, new File(dir, "other.out")));
+        state.save();
+
+        state = BuildState.load(stateFile, "v1");
+        assertEquals(1, state.size());
+        assertTrue(state.isUpToDate(src, out));
+
+        // touched files with the same content are still up to date
+        inc.setLastModified(inc.lastModified() + 10000);
+        assertTrue(state.isUpToDate(src, out));
+
+        write(dir, "def.inc", ".equ A = 2");
+        inc.setLastModified(inc.lastModified() + 20000);
+        assertFalse(state.isUpToDate(src, out));
+
+        assertEquals(0, BuildState.load(stateFile, "v2").size());
+    }
+
+    @Test
+    void testChangedOutput() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File src = write(dir, "main.asm", "nop");
+        File out = write(dir, "main.out", "nop\n");
+        BuildState state = new BuildState(new File(dir, "build.state"), "v1");
+        state.update(src, out, Collections.emptyList());
+        write(dir, "main.out", "ret\n");
+        out.setLastModified(out.lastModified() + 10000);
+        assertFalse(state.isUpToDate(src, out));
+        out.delete();
+        assertFalse(state.isUpToDate(src, out));
+
+        state.remove(src);
+        assertEquals(0, state.size());
+    }
+
+    @Test
+    void testChangedDuringTranslation() throws IOException, SyntaxException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File inc = write(dir, "def.inc", ".equ A = 1");
+        File src = write(dir, "main.asm", ".include \"def.inc\"\n\tr16 = A\n");
+        File out = new File(dir, "main.out");
+        BuildState state = new BuildState(new File(dir, "build.state"), "v1");
+
+        BuildState.Inputs inputs = state.startReading(src);
+        Parser parser = new Parser(false);
+        parser.setIncludeListener(inputs);
+        parser.parse(src);
+        // saved while the old content is translated
+        write(dir, "main.asm", ".include \"def.inc\"\n\tr16 = A + 1\n");
+        write(dir, "def.inc", ".equ A = 22");
+        parser.getOutput().writeToFile(out.getPath());
+        state.update(inputs, out, parser.getIncludedFiles());
+        assertFalse(state.isUpToDate(src, out));
+
+        inputs = state.startReading(src);
+        parser = new Parser(false);
+        parser.setIncludeListener(inputs);
+        parser.parse(src);
+        write(dir, "def.inc", ".equ A = 33");
+        parser.getOutput().writeToFile(out.getPath());
+        state.update(inputs, out, parser.getIncludedFiles());
+        assertEquals(Collections.singletonList(inc), parser.getIncludedFiles());
+        assertFalse(state.isUpToDate(src, out));
+
+        inputs = state.startReading(src);
+        parser = new Parser(false);
+        parser.setIncludeListener(inputs);
+        parser.parse(src);
+        parser.getOutput().writeToFile(out.getPath());
+        state.update(inputs, out, parser.getIncludedFiles());
+        assertTrue(state.isUpToDate(src, out));
+    }
+
+    @Test
+    void testDamagedFile() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File stateFile = write(dir, "build.state", "damaged");
+        assertEquals(0, BuildState.load(stateFile, "v1").size());
+    }
+}
@@ -0,0 +1,45 @@
+package ru.trolsoft.asmext;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MainTest {
+
+    @Test
+    void testParallelFailure() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        List<AbstractMap.SimpleEntry<String, String>> processList = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            File src = new File(dir, "f" + i + ".asm");
+            Files.write(src.toPath(), ("\tr16 = " + i + "\n").getBytes());
+            // the invalid output path of the second file fails with a runtime exception
+            String out = new File(dir, i == 2 ? "f2\0.S" : "f" + i + ".S").getPath();
+            processList.add(new AbstractMap.SimpleEntry<>(src.getPath(), out));
+        }
+        Options options = Options.parse(new String[] {"-j", "4", "--stream", "in", "out"});
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Main main = new Main(options, new PrintStream(log, true));
+        assertEquals(1, main.process(processList));
+
+        String[] lines = log.toString().split("\n");
+        assertTrue(lines[0].startsWith("Process file: f1.asm .. "));
+        assertEquals("Process file: f2.asm", lines[1]);
+        assertTrue(lines[2].startsWith(processList.get(1).getKey() + ": Internal error: "));
+        assertTrue(lines[3].startsWith("Process file: f3.asm .. "));
+        assertTrue(lines[4].startsWith("Process file: f4.asm .. "));
+        assertTrue(lines[5].startsWith("Processed 4 files in "));
+        for (int i : new int[] {1, 3, 4}) {
+            assertTrue(new File(dir, "f" + i + ".S").exists());
+        }
+    }
+}
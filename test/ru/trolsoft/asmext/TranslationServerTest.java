@@ -0,0 +1,98 @@
+package ru.trolsoft.asmext;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TranslationServerTest {
+
+    private static int request(TranslationServer server, ByteArrayOutputStream output, String... args)
+            throws IOException {
+        output.reset();
+        return TranslationServer.request(server.getSocketPath(), args, new PrintStream(output, true));
+    }
+
+    @Test
+    void testRequests() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File src = new File(dir, "main.asm");
+        Files.write(src.toPath(), "\tr16 = 5\n".getBytes());
+        File out = new File(dir, "main.out");
+        File err = new File(dir, "err.asm");
+        Files.write(err.toPath(), "\tr1 = 5\n".getBytes());
+
+        Path socket = new File(dir, "server.sock").toPath();
+        try (TranslationServer server = new TranslationServer(socket)) {
+            Thread thread = new Thread(server::serve);
+            thread.setDaemon(true);
+            thread.start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+            assertEquals(0, request(server, output, src.getPath(), out.getPath()));
+            assertTrue(output.toString().startsWith("Process file: main.asm .. "));
+            assertEquals("\tldi\tr16, 5\n", new String(Files.readAllBytes(out.toPath())));
+
+            assertEquals(1, request(server, output, "-j", "2", dir.getPath(), dir.getPath(), "err.asm", "main.asm"));
+            assertTrue(output.toString().contains("err.asm:1: Error: "));
+
+            assertEquals(1, request(server, output, src.getPath()));
+            assertTrue(output.toString().startsWith("Usage: "));
+
+            assertEquals(2, request(server, output, new File(dir, "missing.asm").getPath(), out.getPath()));
+            assertTrue(output.toString().startsWith("File not found: "));
+
+            // requests can't block the server or change its settings
+            assertEquals(1, request(server, output, "--watch", src.getPath(), out.getPath()));
+            assertEquals("Option --watch can't be used in server requests\n", output.toString());
+            assertEquals(1, request(server, output, "--pch-dir", dir.getPath(), src.getPath(), out.getPath()));
+            assertEquals("Option --pch-dir can't be used in server requests\n", output.toString());
+            assertEquals(1, request(server, output, "--connect", socket.toString(), src.getPath(), out.getPath()));
+
+            assertThrows(IOException.class, () -> new TranslationServer(socket));
+        }
+        assertFalse(Files.exists(socket));
+        assertThrows(ConnectException.class, () -> TranslationServer.request(socket, new String[0], System.out));
+    }
+
+    @Test
+    void testSilentClient() throws IOException {
+        Path socket = Files.createTempDirectory("asmext").resolve("server.sock");
+        try (TranslationServer server = new TranslationServer(socket)) {
+            server.setRequestTimeout(200);
+            Thread thread = new Thread(server::serve);
+            thread.setDaemon(true);
+            thread.start();
+            assertEquals(Set.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(socket));
+            try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                channel.write(ByteBuffer.wrap((TranslationServer.HEADER + "\n").getBytes()));
+                // the connection is closed without a response
+                assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+            }
+        }
+    }
+
+    @Test
+    void testResolve() {
+        Options options = Options.parse(new String[] {"--pch-dir", "pch", "src", "/out", "a.asm"});
+        File dir = new File("/work");
+        options.resolve(dir);
+        assertEquals(new File(dir, "pch").getPath(), options.pchDir);
+        assertEquals(new File(dir, "src").getPath(), options.paths.get(0));
+        assertEquals("/out", options.paths.get(1));
+        assertEquals("a.asm", options.paths.get(2));
+    }
+}
@@ -0,0 +1,93 @@
+package ru.trolsoft.asmext;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TranslatorTest {
+
+    @Test
+    void testTranslate() throws IOException {
+        Translator translator = new Translator(false);
+        StringWriter out = new StringWriter();
+        Translator.Result result = translator.translate("\tr16 = 5\n\tr17 = r16", out);
+        assertTrue(result.isSuccess());
+        assertEquals("\tldi\tr16, 5\n\tmov\tr17, r16\n", out.toString());
+        ByteBuffer buffer = result.getOutput();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(out.toString(), StandardCharsets.US_ASCII.decode(buffer).toString());
+
+        out = new StringWriter();
+        result = translator.translate(new StringReader("\tnop\n\tr1 = 5\n"), out);
+        assertFalse(result.isSuccess());
+        assertEquals("", out.toString());
+        assertNull(result.getOutput());
+        assertEquals(1, result.getDiagnostics().size());
+        Translator.Diagnostic diagnostic = result.getDiagnostics().get(0);
+        assertEquals(2, diagnostic.line);
+        assertEquals("main.asm:2: Error: " + diagnostic.message, diagnostic.format("main.asm"));
+    }
+
+    @Test
+    void testConcurrentTranslations() throws InterruptedException, ExecutionException {
+        String[] sources = {
+                ".proc p1\n.args a(r20)\n\tr16 = a\n\tif (r16 == 0) goto skip\n\tr17 += 1\nskip:\n\tret\n.endproc\n\trcall p1 (a: 5)\n",
+                "\tloop (r18 = 10) {\n\t\tif (r19[3]) r20 = r21\n\t\tdo {\n\t\t\tr22--\n\t\t} while (r22 != 0)\n\t}\n",
+                ".use r16 as tmp\n\tio[PORTB] = tmp = 0x23\n\tX = 0x1234\n\tr24.r25 += 1\n",
+        };
+        Translator translator = new Translator(false);
+        String[] expected = new String[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            Translator.Result result = translator.translate(sources[i]);
+            assertTrue(result.isSuccess(), sources[i]);
+            expected[i] = StandardCharsets.US_ASCII.decode(result.getOutput()).toString();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int n = 0; n < 200; n++) {
+                int i = n % sources.length;
+                futures.add(executor.submit(() -> {
+                    ByteBuffer output = translator.translate(sources[i]).getOutput();
+                    return expected[i].equals(StandardCharsets.US_ASCII.decode(output).toString());
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testIncludePaths() throws IOException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File inc = new File(dir, "asmext-translator-test.inc");
+        Files.write(inc.toPath(), ".equ VAL = 7\n".getBytes());
+        Translator translator = new Translator(false, Collections.singletonList(dir));
+        Translator.Result result = translator.translate(".include \"asmext-translator-test.inc\"\n\tr16 = VAL\n");
+        assertTrue(result.isSuccess());
+        assertEquals(1, result.getIncludedFiles().size());
+        String text = StandardCharsets.US_ASCII.decode(result.getOutput()).toString();
+        assertTrue(text.endsWith("\tldi\tr16, 7\n"));
+
+        Translator gcc = new Translator(true);
+        assertTrue(gcc.translate("\tr16 = 5\n").isSuccess());
+    }
+}
@@ -0,0 +1,68 @@
+package ru.trolsoft.asmext;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WatcherTest {
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes());
+        return file;
+    }
+
+    @Test
+    void testUpdate() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File srcDir = new File(dir, "src");
+        File incDir = new File(dir, "inc");
+        File outDir = new File(dir, "out");
+        assertTrue(srcDir.mkdir() && incDir.mkdir() && outDir.mkdir());
+        File inc = write(incDir, "def.inc", ".equ VAL = 1");
+        write(srcDir, "main.asm", ".include \"../inc/def.inc\"\n\tr16 = VAL\n");
+        write(srcDir, "other.asm", "\tr17 = 2\n");
+        write(srcDir, "notes.txt", "not a source");
+
+        Options options = Options.parse(new String[] {"--watch", srcDir.getPath(), outDir.getPath()});
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Main main = new Main(options, new PrintStream(log, true));
+        try (Watcher watcher = new Watcher(main, options.paths)) {
+            assertEquals(2, watcher.update());
+            File out = new File(outDir, "main.asm");
+            assertTrue(new String(Files.readAllBytes(out.toPath())).endsWith("\tldi\tr16, 1\n"));
+            assertFalse(new File(outDir, "notes.txt").exists());
+            assertTrue(watcher.getWatchedDirs().contains(incDir.toPath().toAbsolutePath().normalize()));
+            assertEquals(0, watcher.update());
+
+            Thread writer = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                    write(incDir, "def.inc", ".equ VAL = 2\n.equ OTHER = 3");
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            watcher.awaitChanges();
+            writer.join();
+            assertEquals(1, watcher.update());
+            assertTrue(new String(Files.readAllBytes(out.toPath())).endsWith("\tldi\tr16, 2\n"));
+
+            write(srcDir, "bad.asm", "\tr1 = 5\n");
+            log.reset();
+            assertEquals(1, watcher.update());
+            assertTrue(log.toString().contains("bad.asm:1: Error: "));
+            assertFalse(new File(outDir, "bad.asm").exists());
+        }
+        assertThrows(IOException.class, () -> new Watcher(main, Arrays.asList(srcDir.getPath(),
+                srcDir.getPath())));
+    }
+}
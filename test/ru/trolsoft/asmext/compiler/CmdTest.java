@@ -0,0 +1,110 @@
+package ru.trolsoft.asmext.compiler;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.processor.SyntaxException;
+import ru.trolsoft.avr.Core;
+import ru.trolsoft.avr.Instructions;
+import ru.trolsoft.avr.Sreg;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.trolsoft.asmext.compiler.Cmd.*;
+
+class CmdTest {
+
+    @Test
+    void testNames() throws SyntaxException {
+        for (Cmd cmd : Cmd.values()) {
+            assertTrue(Instructions.isInstruction(cmd.getMnemonic()));
+            assertSame(cmd, Cmd.fromStr(cmd.getMnemonic().toUpperCase()));
+        }
+        assertSame(XCH, Cmd.find("xch"));
+        assertNull(Cmd.find("mov2"));
+        assertThrows(SyntaxException.class, () -> Cmd.fromStr("unknown"));
+    }
+
+    @Test
+    void testSizeAndCycles() {
+        assertEquals(1, ADD.getWords());
+        assertEquals(2, JMP.getWords());
+        assertEquals(2, STS.getWords());
+        assertEquals(1, STS.getWords(Core.REDUCED));
+        assertEquals(2, ADIW.getCycles());
+        assertEquals(1, BRNE.getCycles());
+        assertEquals(2, BRNE.getMaxCycles());
+        assertEquals(1, SBRC.getCycles());
+        assertEquals(2, SBRC.getMaxCycles());
+        assertEquals(3, RCALL.getCycles());
+        assertEquals(4, RCALL.getCycles(Core.CLASSIC_22BIT_PC));
+        assertEquals(2, RCALL.getCycles(Core.XMEGA));
+        assertEquals(3, SBIS.getMaxCycles(Core.XMEGA));
+        assertEquals(6, RET.getCycles(Core.REDUCED));
+        assertEquals(1, SBI.getCycles(Core.XT));
+        assertEquals(2, SBI.getCycles());
+    }
+
+    @Test
+    void testFlowAndFlags() {
+        assertTrue(BRBS.isBranch());
+        assertTrue(CPSE.isSkip());
+        assertFalse(RJMP.isBranch());
+        assertEquals(Flow.SUBROUTINE, ICALL.getFlow());
+        assertEquals(Flow.RETURN, RETI.getFlow());
+        assertEquals(Sreg.Z | Sreg.C, MUL.getAffectedFlags());
+        assertEquals("HSVNZC", Sreg.toString(SUB.getAffectedFlags()));
+        assertEquals(0, MOV.getAffectedFlags());
+        assertEquals(Sreg.T, BST.getAffectedFlags());
+        assertEquals(Sreg.ALL, BCLR.getAffectedFlags());
+        assertEquals(List.of(Operand.HIGH_REG, Operand.IMM8), LDI.getOperands());
+    }
+
+    @Test
+    void testCheck() throws SyntaxException {
+        LDI.check("r16", "0xFF");
+        LDI.check("ZL", "LOW(VALUE)");
+        SUBI.check("r24", "-0xe8");
+        ADIW.check("r30", "63");
+        MOVW.check("r0", "r30");
+        FMUL.check("r23", "r16");
+        SBRC.check("r1", "7");
+        LD.check("r0", "X+");
+        LPM.check(null, null);
+        NOP.check(null, null);
+
+        SyntaxException e = assertThrows(SyntaxException.class, () -> LDI.check("r15", "1"));
+        assertEquals("r16..r31 expected but r15 found", e.getMessage());
+        e = assertThrows(SyntaxException.class, () -> ADIW.check("r22", "1"));
+        assertEquals("r24, r26, r28, r30 expected but r22 found", e.getMessage());
+        e = assertThrows(SyntaxException.class, () -> MOVW.check("r0", "r3"));
+        assertEquals("r0, r2, ..., r30 expected but r3 found", e.getMessage());
+        e = assertThrows(SyntaxException.class, () -> SBRS.check("r0", "8"));
+        assertEquals("0..7 expected but 8 found", e.getMessage());
+        assertThrows(SyntaxException.class, () -> LDI.check("r16", "256"));
+        assertThrows(SyntaxException.class, () -> ADIW.check("r24", "64"));
+        assertThrows(SyntaxException.class, () -> MULSU.check("r24", "r16"));
+        assertThrows(SyntaxException.class, () -> SER.check("r2", null));
+        assertThrows(SyntaxException.class, () -> MOV.check("VALUE", "r1"));
+        assertThrows(SyntaxException.class, () -> INC.check(null, null));
+        assertThrows(SyntaxException.class, () -> RET.check("r0", null));
+    }
+
+    @Test
+    void testXmegaInstructions() throws SyntaxException {
+        for (Cmd cmd : new Cmd[] {LAC, LAS, LAT, XCH}) {
+            assertEquals(1, cmd.getWords());
+            assertEquals(2, cmd.getCycles());
+            assertEquals(Flow.NEXT, cmd.getFlow());
+            assertEquals(0, cmd.getAffectedFlags());
+            assertEquals(List.of(Operand.Z_POINTER, Operand.REG), cmd.getOperands());
+            cmd.check("Z", "r0");
+            assertThrows(SyntaxException.class, () -> cmd.check("Z", "VALUE"));
+            assertThrows(SyntaxException.class, () -> cmd.check("Z", null));
+        }
+        assertSame(BREAK, Cmd.find("break"));
+        assertEquals(1, BREAK.getCycles());
+        assertTrue(BREAK.getOperands().isEmpty());
+        BREAK.check(null, null);
+        assertThrows(SyntaxException.class, () -> BREAK.check("r0", null));
+    }
+}
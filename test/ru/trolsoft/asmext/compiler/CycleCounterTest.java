@@ -0,0 +1,106 @@
+package ru.trolsoft.asmext.compiler;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.utils.AsmInstruction;
+import ru.trolsoft.avr.Core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.trolsoft.asmext.compiler.Cmd.*;
+
+class CycleCounterTest {
+
+    private final List<Object> records = new ArrayList<>();
+    private final CycleCounter counter = new CycleCounter(Core.CLASSIC);
+
+    private void cmd(Cmd cmd, String arg1, String arg2) {
+        records.add(new AsmInstruction(cmd, arg1, arg2));
+    }
+
+    private void cmd(Cmd cmd, String arg) {
+        cmd(cmd, arg, null);
+    }
+
+    private void assertCost(int words, int best, int worst, CycleCounter.Cost cost) {
+        assertEquals(words, cost.words);
+        assertEquals(best, cost.bestCycles);
+        assertEquals(worst, cost.worstCycles);
+    }
+
+    @Test
+    void testStraightCode() {
+        cmd(LDI, "r16", "1");
+        cmd(LDS, "r17", "var");
+        records.add("; comment");
+        records.add("\tadiw\tr24, 1\t; text instruction");
+        cmd(RCALL, "proc");
+        CycleCounter.Cost cost = counter.count(records);
+        assertCost(5, 8, 8, cost);
+        assertEquals(0, cost.unknownLines);
+        assertEquals("5 words, 8 cycles", cost.toString());
+        assertCost(4, 7, 7, new CycleCounter(Core.REDUCED).count(records));
+    }
+
+    @Test
+    void testBranches() {
+        // if (r16 == 1) { r17 = 0 } else { r17 = 1 }
+        cmd(CPI, "r16", "1");
+        cmd(BRNE, "else");
+        cmd(CLR, "r17");
+        cmd(RJMP, "end");
+        records.add("else:");
+        cmd(LDI, "r17", "1");
+        records.add("end:");
+        CycleCounter.Cost cost = counter.count(records);
+        assertCost(5, 4, 5, cost);
+        assertEquals("5 words, 4..5 cycles", cost.toString());
+    }
+
+    @Test
+    void testSkip() {
+        cmd(SBRC, "r16", "1");
+        cmd(JMP, "far");
+        cmd(LDS, "r16", "var");
+        // skip of jmp takes 3 cycles, jmp to the label outside is an exit
+        assertCost(5, 4, 5, counter.count(records));
+    }
+
+    @Test
+    void testLoops() {
+        // loop (r20 = 3) { r21++ } counted from the label, it is an iteration
+        records.add("\tinc\tr21");
+        cmd(DEC, "r20");
+        cmd(BRNE, "loop");
+        assertCost(3, 3, 4, counter.count(records));
+
+        // inner loop is passed once, jump back to the start is an exit
+        records.clear();
+        records.add("start:");
+        cmd(LDI, "r20", "3");
+        records.add("inner:");
+        cmd(DEC, "r20");
+        cmd(BRNE, "inner");
+        cmd(RJMP, "start");
+        cmd(RET, null);
+        assertCost(5, 5, 5, counter.count(records));
+    }
+
+    @Test
+    void testExits() {
+        cmd(TST, "r16");
+        cmd(BREQ, "done");
+        cmd(IJMP, null);
+        records.add("done:");
+        cmd(RET, null);
+        records.add("\tmymacro\tr1");
+        records.add(".equ VALUE = 1");
+        records.add("\t.db\t1, 2");
+        CycleCounter.Cost cost = counter.count(records);
+        assertCost(4, 4, 7, cost);
+        assertEquals(2, cost.unknownLines);
+        assertEquals("4 words, 4..7 cycles without 2 unknown line(s)", cost.toString());
+        assertCost(0, 0, 0, counter.count(new ArrayList<>()));
+    }
+}
@@ -0,0 +1,211 @@
+package ru.trolsoft.asmext.compiler;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.files.OutputFile;
+import ru.trolsoft.asmext.utils.TokenString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.trolsoft.asmext.compiler.Cmd.*;
+import static ru.trolsoft.asmext.compiler.PeepholeOptimizer.Rule.*;
+
+class PeepholeOptimizerTest {
+
+    private static final TokenString SRC = new TokenString("");
+
+    private PeepholeOptimizer optimizer;
+    private OutputFile out;
+
+    @BeforeEach
+    void setUp() {
+        optimizer = new PeepholeOptimizer();
+        out = new OutputFile();
+        out.setOptimizer(optimizer);
+    }
+
+    private void cmd(Cmd cmd, String arg1, String arg2) {
+        out.appendCommand(SRC, cmd, arg1, arg2);
+    }
+
+    private void cmd(Cmd cmd, String arg) {
+        out.appendCommand(SRC, cmd, arg);
+    }
+
+    private String result() {
+        return StandardCharsets.US_ASCII.decode(out.toByteBuffer()).toString();
+    }
+
+    @Test
+    void testSelfMove() {
+        cmd(MOV, "r16", "r16");
+        cmd(MOVW, "r24", "r24");
+        cmd(MOV, "r16", "r17");
+        cmd(SBRC, "r16", "2");
+        cmd(MOV, "r18", "r18");
+        assertEquals("mov\tr16, r17\nsbrc\tr16, 2\nmov\tr18, r18\n", result());
+        assertEquals(2, optimizer.getHits(SELF_MOVE));
+    }
+
+    @Test
+    void testRedundantLdi() {
+        cmd(LDI, "r16", "1");
+        cmd(MOV, "r17", "r16");
+        out.addComment("comment");
+        cmd(LDI, "r16", "0x01");
+        cmd(CLR, "r18");
+        cmd(LDI, "r18", "0");
+        cmd(LDI, "r20", "LOW(VALUE)");
+        cmd(OUT, "PORTB", "r20");
+        cmd(LDI, "r20", "LOW(VALUE)");
+        assertEquals("ldi\tr16, 1\nmov\tr17, r16\n; comment\nclr\tr18\nldi\tr20, LOW(VALUE)\nout\tPORTB, r20\n",
+                result());
+        assertEquals(3, optimizer.getHits(REDUNDANT_LDI));
+    }
+
+    @Test
+    void testRedundantLdiOctal() {
+        cmd(LDI, "r16", "010");
+        cmd(LDI, "r16", "10");
+        cmd(LDI, "r17", "010");
+        cmd(LDI, "r17", "8");
+        cmd(LDI, "r18", "$FF");
+        cmd(LDI, "r18", "-1");
+        assertEquals("ldi\tr16, 010\nldi\tr16, 10\nldi\tr17, 010\nldi\tr18, $FF\n", result());
+        assertEquals(2, optimizer.getHits(REDUNDANT_LDI));
+    }
+
+    @Test
+    void testRedundantLdiBarriers() {
+        cmd(LDI, "r16", "1");
+        cmd(INC, "r16");
+        cmd(LDI, "r16", "1");
+        out.add("label:");
+        cmd(LDI, "r16", "1");
+        cmd(RCALL, "proc");
+        cmd(LDI, "r16", "1");
+        out.add("\tinc\tr16");
+        cmd(LDI, "r16", "1");
+        cmd(SBRS, "r17", "1");
+        cmd(LDI, "r16", "1");
+        cmd(LDI, "r26", "1");
+        cmd(LD, "r16", "X+");
+        cmd(LDI, "r26", "1");
+        cmd(LDI, "r25", "1");
+        cmd(ADIW, "r24", "1");
+        cmd(LDI, "r25", "1");
+        String expected = "ldi\tr16, 1\ninc\tr16\nldi\tr16, 1\nlabel:\nldi\tr16, 1\nrcall\tproc\nldi\tr16, 1\n" +
+                "\tinc\tr16\nldi\tr16, 1\nsbrs\tr17, 1\nldi\tr16, 1\nldi\tr26, 1\nld\tr16, X+\nldi\tr26, 1\n" +
+                "ldi\tr25, 1\nadiw\tr24, 1\nldi\tr25, 1\n";
+        assertEquals(expected, result());
+        assertEquals(0, optimizer.getHits(REDUNDANT_LDI));
+    }
+
+    @Test
+    void testJumpToNext() {
+        cmd(RJMP, "next");
+        out.add("other:");
+        out.addComment("comment");
+        out.add("next:");
+        cmd(BREQ, "l1");
+        out.add("l1:\t; comment");
+        cmd(SBRC, "r16", "1");
+        cmd(RJMP, "l2");
+        out.add("l2:");
+        cmd(RJMP, "l3");
+        cmd(NOP, null);
+        out.add("l3:");
+        assertEquals("other:\n; comment\nnext:\nl1:\t; comment\nsbrc\tr16, 1\nrjmp\tl2\nl2:\nrjmp\tl3\nnop\nl3:\n",
+                result());
+        assertEquals(2, optimizer.getHits(JUMP_TO_NEXT));
+    }
+
+    @Test
+    void testBranchOverJump() {
+        out.add("target:");
+        cmd(CPI, "r16", "10");
+        cmd(BRNE, "skip");
+        cmd(RJMP, "target");
+        out.add("skip:");
+        cmd(BRBS, "3", "skip2");
+        cmd(JMP, "far");
+        out.add("skip2:");
+        cmd(NOP, null);
+        out.add("far:");
+        assertEquals("target:\ncpi\tr16, 10\nbreq\ttarget\nskip:\nbrbc\t3, far\nskip2:\nnop\nfar:\n", result());
+        assertEquals(2, optimizer.getHits(BRANCH_OVER_JUMP));
+    }
+
+    @Test
+    void testBranchOverJumpRange() {
+        cmd(BRCS, "skip");
+        cmd(RJMP, "far");
+        out.add("skip:");
+        for (int i = 0; i < 63; i++) {
+            cmd(NOP, null);
+        }
+        out.add("far:");
+        cmd(BRCC, "skip2");
+        cmd(RJMP, "unknown");
+        out.add("skip2:");
+        cmd(BRCC, "skip3");
+        cmd(RJMP, "far2");
+        out.add("skip3:");
+        out.add("\t.db\t1, 2");
+        out.add("far2:");
+        result();
+        assertEquals(0, optimizer.getHits(BRANCH_OVER_JUMP));
+    }
+
+    @Test
+    void testSkipBeforeSegment() throws IOException {
+        cmd(LDI, "r16", "1");
+        cmd(SBRC, "r17", "0");
+        result();
+        out.add("label:");
+        cmd(LDI, "r16", "1");
+        cmd(SBRS, "r17", "1");
+        result();
+        cmd(MOV, "r18", "r18");
+        cmd(MOV, "r18", "r18");
+        assertEquals("ldi\tr16, 1\nsbrc\tr17, 0\nlabel:\nldi\tr16, 1\nsbrs\tr17, 1\nmov\tr18, r18\n", result());
+        assertEquals(1, optimizer.getHits(SELF_MOVE));
+        assertEquals(0, optimizer.getHits(REDUNDANT_LDI));
+
+        // the skip is the last record of a rendered batch and of the written block
+        out = new OutputFile();
+        out.setOptimizer(optimizer);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.streamTo(Channels.newChannel(bytes));
+        out.add("start:");
+        StringBuilder expected = new StringBuilder("start:\n");
+        while (bytes.size() == 0) {
+            cmd(SBRC, "r17", "0");
+            cmd(MOV, "r18", "r18");
+            expected.append("sbrc\tr17, 0\nmov\tr18, r18\n");
+        }
+        out.flush();
+        assertEquals(expected.toString(), bytes.toString());
+        assertEquals(1, optimizer.getHits(SELF_MOVE));
+    }
+
+    @Test
+    void testDisabledRules() {
+        optimizer.setEnabled(SELF_MOVE, false);
+        assertFalse(optimizer.isEnabled(SELF_MOVE));
+        cmd(MOV, "r16", "r16");
+        out.setOptimizable(false);
+        cmd(LDI, "r17", "1");
+        cmd(LDI, "r17", "1");
+        out.setOptimizable(true);
+        cmd(LDI, "r17", "1");
+        assertEquals("mov\tr16, r16\nldi\tr17, 1\nldi\tr17, 1\nldi\tr17, 1\n", result());
+        assertNull(out.getInstruction(1));
+        assertEquals(SELF_MOVE, PeepholeOptimizer.Rule.fromName("self-move"));
+        assertNull(PeepholeOptimizer.Rule.fromName("unknown"));
+    }
+}
@@ -0,0 +1,275 @@
+package ru.trolsoft.asmext.compiler;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.processor.Parser;
+import ru.trolsoft.asmext.processor.SyntaxException;
+import ru.trolsoft.asmext.utils.AsmInstruction;
+import ru.trolsoft.avr.Core;
+import ru.trolsoft.avr.Sreg;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.trolsoft.asmext.compiler.Cmd.*;
+
+class SimulatorTest {
+
+    private final Simulator sim = new Simulator(Core.CLASSIC);
+
+    private static String code(String... lines) {
+        return String.join("\n", lines);
+    }
+
+    private Simulator translate(String... lines) throws IOException, SyntaxException {
+        Parser parser = new Parser(false);
+        parser.parse(new StringReader(code(lines)));
+        sim.load(parser.getOutput());
+        return sim;
+    }
+
+    @Test
+    void testArithmetic() {
+        sim.load(code(
+                "start:",
+                "\tldi\tr16, 0x7F",
+                "\tldi\tr17, 1",
+                "\tadd\tr16, r17\t; 0x80, overflow",
+                "\tbreak"));
+        assertEquals(4, sim.run("start"));
+        assertTrue(sim.isHalted());
+        sim.load(code(
+                "start:",
+                "\tldi\tr16, 0x7F",
+                "\tldi\tr17, 1",
+                "\tadd\tr16, r17",
+                "\tret"));
+        sim.reset();
+        assertEquals(7, sim.run("start"));
+        assertEquals(0x80, sim.getRegister(16));
+        assertEquals("HVN", Sreg.toString(sim.getSreg()));
+
+        sim.load(code(
+                "sub16:",
+                "\tsubi\tr24, low(1000)",
+                "\tsbci\tr25, high(1000)",
+                "\tret"));
+        sim.setRegisterPair(24, 1000);
+        sim.run("sub16");
+        assertEquals(0, sim.getRegisterPair(24));
+        assertTrue(sim.isFlag(Sreg.Z));
+        sim.setRegisterPair(24, 999);
+        sim.run("sub16");
+        assertEquals(0xFFFF, sim.getRegisterPair(24));
+        assertTrue(sim.isFlag(Sreg.C));
+        assertFalse(sim.isFlag(Sreg.Z));
+        assertTrue(sim.isFlag(Sreg.N));
+        // sbci keeps Z cleared if the low byte isn't zero
+        sim.setRegisterPair(24, 1001);
+        sim.run("sub16");
+        assertEquals(1, sim.getRegisterPair(24));
+        assertFalse(sim.isFlag(Sreg.Z));
+    }
+
+    @Test
+    void testInstructionRecords() {
+        List<Object> records = new ArrayList<>();
+        records.add("mul8:");
+        records.add(new AsmInstruction(MUL, "r16", "r17"));
+        records.add(new AsmInstruction(MOVW, "r24", "r0"));
+        records.add(new AsmInstruction(ADIW, "r24", "1"));
+        records.add(new AsmInstruction(LSR, "r17", (String) null));
+        records.add(new AsmInstruction(ROR, "r16", (String) null));
+        records.add(new AsmInstruction(RET, (String) null, null));
+        sim.load(records);
+        sim.setRegister(16, 200);
+        sim.setRegister(17, 3);
+        assertEquals(2 + 1 + 2 + 1 + 1 + 4, sim.run("mul8"));
+        assertEquals(601, sim.getRegisterPair(24));
+        assertEquals(1, sim.getRegister(17));
+        assertEquals(0xE4, sim.getRegister(16));
+        assertFalse(sim.isFlag(Sreg.C));
+    }
+
+    @Test
+    void testLoopsAndSkips() {
+        String code = code(
+                "delay:",
+                "\tldi\tr20, 3",
+                "loop:",
+                "\tdec\tr20",
+                "\tbrne\tloop",
+                "\tsbrc\tr20, 0",
+                "\tjmp\tdone",
+                "\tpush\tr20",
+                "\tpop\tr20",
+                "done:",
+                "\tret");
+        sim.load(code);
+        // 1 + 3 * 1 + 2 * 2 + 1 + skip of jmp 3 + 2 + 2 + 4
+        assertEquals(20, sim.run("delay"));
+        assertEquals(11, sim.getSteps());
+
+        Simulator xmega = new Simulator(Core.XMEGA);
+        xmega.load(code);
+        // push takes 1 cycle
+        assertEquals(19, xmega.run("delay"));
+    }
+
+    @Test
+    void testMemoryAndCalls() {
+        sim.setSymbol("PORTB", 0x05);
+        sim.load(code(
+                ".equ\tCOUNT = 4",
+                ".dseg",
+                "buffer:\t.byte COUNT",
+                "result:\t.byte 1",
+                ".cseg",
+                "main:",
+                "\tldi\tZL, low(2*table)",
+                "\tldi\tZH, high(2*table)",
+                "\tldi\tXL, low(buffer)",
+                "\tldi\tXH, high(buffer)",
+                "\tldi\tr18, COUNT",
+                "copy:\tlpm\tr0, Z+",
+                "\tst\tX+, r0",
+                "\tdec\tr18",
+                "\tbrne\tcopy",
+                "\trcall\tsum",
+                "\tsts\tresult, r24",
+                "\tout\tPORTB, r24",
+                "\tsbi\tPORTB, 0",
+                "\tret",
+                "sum:",
+                "\tclr\tr24",
+                "\tldi\tYL, low(buffer + COUNT)",
+                "\tldi\tYH, high(buffer + COUNT)",
+                "next:",
+                "\tld\tr25, -Y",
+                "\tadd\tr24, r25",
+                "\tcpi\tYL, low(buffer)",
+                "\tbrne\tnext",
+                "\tldd\tr25, Y+1\t; second item",
+                "\tpush\tr25",
+                "\tpop\tr23",
+                "\tret",
+                "table:",
+                "\t.db\t1, 2, 3, 4"));
+        int sp = sim.getSp();
+        sim.run("main");
+        assertEquals(sp, sim.getSp());
+        assertEquals(10, sim.getData(Simulator.SRAM_START + 4));
+        assertEquals(2, sim.getRegister(23));
+        assertEquals(4, sim.getData(Simulator.SRAM_START + 3));
+        assertEquals(11, sim.getIo(0x05));
+        assertEquals(1, sim.getFlash(2 * sim.getAddress("table")));
+    }
+
+    @Test
+    void testTranslatedCode() throws IOException, SyntaxException {
+        translate(
+                ".proc add16",
+                "\tr25.r24 += r23.r22",
+                "\tret",
+                ".endproc",
+                ".proc max",
+                "\tif (r16 < r17) {",
+                "\t\tr16 = r17",
+                "\t}",
+                "\tret",
+                ".endproc",
+                ".proc sum",
+                "\tr24 = 0",
+                "\tloop (r20 = 5) {",
+                "\t\tr24 += r20",
+                "\t}",
+                "\tret",
+                ".endproc");
+        sim.setRegisterPair(24, 40000);
+        sim.setRegisterPair(22, 1234);
+        assertEquals(6, sim.run("add16"));
+        assertEquals(41234, sim.getRegisterPair(24));
+
+        sim.setRegister(16, 3);
+        sim.setRegister(17, 7);
+        sim.run("max");
+        assertEquals(7, sim.getRegister(16));
+        sim.setRegister(17, 1);
+        sim.run("max");
+        assertEquals(7, sim.getRegister(16));
+
+        long cycles = sim.run("sum");
+        assertEquals(15, sim.getRegister(24));
+        assertEquals(1 + 1 + 5 * 3 + 4 + 4, cycles);
+    }
+
+    @Test
+    void testPairAddition() throws IOException, SyntaxException {
+        int[] values = {1, 63, 64, -63, -64, -97, -300, 0x380};
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            for (String op : new String[] {"add", "sub"}) {
+                lines.add(".proc " + op + i);
+                lines.add("\tZ " + ("add".equals(op) ? "+=" : "-=") + " " + values[i]);
+                lines.add("\tret");
+                lines.add(".endproc");
+            }
+        }
+        translate(lines.toArray(new String[0]));
+        for (int i = 0; i < values.length; i++) {
+            for (int z : new int[] {0, 0x1234, 0xFFC0}) {
+                sim.setRegisterPair(30, z);
+                sim.run("add" + i);
+                assertEquals((z + values[i]) & 0xFFFF, sim.getRegisterPair(30), "Z += " + values[i]);
+                sim.setRegisterPair(30, z);
+                sim.run("sub" + i);
+                assertEquals((z - values[i]) & 0xFFFF, sim.getRegisterPair(30), "Z -= " + values[i]);
+            }
+        }
+    }
+
+    @Test
+    void testCompareWithConst() throws IOException, SyntaxException {
+        int[] values = {0, 1, 10, 0x7E, 0x7F, 0x80, 0xFE, 0xFF};
+        List<String> lines = new ArrayList<>();
+        for (int k : values) {
+            for (String sign : new String[] {"u", "s"}) {
+                lines.add(".proc " + sign + k);
+                lines.add("\tr17 = 0");
+                lines.add("\tif " + sign + "(r16 <= " + k + ") {");
+                lines.add("\t\tr17 = 1");
+                lines.add("\t}");
+                lines.add("\tret");
+                lines.add(".endproc");
+            }
+        }
+        translate(lines.toArray(new String[0]));
+        for (int k : values) {
+            for (int x = 0; x < 0x100; x++) {
+                sim.setRegister(16, x);
+                sim.run("u" + k);
+                assertEquals(x <= k ? 1 : 0, sim.getRegister(17), "u(" + x + " <= " + k + ")");
+                sim.run("s" + k);
+                assertEquals((byte) x <= (byte) k ? 1 : 0, sim.getRegister(17), "s(" + x + " <= " + k + ")");
+            }
+        }
+    }
+
+    @Test
+    void testErrors() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> sim.load(code("start:", "\tmymacro\tr1")));
+        assertEquals("line 2: unknown instruction: mymacro\tr1", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> sim.run("unknown"));
+
+        sim.load(code("start:", "\trcall\textern_proc", "\tret"));
+        IllegalStateException s = assertThrows(IllegalStateException.class, () -> sim.run("start"));
+        assertEquals("line 2: unknown value: extern_proc", s.getMessage());
+
+        sim.load(code("start:", "\trjmp\tstart"));
+        sim.setStepLimit(100);
+        assertThrows(IllegalStateException.class, () -> sim.run("start"));
+    }
+}
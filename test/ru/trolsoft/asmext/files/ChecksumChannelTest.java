@@ -0,0 +1,57 @@
+package ru.trolsoft.asmext.files;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumChannelTest {
+
+    private static OutputFile output(String... lines) {
+        OutputFile out = new OutputFile();
+        for (String s : lines) {
+            out.add(s);
+        }
+        return out;
+    }
+
+    @Test
+    void testMatches() throws IOException {
+        File file = File.createTempFile("asmext", ".asm");
+        file.deleteOnExit();
+        output("label:", "\tnop").writeToFile(file.getPath());
+
+        ChecksumChannel same = new ChecksumChannel();
+        output("label:", "\tnop").write(same);
+        assertEquals(file.length(), same.getSize());
+        assertTrue(same.matches(file));
+
+        ChecksumChannel changed = new ChecksumChannel();
+        output("label:", "\tret").write(changed);
+        assertEquals(file.length(), changed.getSize());
+        assertFalse(changed.matches(file));
+
+        ChecksumChannel longer = new ChecksumChannel();
+        output("label:", "\tnop", "\tret").write(longer);
+        assertFalse(longer.matches(file));
+        assertFalse(same.matches(new File(file.getPath() + ".missing")));
+    }
+
+    @Test
+    void testWriteThrough() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChecksumChannel channel = new ChecksumChannel(Channels.newChannel(bytes));
+        output("label:", "\tnop").write(channel);
+        assertEquals("label:\n\tnop\n", bytes.toString());
+
+        File file = File.createTempFile("asmext", ".asm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes.toByteArray());
+        assertTrue(channel.matches(file));
+    }
+}
@@ -0,0 +1,161 @@
+package ru.trolsoft.asmext.files;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.compiler.Cmd;
+import ru.trolsoft.asmext.processor.Token;
+import ru.trolsoft.asmext.utils.AsmInstruction;
+import ru.trolsoft.asmext.utils.TokenString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputFileTest {
+
+    @Test
+    void testLines() {
+        OutputFile out = new OutputFile();
+        assertTrue(out.isEmpty());
+        assertNull(out.getLastLine());
+        out.add("label:");
+        StringBuilder line = out.startNewLine().append("\tldi\tr16, 1");
+        assertEquals(2, out.size());
+        assertEquals("\tldi\tr16, 1", out.getLastLine());
+        assertSame(line, out.getLastLineBuilder());
+        out.appendCommand(new TokenString("  r17 = r16 ; copy"), Cmd.MOV, "r17", "r16");
+        out.addComment("done");
+        assertEquals(4, out.size());
+        assertNull(out.getLastLineBuilder());
+        assertEquals("label:", out.get(0));
+        assertEquals("\tldi\tr16, 1", out.get(1));
+        assertEquals("  mov\tr17, r16\t\t; copy", out.get(2));
+        assertEquals("; done", out.getLastLine());
+        assertEquals("label:\n\tldi\tr16, 1\n  mov\tr17, r16\t\t; copy\n; done\n", out.toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> out.get(4));
+        out.clear();
+        assertTrue(out.isEmpty());
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    void testWriteToFile() throws IOException {
+        OutputFile out = new OutputFile();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            out.startNewLine().append("\tnop\t; ").append(i);
+            expected.append("\tnop\t; ").append(i).append('\n');
+        }
+        File file = File.createTempFile("asmext", ".asm");
+        file.deleteOnExit();
+        out.writeToFile(file.getPath());
+        assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath())));
+        assertEquals("\tnop\t; 9999", out.getLastLine());
+        assertEquals("\tnop\t; 5000", out.get(5000));
+    }
+
+    @Test
+    void testStream() throws IOException {
+        OutputFile out = new OutputFile();
+        out.add("first");
+        out.startNewLine().append("second");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.streamTo(Channels.newChannel(bytes));
+        assertEquals("first\n", bytes.toString());
+        StringBuilder expected = new StringBuilder("first\nsecond\n");
+        for (int i = 0; i < 20000; i++) {
+            out.add("\trjmp\tlabel" + i);
+            expected.append("\trjmp\tlabel").append(i).append('\n');
+        }
+        assertTrue(bytes.size() > 64 * 1024);
+        out.flush();
+        assertEquals(expected.toString(), bytes.toString());
+        assertEquals(20002, out.size());
+        assertThrows(IllegalStateException.class, () -> out.get(0));
+    }
+
+    @Test
+    void testHoldInStream() throws IOException {
+        OutputFile out = new OutputFile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.streamTo(Channels.newChannel(bytes));
+        out.add("first");
+        int outer = out.hold();
+        for (int i = 0; i < 20000; i++) {
+            out.add("\trjmp\tlabel" + i);
+        }
+        int inner = out.hold();
+        out.add("inner");
+        out.release(inner, records -> "; inner " + records.size() + " " + records.get(0));
+        out.release(outer, records -> "; outer " + records.size() + " " + records.get(0));
+        assertEquals(0, bytes.size());
+        out.add("last");
+        out.flush();
+        String[] lines = bytes.toString().split("\n");
+        assertEquals(20005, lines.length);
+        assertEquals("inner", lines[20001]);
+        assertEquals("; inner 1 inner", lines[20002]);
+        assertEquals("; outer 20001 \trjmp\tlabel0", lines[20003]);
+        assertEquals("last", lines[20004]);
+        assertEquals(20003, out.size());
+    }
+
+    @Test
+    void testHoldOptimized() {
+        OutputFile out = new OutputFile();
+        out.setOptimizer(new OutputFile.Optimizer() {
+            @Override
+            public void optimize(List<Object> records, int start) {
+                for (int i = start; i < records.size(); i++) {
+                    if ("removed".equals(records.get(i))) {
+                        records.set(i, null);
+                    }
+                }
+            }
+
+            @Override
+            public int getContextSize(List<Object> records) {
+                return 0;
+            }
+        });
+        out.add("first");
+        int hold = out.hold();
+        out.add("removed");
+        out.add("held");
+        assertEquals("first\nremoved\nheld\n", out.toString());
+        out.add("removed");
+        out.release(hold, records -> "; " + records);
+        out.add("removed");
+        out.add("last");
+        assertEquals("first\nheld\n; [held]\nlast\n", StandardCharsets.US_ASCII.decode(out.toByteBuffer()).toString());
+        assertThrows(IllegalArgumentException.class, () -> out.release(hold, records -> ""));
+    }
+
+    @Test
+    void testInstructionRecords() {
+        OutputFile out = new OutputFile();
+        out.add("loop:");
+        out.appendCommand(new TokenString("\tZ += 1\t; next"), Cmd.ADIW, "ZL", "1");
+        out.appendCommand(new TokenString("\tr16 = ram[Y+]"), Cmd.LD, "r16", "Y+");
+        out.appendCommand(new TokenString("\tgoto loop"), Cmd.RJMP, "loop");
+        assertNull(out.getInstruction(0));
+        AsmInstruction adiw = out.getInstruction(1);
+        assertEquals(Cmd.ADIW, adiw.getCommand());
+        assertEquals(Token.TYPE_REGISTER, adiw.getArg1Type());
+        assertEquals(Token.TYPE_NUMBER, adiw.getArg2Type());
+        assertEquals("; next", adiw.getComment());
+        assertEquals(Token.TYPE_PAIR, out.getInstruction(2).getArg2Type());
+        AsmInstruction rjmp = out.getInstruction(3);
+        assertEquals(Token.TYPE_CONST_EXPRESSION, rjmp.getArg1Type());
+        assertEquals(AsmInstruction.NO_OPERAND, rjmp.getArg2Type());
+        assertEquals("\tadiw\tZL, 1\t\t; next", out.get(1));
+        assertEquals("loop:\n\tadiw\tZL, 1\t\t; next\n\tld\tr16, Y+\n\trjmp\tloop\n",
+                StandardCharsets.US_ASCII.decode(out.toByteBuffer()).toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> out.getInstruction(4));
+    }
+}
@@ -0,0 +1,67 @@
+package ru.trolsoft.asmext.files;
+
+import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.utils.TokenString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SourceFileTest {
+
+    private static List<String> lines(Iterable<TokenString> src) {
+        List<String> result = new ArrayList<>();
+        for (TokenString s : src) {
+            result.add(s.toString());
+        }
+        return result;
+    }
+
+    private static List<String> read(String data) {
+        SourceFile src = new SourceFile();
+        src.read(ByteBuffer.wrap(data.getBytes()));
+        return lines(src);
+    }
+
+    @Test
+    void testLineTerminators() {
+        assertEquals(Arrays.asList(), read(""));
+        assertEquals(Arrays.asList(""), read("\n"));
+        assertEquals(Arrays.asList("a"), read("a"));
+        assertEquals(Arrays.asList("a"), read("a\r\n"));
+        assertEquals(Arrays.asList("a", "", "b"), read("a\r\rb"));
+        assertEquals(Arrays.asList("a", "b", "", "c"), read("a\nb\r\n\nc"));
+        assertEquals(Arrays.asList("\tr16 = 1 ; c", "  "), read("\tr16 = 1 ; c\n  \n"));
+    }
+
+    @Test
+    void testReadFile() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\tldi r16, ").append(i).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        File file = File.createTempFile("asmext", ".asm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), sb.toString().getBytes());
+
+        SourceFile src = new SourceFile();
+        src.read(file);
+        List<String> expected = Files.readAllLines(file.toPath());
+        assertEquals(expected, lines(src));
+        assertSame(src.getLines().get(10), src.getLines().get(10));
+
+        List<String> streamed = new ArrayList<>();
+        try (SourceReader reader = new SourceReader(file)) {
+            for (TokenString s = reader.next(); s != null; s = reader.next()) {
+                streamed.add(s.toString());
+            }
+        }
+        assertEquals(expected, streamed);
+    }
+}
@@ -75,8 +75,8 @@ class CompilerTest {
         testLine("if s(r1 < r2) goto lbl", "cp\tr1, r2\nbrlt\tlbl");
 
         testLine("if (r1 > r2) goto lbl", "cp\tr2, r1\nbrlo\tlbl");
-        testLine("if (r21 > 10) goto lbl", "cpi\tr21, 10+1\nbrsh\tlbl");
-        testLine("if s(r21 > 10) goto lbl", "cpi\tr21, 10+1\nbrge\tlbl");
+        testLine("if (r21 > 10) goto lbl", "cpi\tr21, 11\nbrsh\tlbl");
+        testLine("if s(r21 > 10) goto lbl", "cpi\tr21, 11\nbrge\tlbl");
         testLine("if u(r1 > r2) goto lbl", "cp\tr2, r1\nbrlo\tlbl");
         testLine("if s(r1 > r2) goto lbl", "cp\tr2, r1\nbrlt\tlbl");
 
@@ -87,15 +87,64 @@ class CompilerTest {
         testLine("if s(r1 >= r2) goto lbl", "cp\tr1, r2\nbrge\tlbl");
 
         testLine("if (r1 <= r2) goto lbl", "cp\tr2, r1\nbrsh\tlbl");
-        testLine("if (r21 <= 10) goto lbl", "cpi\tr21, 10-1\nbrlo\tlbl");
-        testLine("if s(r21 <= 10) goto lbl", "cpi\tr21, 10-1\nbrlt\tlbl");
+        testLine("if (r21 <= 10) goto lbl", "cpi\tr21, 11\nbrlo\tlbl");
+        testLine("if s(r21 <= 10) goto lbl", "cpi\tr21, 11\nbrlt\tlbl");
         testLine("if u(r1 <= r2) goto lbl", "cp\tr2, r1\nbrsh\tlbl");
         testLine("if s(r1 <= r2) goto lbl", "cp\tr2, r1\nbrge\tlbl");
 
         testLine("if (r1 == 0) goto lbl ; comment", "tst\tr1\t\t; comment\nbreq\tlbl\t\t; comment");
         testLine("if (r1 == 0) goto lbl // comment", "tst\tr1\t\t; comment\nbreq\tlbl\t\t; comment");
 
-        testLine("if (r21 < '9'+1) goto lbl", "cpi\tr21, '9'+1\nbrlo\tlbl");
+        testLine("if (r21 < '9'+1) goto lbl", "cpi\tr21, 58\nbrlo\tlbl");
+    }
+
+    @Test
+    void testConstFolding() throws SyntaxException {
+        parser = new Parser();
+        compiler = new MainCompiler(parser);
+        parser.parseLine(".equ ZERO = 0");
+        parser.parseLine(".equ BIT = 3");
+        parser.parseLine(".equ SIZE = 0x45F");
+        parser.parseLine(".equ MASK = 1<<BIT");
+        parser.parseLine(".equ STEP = SIZE/16");
+        parser.parseLine(".equ LIMIT = buffer_end - buffer");
+        parser.parseLine(".equ OCTAL = 010");
+
+        testLine("if (r21 == ZERO) goto lbl", "tst\tr21\nbreq\tlbl");
+        testLine("if (r21 != BIT-3) goto lbl", "tst\tr21\nbrne\tlbl");
+        testLine("if (r21 > BIT) goto lbl", "cpi\tr21, 4\nbrsh\tlbl");
+        testLine("if (r21 <= BIT) goto lbl", "cpi\tr21, 4\nbrlo\tlbl");
+        testLine("if (r21 <= ZERO) goto lbl", "cpi\tr21, 1\nbrlo\tlbl");
+        testLine("if (r21 <= 0xFF) goto lbl", "cpi\tr21, 0xFF\nbreq\tlbl\nbrlo\tlbl");
+        testLine("if s(r21 <= 0x7F) goto lbl", "cpi\tr21, 0x7F\nbreq\tlbl\nbrlt\tlbl");
+        testLine("if s(r21 <= 0xFF) goto lbl", "cpi\tr21, 0\nbrlt\tlbl");
+        // brsh and brlo check the carry flag, it isn't set by tst
+        testLine("if s(r21 > BIT-4) goto lbl", "cpi\tr21, 0\nbrge\tlbl");
+        testLine("if s(r21 <= BIT-4) goto lbl", "cpi\tr21, 0\nbrlt\tlbl");
+        testLine("if (r21 <= BIT-2) goto lbl", "cpi\tr21, 2\nbrlo\tlbl");
+        // x > 0xFF is never true
+        testLine("if (r21 > BIT-4) goto lbl", "");
+        testLine("if s(r21 > 0x7F) goto lbl", "");
+        testLine("if (r21 > LIMIT) goto lbl", "cpi\tr21, LIMIT+1\nbrsh\tlbl");
+
+        testLine("r20 = ZERO", "clr\tr20");
+        testLine("r20 = MASK", "ldi\tr20, MASK");
+        testLine("r20 = (1<<BIT)|(1<<(BIT+1))", "ldi\tr20, 0x18");
+        testLine("r20 = 0xFF", "ser\tr20");
+        testLine("r20 = (1<<BIT)|0xF7", "ser\tr20");
+        testLine("r20 = HIGH(SIZE)", "ldi\tr20, 4");
+        // numbers with leading zero are octal
+        testLine("r20 = 010|1", "ldi\tr20, 0x09");
+        testLine("r21 = 017 + 1", "ldi\tr21, 16");
+        testLine("r20 = OCTAL+1", "ldi\tr20, 9");
+        testLine("r20 += BIT-2", "subi\tr20, -1");
+        testLine("r20 <<= BIT-1", "lsl\tr20\nlsl\tr20");
+        testLine("r21.r20 = SIZE*2", "ldi\tr20, 0xbe\nldi\tr21, 0x08");
+        testLine("Z += BIT-10", "sbiw\tZL, 7");
+        testLine("Z += MASK", "adiw\tZL, (MASK)");
+        // adiw takes 0..63 only
+        testLine("Z += STEP", "subi\tZL, LOW(-STEP)\nsbci\tZH, HIGH(-STEP)");
+        testLine("Z -= STEP", "subi\tZL, LOW(STEP)\nsbci\tZH, HIGH(STEP)");
     }
 
     @Test
@@ -128,7 +177,7 @@ class CompilerTest {
         testLine("rcall my_proc (x: 1, y: r0) // comment", "ldi\tr24, 1\nmov\tr22, r0\nrcall\tmy_proc\t\t; comment");
         testLine("rjmp my_proc (x: r24, y: r0) ; comment", "mov\tr22, r0\nrjmp\tmy_proc\t\t; comment");
         testLine("rjmp my_proc (x: r24 + 1, y: r0) ; comment", "inc r24\nmov\tr22, r0\nrjmp\tmy_proc\t\t; comment");
-        testLine("rjmp my_proc (x: r24 + 1*2, y: r0) ; comment", "subi r24, -(1*2)\nmov\tr22, r0\nrjmp\tmy_proc\t\t; comment");
+        testLine("rjmp my_proc (x: r24 + 1*2, y: r0) ; comment", "subi r24, -2\nmov\tr22, r0\nrjmp\tmy_proc\t\t; comment");
 
         testLine("rjmp my_proc ; comment", "rjmp\tmy_proc\t\t; comment");
         testLine("rcall my_proc // comment", "rcall\tmy_proc\t\t; comment");
@@ -249,7 +298,9 @@ class CompilerTest {
         parser = new Parser();
         parser.parseLine(".EQU bEdge = 4");
         compiler = new MainCompiler(parser);
-        testLine("r10[bEdge] = 1", "sbr\tr10, 1<<bEdge");
+        testLine("r20[bEdge] = 1", "sbr\tr20, 1<<bEdge");
+        // sbr and cbr work with r16..r31 only
+        assertTrue(hasCompileError("r10[bEdge] = 1"));
     }
 
     @Test
@@ -0,0 +1,95 @@
+package ru.trolsoft.asmext.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConstEvaluatorTest {
+    private final Map<String, Long> symbols = new HashMap<>();
+
+    private Long eval(String expr) {
+        return ConstEvaluator.evaluate(expr, symbols::get);
+    }
+
+    private void check(long expected, String expr) {
+        assertEquals(Long.valueOf(expected), eval(expr));
+    }
+
+    @Test
+    void testLiterals() {
+        check(10L, "10");
+        check(255L, "0xFF");
+        check(255L, "$ff");
+        check(5L, "0b101");
+        check(0L, "0");
+        check(8L, "010");
+        check(16L, "017+1");
+        assertNull(eval("019"));
+        check(97L, "'a'");
+        check(10L, "'\\n'");
+        check(32L, "' '");
+    }
+
+    @Test
+    void testOperators() {
+        check(7L, "1 + 2*3");
+        check(9L, "(1 + 2) * 3");
+        check(-5L, "-5");
+        check(2L, "7/3");
+        check(1L, "7%3");
+        check(0x86L, "(1<<7)|(1<<2)|(1<<1)");
+        check(0xF0L, "0xFF & ~0x0F");
+        check(0x0FL, "0xFF ^ 0xF0");
+        check(4L, "0x45F >> 8");
+        check(1L, "1 < 2 && 3 >= 3");
+        check(0L, "!(1 || 0)");
+        check(1L, "2 != 3");
+        check(1L, "4 <= 4 == 1");
+        check(20L, "1 > 2 ? 10 : 20");
+        // shifts bind weaker than additions
+        check(8L, "1 << 2 + 1");
+    }
+
+    @Test
+    void testFunctions() {
+        check(0x34L, "LOW(0x1234)");
+        check(0x12L, "HIGH(0x1234)");
+        check(0x12L, "BYTE2(0x12345678 >> 16)");
+        check(0x34L, "BYTE3(0x12345678)");
+        check(0x12L, "byte4(0x12345678)");
+        check(0x5678L, "LWRD(0x12345678)");
+        check(0x1234L, "HWRD(0x12345678)");
+        check(32L, "EXP2(5)");
+        check(5L, "LOG2(32)");
+        check(0x34L, "lo8(0x1234)");
+        check(0x12L, "hi8(0x1234)");
+        check(4L, "BYTE1(0x45F/256)");
+    }
+
+    @Test
+    void testSymbols() {
+        symbols.put("UCSZ0", 1L);
+        symbols.put("UCSZ1", 2L);
+        symbols.put("URSEL", 7L);
+        check(0x86L, "(1<<URSEL)|(1<<UCSZ1)|(1<<UCSZ0)");
+        check(2L, "UCSZ1");
+        assertNull(eval("UNKNOWN + 1"));
+        assertNull(eval("LOW(label)"));
+        assertNull(eval("r16"));
+    }
+
+    @Test
+    void testUnknown() {
+        assertNull(eval(null));
+        assertNull(eval(""));
+        assertNull(eval("1 +"));
+        assertNull(eval("(1"));
+        assertNull(eval("1 = 2"));
+        assertNull(eval("1/0"));
+        assertNull(eval("INT(1)"));
+        assertNull(eval("X+"));
+    }
+}
@@ -0,0 +1,183 @@
+package ru.trolsoft.asmext.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Linear merging of constants must give the same tokens as the original loops that restarted after every merge
+ */
+class ConstMergeTest {
+    private static final String[] WORDS = {"1", "0x1F", "BIT", "r16", "Z", "=", "+=", "+", "-", "*", "<<", ">>", "|",
+            "&", "(", ")", "(", ")", ""};
+    private static final Token[] TOKENS = {
+            new Token(Token.TYPE_NUMBER, "1"),
+            new Token(Token.TYPE_CONST_EXPRESSION, "C"),
+            new Token(Token.TYPE_CONST_EXPRESSION, "(D)"),
+            new Token(Token.TYPE_REGISTER, "r16"),
+            new Token(Token.TYPE_OPERATOR, "="),
+            new Token(Token.TYPE_OPERATOR, "+"),
+            new Token(Token.TYPE_OPERATOR, "-"),
+            new Token(Token.TYPE_OPERATOR, "<<"),
+            new Token(Token.TYPE_OPERATOR, "|"),
+            new Token(Token.TYPE_OPERATOR, "/"),
+            new Token(Token.TYPE_OPERATOR, "("),
+            new Token(Token.TYPE_OPERATOR, ")"),
+    };
+
+    /**
+     * Original implementation of {@link ParserUtils#mergeTokens}
+     */
+    private static void mergeTokensLoop(List<String> tokens) {
+        ParserUtils.removeEmptyTokens(tokens);
+        while (true) {
+            boolean found = false;
+            for (int i = 0; i < tokens.size(); i++) {
+                String curr = tokens.get(i);
+                String prev = i > 0 ? tokens.get(i - 1) : null;
+                String next = i < tokens.size() - 1 ? tokens.get(i + 1) : null;
+
+                if (ParserUtils.isConstExpression(prev) && ParserUtils.isConstExpression(next) &&
+                        ParserUtils.isSimpleMatchOperator(curr)) {
+                    tokens.set(i, prev + curr + next);
+                    tokens.set(i-1, null);
+                    tokens.set(i+1, null);
+                    found = true;
+                } else if ("(".equals(prev) && ")".equals(next) && ParserUtils.isConstExpression(curr)) {
+                    tokens.set(i, prev + curr + next);
+                    tokens.set(i-1, null);
+                    tokens.set(i+1, null);
+                    found = true;
+                } else if ((">>".equals(curr) || "<<".equals(curr) || "|".equals(curr)) &&
+                        ParserUtils.isSomeConstant(prev) && ParserUtils.isSomeConstant(next)) {
+                    tokens.set(i, prev + curr + next);
+                    tokens.set(i-1, null);
+                    tokens.set(i+1, null);
+                    found = true;
+                } else if (("-".equals(curr) || "+".equals(curr)) && ParserUtils.isNumber(next) && prev != null &&
+                        prev.endsWith("=")) {
+                    tokens.set(i, curr + next);
+                    tokens.set(i+1, null);
+                    found = true;
+                }
+            }
+            if (!found) {
+                break;
+            }
+            ParserUtils.removeEmptyTokens(tokens);
+        }
+    }
+
+    /**
+     * Original implementation of {@link Parser#mergeConst}
+     */
+    private static void mergeConstLoop(Expression expr) {
+        while (true) {
+            boolean anyMerge = false;
+            for (int i = 1; i < expr.size() - 1; i++) {
+                Token cur = expr.get(i);
+                Token prev = expr.get(i - 1);
+                Token next = expr.get(i + 1);
+                boolean merge;
+                if (cur.isOperator("+", "-", "*", "<<", ">>", "&", "|") &&
+                        prev.isAnyConst() && next.isAnyConst()) {
+                    merge = true;
+                } else if (prev.isOperator("(") && next.isOperator(")") && cur.isAnyConst()) {
+                    String cs = cur.asString();
+                    if (cs.startsWith("(") && cs.endsWith(")")) {
+                        expr.remove(i-1);
+                        expr.remove(i);
+                        anyMerge = true;
+                        break;
+                    }
+                    merge = true;
+                } else {
+                    merge = false;
+                }
+                if (merge) {
+                    Token t = new Token(Token.TYPE_CONST_EXPRESSION, prev.asString() + cur.asString() + next.asString());
+                    expr.set(i - 1, t);
+                    expr.remove(i);
+                    expr.remove(i);
+                    anyMerge = true;
+                    break;
+                }
+            }
+            if (!anyMerge) {
+                break;
+            }
+        }
+    }
+
+    private static void assertMergeTokens(List<String> tokens) {
+        List<String> expected = new ArrayList<>(tokens);
+        mergeTokensLoop(expected);
+        List<String> actual = new ArrayList<>(tokens);
+        ParserUtils.mergeTokens(actual);
+        assertEquals(expected, actual, String.join(" ", tokens));
+    }
+
+    private static void assertMergeConst(Expression expr) {
+        String source = expr.toString();
+        Expression expected = expr.copy();
+        mergeConstLoop(expected);
+        Expression actual = expr.copy();
+        Parser.mergeConst(actual);
+        assertEquals(expected.size(), actual.size(), source);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).asString(), actual.get(i).asString(), source);
+            assertEquals(expected.get(i).getType(), actual.get(i).getType(), source);
+        }
+    }
+
+    @Test
+    void testLongExpressions() {
+        List<String> sum = new ArrayList<>();
+        List<String> mask = new ArrayList<>();
+        Expression consts = new Expression();
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) {
+                sum.add("+");
+                mask.add("|");
+                consts.add(new Token(Token.TYPE_OPERATOR, i % 2 == 0 ? "+" : "<<"));
+            }
+            sum.add(Integer.toString(i));
+            // (1 << (BIT + 1))
+            mask.add("(");
+            mask.add("1");
+            mask.add("<<");
+            mask.add("(");
+            mask.add("BIT" + i);
+            mask.add("+");
+            mask.add("1");
+            mask.add(")");
+            mask.add(")");
+            consts.add(new Token(Token.TYPE_OPERATOR, "("));
+            consts.add(new Token(Token.TYPE_CONST_EXPRESSION, "C" + i));
+            consts.add(new Token(Token.TYPE_OPERATOR, ")"));
+        }
+        assertMergeTokens(sum);
+        assertMergeTokens(mask);
+        assertMergeConst(consts);
+    }
+
+    @Test
+    void testRandomExpressions() {
+        Random random = new Random(17);
+        for (int i = 0; i < 20000; i++) {
+            int size = 1 + random.nextInt(i < 19000 ? 12 : 200);
+            List<String> tokens = new ArrayList<>();
+            Expression expr = new Expression();
+            for (int j = 0; j < size; j++) {
+                tokens.add(WORDS[random.nextInt(WORDS.length)]);
+                expr.add(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            assertMergeTokens(tokens);
+            assertMergeConst(expr);
+        }
+    }
+}
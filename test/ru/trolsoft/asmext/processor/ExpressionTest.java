@@ -44,6 +44,23 @@ class ExpressionTest {
         assertEquals(Token.TYPE_REGISTER, e.get(2).getType());
     }
 
+    @Test
+    void testSharedSource() {
+        TokenString src = new TokenString("\tr16 = (1 << 2) | 3 ; comment");
+        Expression e1 = new Expression(src);
+        assertEquals(3, e1.size());
+        assertEquals("(1<<2)|3", e1.get(2).toString());
+        assertEquals(l("r16", " ", "=", " ", "(", "1", " ", "<<", " ", "2", ")", " ", "|", " ", "3", " "), src.getTokens());
+
+        e1.removeFirst();
+        Expression e2 = new Expression(src);
+        assertEquals(3, e2.size());
+        assertSame(e1.get(0), e2.get(1));
+
+        src.modifyToken(0, "r17");
+        assertEquals("r17", new Expression(src).getFirst().toString());
+    }
+
     @Test
     void testLabels() {
         e = exp("lbl:");
@@ -261,4 +278,58 @@ class ExpressionTest {
         e = exp("r12[3]");
         assertEquals("r12[3]", e.getFirst().toString());
     }
+
+    @Test
+    void testRemoveAndAdd() {
+        e = exp("r16 = r17 + r18 - r19");
+        e.removeFirst(2);
+        assertEquals("r17+r18-r19", e.toString());
+        e.add(0, new Token(Token.TYPE_OPERATOR, "="));
+        assertEquals("=r17+r18-r19", e.toString());
+        e.removeLast(2);
+        assertEquals(4, e.size());
+        assertEquals("r18", e.getLast().asString());
+        assertEquals("+", e.remove(2).asString());
+        assertEquals("=r17 r18", e.toString());
+        e.add(new Token(Token.TYPE_NUMBER, "1"));
+        e.set(0, new Token(Token.TYPE_OPERATOR, "-"));
+        assertEquals("-r17 r18 1", e.toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> e.get(4));
+        assertThrows(IndexOutOfBoundsException.class, () -> e.removeFirst(5));
+        assertNull(e.getIfExist(4));
+        e.clear();
+        assertTrue(e.isEmpty());
+        assertThrows(IndexOutOfBoundsException.class, () -> e.removeLast());
+    }
+
+    @Test
+    void testSubExpressionCopyOnWrite() {
+        TokenString src = new TokenString("r16 = r17 + r18");
+        e = new Expression(src);
+        Expression sub = e.subExpression(2, 4);
+        assertEquals("r17+r18", sub.toString());
+        sub.set(0, new Token(Token.TYPE_REGISTER, "r20"));
+        sub.add(new Token(Token.TYPE_OPERATOR, "+"));
+        assertEquals("r20+r18+", sub.toString());
+        assertEquals("r16=r17+r18", e.toString());
+
+        e.removeFirst();
+        e.add(0, new Token(Token.TYPE_REGISTER, "r1"));
+        assertEquals("r1=r17+r18", e.toString());
+        assertEquals("r16=r17+r18", new Expression(src).toString());
+        assertEquals(0, e.subExpression(3, 2).size());
+    }
+
+    @Test
+    void testSplitByOperator() {
+        e = exp("r16, r17, 10");
+        List<Expression> parts = e.splitByOperator(",");
+        assertEquals(3, parts.size());
+        assertEquals("r16", parts.get(0).toString());
+        assertEquals("10", parts.get(2).toString());
+        parts.get(1).add(new Token(Token.TYPE_NUMBER, "1"));
+        assertEquals("r17 1", parts.get(1).toString());
+        assertEquals("10", parts.get(2).toString());
+        assertEquals(5, e.size());
+    }
 }
@@ -83,14 +83,14 @@ class ExpressionsCompilerTest {
         test(ec, ta("r10", "  ", "=", "r0"), "mov\tr10, r0");
         test(ec, ta("r20", "=", "0"), "clr\tr20");
         test(ec, ta("r20", "=", "-", "1"), "ldi\tr20, -1");
-        test(ec, ta("r20", "=", "-", "1", "+", "1"), "ldi\tr20, -1+1");
+        test(ec, ta("r20", "=", "-", "1", "+", "1"), "clr\tr20");
         test(ec, ta("r5", "=", "-", "r4"), "mov\tr5, r4\nneg\tr5");
         test(ec, ta("r25", "=", "-", "r4", "+", "10"), "mov\tr25, r4\nneg\tr25\nsubi\tr25, -10");
-        test(ec, ta("r25", "=", "-", "r4", "+", "10", "-", "1"), "mov\tr25, r4\nneg\tr25\nsubi\tr25, -(10-1)");
+        test(ec, ta("r25", "=", "-", "r4", "+", "10", "-", "1"), "mov\tr25, r4\nneg\tr25\nsubi\tr25, -9");
         test(ec, ta("r25", "=", "0b00000001"), "ldi\tr25, 0b00000001");
         test(ec, ta("r25", "=", "0xAB"), "ldi\tr25, 0xAB");
-        test(ec, ta("r25", "=", "1", "<<", "5"), "ldi\tr25, 1<<5");
-        test(ec, ta("r25", "=", "(", "1", "<<", "5", ")", "|", "0x12"), "ldi\tr25, (1<<5)|0x12");
+        test(ec, ta("r25", "=", "1", "<<", "5"), "ldi\tr25, 0x20");
+        test(ec, ta("r25", "=", "(", "1", "<<", "5", ")", "|", "0x12"), "ldi\tr25, 0x32");
 
         test(ec, ta("r25", "=", "r20", "&", "0x0F"), "mov\tr25, r20\nandi\tr25, 0x0F");
         test(ec, ta("r25", "=", "r20", "|", "0x0F"), "mov\tr25, r20\nori\tr25, 0x0F");
@@ -106,15 +106,21 @@ class ExpressionsCompilerTest {
         test("X--", "sbiw\tXL, 1");
         test("Y-=2", "sbiw\tYL, 2");
         test("Z+=10", "adiw\tZL, 10");
-        test("Z += 0x0380", "subi\tZL, -0x80\nsbci\tZH, -0x03");
-
-        //    r29.r28 += 0x0380
-        //    subi	r28, -0x80 ; '€'
-        //    sbci	r29, -3	; 'ý'
-
-        test("Z += 1 + 1", "adiw\tZL, (1+1)");
-        test("Z += (1+1)", "adiw\tZL, (1+1)");
-        test("X +=2+1", "adiw\tXL, (2+1)");
+        // Z += K  ->  subi ZL, LOW(-K); sbci ZH, HIGH(-K)
+        test("Z += 0x0380", "subi\tZL, 0x80\nsbci\tZH, 0xfc");
+        test("Z -= 0x0380", "subi\tZL, 0x80\nsbci\tZH, 0x03");
+        test("Z += -63", "sbiw\tZL, 63");
+        test("Z -= -63", "adiw\tZL, 63");
+        test("Z += -64", "subi\tZL, 0x40\nsbci\tZH, 0x00");
+        test("Z -= -64", "subi\tZL, 0xc0\nsbci\tZH, 0xff");
+        test("Z += -97", "subi\tZL, 0x61\nsbci\tZH, 0x00");
+        test("Z -= -97", "subi\tZL, 0x9f\nsbci\tZH, 0xff");
+        test("Z += -300", "subi\tZL, 0x2c\nsbci\tZH, 0x01");
+        test("Z -= -300", "subi\tZL, 0xd4\nsbci\tZH, 0xfe");
+
+        test("Z += 1 + 1", "adiw\tZL, 2");
+        test("Z += (1+1)", "adiw\tZL, 2");
+        test("X +=2+1", "adiw\tXL, 3");
         test("Z += r21.r24", "add\tZL, r24\nadc\tZH, r21");
         test("Y -= r21.r24", "sub\tYL, r24\nsbc\tYH, r21");
 
@@ -132,8 +138,8 @@ class ExpressionsCompilerTest {
         test(ec, ta("r17", "-=", " ", "50"), "subi\tr17, 50");
         test(ec, ta("r20", "+", "=", " ", "r24"), "add\tr20, r24");
 
-        test(ec, ta("r21", "-=", " ", "10", "+", "1"), "subi\tr21, (10+1)");
-        test(ec, ta("r21", "+=", " ", "10", "+", " ", "1"), "subi\tr21, -(10+1)");
+        test(ec, ta("r21", "-=", " ", "10", "+", "1"), "subi\tr21, 11");
+        test(ec, ta("r21", "+=", " ", "10", "+", " ", "1"), "subi\tr21, -11");
 
         test(ec, ta("r24", "=", "r24", "+", "r2", "+", "r1"), "add\tr24, r2\nadd\tr24, r1");
         test(ec, ta("r24", "+=", "r2", "+", "r1"), "add\tr24, r2\nadd\tr24, r1");
@@ -0,0 +1,127 @@
+package ru.trolsoft.asmext.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncludeCacheTest {
+
+    private static File write(File dir, String name, String... lines) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), String.join("\n", lines).getBytes());
+        return file;
+    }
+
+    private static Parser parse(IncludeCache cache, File file) throws IOException, SyntaxException {
+        Parser parser = new Parser(false);
+        parser.setIncludeCache(cache);
+        parser.parse(file);
+        return parser;
+    }
+
+    @Test
+    void testSharedHeader() throws IOException, SyntaxException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        write(dir, "def.inc", ".equ PORTB = 0x18", ".def rmp = r16", ".equ BIT = 3", "vec:");
+        File src = write(dir, "main.asm", ".include \"def.inc\"", "rmp = PORTB", "io[PORTB] = rmp");
+        IncludeCache cache = new IncludeCache();
+
+        Parser p1 = parse(cache, src);
+        Parser p2 = parse(cache, src);
+        assertEquals(1, cache.size());
+        for (Parser p : new Parser[] {p1, p2}) {
+            assertEquals("0x18", p.getConstant("PORTB").value);
+            assertEquals("r16", p.globalAliases.get("rmp").register.asString());
+            assertNotNull(p.getVariable("vec"));
+            assertEquals(1, p.getIncludedFiles().size());
+            assertEquals("ldi\tr16, 0x18", p.getOutput().get(1));
+            assertEquals("out\tPORTB, r16", p.getOutput().get(2));
+        }
+
+        write(dir, "def.inc", ".equ PORTB = 0x19", ".def rmp = r17");
+        new File(dir, "def.inc").setLastModified(System.currentTimeMillis() + 10000);
+        Parser p3 = parse(cache, src);
+        assertEquals("0x19", p3.getConstant("PORTB").value);
+        assertEquals("ldi\tr17, 0x19", p3.getOutput().get(1));
+        assertNull(p3.getConstant("BIT"));
+    }
+
+    @Test
+    void testNestedInclude() throws IOException, SyntaxException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        write(dir, "inner.inc", ".equ A = 1");
+        write(dir, "outer.inc", ".include \"inner.inc\"", ".equ B = A + 1");
+        File src = write(dir, "main.asm", ".include \"outer.inc\"", "r16 = B");
+        IncludeCache cache = new IncludeCache();
+
+        Parser p1 = parse(cache, src);
+        assertEquals("1", p1.getConstant("A").value);
+        assertEquals(2, p1.getIncludedFiles().size());
+
+        write(dir, "inner.inc", ".equ A = 5", ".equ C = 7");
+        new File(dir, "inner.inc").setLastModified(System.currentTimeMillis() + 10000);
+        Parser p2 = parse(cache, src);
+        assertEquals("5", p2.getConstant("A").value);
+        assertEquals("7", p2.getConstant("C").value);
+    }
+
+    @Test
+    void testContextDependentInclude() throws IOException, SyntaxException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        write(dir, "proc.inc", ".proc inc_proc", "ret", ".endproc");
+        File src = write(dir, "main.asm", ".include \"proc.inc\"", "rcall inc_proc");
+        IncludeCache cache = new IncludeCache();
+
+        Parser parser = parse(cache, src);
+        assertTrue(parser.procedures.containsKey("inc_proc"));
+        assertEquals("rcall\tinc_proc", parser.getOutput().getLastLine());
+
+        File dup = write(dir, "dup.inc", ".def rmp = r16");
+        File src2 = write(dir, "main2.asm", ".def rmp = r17", ".include \"" + dup.getName() + "\"");
+        assertThrows(SyntaxException.class, () -> parse(cache, src2));
+    }
+
+    @Test
+    void testPrecompiledHeader() throws IOException, SyntaxException {
+        File dir = Files.createTempDirectory("asmext").toFile();
+        File pchDir = new File(dir, "pch");
+        pchDir.mkdir();
+        write(dir, "def.inc", ".equ PORTB = 0x18", ".def rmp = r16", ".set V = 1", ".dseg", "var: .byte 2", ".cseg",
+                "vec:");
+        File src = write(dir, "main.asm", ".include \"def.inc\"", "rmp = PORTB");
+        IncludeCache cache1 = new IncludeCache();
+        cache1.setSnapshotDir(pchDir);
+        parse(cache1, src);
+        File[] files = pchDir.listFiles((d, name) -> name.endsWith(".pch"));
+        assertNotNull(files);
+        assertEquals(1, files.length);
+
+        // the header is loaded from disk by the fresh cache, the original file is not parsed again
+        File inc = new File(dir, "def.inc");
+        long lastModified = inc.lastModified();
+        write(dir, "def.inc", ".equ PORTB = 0x28", ".def rmp = r17", ".set V = 1", ".dseg", "var: .byte 2", ".cseg",
+                "vec:");
+        inc.setLastModified(lastModified);
+        IncludeCache cache2 = new IncludeCache();
+        cache2.setSnapshotDir(pchDir);
+        Parser parser = parse(cache2, src);
+        assertEquals("0x18", parser.getConstant("PORTB").value);
+        assertEquals("1", parser.getConstant("V").value);
+        assertEquals("r16", parser.globalAliases.get("rmp").register.asString());
+        assertNotNull(parser.getVariable("vec"));
+        assertEquals("ldi\tr16, 0x18", parser.getOutput().get(1));
+
+        // damaged file is ignored and rewritten
+        Files.write(files[0].toPath(), new byte[] {1, 2, 3});
+        inc.setLastModified(lastModified + 10000);
+        IncludeCache cache3 = new IncludeCache();
+        cache3.setSnapshotDir(pchDir);
+        parser = parse(cache3, src);
+        assertEquals("0x28", parser.getConstant("PORTB").value);
+        assertTrue(files[0].length() > 3);
+    }
+}
@@ -1,10 +1,18 @@
 package ru.trolsoft.asmext.processor;
 
 import org.junit.jupiter.api.Test;
+import ru.trolsoft.asmext.compiler.CycleCounter;
 import ru.trolsoft.asmext.data.Alias;
 import ru.trolsoft.asmext.data.Constant;
 import ru.trolsoft.asmext.data.Procedure;
-
+import ru.trolsoft.avr.Core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -131,7 +139,7 @@ class ParserTest {
                 "loop(r24 = 1+(1+1)) {",
                 "}"
                 ), a (
-                "ldi r24, 1+(1+1)",
+                "ldi r24, 3",
                 "__loop_r24_1:",
                 "dec r24",
                 "brne __loop_r24_1"
@@ -145,7 +153,7 @@ class ParserTest {
                 "}"
                 ), a (
                  "",
-                "ldi r24, 1+(1+1)",
+                "ldi r24, 3",
                 "__loop_r24_2:",
                 "dec r24",
                 "brne __loop_r24_2"
@@ -158,7 +166,7 @@ class ParserTest {
                 "loop(r21 = FONT_SMALL_HEIGHT+1) {",
                 "} ; r21"
                 ), a (
-                "ldi r21, 10+1",
+                "ldi r21, 11",
                 "__loop_r21_2:",
                 "dec r21",
                 "brne __loop_r21_2"
@@ -410,23 +418,73 @@ class ParserTest {
         parser.parseLine(".equ io_offset = 0x23");
         parser.parseLine(".equ porta = io_offset + 2");
         parser.parseLine("r20 = porta");
-        assertEquals("ldi\tr20, (0x23+2)", parser.getOutput().getLastLine());
+        assertEquals("ldi\tr20, 37", parser.getOutput().getLastLine());
 
         parser.parseLine(".equ portb = ((porta) + 1)");
         parser.parseLine("r21 = portb");
-        assertEquals("ldi\tr21, ((0x23+2)+1)", parser.getOutput().getLastLine());
+        assertEquals("ldi\tr21, 38", parser.getOutput().getLastLine());
 
         parser = new Parser(true);
         parser.parseLine(".equ a = 12");
         parser.parseLine(".equ b = a + 7");
         parser.parseLine("r20 = (a + b)");
-        assertEquals("ldi\tr20, (12+(12+7))", parser.getOutput().getLastLine());
+        assertEquals("ldi\tr20, 31", parser.getOutput().getLastLine());
 
         parser = new Parser(true);
         parser.parseLine(".equ a = 12");
         parser.parseLine(".equ b = a + 7");
         parser.parseLine("r20 = r1 + (a - b)");
-        assertEquals("subi\tr20, -(12-(12+7))", parser.getOutput().getLastLine());
+        assertEquals("subi\tr20, 7", parser.getOutput().getLastLine());
+    }
+
+    @Test
+    void testMergeConst() {
+        Expression expr = new Expression();
+        expr.add(new Token(Token.TYPE_REGISTER, "r16"));
+        expr.add(new Token(Token.TYPE_OPERATOR, "="));
+        expr.add(new Token(Token.TYPE_OPERATOR, "("));
+        expr.add(new Token(Token.TYPE_CONST_EXPRESSION, "A"));
+        expr.add(new Token(Token.TYPE_OPERATOR, "+"));
+        expr.add(new Token(Token.TYPE_OPERATOR, "("));
+        expr.add(new Token(Token.TYPE_CONST_EXPRESSION, "(B)"));
+        expr.add(new Token(Token.TYPE_OPERATOR, ")"));
+        expr.add(new Token(Token.TYPE_OPERATOR, ")"));
+        expr.add(new Token(Token.TYPE_OPERATOR, "<<"));
+        expr.add(new Token(Token.TYPE_NUMBER, "2"));
+        expr.add(new Token(Token.TYPE_OPERATOR, "+"));
+        expr.add(new Token(Token.TYPE_REGISTER, "r1"));
+        Parser.mergeConst(expr);
+        assertEquals(5, expr.size());
+        assertEquals("(A+(B))<<2", expr.get(2).asString());
+        assertTrue(expr.get(2).isAnyConst());
+        assertTrue(expr.get(4).isRegister());
+    }
+
+    @Test
+    void testResolvedConstantsScope() throws SyntaxException {
+        Parser parser = new Parser(true);
+        parser.parseLine(".equ a = 5");
+        parser.parseLine(".equ b = a + 1");
+        parser.parseLine("r20 = b");
+        assertEquals("ldi\tr20, 6", parser.getOutput().getLastLine());
+        parser.parseLine(".set a = 9");
+        parser.parseLine("r20 = b");
+        assertEquals("ldi\tr20, 10", parser.getOutput().getLastLine());
+
+        parser.parseLine(".proc my_proc");
+        parser.parseLine("r21 = b");
+        assertEquals("ldi\tr21, 10", parser.getOutput().getLastLine());
+        parser.parseLine(".equ a = 6");
+        parser.parseLine("r21 = b");
+        assertEquals("ldi\tr21, 7", parser.getOutput().getLastLine());
+        parser.parseLine(".endproc");
+        parser.parseLine("r22 = b");
+        assertEquals("ldi\tr22, 10", parser.getOutput().getLastLine());
+
+        parser.parseLine(".proc other_proc");
+        parser.parseLine(".equ c = 1");
+        parser.parseLine("r23 = b");
+        assertEquals("ldi\tr23, 10", parser.getOutput().getLastLine());
     }
 
 
@@ -753,7 +811,141 @@ class ParserTest {
         );
     }
 
+    @Test
+    void testStreaming() throws IOException, SyntaxException {
+        File src = File.createTempFile("asmext", ".asm");
+        src.deleteOnExit();
+        Files.write(src.toPath(), String.join("\n",
+                ".use r16 as rmp",
+                ".proc proc1",
+                ".args val(r17)",
+                "\trmp = val ; copy",
+                "\tret",
+                ".endproc",
+                "start:",
+                "\trcall proc1 (val: 10)",
+                "\tloop (r20 = 3) {",
+                "\t\tio[PORTB] = rmp",
+                "\t}"
+        ).getBytes());
 
+        parser = new Parser();
+        parser.parse(src);
+        StringWriter expected = new StringWriter();
+        parser.getOutput().write(expected);
+
+        parser = new Parser();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        parser.parse(src, Channels.newChannel(streamed));
+        assertEquals(expected.toString(), streamed.toString());
+        assertTrue(parser.getOutput().size() > 10);
+        assertThrows(IllegalStateException.class, () -> parser.getOutput().get(0));
+
+        Files.write(src.toPath(), "\tr1 = 5\n".getBytes());
+        parser = new Parser();
+        SyntaxException e = assertThrows(SyntaxException.class, () -> parser.parse(src,
+                Channels.newChannel(new ByteArrayOutputStream())));
+        assertEquals(1, e.line);
+    }
+
+
+    @Test
+    void testParallelProcedures() throws IOException, SyntaxException {
+        List<String> lines = new ArrayList<>();
+        lines.add(".use r16 as rmp");
+        lines.add(".equ SIZE = 16");
+        for (int i = 0; i < 40; i++) {
+            lines.add(".proc proc" + i);
+            lines.add(".args val(r17)");
+            lines.add(".use r18 as cnt");
+            lines.add("\trmp = val");
+            lines.add("\tloop (cnt = SIZE) {");
+            lines.add("\t\tif (rmp == " + i + ") {");
+            lines.add("\t\t\tbreak");
+            lines.add("\t\t}");
+            lines.add("\t\trmp += 1");
+            lines.add("\t}");
+            lines.add("\trcall proc" + (i + 1) % 40 + " (val: rmp)");
+            lines.add("\tret");
+            lines.add(".endproc");
+            if (i % 10 == 3) {
+                lines.add(".use r20 as glob" + i);
+                lines.add("/*");
+                lines.add("\tloop (r16 = 1) {");
+                lines.add("*/");
+            } else if (i % 10 == 5) {
+                lines.add(".proc withDefine" + i);
+                lines.add("#define DEF" + i + " 5");
+                lines.add("\tr20 = DEF" + i);
+                lines.add(".endproc");
+            }
+            lines.add("label" + i + ":");
+            lines.add("\tr21 = SIZE");
+        }
+        File src = File.createTempFile("asmext", ".asm");
+        src.deleteOnExit();
+        Files.write(src.toPath(), String.join("\n", lines).getBytes());
+
+        parser = new Parser();
+        parser.setParallelThreshold(Integer.MAX_VALUE);
+        parser.parse(src);
+        StringWriter expected = new StringWriter();
+        parser.getOutput().write(expected);
+
+        parser = new Parser();
+        parser.setParallelThreshold(0);
+        parser.parse(src);
+        StringWriter parallel = new StringWriter();
+        parser.getOutput().write(parallel);
+        assertEquals(expected.toString(), parallel.toString());
+
+        // the first error in the source is reported
+        lines.set(20, "\tr1 = 5");
+        lines.set(lines.size() - 1, "\tr1 = 5");
+        Files.write(src.toPath(), String.join("\n", lines).getBytes());
+        parser = new Parser();
+        parser.setParallelThreshold(0);
+        SyntaxException e = assertThrows(SyntaxException.class, () -> parser.parse(src));
+        assertEquals(21, e.line);
+    }
+
+
+    @Test
+    void testPeepholeDirective() throws IOException, SyntaxException {
+        List<String> lines = new ArrayList<>();
+        lines.add(".proc proc1");
+        lines.add(".peephole off");
+        lines.add("\tr16 = 1");
+        lines.add("\tr16 = 1");
+        lines.add("\tret");
+        lines.add(".endproc");
+        lines.add("\tr17 = 2");
+        lines.add("\tr17 = 2");
+        File src = File.createTempFile("asmext", ".asm");
+        src.deleteOnExit();
+        Files.write(src.toPath(), String.join("\n", lines).getBytes());
+
+        String expected = "proc1:\n; .proc proc1\n;.peephole off\n\tldi\tr16, 1\n\tldi\tr16, 1\n\tret\n" +
+                "; .endproc\n\tldi\tr17, 2\n";
+        for (int threshold : new int[] {Integer.MAX_VALUE, 0}) {
+            parser = new Parser();
+            parser.setParallelThreshold(threshold);
+            parser.parse(src);
+            StringWriter out = new StringWriter();
+            parser.getOutput().write(out);
+            assertEquals(expected, out.toString());
+        }
+
+        parser = new Parser();
+        parser.setOptimizer(null);
+        parser.parse(src);
+        StringWriter out = new StringWriter();
+        parser.getOutput().write(out);
+        assertEquals(expected + "\tldi\tr17, 2\n", out.toString());
+
+        assertTrue(parseLineError(".peephole"));
+        assertTrue(parseLineError(".peephole yes"));
+    }
 
 //    @Test
 //    void testInline() throws SyntaxException {
@@ -766,4 +958,104 @@ class ParserTest {
 //        parser.parseLine("macro_name (1)");
 //    }
 
+    @Test
+    void testCycleCounter() throws IOException, SyntaxException {
+        List<String> lines = new ArrayList<>();
+        lines.add(".proc proc1");
+        lines.add("\tloop (r20 = 3) {");
+        lines.add("\t\tr21++");
+        lines.add("\t}");
+        lines.add("\tif (r16 == 1) {");
+        lines.add("\t\tr17 = 0");
+        lines.add("\t} else {");
+        lines.add("\t\tr17 = 1");
+        lines.add("\t}");
+        lines.add("\tret");
+        lines.add(".endproc");
+        File src = File.createTempFile("asmext", ".asm");
+        src.deleteOnExit();
+        Files.write(src.toPath(), String.join("\n", lines).getBytes());
+
+        String expected = "proc1:\n; .proc proc1\n\tldi\tr20, 3\nproc1__loop_r20_2:\n\t\tinc\tr21\n" +
+                "\tdec\tr20\n\tbrne\tproc1__loop_r20_2\n; loop proc1__loop_r20_2: 3 words, 3..4 cycles\n" +
+                "; \tif (r16 == 1) {\n\tcpi\tr16, 1\n\tbrne\tproc1__if_5\n\t\tclr\tr17\n" +
+                "\trjmp\tproc1__if_else_7\nproc1__if_5:\n\t\tldi\tr17, 1\nproc1__if_else_7:\n" +
+                "; if proc1__if_else_7: 5 words, 4..5 cycles\n\tret\n; .endproc\n" +
+                "; proc proc1: 10 words, 12..13 cycles\n";
+        String expectedReport = "line\tkind\tname\twords\tbest\tworst\tunknown\n" +
+                "1\tproc\tproc1\t10\t12\t13\t0\n" +
+                "2\tloop\tproc1__loop_r20_2\t3\t3\t4\t0\n" +
+                "5\tif\tproc1__if_else_7\t5\t4\t5\t0\n";
+        for (int threshold : new int[] {Integer.MAX_VALUE, 0}) {
+            parser = new Parser();
+            parser.setParallelThreshold(threshold);
+            parser.setCycleCounter(new CycleCounter(Core.CLASSIC));
+            parser.parse(src);
+            StringWriter out = new StringWriter();
+            parser.getOutput().write(out);
+            assertEquals(expected, out.toString());
+            StringWriter report = new StringWriter();
+            parser.getCycleReport().write(report);
+            assertEquals(expectedReport, report.toString());
+        }
+
+        parser = new Parser();
+        parser.setCycleCounter(new CycleCounter(Core.CLASSIC));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        parser.parse(src, Channels.newChannel(bytes));
+        assertEquals(expected, bytes.toString());
+    }
+
+    @Test
+    void testCycleCounterKeepsCode() throws IOException, SyntaxException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            lines.add(".proc proc" + i);
+            lines.add("\tr17 = 1");
+            lines.add("\tif (r16 == 1) {");
+            lines.add("\t\tr17 = 1");
+            lines.add("\t\tloop (r20 = 3) {");
+            lines.add("\t\t\tr21 = r21");
+            lines.add("\t\t}");
+            lines.add("\t}");
+            lines.add("\tret");
+            lines.add(".endproc");
+        }
+        File src = File.createTempFile("asmext", ".asm");
+        src.deleteOnExit();
+        Files.write(src.toPath(), String.join("\n", lines).getBytes());
+
+        parser = new Parser();
+        parser.parse(src);
+        StringWriter out = new StringWriter();
+        parser.getOutput().write(out);
+        String expected = out.toString();
+        assertEquals(300, expected.split("\tldi\tr17, 1", -1).length - 1);
+
+        for (int threshold : new int[] {Integer.MAX_VALUE, 0}) {
+            parser = new Parser();
+            parser.setParallelThreshold(threshold);
+            parser.setCycleCounter(new CycleCounter(Core.CLASSIC));
+            parser.parse(src);
+            out = new StringWriter();
+            parser.getOutput().write(out);
+            assertEquals(expected, withoutCycles(out.toString()));
+            assertEquals(300 * 3, parser.getCycleReport().getEntries().size());
+        }
+        // the stream is optimized by batches
+        parser = new Parser();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        parser.parse(src, Channels.newChannel(bytes));
+        expected = bytes.toString();
+        parser = new Parser();
+        parser.setCycleCounter(new CycleCounter(Core.CLASSIC));
+        bytes = new ByteArrayOutputStream();
+        parser.parse(src, Channels.newChannel(bytes));
+        assertEquals(expected, withoutCycles(bytes.toString()));
+        assertEquals(300 * 3, parser.getCycleReport().getEntries().size());
+    }
+
+    private static String withoutCycles(String output) {
+        return output.replaceAll("; (proc|loop|if|do-while) [^\\n]*: [^\\n]* cycles[^\\n]*\\n", "");
+    }
 }
@@ -36,6 +36,11 @@ class ParserUtilsTest {
         assertTrue(isRegister("YH"));
         assertFalse(isRegister("r32"));
         assertFalse(isRegister("r"));
+        assertFalse(isRegister("r01"));
+        assertFalse(isRegister("r1a"));
+        assertFalse(isRegister("zz"));
+        assertFalse(isRegister(""));
+        assertFalse(isRegister(null));
 
         assertTrue(isPair("X"));
         assertTrue(isPair("Y"));
@@ -45,7 +50,12 @@ class ParserUtilsTest {
         assertFalse(isPair("0"));
 
         assertTrue(isInstruction("mov"));
+        assertTrue(isInstruction("LDI"));
+        assertTrue(isInstruction("eiCall"));
         assertFalse(isInstruction("movs"));
+        assertFalse(isInstruction("mo"));
+        assertFalse(isInstruction(""));
+        assertFalse(isInstruction(null));
 
 //        assertTrue(isComment("// comment"));
 //        assertTrue(isComment("; comment"));
@@ -67,12 +77,24 @@ class ParserUtilsTest {
         assertFalse(isNumber("0b020"));
         assertFalse(isNumber("-0b020"));
         assertFalse(isNumber("-0b101b"));
+        assertFalse(isNumber("-"));
+        assertFalse(isNumber(""));
+        assertFalse(isNumber("-abc"));
+        assertTrue(isNumber("010"));
+        assertFalse(isNumber("019"));
+        assertEquals(8, parseValue("010"));
+        assertEquals(-15, parseValue("-017"));
+        assertEquals(10, parseValue("10"));
+        assertEquals(0, parseValue("00"));
 
         assertTrue(isConstExpression("1+2"));
         assertTrue(isConstExpression("(1 + 2)"));
         assertTrue(isConstExpression("1 +\t2"));
         assertTrue(isConstExpression("2*2+4"));
         assertTrue(isConstExpression("'x'"));
+        assertTrue(isConstExpression("low(x)"));
+        assertTrue(isConstExpression("Byte2(x)"));
+        assertFalse(isConstExpression("byte(x)"));
         assertFalse(isConstExpression("2*x"));
         assertFalse(isConstExpression("(2*2"));
         assertFalse(isConstExpression(")2*2("));
@@ -138,6 +160,35 @@ class ParserUtilsTest {
         mergeTokens(tokens);
         assertTrue(tokens.size() == 1);
         assertEquals("2*(5-1)*2", tokens.get(0));
+
+        tokens = lst("r16", "=", "-", "5", "+", "(", "(", "2", ")", ")");
+        mergeTokens(tokens);
+        assertEquals(lst("r16", "=", "-5+((2))"), tokens);
+
+        // tokens next to a merged one wait for the next pass
+        tokens = lst("0b101", "*", "0x1F", "<<", "0x1F", "|", "a");
+        mergeTokens(tokens);
+        assertEquals(lst("0b101*0x1F", "<<", "0x1F|a"), tokens);
+    }
+
+    @Test
+    void testMergeLongExpression() {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) {
+                tokens.add("|");
+                expected.append('|');
+            }
+            tokens.add("(");
+            tokens.add("1");
+            tokens.add("<<");
+            tokens.add(Integer.toString(i % 8));
+            tokens.add(")");
+            expected.append("(1<<").append(i % 8).append(')');
+        }
+        mergeTokens(tokens);
+        assertEquals(lst(expected.toString()), tokens);
     }
 
     @Test
@@ -136,4 +136,65 @@ class TokenStringTest {
         assertEquals(ts1.hashCode(), ts2.hashCode());
     }
 
+    @Test
+    void testTokenList() {
+        assertEquals(as("x<<=1"), a("x", "<<=", "1"));
+        assertEquals(as("x>>=1"), a("x", ">>=", "1"));
+        assertEquals(as("x++"), a("x", "++"));
+        assertEquals(as("if (a && b || !c)"), a("if", " ", "(", "a", " ", "&&", " ", "b", " ", "||", " ", "!", "c", ")"));
+        assertEquals(as("x = 1 // comment"), a("x", " ", "=", " ", "1", " "));
+        assertEquals(as("x=y/2"), a("x", "=", "y", "/", "2"));
+        assertEquals(as("   "), a());
+        assertEquals(as("; comment only"), a());
+
+        TokenString ts = new TokenString("\tr16 = Y+1 // comment");
+        assertEquals(ts.getIndent(), "\t");
+        assertEquals(ts.getComment(), "// comment");
+        ts.transformCommentToAsm();
+        assertEquals(ts.getComment(), "; comment");
+        assertTrue(ts.firstTokenIs("r16"));
+        assertTrue(ts.tokenIs(4, "Y"));
+        assertTrue(!ts.lastTokenIs("1"));
+        ts.removeEmptyTokens();
+        assertEquals(ts.getTokens(), a("r16", "=", "Y", "+", "1"));
+        assertTrue(ts.lastTokenIs("1"));
+        assertEquals(ts.mergeTokens(1), "=Y+1");
+
+        List<String> tokens = ts.getTokens();
+        tokens.set(2, "r28");
+        tokens.add(3, ".");
+        tokens.add(4, "r29");
+        assertEquals(tokens, a("r16", "=", "r28", ".", "r29", "+", "1"));
+        assertTrue(ts.tokenIs(2, "r28"));
+        tokens.set(1, null);
+        tokens.set(3, " ");
+        ts.removeEmptyTokens();
+        assertEquals(tokens, a("r16", "r28", "r29", "+", "1"));
+        assertEquals(ts.mergeTokens(0), "r16r28r29+1");
+    }
+
+    @Test
+    void testOverlay() {
+        TokenString src = new TokenString("  x = y // comment");
+        src.getParsed(List::size);
+        TokenString ts = src.overlay();
+        ts.modifyToken(0, "r16");
+        ts.getTokens().add(1, ".");
+        ts.transformCommentToAsm();
+        assertEquals(ts.getTokens(), a("r16", ".", " ", "=", " ", "y", " "));
+        assertEquals(src.getTokens(), a("x", " ", "=", " ", "y", " "));
+        assertEquals(ts.getIndent(), "  ");
+        assertEquals(ts.getComment(), "; comment");
+        assertEquals(src.getComment(), "// comment");
+        assertEquals(ts.toString(), src.toString());
+
+        TokenString compact = ts.compact();
+        assertEquals(compact.getTokens(), a("r16", ".", "=", "y"));
+        assertEquals(compact.getComment(), "; comment");
+        assertEquals(ts.size(), 7);
+
+        assertEquals(src.getParsed(List::size), Integer.valueOf(6));
+        src.removeEmptyTokens();
+        assertEquals(src.getParsed(List::size), Integer.valueOf(3));
+    }
 }
@@ -0,0 +1,48 @@
+package ru.trolsoft.avr;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistersTest {
+
+    @Test
+    void testIndex() {
+        for (int i = 0; i <= 31; i++) {
+            assertEquals(i, Registers.getIndex("r" + i));
+            assertEquals(i, Registers.getIndex("R" + i));
+        }
+        assertEquals(26, Registers.getIndex("XL"));
+        assertEquals(27, Registers.getIndex("xh"));
+        assertEquals(28, Registers.getIndex("yL"));
+        assertEquals(29, Registers.getIndex("YH"));
+        assertEquals(30, Registers.getIndex("zl"));
+        assertEquals(31, Registers.getIndex("Zh"));
+        assertEquals(-1, Registers.getIndex("r32"));
+        assertEquals(-1, Registers.getIndex("r05"));
+        assertEquals(-1, Registers.getIndex("X"));
+        assertEquals(-1, Registers.getIndex("wl"));
+        assertEquals(-1, Registers.getIndex("zx"));
+    }
+
+    @Test
+    void testProperties() {
+        assertTrue(Registers.isHighRegister("r16"));
+        assertTrue(Registers.isHighRegister("ZH"));
+        assertFalse(Registers.isHighRegister("r15"));
+        assertFalse(Registers.isHighRegister("X"));
+
+        assertTrue(Registers.isPairLow("r24"));
+        assertTrue(Registers.isPairLow("xl"));
+        assertTrue(Registers.isPairLow("ZL"));
+        assertFalse(Registers.isPairLow("r22"));
+        assertFalse(Registers.isPairLow("r25"));
+        assertFalse(Registers.isPairLow("zh"));
+
+        assertTrue(Registers.isEven("r0"));
+        assertTrue(Registers.isEven("yl"));
+        assertFalse(Registers.isEven("r1"));
+        assertFalse(Registers.isEven("YH"));
+        assertFalse(Registers.isEven("abc"));
+    }
+}